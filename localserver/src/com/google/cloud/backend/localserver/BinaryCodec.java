@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.localserver;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The binary entity format of the client (see BinaryEntityCodec in the core
+ * package) for the JSON trees of the server. The createdAt and updatedAt of
+ * the entities are written as dates, and read back as the date strings of
+ * {@link EntityStore}.
+ */
+class BinaryCodec {
+
+    static final String MEDIA_TYPE = "application/x-mbs-binary";
+
+    private static final byte[] MAGIC = {
+            'M', 'B', 'E', 1
+    };
+
+    private static final int NULL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int INTEGER = 3;
+    private static final int DOUBLE = 4;
+    private static final int DECIMAL = 5;
+    private static final int STRING = 6;
+    private static final int STRING_NEW = 7;
+    private static final int STRING_REF = 8;
+    private static final int DATE = 9;
+    private static final int LIST = 10;
+    private static final int MAP = 11;
+
+    private BinaryCodec() {
+    }
+
+    static byte[] encode(JsonElement e) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(MAGIC);
+        writeValue(out, new HashMap<String, Integer>(), e, false, true);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static JsonElement decode(byte[] message) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(message));
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("Not a binary entity message");
+            }
+        }
+        return readValue(in, new ArrayList<String>());
+    }
+
+    // inside the properties, the strings are not added to the dictionary and
+    // dates are left as strings
+    private static void writeValue(DataOutputStream out, Map<String, Integer> dictionary,
+            JsonElement e, boolean inProperties, boolean dictionaryString) throws IOException {
+        if (e == null || e.isJsonNull()) {
+            out.write(NULL);
+        } else if (e.isJsonObject()) {
+            JsonObject o = e.getAsJsonObject();
+            out.write(MAP);
+            writeVarLong(out, o.entrySet().size());
+            for (Map.Entry<String, JsonElement> entry : o.entrySet()) {
+                String key = entry.getKey();
+                writeString(out, dictionary, key, true);
+                JsonElement value = entry.getValue();
+                Date date = inProperties || !isDateKey(key) || !value.isJsonPrimitive()
+                        ? null : EntityStore.parseDate(value.getAsString());
+                if (date != null) {
+                    out.write(DATE);
+                    writeVarLong(out, zigzag(date.getTime()));
+                } else {
+                    writeValue(out, dictionary, value,
+                            inProperties || "properties".equals(key), !"id".equals(key));
+                }
+            }
+        } else if (e.isJsonArray()) {
+            JsonArray a = e.getAsJsonArray();
+            out.write(LIST);
+            writeVarLong(out, a.size());
+            for (JsonElement item : a) {
+                writeValue(out, dictionary, item, inProperties, dictionaryString);
+            }
+        } else {
+            JsonPrimitive p = e.getAsJsonPrimitive();
+            if (p.isBoolean()) {
+                out.write(p.getAsBoolean() ? TRUE : FALSE);
+            } else if (p.isNumber()) {
+                writeNumber(out, p.getAsString());
+            } else {
+                writeString(out, dictionary, p.getAsString(), !inProperties && dictionaryString);
+            }
+        }
+    }
+
+    private static boolean isDateKey(String key) {
+        return "createdAt".equals(key) || "updatedAt".equals(key);
+    }
+
+    private static void writeNumber(DataOutputStream out, String number) throws IOException {
+        if (number.matches("-?\\d{1,18}")) {
+            out.write(INTEGER);
+            writeVarLong(out, zigzag(Long.parseLong(number)));
+        } else {
+            out.write(DECIMAL);
+            writeBytes(out, number.getBytes("UTF-8"));
+        }
+    }
+
+    private static void writeString(DataOutputStream out, Map<String, Integer> dictionary,
+            String s, boolean dictionaryString) throws IOException {
+        if (!dictionaryString) {
+            out.write(STRING);
+            writeBytes(out, s.getBytes("UTF-8"));
+            return;
+        }
+        Integer index = dictionary.get(s);
+        if (index != null) {
+            out.write(STRING_REF);
+            writeVarLong(out, index);
+            return;
+        }
+        dictionary.put(s, dictionary.size());
+        out.write(STRING_NEW);
+        writeBytes(out, s.getBytes("UTF-8"));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static JsonElement readValue(DataInputStream in, List<String> dictionary)
+            throws IOException {
+        int tag = in.read();
+        switch (tag) {
+            case NULL:
+                return JsonNull.INSTANCE;
+            case FALSE:
+                return new JsonPrimitive(false);
+            case TRUE:
+                return new JsonPrimitive(true);
+            case INTEGER:
+                return new JsonPrimitive(unzigzag(readVarLong(in)));
+            case DOUBLE:
+                return new JsonPrimitive(in.readDouble());
+            case DECIMAL:
+                return new JsonPrimitive(new BigDecimal(readUtf8(in)));
+            case STRING:
+            case STRING_NEW:
+            case STRING_REF:
+                return new JsonPrimitive(readString(in, dictionary, tag));
+            case DATE:
+                return new JsonPrimitive(EntityStore.formatDate(
+                        new Date(unzigzag(readVarLong(in)))));
+            case LIST: {
+                int count = readCount(in);
+                JsonArray a = new JsonArray();
+                for (int i = 0; i < count; i++) {
+                    a.add(readValue(in, dictionary));
+                }
+                return a;
+            }
+            case MAP: {
+                int count = readCount(in);
+                JsonObject o = new JsonObject();
+                for (int i = 0; i < count; i++) {
+                    String key = readString(in, dictionary, in.read());
+                    o.add(key, readValue(in, dictionary));
+                }
+                return o;
+            }
+            case -1:
+                throw new EOFException("Truncated binary entity message");
+            default:
+                throw new IOException("Unknown tag: " + tag);
+        }
+    }
+
+    private static String readString(DataInputStream in, List<String> dictionary, int tag)
+            throws IOException {
+        switch (tag) {
+            case STRING:
+                return readUtf8(in);
+            case STRING_NEW: {
+                String s = readUtf8(in);
+                dictionary.add(s);
+                return s;
+            }
+            case STRING_REF: {
+                long index = readVarLong(in);
+                if (index >= dictionary.size()) {
+                    throw new IOException("Unknown dictionary index: " + index);
+                }
+                return dictionary.get((int) index);
+            }
+            default:
+                throw new IOException("Not a string: " + tag);
+        }
+    }
+
+    private static String readUtf8(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readCount(in)];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        long count = readVarLong(in);
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("Invalid count: " + count);
+        }
+        return (int) count;
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated binary entity message");
+            }
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
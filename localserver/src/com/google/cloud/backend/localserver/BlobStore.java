@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.localserver;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory store of the blobs of {@link LocalBackendServer}, by bucket name
+ * and object path, as Cloud Storage stores the blobs of the backend. All
+ * methods are synchronized.
+ */
+public class BlobStore {
+
+    /**
+     * A stored blob.
+     */
+    public static class Blob {
+
+        public final byte[] data;
+
+        public final String contentType;
+
+        Blob(byte[] data, String contentType) {
+            this.data = data;
+            this.contentType = contentType;
+        }
+    }
+
+    private final Map<String, Blob> blobs = new HashMap<String, Blob>();
+
+    /**
+     * Saves the blob, replacing the existing one.
+     *
+     * @param bucketName bucket name
+     * @param objectPath object path
+     * @param data content
+     * @param contentType content type, or null
+     */
+    public synchronized void put(String bucketName, String objectPath, byte[] data,
+            String contentType) {
+        blobs.put(key(bucketName, objectPath), new Blob(data, contentType));
+    }
+
+    /**
+     * Returns the blob, or null if not found.
+     */
+    public synchronized Blob get(String bucketName, String objectPath) {
+        return blobs.get(key(bucketName, objectPath));
+    }
+
+    /**
+     * Deletes the blob and returns it, or null if not found.
+     */
+    public synchronized Blob delete(String bucketName, String objectPath) {
+        return blobs.remove(key(bucketName, objectPath));
+    }
+
+    /**
+     * Returns the number of blobs.
+     */
+    public synchronized int count() {
+        return blobs.size();
+    }
+
+    private static String key(String bucketName, String objectPath) {
+        return bucketName + "/" + objectPath;
+    }
+}
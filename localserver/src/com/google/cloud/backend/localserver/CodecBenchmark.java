@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.localserver;
+
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.cloud.backend.android.mobilebackend.model.EntityDto;
+import com.google.cloud.backend.android.mobilebackend.model.EntityListDto;
+import com.google.cloud.backend.core.BinaryEntityCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares the JSON and binary ({@link BinaryEntityCodec}) encodings of list
+ * responses: for lists of 1,000 to 10,000 entities, it prints the size of
+ * each encoding (as is and gzipped) and the median time to encode it and to
+ * decode it into an {@link EntityListDto} as the client does (with
+ * {@link JsonObjectParser} for JSON).
+ * <p>
+ * This is not a test: run it with
+ * {@code java com.google.cloud.backend.localserver.CodecBenchmark [sizes] [rounds]}
+ * where sizes is a comma-separated list (compile it with BinaryEntityCodec of
+ * the core package, the model classes of the mobilebackend endpoint library,
+ * and the google-http-client and google-http-client-gson jars).
+ */
+public class CodecBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final GsonFactory jsonFactory = new GsonFactory();
+
+    private static final JsonObjectParser jsonParser = new JsonObjectParser(jsonFactory);
+
+    public static void main(String[] args) throws Exception {
+        String sizes = args.length > 0 ? args[0] : "1000,5000,10000";
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 9;
+
+        System.out.println("entities, format: bytes, gzipped bytes, encode ms, decode ms");
+        for (String size : sizes.split(",")) {
+            EntityListDto list = newList(Integer.parseInt(size.trim()));
+            for (String format : Arrays.asList("json", "binary")) {
+                run(format, list, rounds);
+            }
+        }
+    }
+
+    private static void run(String format, EntityListDto list, int rounds) throws IOException {
+        boolean json = "json".equals(format);
+        byte[] encoded = null;
+        long[] encodeNanos = new long[rounds];
+        long[] decodeNanos = new long[rounds];
+
+        // the first rounds warm up the JIT, and the median is printed
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            encoded = json ? jsonFactory.toByteArray(list) : BinaryEntityCodec.encode(list);
+            encodeNanos[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            EntityListDto decoded = json
+                    ? jsonParser.parseAndClose(new ByteArrayInputStream(encoded), UTF_8,
+                            EntityListDto.class)
+                    : BinaryEntityCodec.decode(new ByteArrayInputStream(encoded),
+                            EntityListDto.class);
+            decodeNanos[i] = System.nanoTime() - start;
+            if (decoded.getEntries().size() != list.getEntries().size()) {
+                throw new IllegalStateException("Decoded " + decoded.getEntries().size());
+            }
+        }
+        System.out.println(list.getEntries().size() + ", " + format + ": " + encoded.length
+                + ", " + gzip(encoded).length + ", " + median(encodeNanos) + ", "
+                + median(decodeNanos));
+    }
+
+    // entities like the ones of the guestbook sample, with a few more
+    // property types
+    private static EntityListDto newList(int size) {
+        Random random = new Random(size);
+        long now = System.currentTimeMillis();
+        List<EntityDto> entries = new ArrayList<EntityDto>();
+        for (int i = 0; i < size; i++) {
+            Map<String, Object> properties = new HashMap<String, Object>();
+            properties.put("message", "Message " + i + " posted from the guestbook sample app");
+            properties.put("likes", random.nextInt(1000));
+            properties.put("rating", random.nextDouble() * 5);
+            properties.put("pinned", random.nextBoolean());
+            properties.put("tags", Arrays.asList("tag" + random.nextInt(10), "android"));
+            properties.put("author", "_ref:Author:" + UUID.randomUUID());
+            String user = "user" + random.nextInt(20) + "@example.com";
+            entries.add(new EntityDto()
+                    .setId(UUID.randomUUID().toString())
+                    .setKindName("Guestbook")
+                    .setCreatedAt(new DateTime(now - i * 1000L, 0))
+                    .setUpdatedAt(new DateTime(now - i * 500L, 0))
+                    .setCreatedBy(user)
+                    .setUpdatedBy(user)
+                    .setOwner(user)
+                    .setProperties(properties));
+        }
+        return new EntityListDto().setEntries(entries);
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(bytes);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static String median(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return String.format("%.1f", sorted[sorted.length / 2] / 1e6);
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.localserver;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory store of the entities of {@link LocalBackendServer}. Entities are
+ * kept as JSON objects in the format of EntityDto of the Mobile Backend
+ * endpoint (id, kindName, properties, createdAt, updatedAt, createdBy,
+ * updatedBy and owner). All methods are synchronized.
+ */
+public class EntityStore {
+
+    private static final Pattern RFC_3339 = Pattern.compile(
+            "(\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2})(\\.\\d+)?(Z|z|[+-]\\d{2}:\\d{2})");
+
+    // entities by kind and id, in insertion order
+    private final Map<String, Map<String, JsonObject>> kinds =
+            new HashMap<String, Map<String, JsonObject>>();
+
+    /**
+     * Saves the entity. An entity without id gets a new id, and the
+     * timestamps are set as the backend does.
+     *
+     * @param entity EntityDto JSON
+     * @return the saved entity
+     */
+    public synchronized JsonObject save(JsonObject entity) {
+        String kindName = getString(entity, "kindName");
+        if (kindName == null) {
+            throw new IllegalArgumentException("No kindName specified");
+        }
+        String id = getString(entity, "id");
+        if (id == null) {
+            id = UUID.randomUUID().toString();
+        }
+        Map<String, JsonObject> entities = getKind(kindName);
+        JsonObject existing = entities.get(id);
+        String now = formatDate(new Date());
+
+        JsonObject saved = new JsonObject();
+        saved.addProperty("id", id);
+        saved.addProperty("kindName", kindName);
+        JsonElement properties = entity.get("properties");
+        saved.add("properties", properties != null ? properties : new JsonObject());
+        saved.add("createdAt",
+                existing != null ? existing.get("createdAt") : new JsonPrimitive(now));
+        saved.addProperty("updatedAt", now);
+        copy(existing != null ? existing : entity, saved, "createdBy");
+        copy(entity, saved, "updatedBy");
+        copy(existing != null ? existing : entity, saved, "owner");
+        entities.put(id, saved);
+        return saved;
+    }
+
+    /**
+     * Returns the entity, or null if not found.
+     */
+    public synchronized JsonObject get(String kindName, String id) {
+        return getKind(kindName).get(id);
+    }
+
+    /**
+     * Deletes the entity and returns it, or null if not found.
+     */
+    public synchronized JsonObject delete(String kindName, String id) {
+        return getKind(kindName).remove(id);
+    }
+
+    /**
+     * Returns the entities of the kind, sorted by the property and limited.
+     *
+     * @param kindName kind name
+     * @param sortedPropertyName property to sort by, or null
+     * @param ascending sort order
+     * @param limit max number of entities, or 0 for no limit
+     * @return list of the entities
+     */
+    public List<JsonObject> list(String kindName, String sortedPropertyName, boolean ascending,
+            int limit) {
+        return list(kindName, null, sortedPropertyName, ascending, limit);
+    }
+
+    /**
+     * Returns the entities of the kind that match the filter, sorted by the
+     * property and limited.
+     *
+     * @param kindName kind name
+     * @param filter FilterDto JSON, or null for all the entities
+     * @param sortedPropertyName property to sort by, or null
+     * @param ascending sort order
+     * @param limit max number of entities, or 0 for no limit
+     * @return list of the entities
+     */
+    public synchronized List<JsonObject> list(String kindName, JsonObject filter,
+            final String sortedPropertyName, final boolean ascending, int limit) {
+        List<JsonObject> l = new ArrayList<JsonObject>();
+        for (JsonObject e : getKind(kindName).values()) {
+            if (matches(filter, e)) {
+                l.add(e);
+            }
+        }
+        if (sortedPropertyName != null) {
+            Collections.sort(l, new Comparator<JsonObject>() {
+                @Override
+                public int compare(JsonObject e1, JsonObject e2) {
+                    int c = compareValues(getValue(e1, sortedPropertyName),
+                            getValue(e2, sortedPropertyName));
+                    return ascending ? c : -c;
+                }
+            });
+        }
+        if (limit > 0 && l.size() > limit) {
+            l = new ArrayList<JsonObject>(l.subList(0, limit));
+        }
+        return l;
+    }
+
+    /**
+     * Returns the number of entities of the kind.
+     */
+    public synchronized int count(String kindName) {
+        return getKind(kindName).size();
+    }
+
+    /**
+     * Returns the value of the property of the entity, including the
+     * reserved properties such as _createdAt.
+     */
+    static JsonElement getValue(JsonObject entity, String propertyName) {
+        if (propertyName.startsWith("_")) {
+            return entity.get(propertyName.substring(1));
+        }
+        JsonElement properties = entity.get("properties");
+        return properties != null && properties.isJsonObject()
+                ? properties.getAsJsonObject().get(propertyName) : null;
+    }
+
+    /**
+     * Returns true if the entity matches the FilterDto JSON (or the filter is
+     * null), as the client evaluates a filter (LocalQueryEvaluator): a
+     * missing property does not match, a list property matches if one of its
+     * values does, and values that can not be compared only match NE.
+     */
+    static boolean matches(JsonObject filter, JsonObject entity) {
+        String operator = filter == null ? null : getString(filter, "operator");
+        if (operator == null) {
+            return true;
+        }
+        if ("AND".equals(operator)) {
+            for (JsonObject f : getSubfilters(filter)) {
+                if (!matches(f, entity)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if ("OR".equals(operator)) {
+            for (JsonObject f : getSubfilters(filter)) {
+                if (matches(f, entity)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        JsonArray args = filter.getAsJsonArray("values");
+        if (args == null || args.size() == 0) {
+            throw new IllegalArgumentException("No property in filter: " + filter);
+        }
+        JsonElement value = getValue(entity, args.get(0).getAsString());
+        if (value == null || value.isJsonNull()) {
+            return false;
+        }
+        if (value.isJsonArray()) {
+            for (JsonElement v : value.getAsJsonArray()) {
+                if (!v.isJsonNull() && matchesValue(operator, v, args)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return matchesValue(operator, value, args);
+    }
+
+    private static List<JsonObject> getSubfilters(JsonObject filter) {
+        List<JsonObject> l = new ArrayList<JsonObject>();
+        JsonElement subfilters = filter.get("subfilters");
+        if (subfilters != null && subfilters.isJsonArray()) {
+            for (JsonElement f : subfilters.getAsJsonArray()) {
+                l.add(f.getAsJsonObject());
+            }
+        }
+        return l;
+    }
+
+    private static boolean matchesValue(String operator, JsonElement value, JsonArray args) {
+        if ("IN".equals(operator)) {
+            for (int i = 1; i < args.size(); i++) {
+                Integer c = compareFilterValues(value, args.get(i));
+                if (c != null && c == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (args.size() < 2) {
+            throw new IllegalArgumentException("No value in filter: " + args);
+        }
+        Integer c = compareFilterValues(value, args.get(1));
+        if (c == null) {
+            return "NE".equals(operator);
+        }
+        if ("EQ".equals(operator)) {
+            return c == 0;
+        } else if ("NE".equals(operator)) {
+            return c != 0;
+        } else if ("LT".equals(operator)) {
+            return c < 0;
+        } else if ("LE".equals(operator)) {
+            return c <= 0;
+        } else if ("GT".equals(operator)) {
+            return c > 0;
+        } else if ("GE".equals(operator)) {
+            return c >= 0;
+        }
+        throw new IllegalArgumentException("Unknown filter operator: " + operator);
+    }
+
+    // compares a property value with a filter value, or returns null if they
+    // are not comparable. Two dates (such as an entity's createdAt and an
+    // RFC 3339 filter value with another time zone) compare as instants.
+    private static Integer compareFilterValues(JsonElement v1, JsonElement v2) {
+        if (v2 == null || v2.isJsonNull() || !v1.isJsonPrimitive() || !v2.isJsonPrimitive()) {
+            return v1.equals(v2) ? 0 : null;
+        }
+        JsonPrimitive p1 = v1.getAsJsonPrimitive();
+        JsonPrimitive p2 = v2.getAsJsonPrimitive();
+        if (p1.isNumber() && p2.isNumber()) {
+            return Double.compare(p1.getAsDouble(), p2.getAsDouble());
+        }
+        if (p1.isBoolean() && p2.isBoolean()) {
+            return Boolean.valueOf(p1.getAsBoolean()).compareTo(p2.getAsBoolean());
+        }
+        if (p1.isString() && p2.isString()) {
+            Date d1 = parseRfc3339(p1.getAsString());
+            Date d2 = d1 == null ? null : parseRfc3339(p2.getAsString());
+            if (d2 != null) {
+                return d1.compareTo(d2);
+            }
+            return p1.getAsString().compareTo(p2.getAsString());
+        }
+        return null;
+    }
+
+    // parses an RFC 3339 date-time (with any fraction of a second and time
+    // zone offset), or returns null
+    static Date parseRfc3339(String s) {
+        Matcher m = RFC_3339.matcher(s);
+        if (!m.matches()) {
+            return null;
+        }
+        String fraction = m.group(2) == null ? "" : m.group(2).substring(1);
+        String millis = (fraction + "000").substring(0, 3);
+        String zone = m.group(3).equalsIgnoreCase("Z") ? "+0000" : m.group(3).replace(":", "");
+        SimpleDateFormat f = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        try {
+            return f.parse(m.group(1) + "." + millis + zone);
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    // compares two property values: missing values first, then numbers,
+    // booleans and strings (RFC 3339 dates compare as strings)
+    static int compareValues(JsonElement v1, JsonElement v2) {
+        boolean n1 = v1 == null || v1.isJsonNull();
+        boolean n2 = v2 == null || v2.isJsonNull();
+        if (n1 || n2) {
+            return n1 == n2 ? 0 : (n1 ? -1 : 1);
+        }
+        if (!v1.isJsonPrimitive() || !v2.isJsonPrimitive()) {
+            return v1.toString().compareTo(v2.toString());
+        }
+        JsonPrimitive p1 = v1.getAsJsonPrimitive();
+        JsonPrimitive p2 = v2.getAsJsonPrimitive();
+        if (p1.isNumber() && p2.isNumber()) {
+            return Double.compare(p1.getAsDouble(), p2.getAsDouble());
+        }
+        if (p1.isBoolean() && p2.isBoolean()) {
+            return Boolean.valueOf(p1.getAsBoolean()).compareTo(p2.getAsBoolean());
+        }
+        return p1.getAsString().compareTo(p2.getAsString());
+    }
+
+    /**
+     * Wraps the entities into EntityListDto JSON.
+     */
+    static JsonObject toEntityList(List<JsonObject> entities) {
+        JsonArray entries = new JsonArray();
+        for (JsonObject e : entities) {
+            entries.add(e);
+        }
+        JsonObject list = new JsonObject();
+        list.add("entries", entries);
+        return list;
+    }
+
+    static String getString(JsonObject o, String name) {
+        JsonElement e = o.get(name);
+        return e == null || e.isJsonNull() ? null : e.getAsString();
+    }
+
+    static String formatDate(Date date) {
+        return newDateFormat().format(date);
+    }
+
+    // parses a date formatted by formatDate, or returns null
+    static Date parseDate(String date) {
+        try {
+            return date == null ? null : newDateFormat().parse(date);
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    private static SimpleDateFormat newDateFormat() {
+        SimpleDateFormat f = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        f.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return f;
+    }
+
+    private static void copy(JsonObject from, JsonObject to, String name) {
+        JsonElement e = from.get(name);
+        if (e != null && !e.isJsonNull()) {
+            to.add(name, e);
+        }
+    }
+
+    private Map<String, JsonObject> getKind(String kindName) {
+        Map<String, JsonObject> entities = kinds.get(kindName);
+        if (entities == null) {
+            entities = new LinkedHashMap<String, JsonObject>();
+            kinds.put(kindName, entities);
+        }
+        return entities;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.localserver;
+
+import com.google.cloud.backend.core.CloudMetrics;
+import com.google.cloud.backend.core.HedgedExecutor;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+/**
+ * Simulates the reads of an entity against a {@link LocalBackendServer} with
+ * latency outliers, without and with a {@link HedgedExecutor}, and prints the
+ * latency percentiles and the extra load of the hedges.
+ * <p>
+ * This is not a test: run it with
+ * {@code java com.google.cloud.backend.localserver.HedgingSimulation [reads] [outlierRate] [outlierMillis]}
+ * (compile it with HedgedExecutor and CloudMetrics of the core package, which
+ * are plain Java).
+ */
+public class HedgingSimulation {
+
+    private final String entityUrl;
+
+    private HedgingSimulation(String entityUrl) {
+        this.entityUrl = entityUrl;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int reads = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        double outlierRate = args.length > 1 ? Double.parseDouble(args[1]) : 0.02;
+        long outlierMillis = args.length > 2 ? Long.parseLong(args[2]) : 500;
+
+        LocalBackendServer server = new LocalBackendServer(0);
+        server.start();
+        try {
+            String id = insert(server.getRootUrl() + "mobilebackend/v1/CloudEntities/insert/Post");
+            HedgingSimulation sim = new HedgingSimulation(
+                    server.getRootUrl() + "mobilebackend/v1/CloudEntities/Post/" + id);
+            server.setLatency(5).setLatencyOutliers(outlierRate, outlierMillis);
+            System.out.println("reads: " + reads + ", outliers: " + outlierRate + " x "
+                    + outlierMillis + " ms");
+
+            int before = server.getRequestCount();
+            long[] plain = sim.run(reads, null);
+            print("without hedging", plain, server.getRequestCount() - before, reads);
+
+            CloudMetrics metrics = new CloudMetrics();
+            HedgedExecutor hedgedExecutor = new HedgedExecutor(metrics);
+            before = server.getRequestCount();
+            long[] hedged = sim.run(reads, hedgedExecutor);
+            print("with hedging", hedged, server.getRequestCount() - before, reads);
+            System.out.println("  " + metrics);
+        } finally {
+            server.stop();
+        }
+    }
+
+    // reads the entity sequentially and returns the latencies
+    private long[] run(int reads, HedgedExecutor hedgedExecutor) throws IOException {
+        long[] latencies = new long[reads];
+        Callable<String> get = new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                return request("GET", entityUrl, null);
+            }
+        };
+        for (int i = 0; i < reads; i++) {
+            long start = System.nanoTime();
+            if (hedgedExecutor == null) {
+                request("GET", entityUrl, null);
+            } else {
+                hedgedExecutor.call(get);
+            }
+            latencies[i] = (System.nanoTime() - start) / 1000000;
+        }
+        return latencies;
+    }
+
+    private static void print(String label, long[] latencies, int requests, int reads) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        System.out.println(label + ": p50 " + percentile(sorted, 0.5) + " ms, p90 "
+                + percentile(sorted, 0.9) + " ms, p99 " + percentile(sorted, 0.99)
+                + " ms, max " + sorted[sorted.length - 1] + " ms, extra load "
+                + Math.round(100.0 * (requests - reads) / reads) + "%");
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.max(0, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static String insert(String url) throws IOException {
+        JsonObject entity = new JsonObject();
+        entity.add("properties", new JsonObject());
+        String response = request("POST", url, entity.toString());
+        return new JsonParser().parse(response).getAsJsonObject().get("id").getAsString();
+    }
+
+    private static String request(String method, String url, String body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            conn.setRequestMethod(method);
+            if (body != null) {
+                conn.setDoOutput(true);
+                conn.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+                OutputStream out = conn.getOutputStream();
+                out.write(body.getBytes("UTF-8"));
+                out.close();
+            }
+            if (conn.getResponseCode() != 200) {
+                throw new IOException("HTTP " + conn.getResponseCode() + " for " + url);
+            }
+            InputStream in = conn.getInputStream();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                bytes.write(buf, 0, n);
+            }
+            in.close();
+            return new String(bytes.toByteArray(), "UTF-8");
+        } finally {
+            conn.disconnect();
+        }
+    }
+}
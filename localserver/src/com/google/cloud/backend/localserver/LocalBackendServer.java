@@ -0,0 +1,931 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.localserver;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local stand-in for the Mobile Backend Starter backend, for development,
+ * benchmarks and fault-injection testing of the client without App Engine.
+ * It serves the CloudEntities and blobs methods of the mobilebackend v1
+ * endpoint on {@code http://localhost:<port>/_ah/api/} with an in-memory
+ * {@link EntityStore} and {@link BlobStore}. To use it from the emulator, set
+ * {@code Consts.ENDPOINT_ROOT_URL} (or CloudBackend.setRootUrl) to
+ * {@code http://10.0.2.2:<port>/_ah/api/} and disable auth.
+ * <p>
+ * Queries are filtered as by the backend (EQ, NE, LT, LE, GT, GE and IN
+ * filters on properties, combined with AND and OR), then sorted and limited.
+ * The upload and download URLs of the blobs point to {@code /_ah/blobstore/}
+ * on the same server, which stores blobs with PUT and serves them with GET
+ * until the URLs expire.
+ * <p>
+ * Mutating requests that carry an {@code X-Idempotency-Key} header are
+ * applied once per key: a retry with the same key gets the stored response.
+ * With {@link #setDropResponseRate(double)} or
+ * {@link #dropNextResponses(int)}, the server applies a request and then
+ * closes the connection without response, as when a response is lost after
+ * the backend has committed. With {@link #setErrorRate(double, int)} or
+ * {@link #failNextRequests(int, int)}, the server answers requests with an
+ * error status without applying them. With {@link #setLatency(long)} and
+ * {@link #setLatencyOutliers(double, long)}, the server delays its responses,
+ * as a backend with a few slow instances, and with
+ * {@link #setBandwidth(long)}, it delays them by their transfer time.
+ * <p>
+ * The responses of reads and queries carry an ETag (a hash of the response),
+ * and the responses of entity GETs also a Last-Modified (the updatedAt of
+ * the entity). A request whose If-None-Match matches the ETag, or that has no
+ * If-None-Match and an If-Modified-Since not older than the Last-Modified, is
+ * answered with 304 Not Modified without body.
+ * <p>
+ * Request bodies may be gzipped, and response bodies of at least 1 KB are
+ * gzipped when the request accepts it. Entities may be sent in the binary
+ * format of the client ({@link BinaryCodec}) instead of JSON, and successful
+ * responses are sent in it when the request accepts it.
+ * <p>
+ * Queries with a continuous scope subscribe their query id for their
+ * registration id until their subscription duration expires. Subscribing the
+ * same query id again replaces the subscription, so it only extends the
+ * expiry. The server records the subscriptions but sends no push
+ * notifications.
+ * <p>
+ * This tree is plain Java (it needs the gson jar of libs) and is not part of
+ * the Android app. Run it with
+ * {@code java com.google.cloud.backend.localserver.LocalBackendServer [port] [dropRate]
+ * [latencyMillis] [bytesPerSecond] [errorRate]} (the injected errors are 503).
+ */
+public class LocalBackendServer {
+
+    /**
+     * Name of the header that carries the idempotency key (the same as
+     * CloudBackend.IDEMPOTENCY_KEY_HEADER on the client).
+     */
+    public static final String IDEMPOTENCY_KEY_HEADER = "X-Idempotency-Key";
+
+    private static final String API_PATH = "/_ah/api/mobilebackend/v1/";
+
+    private static final String ENTITIES_PATH = API_PATH + "CloudEntities/";
+
+    private static final String BLOBS_PATH = API_PATH + "blobs/";
+
+    // path of the blob transfer URLs, as the Cloud Storage URLs of the backend
+    private static final String BLOBSTORE_PATH = "/_ah/blobstore/";
+
+    // validity of the short-lived blob URLs
+    private static final long BLOB_URL_TTL_MILLIS = 10 * 60 * 1000;
+
+    // max number of stored responses for idempotency keys
+    private static final int MAX_IDEMPOTENCY_KEYS = 10000;
+
+    // min size of a response body to gzip, when the client accepts it
+    private static final int GZIP_MIN_BYTES = 1024;
+
+    static {
+        // send the responses on persistent connections at once, instead of
+        // waiting for the ACK of the headers (Nagle's algorithm)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final EntityStore store = new EntityStore();
+
+    private final BlobStore blobStore = new BlobStore();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final HttpServer server;
+
+    // responses by idempotency key, oldest first
+    private final Map<String, Response> responsesByKey = new LinkedHashMap<String, Response>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Response> eldest) {
+            return size() > MAX_IDEMPOTENCY_KEYS;
+        }
+    };
+
+    private final Random random = new Random();
+
+    private final AtomicInteger dropNext = new AtomicInteger();
+
+    private final AtomicInteger failNext = new AtomicInteger();
+
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    private final AtomicInteger injectedErrorCount = new AtomicInteger();
+
+    // client addresses of the connections the requests were received on
+    private final Set<InetSocketAddress> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<InetSocketAddress, Boolean>());
+
+    private final AtomicInteger replayedCount = new AtomicInteger();
+
+    private final AtomicInteger notModifiedCount = new AtomicInteger();
+
+    private final AtomicInteger subscribeCount = new AtomicInteger();
+
+    // expiry of the subscriptions (0 for none) by regId:queryId
+    private final Map<String, Long> subscriptions = new HashMap<String, Long>();
+
+    private volatile double dropResponseRate;
+
+    private volatile long latencyMillis;
+
+    private volatile long connectionLatencyMillis;
+
+    private volatile double outlierRate;
+
+    private volatile long outlierMillis;
+
+    private volatile double errorRate;
+
+    private volatile int errorStatus;
+
+    private volatile int failNextStatus;
+
+    private volatile long bandwidth;
+
+    // a response of the endpoint
+    static class Response {
+
+        final int status;
+
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    // an error that is returned as an endpoint error response
+    static class EndpointException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        EndpointException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Creates a server on the specified port (0 for any free port).
+     *
+     * @param port port number
+     * @throws IOException When the port could not be bound.
+     */
+    public LocalBackendServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executor);
+        server.createContext(API_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                LocalBackendServer.this.handle(exchange);
+            }
+        });
+        server.createContext(BLOBSTORE_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleBlobTransfer(exchange);
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    /**
+     * Returns the root URL of the endpoint (to be set as the root URL of the
+     * Mobilebackend client).
+     */
+    public String getRootUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/_ah/api/";
+    }
+
+    public EntityStore getStore() {
+        return store;
+    }
+
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    /**
+     * Sets the probability that a response is dropped after the request has
+     * been applied.
+     *
+     * @param dropResponseRate probability from 0 to 1
+     * @return {@link LocalBackendServer}
+     */
+    public LocalBackendServer setDropResponseRate(double dropResponseRate) {
+        this.dropResponseRate = dropResponseRate;
+        return this;
+    }
+
+    /**
+     * Drops the responses of the next n requests after applying them.
+     *
+     * @param n number of responses to drop
+     * @return {@link LocalBackendServer}
+     */
+    public LocalBackendServer dropNextResponses(int n) {
+        dropNext.set(n);
+        return this;
+    }
+
+    /**
+     * Sets the delay of every response.
+     *
+     * @param latencyMillis delay in milliseconds
+     * @return {@link LocalBackendServer}
+     */
+    public LocalBackendServer setLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    /**
+     * Sets the additional delay of the first response on each connection, to
+     * emulate the setup of a connection over a slow network (the TCP and TLS
+     * handshakes), which is nearly free on the loopback interface.
+     *
+     * @param connectionLatencyMillis delay in milliseconds
+     * @return {@link LocalBackendServer}
+     */
+    public LocalBackendServer setConnectionLatency(long connectionLatencyMillis) {
+        this.connectionLatencyMillis = connectionLatencyMillis;
+        return this;
+    }
+
+    /**
+     * Sets the probability that a response is delayed by an outlier latency
+     * (in addition to the latency of {@link #setLatency(long)}).
+     *
+     * @param outlierRate probability from 0 to 1
+     * @param outlierMillis delay of an outlier in milliseconds
+     * @return {@link LocalBackendServer}
+     */
+    public LocalBackendServer setLatencyOutliers(double outlierRate, long outlierMillis) {
+        this.outlierRate = outlierRate;
+        this.outlierMillis = outlierMillis;
+        return this;
+    }
+
+    /**
+     * Sets the probability that a request fails with the status, before it is
+     * applied (unlike a dropped response).
+     *
+     * @param errorRate probability from 0 to 1
+     * @param errorStatus HTTP status of the error responses, such as 503
+     * @return {@link LocalBackendServer}
+     */
+    public LocalBackendServer setErrorRate(double errorRate, int errorStatus) {
+        this.errorRate = errorRate;
+        this.errorStatus = errorStatus;
+        return this;
+    }
+
+    /**
+     * Fails the next n requests with the status, before applying them.
+     *
+     * @param n number of requests to fail
+     * @param status HTTP status of the error responses
+     * @return {@link LocalBackendServer}
+     */
+    public LocalBackendServer failNextRequests(int n, int status) {
+        failNextStatus = status;
+        failNext.set(n);
+        return this;
+    }
+
+    /**
+     * Sets the bandwidth of every connection: the server delays each request
+     * and response by the time its body takes to transfer at that rate (as
+     * sent, that is gzipped if it is), including the blob uploads and
+     * downloads.
+     *
+     * @param bytesPerSecond bandwidth in bytes per second, or 0 for no limit
+     * @return {@link LocalBackendServer}
+     */
+    public LocalBackendServer setBandwidth(long bytesPerSecond) {
+        this.bandwidth = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Returns the number of requests received.
+     */
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Returns the number of connections the requests were received on.
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Returns the number of requests failed by error injection.
+     */
+    public int getInjectedErrorCount() {
+        return injectedErrorCount.get();
+    }
+
+    /**
+     * Returns the number of requests answered with a stored response for
+     * their idempotency key.
+     */
+    public int getReplayedCount() {
+        return replayedCount.get();
+    }
+
+    /**
+     * Returns the number of requests answered with 304 Not Modified.
+     */
+    public int getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    /**
+     * Returns the number of queries executed with a continuous scope.
+     */
+    public int getSubscribeCount() {
+        return subscribeCount.get();
+    }
+
+    /**
+     * Returns the number of subscriptions that have not expired.
+     */
+    public synchronized int getSubscriptionCount() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (long expiresAt : subscriptions.values()) {
+            if (expiresAt == 0 || expiresAt > now) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        boolean newConnection = connections.add(exchange.getRemoteAddress());
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            String key = exchange.getRequestHeaders().getFirst(IDEMPOTENCY_KEY_HEADER);
+            JsonObject body = readBody(exchange);
+            delay(newConnection);
+
+            // fail the request before it is applied
+            int injectedStatus = nextInjectedError();
+            if (injectedStatus != 0) {
+                send(exchange, error(injectedStatus, "Injected error"));
+                return;
+            }
+
+            Response response;
+            if (key != null && isMutating(method, path)) {
+                synchronized (responsesByKey) {
+                    response = responsesByKey.get(key);
+                    if (response != null) {
+                        replayedCount.incrementAndGet();
+                    } else {
+                        response = dispatch(exchange, body);
+                        responsesByKey.put(key, response);
+                    }
+                }
+            } else {
+                response = dispatch(exchange, body);
+            }
+
+            // drop the response after the request has been applied
+            if (shouldDrop()) {
+                exchange.close();
+                return;
+            }
+
+            // answer conditional reads and queries
+            if (response.status == 200 && !isMutating(method, path)) {
+                String eTag = eTag(response.body);
+                String lastModified = "GET".equals(method) ? lastModified(response.body) : null;
+                exchange.getResponseHeaders().set("ETag", eTag);
+                if (lastModified != null) {
+                    exchange.getResponseHeaders().set("Last-Modified", lastModified);
+                }
+                if (isNotModified(exchange, eTag, lastModified)) {
+                    notModifiedCount.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+            }
+            send(exchange, response);
+        } catch (RuntimeException e) {
+            send(exchange, error(500, e.toString()));
+        }
+    }
+
+    // sleeps for the injected latency
+    private void delay(boolean newConnection) {
+        long millis = latencyMillis;
+        if (newConnection) {
+            millis += connectionLatencyMillis;
+        }
+        if (random.nextDouble() < outlierRate) {
+            millis += outlierMillis;
+        }
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // serves the upload (PUT) and download (GET) URLs of the blobs
+    private void handleBlobTransfer(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        boolean newConnection = connections.add(exchange.getRemoteAddress());
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath().substring(BLOBSTORE_PATH.length());
+            byte[] data = readFully(exchange.getRequestBody());
+            throttle(data.length);
+            delay(newConnection);
+
+            int injectedStatus = nextInjectedError();
+            if (injectedStatus != 0) {
+                send(exchange, error(injectedStatus, "Injected error"));
+                return;
+            }
+            String expires = getQueryParameter(exchange, "expires");
+            if (expires != null && Long.parseLong(expires) < System.currentTimeMillis()) {
+                send(exchange, error(403, "URL expired"));
+                return;
+            }
+            int slash = path.indexOf('/');
+            if (slash <= 0 || slash == path.length() - 1) {
+                send(exchange, error(404, "Not found: " + path));
+                return;
+            }
+            String bucketName = path.substring(0, slash);
+            String objectPath = path.substring(slash + 1);
+            if ("PUT".equals(method) || "POST".equals(method)) {
+                blobStore.put(bucketName, objectPath, data,
+                        exchange.getRequestHeaders().getFirst("Content-Type"));
+                send(exchange, new Response(200, null));
+            } else if ("GET".equals(method)) {
+                BlobStore.Blob blob = blobStore.get(bucketName, objectPath);
+                if (blob == null) {
+                    send(exchange, error(404, "Blob not found: " + path));
+                    return;
+                }
+                if (blob.contentType != null) {
+                    exchange.getResponseHeaders().set("Content-Type", blob.contentType);
+                }
+                sendBytes(exchange, 200, blob.data);
+            } else {
+                send(exchange, error(405, "Method not allowed: " + method));
+            }
+        } catch (RuntimeException e) {
+            send(exchange, error(500, e.toString()));
+        }
+    }
+
+    // the status of the injected error of the request, or 0 for none
+    private int nextInjectedError() {
+        int status = 0;
+        while (true) {
+            int n = failNext.get();
+            if (n <= 0) {
+                if (random.nextDouble() < errorRate) {
+                    status = errorStatus;
+                }
+                break;
+            }
+            if (failNext.compareAndSet(n, n - 1)) {
+                status = failNextStatus;
+                break;
+            }
+        }
+        if (status != 0) {
+            injectedErrorCount.incrementAndGet();
+        }
+        return status;
+    }
+
+    // sleeps for the time the bytes take to transfer at the bandwidth
+    private void throttle(long bytes) {
+        long bytesPerSecond = bandwidth;
+        if (bytesPerSecond > 0 && bytes > 0) {
+            try {
+                Thread.sleep(bytes * 1000 / bytesPerSecond);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean shouldDrop() {
+        while (true) {
+            int n = dropNext.get();
+            if (n <= 0) {
+                return random.nextDouble() < dropResponseRate;
+            }
+            if (dropNext.compareAndSet(n, n - 1)) {
+                return true;
+            }
+        }
+    }
+
+    // a strong ETag of the response body
+    private static String eTag(String body) throws IOException {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(body.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder("\"");
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // the updatedAt of the entity as an HTTP date, or null
+    private static String lastModified(String body) {
+        Date updatedAt = EntityStore.parseDate(EntityStore.getString(
+                new JsonParser().parse(body).getAsJsonObject(), "updatedAt"));
+        return updatedAt == null ? null : newHttpDateFormat().format(updatedAt);
+    }
+
+    // checks If-None-Match, or If-Modified-Since if there is no If-None-Match
+    private static boolean isNotModified(HttpExchange exchange, String eTag,
+            String lastModified) {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(eTag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        if (ifModifiedSince == null || lastModified == null) {
+            return false;
+        }
+        try {
+            SimpleDateFormat f = newHttpDateFormat();
+            return !f.parse(lastModified).after(f.parse(ifModifiedSince));
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+
+    private static SimpleDateFormat newHttpDateFormat() {
+        SimpleDateFormat f = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        f.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return f;
+    }
+
+    private static boolean isMutating(String method, String path) {
+        return !"GET".equals(method) && !path.endsWith("/getAll") && !path.endsWith("/list");
+    }
+
+    // routes the request to the CloudEntities and blobs methods
+    private Response dispatch(HttpExchange exchange, JsonObject body) {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        try {
+            if (path.startsWith(BLOBS_PATH)) {
+                return dispatchBlobs(exchange, method, path.substring(BLOBS_PATH.length()));
+            }
+            if (!path.startsWith(ENTITIES_PATH)) {
+                throw new EndpointException(404, "Not found: " + path);
+            }
+            String[] p = path.substring(ENTITIES_PATH.length()).split("/");
+            JsonElement result;
+            if ("POST".equals(method) && p.length == 2 && p[0].equals("insert")) {
+                result = store.save(withKind(body, p[1]));
+            } else if (("POST".equals(method) || "PATCH".equals(method)) && p.length == 2
+                    && p[0].equals("update")) {
+                result = store.save(withKind(body, p[1]));
+            } else if ("POST".equals(method) && p.length == 1
+                    && (p[0].equals("insertAll") || p[0].equals("updateAll"))) {
+                List<JsonObject> saved = new ArrayList<JsonObject>();
+                for (JsonObject e : getEntries(body)) {
+                    saved.add(store.save(e));
+                }
+                result = EntityStore.toEntityList(saved);
+            } else if ("POST".equals(method) && p.length == 1 && p[0].equals("getAll")) {
+                List<JsonObject> found = new ArrayList<JsonObject>();
+                for (JsonObject e : getEntries(body)) {
+                    JsonObject o = store.get(EntityStore.getString(e, "kindName"),
+                            EntityStore.getString(e, "id"));
+                    if (o != null) {
+                        found.add(o);
+                    }
+                }
+                result = EntityStore.toEntityList(found);
+            } else if ("POST".equals(method) && p.length == 1 && p[0].equals("deleteAll")) {
+                List<JsonObject> deleted = new ArrayList<JsonObject>();
+                for (JsonObject e : getEntries(body)) {
+                    JsonObject o = store.delete(EntityStore.getString(e, "kindName"),
+                            EntityStore.getString(e, "id"));
+                    if (o != null) {
+                        deleted.add(o);
+                    }
+                }
+                result = EntityStore.toEntityList(deleted);
+            } else if ("POST".equals(method) && p.length == 1 && p[0].equals("list")) {
+                result = EntityStore.toEntityList(list(body));
+            } else if ("GET".equals(method) && p.length == 2) {
+                result = found(store.get(p[0], p[1]), p);
+            } else if ("DELETE".equals(method) && p.length == 2) {
+                result = found(store.delete(p[0], p[1]), p);
+            } else {
+                throw new EndpointException(404, "Not found: " + method + " " + path);
+            }
+            return new Response(200, result.toString());
+        } catch (EndpointException e) {
+            return error(e.status, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            return error(400, e.getMessage());
+        }
+    }
+
+    // the blobs methods: upload and download URLs, and delete
+    private Response dispatchBlobs(HttpExchange exchange, String method, String path)
+            throws EndpointException {
+        String[] p = path.split("/", 3);
+        if ("GET".equals(method) && p.length == 3
+                && (p[0].equals("uploads") || p[0].equals("downloads"))) {
+            if (p[0].equals("downloads") && blobStore.get(p[1], p[2]) == null) {
+                throw new EndpointException(404, "Blob not found: " + p[1] + "/" + p[2]);
+            }
+            String url = "http://" + exchange.getRequestHeaders().getFirst("Host")
+                    + BLOBSTORE_PATH + p[1] + "/" + p[2];
+            String accessMode = getQueryParameter(exchange, "accessMode");
+            JsonObject access = new JsonObject();
+            access.addProperty("shortLivedUrl",
+                    url + "?expires=" + (System.currentTimeMillis() + BLOB_URL_TTL_MILLIS));
+            if (accessMode != null && accessMode.startsWith("PUBLIC_READ")) {
+                access.addProperty("accessUrl", url);
+            }
+            if (p[0].equals("uploads")) {
+                JsonObject headers = new JsonObject();
+                String contentType = getQueryParameter(exchange, "contentType");
+                if (contentType != null) {
+                    headers.addProperty("Content-Type", contentType);
+                }
+                if ("PUBLIC_READ".equals(accessMode)) {
+                    headers.addProperty("x-goog-acl", "public-read");
+                }
+                access.addProperty("mandatoryHeaders", headers.toString());
+            }
+            return new Response(200, access.toString());
+        } else if ("DELETE".equals(method) && p.length >= 2) {
+            String objectPath = p.length == 3 ? p[1] + "/" + p[2] : p[1];
+            if (blobStore.delete(p[0], objectPath) == null) {
+                throw new EndpointException(404, "Blob not found: " + path);
+            }
+            return new Response(204, null);
+        }
+        throw new EndpointException(404, "Not found: " + method + " " + BLOBS_PATH + path);
+    }
+
+    // executes a query: kind, filter, sort and limit. A continuous query
+    // subscribes.
+    private List<JsonObject> list(JsonObject query) throws EndpointException {
+        String kindName = EntityStore.getString(query, "kindName");
+        if (kindName == null) {
+            throw new EndpointException(400, "No kindName specified");
+        }
+        String scope = EntityStore.getString(query, "scope");
+        if ("FUTURE".equals(scope) || "FUTURE_AND_PAST".equals(scope)) {
+            subscribe(query);
+            if ("FUTURE".equals(scope)) {
+                return new ArrayList<JsonObject>();
+            }
+        }
+        JsonElement filter = query.get("filterDto");
+        String sort = EntityStore.getString(query, "sortedPropertyName");
+        JsonElement asc = query.get("sortAscending");
+        JsonElement limit = query.get("limit");
+        return store.list(kindName, filter != null && filter.isJsonObject()
+                ? filter.getAsJsonObject() : null, sort, asc == null || asc.getAsBoolean(),
+                limit == null ? 0 : limit.getAsInt());
+    }
+
+    private synchronized void subscribe(JsonObject query) {
+        subscribeCount.incrementAndGet();
+        JsonElement duration = query.get("subscriptionDurationSec");
+        long durationSec = duration == null || duration.isJsonNull()
+                ? 24 * 60 * 60 : duration.getAsLong();
+        subscriptions.put(EntityStore.getString(query, "regId") + ":"
+                + EntityStore.getString(query, "queryId"),
+                durationSec == 0 ? 0 : System.currentTimeMillis() + durationSec * 1000);
+    }
+
+    private static JsonObject found(JsonObject entity, String[] p) throws EndpointException {
+        if (entity == null) {
+            throw new EndpointException(404, "Entity not found: " + p[0] + "/" + p[1]);
+        }
+        return entity;
+    }
+
+    private static JsonObject withKind(JsonObject entity, String kindName) {
+        entity.addProperty("kindName", kindName);
+        return entity;
+    }
+
+    private static List<JsonObject> getEntries(JsonObject list) {
+        List<JsonObject> l = new ArrayList<JsonObject>();
+        JsonElement entries = list.get("entries");
+        if (entries != null && entries.isJsonArray()) {
+            for (JsonElement e : entries.getAsJsonArray()) {
+                l.add(e.getAsJsonObject());
+            }
+        }
+        return l;
+    }
+
+    private static Response error(int status, String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("code", status);
+        error.addProperty("message", message);
+        JsonObject o = new JsonObject();
+        o.add("error", error);
+        return new Response(status, o.toString());
+    }
+
+    // reads the JSON (or binary) body, which the client may send gzipped
+    private JsonObject readBody(HttpExchange exchange) throws IOException {
+        byte[] bytes = readFully(exchange.getRequestBody());
+        throttle(bytes.length);
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            bytes = readFully(new GZIPInputStream(new ByteArrayInputStream(bytes)));
+        }
+        if (bytes.length == 0) {
+            return new JsonObject();
+        }
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType != null && contentType.startsWith(BinaryCodec.MEDIA_TYPE)) {
+            JsonElement e = BinaryCodec.decode(bytes);
+            return e.isJsonObject() ? e.getAsJsonObject() : new JsonObject();
+        }
+        JsonElement e = new JsonParser().parse(new InputStreamReader(
+                new ByteArrayInputStream(bytes), "UTF-8"));
+        return e.isJsonObject() ? e.getAsJsonObject() : new JsonObject();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            bytes.write(buf, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+
+    // the decoded value of the query parameter, or null
+    private static String getQueryParameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        try {
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+                if (key.equals(name)) {
+                    return eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+                }
+            }
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void send(HttpExchange exchange, Response response) throws IOException {
+        if (response.body == null) {
+            exchange.sendResponseHeaders(response.status, -1);
+            exchange.close();
+            return;
+        }
+        byte[] body = response.body.getBytes("UTF-8");
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        exchange.getResponseHeaders().set("Vary", "Accept, Accept-Encoding");
+        // only the entities have a binary format
+        if (response.status == 200 && accept != null && accept.contains(BinaryCodec.MEDIA_TYPE)
+                && exchange.getRequestURI().getPath().startsWith(ENTITIES_PATH)) {
+            body = BinaryCodec.encode(new JsonParser().parse(response.body));
+            exchange.getResponseHeaders().set("Content-Type", BinaryCodec.MEDIA_TYPE);
+        } else {
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        }
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (body.length >= GZIP_MIN_BYTES && acceptEncoding != null
+                && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+            gzip.write(body);
+            gzip.close();
+            body = bytes.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        sendBytes(exchange, response.status, body);
+    }
+
+    private void sendBytes(HttpExchange exchange, int status, byte[] body) throws IOException {
+        throttle(body.length);
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        LocalBackendServer server = new LocalBackendServer(port);
+        if (args.length > 1) {
+            server.setDropResponseRate(Double.parseDouble(args[1]));
+        }
+        if (args.length > 2) {
+            server.setLatency(Long.parseLong(args[2]));
+        }
+        if (args.length > 3) {
+            server.setBandwidth(Long.parseLong(args[3]));
+        }
+        if (args.length > 4) {
+            server.setErrorRate(Double.parseDouble(args[4]), 503);
+        }
+        server.start();
+        System.out.println("Local backend listening on " + server.getRootUrl());
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.localserver;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.cloud.backend.core.CloudTransports;
+import com.google.cloud.backend.core.Consts;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads an entity from a {@link LocalBackendServer} with bursts of concurrent
+ * requests, on the default transport (a connection per request, as keep-alive
+ * is disabled by CloudBackend) and on the pooled transport of
+ * {@link CloudTransports}, and prints the wall time and latency percentiles
+ * of each burst with the number of connections it opened. The server delays
+ * the first response of each connection to emulate the connection setup of a
+ * mobile network.
+ * <p>
+ * This is not a test: run it with
+ * {@code java com.google.cloud.backend.localserver.TransportBenchmark [reads] [bursts] [latencyMillis] [connectionLatencyMillis] [maxConnections]}
+ * (compile it with CloudTransports and Consts of the core package, the
+ * google-http-client and google-http-client-android jars, and the Apache
+ * HttpClient 4 jars, which are part of Android but not of the JVM).
+ */
+public class TransportBenchmark {
+
+    private final LocalBackendServer server;
+
+    private final GenericUrl entityUrl;
+
+    private final ExecutorService executor;
+
+    private TransportBenchmark(LocalBackendServer server, String entityUrl, int reads) {
+        this.server = server;
+        this.entityUrl = new GenericUrl(entityUrl);
+        this.executor = Executors.newFixedThreadPool(reads);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int reads = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int bursts = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        long latencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 20;
+        long connectionLatencyMillis = args.length > 3 ? Long.parseLong(args[3]) : 100;
+        int maxConnections = args.length > 4
+                ? Integer.parseInt(args[4]) : Consts.TRANSPORT_MAX_CONNECTIONS;
+
+        // as CloudBackend does unless the connections are kept warm
+        System.setProperty("http.keepAlive", "false");
+
+        LocalBackendServer server = new LocalBackendServer(0);
+        server.start();
+        try {
+            String id = insert(server.getRootUrl() + "mobilebackend/v1/CloudEntities/insert/Post");
+            TransportBenchmark benchmark = new TransportBenchmark(server,
+                    server.getRootUrl() + "mobilebackend/v1/CloudEntities/Post/" + id, reads);
+            server.setLatency(latencyMillis).setConnectionLatency(connectionLatencyMillis);
+            System.out.println("reads: " + reads + " concurrent x " + bursts
+                    + " bursts, latency: " + latencyMillis + " ms, connection setup: "
+                    + connectionLatencyMillis + " ms");
+
+            benchmark.run("default", new NetHttpTransport(), reads, bursts);
+            benchmark.run("pooled (" + maxConnections + " connections)",
+                    CloudTransports.newPooledTransport(maxConnections), reads, bursts);
+            benchmark.executor.shutdown();
+        } finally {
+            server.stop();
+        }
+    }
+
+    // sends the bursts of concurrent reads on the transport
+    private void run(String label, HttpTransport transport, int reads, int bursts)
+            throws Exception {
+        final HttpRequestFactory factory = transport.createRequestFactory();
+        for (int b = 1; b <= bursts; b++) {
+            final CountDownLatch go = new CountDownLatch(1);
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for (int i = 0; i < reads; i++) {
+                futures.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        go.await();
+                        long start = System.nanoTime();
+                        HttpResponse response = factory.buildGetRequest(entityUrl).execute();
+                        response.parseAsString();
+                        return (System.nanoTime() - start) / 1000000;
+                    }
+                }));
+            }
+            int connectionsBefore = server.getConnectionCount();
+            long start = System.nanoTime();
+            go.countDown();
+            long[] latencies = new long[reads];
+            for (int i = 0; i < reads; i++) {
+                latencies[i] = futures.get(i).get();
+            }
+            long wall = (System.nanoTime() - start) / 1000000;
+            print(label + ", burst " + b, wall, latencies,
+                    server.getConnectionCount() - connectionsBefore);
+        }
+    }
+
+    private static void print(String label, long wall, long[] latencies, int connections) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        System.out.println(label + ": wall " + wall + " ms, p50 " + percentile(sorted, 0.5)
+                + " ms, p90 " + percentile(sorted, 0.9) + " ms, max "
+                + sorted[sorted.length - 1] + " ms, new connections " + connections);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.max(0, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static String insert(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+            OutputStream out = conn.getOutputStream();
+            out.write("{\"properties\": {}}".getBytes("UTF-8"));
+            out.close();
+            if (conn.getResponseCode() != 200) {
+                throw new IOException("HTTP " + conn.getResponseCode() + " for " + url);
+            }
+            String response = new Scanner(conn.getInputStream(), "UTF-8")
+                    .useDelimiter("\\A").next();
+            return new JsonParser().parse(response).getAsJsonObject().get("id").getAsString();
+        } finally {
+            conn.disconnect();
+        }
+    }
+}
@@ -15,7 +15,11 @@
 package com.google.cloud.backend;
 
 import com.google.android.gms.gcm.GoogleCloudMessaging;
+import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
+import com.google.cloud.backend.core.CloudBackend;
+import com.google.cloud.backend.core.CloudPreconnector;
 import com.google.cloud.backend.core.Consts;
+import com.google.cloud.backend.core.QuerySnapshotStore;
 
 import android.app.Application;
 import android.app.IntentService;
@@ -29,10 +33,21 @@ import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class manages Google Cloud Messaging push notifications and CloudQuery
- * subscriptions.
+ * subscriptions. When a continuous query is notified while no activity
+ * listens to the notifications (such as when the app is in the background),
+ * the snapshot of the query in {@link QuerySnapshotStore} is brought up to
+ * date here, so that the next launch shows the fresh results at once.
  */
 public class GCMIntentService extends IntentService {
 
@@ -40,12 +55,54 @@ public class GCMIntentService extends IntentService {
 
     private static final String GCM_TYPEID_QUERY = "query";
 
+    private static final String GCM_TYPEID_INVALIDATE = "invalidate";
+
+    private static final String GCM_KEY_IDS = "ids";
+
     private static final String PROPERTY_REG_ID = "registration_id";
 
     private static final String PROPERTY_APP_VERSION = "app_version";
 
     public static final String BROADCAST_ON_MESSAGE = "on-message-event";
-    
+
+    /**
+     * Action of the local broadcast of an invalidation push, with the extras
+     * {@link #EXTRA_KIND_NAME} and {@link #EXTRA_IDS}.
+     */
+    public static final String BROADCAST_ON_INVALIDATE = "on-invalidate-event";
+
+    /**
+     * Kind name of the changed entities (String).
+     */
+    public static final String EXTRA_KIND_NAME = "kindName";
+
+    /**
+     * Ids of the changed entities (String array), or none if the whole kind
+     * has changed.
+     */
+    public static final String EXTRA_IDS = "ids";
+
+    // runs the registration attempts off the UI thread
+    private static final ScheduledExecutorService registrationExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "CloudBackend-gcm");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private static final Random random = new Random();
+
+    // counted down when the registration id is available
+    private static CountDownLatch registered;
+
+    // run when the registration id is available
+    private static final List<Runnable> onRegistered = new ArrayList<Runnable>();
+
+    private static volatile String registrationId;
+
     @Override
     protected void onHandleIntent(Intent intent) {
         Bundle extras = intent.getExtras();
@@ -66,6 +123,12 @@ public class GCMIntentService extends IntentService {
                 Log.i(Consts.TAG, "onHandleIntent: message deleted");
             // If it's a regular GCM message, do some work.
             } else if (GoogleCloudMessaging.MESSAGE_TYPE_MESSAGE.equals(messageType)) {
+
+                // the push is likely followed by requests to the backend (at
+                // the default root URL, as the backend of refreshSnapshot)
+                if (Consts.PRECONNECT_ENABLED) {
+                    CloudPreconnector.getInstance(this).preconnect(Consts.ENDPOINT_ROOT_URL);
+                }
                 String subId = intent.getStringExtra(GCM_KEY_SUBID);
                 Log.i(Consts.TAG, "onHandleIntent: subId: " + subId);
                 String[] tokens = subId.split(":");
@@ -76,7 +139,19 @@ public class GCMIntentService extends IntentService {
                     Intent messageIntent = new Intent(BROADCAST_ON_MESSAGE);
                     messageIntent.putExtras(intent);
                     messageIntent.putExtra("token", tokens[2]);
-                    LocalBroadcastManager.getInstance(this).sendBroadcast(messageIntent);
+                    if (!LocalBroadcastManager.getInstance(this).sendBroadcast(messageIntent)) {
+                        refreshSnapshot(tokens[2]);
+                    }
+                } else if (GCM_TYPEID_INVALIDATE.equals(typeId)) {
+                    // "<regId>:invalidate:<kindName>", with the optional
+                    // comma-separated ids of the changed entities
+                    Intent invalidateIntent = new Intent(BROADCAST_ON_INVALIDATE);
+                    invalidateIntent.putExtra(EXTRA_KIND_NAME, tokens[2]);
+                    String ids = intent.getStringExtra(GCM_KEY_IDS);
+                    if (ids != null && !ids.isEmpty()) {
+                        invalidateIntent.putExtra(EXTRA_IDS, ids.split(","));
+                    }
+                    LocalBroadcastManager.getInstance(this).sendBroadcast(invalidateIntent);
                 }
             }
         }
@@ -84,20 +159,144 @@ public class GCMIntentService extends IntentService {
         GCMBroadcastReceiver.completeWakefulIntent(intent);
     }
 
+    // brings the snapshot of the query up to date without UI, with the
+    // account last signed in with CloudBackendFragment
+    private void refreshSnapshot(String queryId) {
+        CloudBackend backend = new CloudBackend();
+        if (Consts.PRECONNECT_ENABLED) {
+            backend.setPreconnector(CloudPreconnector.getInstance(this));
+        }
+        if (Consts.IS_AUTH_ENABLED) {
+            String accountName = getSharedPreferences(Consts.PREF_KEY_CLOUD_BACKEND,
+                    Context.MODE_PRIVATE).getString(Consts.PREF_KEY_ACCOUNT_NAME, null);
+            if (accountName == null) {
+                return;
+            }
+            GoogleAccountCredential credential = GoogleAccountCredential.usingAudience(this,
+                    Consts.AUTH_AUDIENCE);
+            credential.setSelectedAccountName(accountName);
+            backend.setCredential(credential);
+        }
+        try {
+            if (QuerySnapshotStore.getInstance(this).refresh(backend, queryId) != null) {
+                Log.i(Consts.TAG, "onHandleIntent: refreshed snapshot of " + queryId);
+            }
+        } catch (IOException e) {
+            Log.i(Consts.TAG, "onHandleIntent: failed to refresh snapshot: " + e);
+        }
+    }
+
+    /**
+     * Starts the registration of the application, unless it has been started
+     * already. This method does not block: the registration runs in the
+     * background and is shared by all the callers of
+     * {@link #getRegistrationId(Application)}. If it fails, it is retried
+     * with exponential backoff until it succeeds.
+     *
+     * @param context {@link Context}
+     */
+    public static synchronized void startRegistration(Context context) {
+        if (registered != null) {
+            return;
+        }
+        registered = new CountDownLatch(1);
+        final Context app = context.getApplicationContext();
+        registrationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                register(app, Consts.GCM_BACKOFF_INITIAL_MS);
+            }
+        });
+    }
+
     /**
      * Returns registration id associated with the specified {@link Application}
-     * . This method will block the thread until regId will be available.
+     * . This method will block the thread until regId will be available, or
+     * for at most {@link Consts#GCM_REGISTRATION_TIMEOUT_MS}, so it must not
+     * be called on UI thread.
      * 
      * @param app {@link Application}
-     * @return registration id
+     * @return registration id, or null if the registration has not succeeded
+     *         yet
      */
     public static String getRegistrationId(Application app) {
+        startRegistration(app);
+        CountDownLatch latch;
+        synchronized (GCMIntentService.class) {
+            latch = registered;
+        }
+        try {
+            if (latch.await(Consts.GCM_REGISTRATION_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                return registrationId;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.i(Consts.TAG, "Registration is not available yet.");
+        return null;
+    }
+
+    /**
+     * Runs the task on a background thread when the registration id is
+     * available, such as to subscribe a continuous query that was listed
+     * before the registration succeeded. If it is available already, the task
+     * is run at once.
+     *
+     * @param context {@link Context}
+     * @param task task to run
+     */
+    public static void runWhenRegistered(Context context, Runnable task) {
+        startRegistration(context);
+        synchronized (GCMIntentService.class) {
+            if (registered.getCount() > 0) {
+                onRegistered.add(task);
+                return;
+            }
+        }
+        registrationExecutor.execute(task);
+    }
+
+    // reads the stored registration id, or registers the app. A failed
+    // attempt is retried after the backoff (with jitter), which is doubled up
+    // to the max for the next one.
+    private static void register(final Context app, final long backoffMillis) {
+        String regId = getStoredRegistrationId(app);
+        if (regId == null) {
+            try {
+                regId = doRegister(app);
+            } catch (IOException e) {
+                long delay = backoffMillis / 2 + (long) (random.nextDouble() * backoffMillis / 2);
+                Log.i(Consts.TAG, "Registration failed, retrying in " + delay + " ms: " + e);
+                registrationExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        register(app, Math.min(backoffMillis * 2, Consts.GCM_BACKOFF_MAX_MS));
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        registrationId = regId;
+        List<Runnable> tasks;
+        synchronized (GCMIntentService.class) {
+            registered.countDown();
+            tasks = new ArrayList<Runnable>(onRegistered);
+            onRegistered.clear();
+        }
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    // returns the stored registration id, or null if there is none for the
+    // current version of the app
+    private static String getStoredRegistrationId(Context app) {
         SharedPreferences prefs = getGcmPreferences(app);
         String regId = prefs.getString(PROPERTY_REG_ID, "");
         
         if (regId.isEmpty()) {
             Log.i(Consts.TAG, "Registration not found.");
-            return doRegister(app);
+            return null;
         }
         // Check if app was updated; if so, it must clear the registration ID
         // since the existing regID is not guaranteed to work with the new
@@ -106,36 +305,28 @@ public class GCMIntentService extends IntentService {
         int currentVersion = getAppVersion(app);
         if (registeredVersion != currentVersion) {
             Log.i(Consts.TAG, "App version changed.");
-            return doRegister(app);
+            return null;
         }
         return regId;
     }
     
-    private static String doRegister(Context context) {
-        String msg = "";
-        try {
-            GoogleCloudMessaging gcm = GoogleCloudMessaging.getInstance(context);
-            String regId = gcm.register(Consts.PROJECT_NUMBER);
-            msg = "Device registered, registration ID=" + regId;
-
-            // For this demo: we don't need to send it because the device will send
-            // upstream messages to a server that echo back the message using the
-            // 'from' address in the message.
-
-            SharedPreferences prefs = getGcmPreferences(context);
-            int appVersion = getAppVersion(context);
-            Log.i(Consts.TAG, "Saving regId on app version " + appVersion);
-            SharedPreferences.Editor editor = prefs.edit();
-            editor.putString(PROPERTY_REG_ID, regId);
-            editor.putInt(PROPERTY_APP_VERSION, appVersion);
-            editor.commit();
-        } catch (IOException ex) {
-            msg = "Error :" + ex.getMessage();
-            // If there is an error, don't just keep trying to register.
-            // Require the user to click a button again, or perform
-            // exponential back-off.
-        }
-        return msg;
+    private static String doRegister(Context context) throws IOException {
+        GoogleCloudMessaging gcm = GoogleCloudMessaging.getInstance(context);
+        String regId = gcm.register(Consts.PROJECT_NUMBER);
+        Log.i(Consts.TAG, "Device registered, registration ID=" + regId);
+
+        // For this demo: we don't need to send it because the device will send
+        // upstream messages to a server that echo back the message using the
+        // 'from' address in the message.
+
+        SharedPreferences prefs = getGcmPreferences(context);
+        int appVersion = getAppVersion(context);
+        Log.i(Consts.TAG, "Saving regId on app version " + appVersion);
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putString(PROPERTY_REG_ID, regId);
+        editor.putInt(PROPERTY_APP_VERSION, appVersion);
+        editor.commit();
+        return regId;
     }
 
     public GCMIntentService() {
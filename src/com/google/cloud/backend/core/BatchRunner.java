@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes chunks of a batched backend call in parallel on a shared thread
+ * pool, with a bound on the number of chunks in flight for each call.
+ */
+class BatchRunner {
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    // shared by all the backends. Threads are created on demand and reclaimed
+    // when idle, so the pool costs nothing while no batch is running.
+    private static final ExecutorService executor =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "CloudBackend-batch-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private BatchRunner() {
+    }
+
+    /**
+     * Returns the thread pool shared by all the batched calls.
+     */
+    static ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * The result of one chunk: either a value or an {@link IOException}.
+     */
+    static class Outcome<T> {
+
+        final T result;
+
+        final IOException exception;
+
+        Outcome(T result, IOException exception) {
+            this.result = result;
+            this.exception = exception;
+        }
+
+        boolean isSuccess() {
+            return exception == null;
+        }
+    }
+
+    /**
+     * Executes all the chunks and waits for them to finish. At most
+     * parallelism chunks run at the same time. A single chunk is executed on
+     * the calling thread.
+     *
+     * @param chunks {@link List} of {@link Callable}s to execute
+     * @param parallelism max number of chunks in flight
+     * @return {@link List} of {@link Outcome}s in the same order as chunks
+     * @throws InterruptedIOException if the calling thread is interrupted
+     */
+    static <T> List<Outcome<T>> runAll(List<? extends Callable<T>> chunks, int parallelism)
+            throws InterruptedIOException {
+
+        List<Outcome<T>> outcomes = new ArrayList<Outcome<T>>(chunks.size());
+        if (chunks.size() == 1) {
+            outcomes.add(call(chunks.get(0)));
+            return outcomes;
+        }
+        for (int i = 0; i < chunks.size(); i++) {
+            outcomes.add(null);
+        }
+
+        // keep at most parallelism chunks in flight
+        CompletionService<Integer> cs = new ExecutorCompletionService<Integer>(executor);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        final List<Outcome<T>> slots = outcomes;
+        int next = 0;
+        int running = 0;
+        try {
+            while (next < chunks.size() || running > 0) {
+                while (running < Math.max(1, parallelism) && next < chunks.size()) {
+                    final int index = next++;
+                    final Callable<T> chunk = chunks.get(index);
+                    futures.add(cs.submit(new Callable<Integer>() {
+                        @Override
+                        public Integer call() {
+                            Outcome<T> o = BatchRunner.call(chunk);
+                            synchronized (slots) {
+                                slots.set(index, o);
+                            }
+                            return index;
+                        }
+                    }));
+                    running++;
+                }
+                cs.take().get();
+                running--;
+            }
+        } catch (InterruptedException e) {
+            for (Future<Integer> f : futures) {
+                f.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("batch interrupted");
+        } catch (ExecutionException e) {
+            // call() never throws, so this can not happen
+            throw new IllegalStateException(e);
+        }
+        synchronized (slots) {
+            return new ArrayList<Outcome<T>>(slots);
+        }
+    }
+
+    private static <T> Outcome<T> call(Callable<T> chunk) {
+        try {
+            return new Outcome<T>(chunk.call(), null);
+        } catch (IOException e) {
+            return new Outcome<T>(null, e);
+        } catch (Exception e) {
+            return new Outcome<T>(null, new IOException(e.toString(), e));
+        }
+    }
+}
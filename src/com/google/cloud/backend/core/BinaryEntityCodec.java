@@ -0,0 +1,560 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpMediaType;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.util.ArrayMap;
+import com.google.api.client.util.Data;
+import com.google.api.client.util.DateTime;
+import com.google.api.client.util.ObjectParser;
+import com.google.cloud.backend.android.mobilebackend.model.EntityDto;
+import com.google.cloud.backend.android.mobilebackend.model.EntityListDto;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes {@link EntityDto}s and {@link EntityListDto}s in a compact binary
+ * format, as an alternative to JSON (see
+ * {@link CloudBackend#setWireFormat(CloudBackend.WireFormat)}). The format is
+ * a tagged tree, like MessagePack, with two savings on entities:
+ * <ul>
+ * <li>The property names (and the map keys, kind names and account names)
+ * are written once per message, and then referred to by their index in a
+ * dictionary built by the reader as it reads.</li>
+ * <li>The createdAt and updatedAt of the entities are written as
+ * milliseconds instead of RFC 3339 strings.</li>
+ * </ul>
+ * A message is the magic "MBE" and version 1, followed by a value. A value is
+ * a tag byte and its payload, where counts, lengths and indexes are unsigned
+ * varints, and integers and dates are zigzag varints:
+ *
+ * <pre>
+ * 0 null          1 false         2 true
+ * 3 integer       4 double (8 bytes)
+ * 5 decimal (length, UTF-8 digits)
+ * 6 string (length, UTF-8)
+ * 7 string added to the dictionary (length, UTF-8)
+ * 8 string of the dictionary (index)
+ * 9 date (milliseconds since the epoch)
+ * 10 list (count, values)
+ * 11 map (count, pairs of a string value and a value)
+ * </pre>
+ *
+ * Decoded entities are the same as the ones parsed from JSON: numbers are
+ * {@link BigDecimal}s, nulls are the null of {@link Data}, and values inside
+ * the properties that were dates are RFC 3339 strings.
+ */
+public class BinaryEntityCodec {
+
+    /**
+     * Media type of the binary format.
+     */
+    public static final String MEDIA_TYPE = "application/x-mbs-binary";
+
+    private static final byte[] MAGIC = {
+            'M', 'B', 'E', 1
+    };
+
+    private static final int NULL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int INTEGER = 3;
+    private static final int DOUBLE = 4;
+    private static final int DECIMAL = 5;
+    private static final int STRING = 6;
+    private static final int STRING_NEW = 7;
+    private static final int STRING_REF = 8;
+    private static final int DATE = 9;
+    private static final int LIST = 10;
+    private static final int MAP = 11;
+
+    // the map key under which the values are user properties
+    private static final String KEY_PROPERTIES = "properties";
+
+    // the map key of the only entity field that is not worth a dictionary
+    // entry, as it is unique
+    private static final String KEY_ID = "id";
+
+    private static final JsonFactory jsonFactory = new GsonFactory();
+
+    private static final BigInteger MIN_LONG = BigInteger.valueOf(Long.MIN_VALUE);
+
+    private static final BigInteger MAX_LONG = BigInteger.valueOf(Long.MAX_VALUE);
+
+    private BinaryEntityCodec() {
+    }
+
+    /**
+     * Encodes the {@link EntityDto} or {@link EntityListDto} (or any map of
+     * JSON values).
+     *
+     * @param dto the object to encode
+     * @return the message
+     * @throws IOException When the object has a value that can not be encoded.
+     */
+    public static byte[] encode(Object dto) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        encode(dto, bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encodes the {@link EntityDto} or {@link EntityListDto} (or any map of
+     * JSON values) to the stream.
+     *
+     * @param dto the object to encode
+     * @param out {@link OutputStream} to write, which is not closed
+     * @throws IOException When the object has a value that can not be encoded,
+     *             or the stream could not be written.
+     */
+    public static void encode(Object dto, OutputStream out) throws IOException {
+        Encoder encoder = new Encoder(out);
+        encoder.out.write(MAGIC);
+        encoder.writeValue(dto, false, true);
+        encoder.out.flush();
+    }
+
+    /**
+     * Decodes an {@link EntityDto} or an {@link EntityListDto}.
+     *
+     * @param in {@link InputStream} of the message, which is not closed
+     * @param dataClass {@link EntityDto} or {@link EntityListDto}
+     * @return the decoded object
+     * @throws IOException When the message is malformed or the stream could
+     *             not be read.
+     */
+    public static <T> T decode(InputStream in, Class<T> dataClass) throws IOException {
+        Object value = decodeValue(in);
+        if (dataClass == EntityDto.class) {
+            return dataClass.cast(toEntityDto(value));
+        }
+        if (dataClass == EntityListDto.class) {
+            return dataClass.cast(toEntityListDto(value));
+        }
+        throw new IOException("Unsupported type: " + dataClass);
+    }
+
+    // decodes the value of a message: maps, lists, strings, BigDecimals,
+    // Booleans, DateTimes and nulls of Data
+    static Object decodeValue(InputStream in) throws IOException {
+        Decoder decoder = new Decoder(new BufferedInputStream(in));
+        byte[] magic = new byte[MAGIC.length];
+        decoder.in.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("Not a binary entity message");
+            }
+        }
+        return decoder.readValue();
+    }
+
+    /**
+     * Sends the entities of the request in the binary format, and asks the
+     * backend for a binary response. A JSON response (such as an error, or the
+     * response of a backend that does not support the format) is parsed as
+     * usual.
+     *
+     * @param request {@link HttpRequest}
+     */
+    static void initialize(HttpRequest request) {
+        final HttpExecuteInterceptor interceptor = request.getInterceptor();
+        final String[] contentType = new String[1];
+        request.setInterceptor(new HttpExecuteInterceptor() {
+
+            private boolean prepared;
+
+            @Override
+            public void intercept(HttpRequest request) throws IOException {
+                if (interceptor != null) {
+                    interceptor.intercept(request);
+                }
+                request.getHeaders().setAccept(MEDIA_TYPE + ", application/json");
+
+                // the body and the parser are set up by the first attempt
+                if (prepared) {
+                    return;
+                }
+                prepared = true;
+                if (request.getParser() != null) {
+                    request.setParser(new BinaryParser(request.getParser(), contentType));
+                }
+                HttpContent content = request.getContent();
+                if (content instanceof JsonHttpContent) {
+                    Object data = ((JsonHttpContent) content).getData();
+                    if (data instanceof EntityDto || data instanceof EntityListDto) {
+                        request.setContent(new ByteArrayContent(MEDIA_TYPE, encode(data)));
+                    }
+                }
+            }
+        });
+        final HttpResponseInterceptor responseInterceptor = request.getResponseInterceptor();
+        request.setResponseInterceptor(new HttpResponseInterceptor() {
+            @Override
+            public void interceptResponse(HttpResponse response) throws IOException {
+                contentType[0] = response.getContentType();
+                if (responseInterceptor != null) {
+                    responseInterceptor.interceptResponse(response);
+                }
+            }
+        });
+    }
+
+    // parses the binary responses, and delegates the JSON ones
+    private static class BinaryParser implements ObjectParser {
+
+        private final ObjectParser delegate;
+
+        // the content type of the response
+        private final String[] contentType;
+
+        BinaryParser(ObjectParser delegate, String[] contentType) {
+            this.delegate = delegate;
+            this.contentType = contentType;
+        }
+
+        @Override
+        public <T> T parseAndClose(InputStream in, Charset charset, Class<T> dataClass)
+                throws IOException {
+            return dataClass.cast(parseAndClose(in, charset, (Type) dataClass));
+        }
+
+        @Override
+        public Object parseAndClose(InputStream in, Charset charset, Type dataType)
+                throws IOException {
+            if (contentType[0] == null
+                    || !HttpMediaType.equalsIgnoreParameters(contentType[0], MEDIA_TYPE)) {
+                return delegate.parseAndClose(in, charset, dataType);
+            }
+            try {
+                if (dataType == EntityDto.class || dataType == EntityListDto.class) {
+                    return decode(in, (Class<?>) dataType);
+                }
+
+                // other responses are converted through JSON
+                return delegate.parseAndClose(
+                        new StringReader(jsonFactory.toString(decodeValue(in))), dataType);
+            } finally {
+                in.close();
+            }
+        }
+
+        @Override
+        public <T> T parseAndClose(Reader reader, Class<T> dataClass) throws IOException {
+            return delegate.parseAndClose(reader, dataClass);
+        }
+
+        @Override
+        public Object parseAndClose(Reader reader, Type dataType) throws IOException {
+            return delegate.parseAndClose(reader, dataType);
+        }
+    }
+
+    private static EntityDto toEntityDto(Object value) throws IOException {
+        if (!(value instanceof Map)) {
+            throw new IOException("Not an entity: " + value);
+        }
+        EntityDto dto = new EntityDto();
+        for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+            if (!Data.isNull(e.getValue())) {
+                dto.set((String) e.getKey(), e.getValue());
+            }
+        }
+        return dto;
+    }
+
+    private static EntityListDto toEntityListDto(Object value) throws IOException {
+        if (!(value instanceof Map)) {
+            throw new IOException("Not an entity list: " + value);
+        }
+        EntityListDto dto = new EntityListDto();
+        for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+            if ("entries".equals(e.getKey()) && e.getValue() instanceof List) {
+                List<EntityDto> entries = new ArrayList<EntityDto>();
+                for (Object entry : (List<?>) e.getValue()) {
+                    entries.add(toEntityDto(entry));
+                }
+                dto.setEntries(entries);
+            } else if (!Data.isNull(e.getValue())) {
+                dto.set((String) e.getKey(), e.getValue());
+            }
+        }
+        return dto;
+    }
+
+    private static class Encoder {
+
+        final DataOutputStream out;
+
+        // indexes of the strings written to the dictionary
+        final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+        Encoder(OutputStream out) {
+            this.out = new DataOutputStream(out);
+        }
+
+        // writes a value. Inside the properties, the dates are written as
+        // strings (as in JSON) and the strings are not added to the
+        // dictionary.
+        void writeValue(Object v, boolean inProperties, boolean dictionaryString)
+                throws IOException {
+            if (v == null || Data.isNull(v)) {
+                out.write(NULL);
+            } else if (v instanceof Boolean) {
+                out.write((Boolean) v ? TRUE : FALSE);
+            } else if (v instanceof Number) {
+                writeNumber((Number) v);
+            } else if (v instanceof String) {
+                writeString((String) v, !inProperties && dictionaryString);
+            } else if (v instanceof DateTime || v instanceof Date) {
+                DateTime d = v instanceof DateTime ? (DateTime) v : new DateTime((Date) v);
+                if (inProperties) {
+                    writeString(d.toStringRfc3339(), false);
+                } else {
+                    out.write(DATE);
+                    writeVarLong(zigzag(d.getValue()));
+                }
+            } else if (v instanceof Map) {
+
+                // as in JSON, the keys whose value is null (not a null
+                // sentinel of Data) are left out
+                Map<?, ?> map = (Map<?, ?>) v;
+                int count = 0;
+                for (Object value : map.values()) {
+                    if (value != null) {
+                        count++;
+                    }
+                }
+                out.write(MAP);
+                writeVarLong(count);
+                for (Map.Entry<?, ?> e : map.entrySet()) {
+                    if (e.getValue() == null) {
+                        continue;
+                    }
+                    String key = String.valueOf(e.getKey());
+                    writeString(key, true);
+                    writeValue(e.getValue(), inProperties || KEY_PROPERTIES.equals(key),
+                            !KEY_ID.equals(key));
+                }
+            } else if (v instanceof Collection) {
+                Collection<?> c = (Collection<?>) v;
+                out.write(LIST);
+                writeVarLong(c.size());
+                for (Object item : c) {
+                    writeValue(item, inProperties, dictionaryString);
+                }
+            } else if (v instanceof Enum) {
+                writeString(((Enum<?>) v).name(), !inProperties);
+            } else {
+                throw new IOException("Unsupported value: " + v.getClass());
+            }
+        }
+
+        private void writeNumber(Number n) throws IOException {
+            if (n instanceof Integer || n instanceof Long || n instanceof Short
+                    || n instanceof Byte) {
+                out.write(INTEGER);
+                writeVarLong(zigzag(n.longValue()));
+            } else if (n instanceof Double || n instanceof Float) {
+                out.write(DOUBLE);
+                out.writeDouble(n.doubleValue());
+            } else {
+                BigDecimal d = n instanceof BigDecimal ? (BigDecimal) n
+                        : new BigDecimal(n.toString());
+                if (d.scale() <= 0) {
+                    BigInteger i = d.toBigInteger();
+                    if (i.compareTo(MIN_LONG) >= 0 && i.compareTo(MAX_LONG) <= 0) {
+                        out.write(INTEGER);
+                        writeVarLong(zigzag(i.longValue()));
+                        return;
+                    }
+                }
+                out.write(DECIMAL);
+                writeBytes(d.toString().getBytes("UTF-8"));
+            }
+        }
+
+        private void writeString(String s, boolean dictionaryString) throws IOException {
+            if (!dictionaryString) {
+                out.write(STRING);
+                writeBytes(s.getBytes("UTF-8"));
+                return;
+            }
+            Integer index = dictionary.get(s);
+            if (index != null) {
+                out.write(STRING_REF);
+                writeVarLong(index);
+                return;
+            }
+            dictionary.put(s, dictionary.size());
+            out.write(STRING_NEW);
+            writeBytes(s.getBytes("UTF-8"));
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            writeVarLong(bytes.length);
+            out.write(bytes);
+        }
+
+        private void writeVarLong(long v) throws IOException {
+            while ((v & ~0x7FL) != 0) {
+                out.write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.write((int) v);
+        }
+
+        private static long zigzag(long v) {
+            return (v << 1) ^ (v >> 63);
+        }
+    }
+
+    private static class Decoder {
+
+        final DataInputStream in;
+
+        final List<String> dictionary = new ArrayList<String>();
+
+        Decoder(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        Object readValue() throws IOException {
+            int tag = in.read();
+            switch (tag) {
+                case NULL:
+                    return Data.nullOf(Object.class);
+                case FALSE:
+                    return Boolean.FALSE;
+                case TRUE:
+                    return Boolean.TRUE;
+                case INTEGER:
+                    return BigDecimal.valueOf(unzigzag(readVarLong()));
+                case DOUBLE:
+                    return BigDecimal.valueOf(in.readDouble());
+                case DECIMAL:
+                    return new BigDecimal(readUtf8());
+                case STRING:
+                case STRING_NEW:
+                case STRING_REF:
+                    return readString(tag);
+                case DATE:
+                    return new DateTime(unzigzag(readVarLong()), 0);
+                case LIST: {
+                    int count = readCount();
+                    List<Object> list = new ArrayList<Object>(count);
+                    for (int i = 0; i < count; i++) {
+                        list.add(readValue());
+                    }
+                    return list;
+                }
+                case MAP: {
+                    int count = readCount();
+                    Map<String, Object> map = ArrayMap.create(count);
+                    for (int i = 0; i < count; i++) {
+                        String key = readString(in.read());
+                        map.put(key, readValue());
+                    }
+                    return map;
+                }
+                case -1:
+                    throw new EOFException("Truncated binary entity message");
+                default:
+                    throw new IOException("Unknown tag: " + tag);
+            }
+        }
+
+        private String readString(int tag) throws IOException {
+            switch (tag) {
+                case STRING:
+                    return readUtf8();
+                case STRING_NEW: {
+                    String s = readUtf8();
+                    dictionary.add(s);
+                    return s;
+                }
+                case STRING_REF: {
+                    long index = readVarLong();
+                    if (index >= dictionary.size()) {
+                        throw new IOException("Unknown dictionary index: " + index);
+                    }
+                    return dictionary.get((int) index);
+                }
+                default:
+                    throw new IOException("Not a string: " + tag);
+            }
+        }
+
+        private String readUtf8() throws IOException {
+            byte[] bytes = new byte[readCount()];
+            in.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        }
+
+        private int readCount() throws IOException {
+            long count = readVarLong();
+            if (count > Integer.MAX_VALUE) {
+                throw new IOException("Invalid count: " + count);
+            }
+            return (int) count;
+        }
+
+        private long readVarLong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException("Truncated binary entity message");
+                }
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        private static long unzigzag(long v) {
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+}
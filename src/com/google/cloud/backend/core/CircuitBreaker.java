@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import com.google.api.client.http.HttpResponseException;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * A circuit breaker around the backend calls. After a number of consecutive
+ * failures of the backend (server errors, throttling or network errors), the
+ * breaker opens and the calls fail fast with {@link OpenException}. After the
+ * open duration, one probe call is let through (half-open): if it succeeds,
+ * the breaker closes; otherwise it opens again.
+ * <p>
+ * The transitions are recorded to {@link CloudMetrics} as
+ * "breaker.transition.&lt;STATE&gt;", and the current state as the
+ * "breaker.state" gauge (the ordinal of {@link State}).
+ */
+public class CircuitBreaker {
+
+    /**
+     * States of the breaker.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Thrown when a call is rejected because the breaker is open.
+     */
+    public static class OpenException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public OpenException(String message) {
+            super(message);
+        }
+    }
+
+    private final CloudMetrics metrics;
+
+    private final int failureThreshold;
+
+    private final long openDurationMillis;
+
+    private State state = State.CLOSED;
+
+    private int consecutiveFailures;
+
+    private long openedAtMillis;
+
+    private boolean probeInFlight;
+
+    /**
+     * Creates a {@link CircuitBreaker}.
+     *
+     * @param failureThreshold number of consecutive failures that opens the
+     *            breaker
+     * @param openDurationMillis how long the breaker stays open before a probe
+     * @param metrics {@link CloudMetrics} to record to
+     */
+    public CircuitBreaker(int failureThreshold, long openDurationMillis, CloudMetrics metrics) {
+        this.failureThreshold = failureThreshold;
+        this.openDurationMillis = openDurationMillis;
+        this.metrics = metrics;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Checks if a call may be made. Call {@link #onSuccess()} or
+     * {@link #onFailure()} with the result of the call afterwards.
+     *
+     * @throws OpenException When the breaker is open, or a probe is already in
+     *             flight.
+     */
+    public synchronized void acquire() throws OpenException {
+        if (state == State.OPEN
+                && System.currentTimeMillis() - openedAtMillis >= openDurationMillis) {
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.OPEN || (state == State.HALF_OPEN && probeInFlight)) {
+            metrics.increment("breaker.rejected");
+            throw new OpenException("Circuit breaker is " + state + ": failing fast");
+        }
+        if (state == State.HALF_OPEN) {
+            probeInFlight = true;
+        }
+    }
+
+    /**
+     * Records a successful call (or a call rejected by the backend for a
+     * client error, which shows the backend is available).
+     */
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        probeInFlight = false;
+        if (state != State.CLOSED) {
+            transition(State.CLOSED);
+        }
+    }
+
+    /**
+     * Records a failure of the backend.
+     */
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        probeInFlight = false;
+        if (state == State.HALF_OPEN
+                || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            openedAtMillis = System.currentTimeMillis();
+            transition(State.OPEN);
+        }
+    }
+
+    /**
+     * Records a call that was cancelled (such as the losing attempt of a
+     * hedged call), which tells nothing about the backend.
+     */
+    public synchronized void onCancelled() {
+        probeInFlight = false;
+    }
+
+    /**
+     * Records the result of a call that threw the exception: backend failures
+     * count as failures, client errors as successes, and interruptions as
+     * cancellations.
+     *
+     * @param e exception thrown by the call
+     */
+    public void onException(IOException e) {
+        if (isBackendFailure(e)) {
+            onFailure();
+        } else if (e instanceof InterruptedIOException) {
+            onCancelled();
+        } else if (!(e instanceof OpenException)) {
+            onSuccess();
+        }
+    }
+
+    /**
+     * Returns true if the exception shows that the backend is unavailable or
+     * degraded (server error, throttling, timeout or network error).
+     */
+    public static boolean isBackendFailure(IOException e) {
+        if (e instanceof HttpResponseException) {
+            int status = ((HttpResponseException) e).getStatusCode();
+            return status >= 500 || status == 408 || status == 429;
+        }
+        if (e instanceof OpenException) {
+            return false;
+        }
+        return !(e instanceof InterruptedIOException) || e instanceof SocketTimeoutException;
+    }
+
+    private void transition(State newState) {
+        Log.i(Consts.TAG, "breaker: " + state + " -> " + newState);
+        state = newState;
+        metrics.increment("breaker.transition." + newState);
+        metrics.set("breaker.state", newState.ordinal());
+    }
+}
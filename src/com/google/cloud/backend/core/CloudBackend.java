@@ -14,24 +14,38 @@
 
 package com.google.cloud.backend.core;
 
-import com.google.api.client.extensions.android.http.AndroidHttp;
 import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
-import com.google.api.client.http.ExponentialBackOffPolicy;
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.GenericJson;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.cloud.backend.android.mobilebackend.Mobilebackend;
 import com.google.cloud.backend.android.mobilebackend.model.EntityDto;
 import com.google.cloud.backend.android.mobilebackend.model.EntityListDto;
 import com.google.cloud.backend.android.mobilebackend.model.QueryDto;
+import com.google.cloud.backend.core.CloudResilience.Operation;
 
 import android.app.Activity;
 import android.app.Fragment;
 import android.util.Log;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
 
 /**
  * Base Cloud Backend API class that provides CRUD operation and query operation
@@ -39,17 +53,76 @@ import java.util.List;
  * directly from UI thread of {@link Activity} or {@link Fragment}. (Use
  * {@link CloudBackendAsync} for calling backend from UI thread). See
  * {@link CloudBackendTest} for detailed usage.
+ * <p>
+ * Reads and queries are sent as conditional requests (If-None-Match and
+ * If-Modified-Since) when a {@link CloudValidatorCache} remembers their last
+ * response. getAll and list are POSTs, for which HTTP defines no 304 Not
+ * Modified: answering them with 304 is an extension of the protocol that the
+ * backend must implement (as the local stand-in server does). A backend that
+ * applies the standard semantics of the validators to a POST answers 412
+ * Precondition Failed instead: the request is then sent again without
+ * validators, and the next POSTs to that backend are sent unconditionally.
  */
 public class CloudBackend {
 
+    /**
+     * Name of the HTTP header that carries the idempotency key of a mutating
+     * request. The backend applies the request only once per key and returns
+     * the same response for a retry, so a write retried after its response
+     * was lost does not create duplicates.
+     */
+    public static final String IDEMPOTENCY_KEY_HEADER = "X-Idempotency-Key";
+
+    /**
+     * Encoding of the entities sent to and received from the backend.
+     */
+    public enum WireFormat {
+        /** JSON, which every backend supports */
+        JSON,
+        /**
+         * the binary format of {@link BinaryEntityCodec}, which needs a
+         * backend that supports it (such as the local stand-in server)
+         */
+        BINARY
+    }
+
     static {
         // to prevent EOFException after idle
         // http://code.google.com/p/google-http-java-client/issues/detail?id=116
-        System.setProperty("http.keepAlive", "false");
+        // unless the connections are kept warm (a stale pooled connection
+        // fails with an I/O error, which is retried)
+        if (!Consts.PRECONNECT_ENABLED) {
+            System.setProperty("http.keepAlive", "false");
+        }
     }
 
+    private static final GsonFactory JSON_FACTORY = new GsonFactory();
+
     private GoogleAccountCredential mCredential;
 
+    private CloudEntityCache mEntityCache;
+
+    private CloudResilience mResilience = CloudResilience.getDefault();
+
+    private CloudValidatorCache mValidatorCache = CloudValidatorCache.getDefault();
+
+    private CloudTokenManager mTokenManager = CloudTokenManager.getDefault();
+
+    private CloudPreconnector mPreconnector;
+
+    private HttpTransport mTransport;
+
+    private CloudCompression mCompression = CloudCompression.getDefault();
+
+    private WireFormat mWireFormat = WireFormat.JSON;
+
+    private CloudQueryCache mQueryCache;
+
+    // set when the backend has answered a conditional POST with 412
+    private volatile boolean mConditionalPostRejected;
+
+    private String mRootUrl;
+
     /**
      * Sets {@link GoogleAccountCredential} that will be used on all backend
      * calls. By setting null, all call will not be associated with user account
@@ -71,30 +144,447 @@ public class CloudBackend {
         return this.mCredential;
     }
 
-    // building CloudBackend endpoints and configuring authentication and
-    // exponential back-off policy
-    private Mobilebackend getMBSEndpoint() {
+    /**
+     * Sets {@link CloudTokenManager} that caches the tokens of the credential
+     * and refreshes them ahead of their expiry. By default, the manager shared
+     * by all the backends ({@link CloudTokenManager#getDefault()}) is used. By
+     * setting null, the credential fetches the token of each request.
+     *
+     * @param tokenManager {@link CloudTokenManager}
+     */
+    public void setTokenManager(CloudTokenManager tokenManager) {
+        this.mTokenManager = tokenManager;
+    }
+
+    /**
+     * Returns {@link CloudTokenManager} of this backend, or null if none.
+     *
+     * @return {@link CloudTokenManager}
+     */
+    public CloudTokenManager getTokenManager() {
+        return this.mTokenManager;
+    }
+
+    /**
+     * Sets {@link CloudPreconnector} whose transport (with its warm
+     * connections) is used to send the requests, and records the connect and
+     * handshake times of the requests. By setting null (the default unless
+     * {@link Consts#PRECONNECT_ENABLED} is set), a new transport is used.
+     *
+     * @param preconnector {@link CloudPreconnector}
+     */
+    public void setPreconnector(CloudPreconnector preconnector) {
+        this.mPreconnector = preconnector;
+    }
+
+    /**
+     * Returns {@link CloudPreconnector} of this backend, or null if none.
+     *
+     * @return {@link CloudPreconnector}
+     */
+    public CloudPreconnector getPreconnector() {
+        return this.mPreconnector;
+    }
+
+    /**
+     * Sets {@link HttpTransport} used to send the requests, such as a pooled
+     * transport of {@link CloudTransports} shared by the backends. By setting
+     * null (the default), the transport of the {@link CloudPreconnector} is
+     * used if one is set, or a new transport for each call otherwise.
+     *
+     * @param transport {@link HttpTransport}
+     */
+    public void setTransport(HttpTransport transport) {
+        this.mTransport = transport;
+    }
+
+    /**
+     * Returns {@link HttpTransport} that has been set to this backend, or null.
+     *
+     * @return {@link HttpTransport}
+     */
+    public HttpTransport getTransport() {
+        return this.mTransport;
+    }
+
+    /**
+     * Sets {@link CloudCompression} that gzips the request bodies that are
+     * large enough and records the logical and wire bytes of the requests. By
+     * default, the compression shared by all the backends
+     * ({@link CloudCompression#getDefault()}) is used. By setting null, the
+     * client library gzips every body.
+     *
+     * @param compression {@link CloudCompression}
+     */
+    public void setCompression(CloudCompression compression) {
+        this.mCompression = compression;
+    }
+
+    /**
+     * Returns {@link CloudCompression} of this backend, or null if none.
+     *
+     * @return {@link CloudCompression}
+     */
+    public CloudCompression getCompression() {
+        return this.mCompression;
+    }
+
+    /**
+     * Sets {@link WireFormat} of the entities sent to and received from the
+     * backend. By default, the entities are sent in JSON. With
+     * {@link WireFormat#BINARY}, the entities of the requests are sent in the
+     * binary format of {@link BinaryEntityCodec}, and the backend is asked
+     * for binary responses (a JSON response is still accepted).
+     *
+     * @param wireFormat {@link WireFormat}
+     */
+    public void setWireFormat(WireFormat wireFormat) {
+        this.mWireFormat = wireFormat;
+    }
+
+    /**
+     * Returns {@link WireFormat} of this backend.
+     *
+     * @return {@link WireFormat}
+     */
+    public WireFormat getWireFormat() {
+        return this.mWireFormat;
+    }
+
+    /**
+     * Sets {@link CloudEntityCache} that will store the entities read or
+     * written through this backend. By setting null, no cache will be used.
+     *
+     * @param entityCache {@link CloudEntityCache}
+     */
+    public void setEntityCache(CloudEntityCache entityCache) {
+        this.mEntityCache = entityCache;
+    }
+
+    /**
+     * Returns {@link CloudEntityCache} that has been set to this backend, or
+     * null if none.
+     *
+     * @return {@link CloudEntityCache}
+     */
+    public CloudEntityCache getEntityCache() {
+        return this.mEntityCache;
+    }
+
+    /**
+     * Sets {@link CloudResilience} that specifies the timeouts, retry budget
+     * and circuit breaker of the backend calls. By default, the settings
+     * shared by all the backends ({@link CloudResilience#getDefault()}) are
+     * used.
+     *
+     * @param resilience {@link CloudResilience}
+     */
+    public void setResilience(CloudResilience resilience) {
+        this.mResilience = resilience;
+    }
+
+    /**
+     * Returns {@link CloudResilience} of this backend.
+     *
+     * @return {@link CloudResilience}
+     */
+    public CloudResilience getResilience() {
+        return this.mResilience;
+    }
+
+    /**
+     * Sets {@link CloudValidatorCache} that remembers the validators of the
+     * responses of reads and queries, to send them as conditional requests.
+     * By default, the cache shared by all the backends
+     * ({@link CloudValidatorCache#getDefault()}) is used. By setting null, no
+     * conditional requests are sent.
+     *
+     * @param validatorCache {@link CloudValidatorCache}
+     */
+    public void setValidatorCache(CloudValidatorCache validatorCache) {
+        this.mValidatorCache = validatorCache;
+    }
+
+    /**
+     * Returns {@link CloudValidatorCache} of this backend, or null if none.
+     *
+     * @return {@link CloudValidatorCache}
+     */
+    public CloudValidatorCache getValidatorCache() {
+        return this.mValidatorCache;
+    }
+
+    /**
+     * Sets {@link CloudQueryCache} that caches the results of the list methods
+     * of {@link CloudBackendAsync}. The cached results of a kind are dropped
+     * when entities of the kind are written through this backend. By setting
+     * null (the default), no results are cached.
+     *
+     * @param queryCache {@link CloudQueryCache}
+     */
+    public void setQueryCache(CloudQueryCache queryCache) {
+        this.mQueryCache = queryCache;
+    }
+
+    /**
+     * Returns {@link CloudQueryCache} of this backend, or null if none.
+     *
+     * @return {@link CloudQueryCache}
+     */
+    public CloudQueryCache getQueryCache() {
+        return this.mQueryCache;
+    }
+
+    /**
+     * Sets the root URL of the backend endpoint, such as the URL of a local
+     * stand-in server for benchmarks and load tests. By setting null (the
+     * default), {@link Consts#ENDPOINT_ROOT_URL} is used.
+     *
+     * @param rootUrl root URL ending with {@code /_ah/api/}
+     */
+    public void setRootUrl(String rootUrl) {
+        this.mRootUrl = rootUrl;
+    }
+
+    /**
+     * Returns the root URL of the backend endpoint.
+     *
+     * @return root URL
+     */
+    public String getRootUrl() {
+        return this.mRootUrl != null ? this.mRootUrl : Consts.ENDPOINT_ROOT_URL;
+    }
+
+    /**
+     * Copies the settings of the backend (the credential, the caches, the
+     * transport and the other components set with the setters) to this one,
+     * so that a backend created for a call behaves as the one it is created
+     * from.
+     *
+     * @param backend {@link CloudBackend} to copy the settings from
+     */
+    public void copyConfig(CloudBackend backend) {
+        this.mCredential = backend.mCredential;
+        this.mEntityCache = backend.mEntityCache;
+        this.mResilience = backend.mResilience;
+        this.mValidatorCache = backend.mValidatorCache;
+        this.mTokenManager = backend.mTokenManager;
+        this.mPreconnector = backend.mPreconnector;
+        this.mTransport = backend.mTransport;
+        this.mCompression = backend.mCompression;
+        this.mWireFormat = backend.mWireFormat;
+        this.mQueryCache = backend.mQueryCache;
+        this.mRootUrl = backend.mRootUrl;
+    }
+
+    // drops the cached query results of the kind, if any
+    void invalidateQueries(String kindName) {
+        CloudQueryCache queryCache = mQueryCache;
+        if (queryCache != null) {
+            queryCache.invalidate(kindName);
+        }
+    }
+
+    // drops the cached query results of the kinds of the entities, if any
+    private void invalidateQueries(List<CloudEntity> ceList) {
+        Set<String> kindNames = new HashSet<String>();
+        for (CloudEntity ce : ceList) {
+            kindNames.add(ce.getKindName());
+        }
+        for (String kindName : kindNames) {
+            invalidateQueries(kindName);
+        }
+    }
+
+    // stores the entities to the cache, if any
+    private void cache(List<CloudEntity> ceList) {
+        CloudEntityCache cache = mEntityCache;
+        if (cache != null) {
+            for (CloudEntity ce : ceList) {
+                cache.put(ce);
+            }
+        }
+    }
+
+    // removes the entities from the cache, if any
+    private void uncache(String kindName, List<String> idList) {
+        CloudEntityCache cache = mEntityCache;
+        if (cache != null) {
+            for (String id : idList) {
+                cache.remove(kindName, id);
+            }
+        }
+    }
+
+    // building CloudBackend endpoints and configuring authentication, and the
+    // timeouts and retries of the operation
+    private Mobilebackend getMBSEndpoint(final CloudResilience.Operation op) {
 
         // check if credential has account name
         final GoogleAccountCredential gac = mCredential == null
                 || mCredential.getSelectedAccountName() == null ? null : mCredential;
 
         // create HttpRequestInitializer
+        final CloudResilience resilience = mResilience;
+        final CloudTokenManager tokenManager = mTokenManager;
+        final CloudPreconnector preconnector = mPreconnector;
+        final CloudCompression compression = mCompression;
+        final boolean binary = mWireFormat == WireFormat.BINARY;
         HttpRequestInitializer hri = new HttpRequestInitializer() {
             @Override
             public void initialize(HttpRequest request) throws IOException {
-                request.setBackOffPolicy(new ExponentialBackOffPolicy());
-                if (gac != null) {
+                if (gac != null && tokenManager != null) {
+                    tokenManager.initialize(request, gac);
+                } else if (gac != null) {
                     gac.initialize(request);
                 }
+
+                // retry server errors and I/O errors with exponential back-off
+                // within the deadline and retry budget. Writes carry
+                // idempotency keys, so I/O errors (such as a timeout after the
+                // backend committed) can be retried safely.
+                resilience.configure(request, op);
+
+                if (preconnector != null) {
+                    preconnector.initialize(request, resilience.getMetrics());
+                }
+                // the binary body is then compressed like a JSON one
+                if (binary) {
+                    BinaryEntityCodec.initialize(request);
+                }
+                if (compression != null) {
+                    compression.initialize(request, op, resilience.getMetrics());
+                }
             }
         };
 
         // build MBS builder
         // (specify gac or hri as the third parameter)
-        return new Mobilebackend.Builder(AndroidHttp.newCompatibleTransport(), new GsonFactory(),
-                hri)
-                .setRootUrl(Consts.ENDPOINT_ROOT_URL).build();
+        HttpTransport transport = mTransport;
+        if (transport == null) {
+            transport = preconnector != null
+                    ? preconnector.getTransport() : CloudTransports.newDefaultTransport();
+        }
+        return CloudEndpointUtils.updateBuilder(new Mobilebackend.Builder(transport,
+                JSON_FACTORY, hri).setRootUrl(getRootUrl())).build();
+    }
+
+    // executes the request through the circuit breaker. A mutating request
+    // carries the idempotency key, which stays the same when the request is
+    // retried.
+    private <T> T execute(AbstractGoogleClientRequest<T> request, String idempotencyKey)
+            throws IOException {
+        if (idempotencyKey != null) {
+            request.getRequestHeaders().set(IDEMPOTENCY_KEY_HEADER, idempotencyKey);
+        }
+        CircuitBreaker breaker = mResilience.getCircuitBreaker();
+        breaker.acquire();
+        try {
+            T result = request.execute();
+            breaker.onSuccess();
+            return result;
+        } catch (IOException e) {
+            breaker.onException(e);
+            throw e;
+        } catch (RuntimeException e) {
+            breaker.onFailure();
+            throw e;
+        }
+    }
+
+    // creates the request of an attempt of a read. Each attempt of a hedged
+    // read needs its own request.
+    private interface RequestFactory<T> {
+
+        AbstractGoogleClientRequest<T> create() throws IOException;
+    }
+
+    // executes an idempotent read, as a conditional request if the response
+    // to the same request (identified by validatorKey) has been remembered.
+    // If the operation has a HedgedExecutor, a second request is sent when
+    // the first one is slow.
+    private <T extends GenericJson> T executeRead(Operation op, final String validatorKey,
+            final RequestFactory<T> factory) throws IOException {
+        HedgedExecutor hedgedExecutor = mResilience.getHedgedExecutor(op);
+        if (hedgedExecutor == null) {
+            return executeConditional(factory.create(), validatorKey);
+        }
+        return hedgedExecutor.call(new Callable<T>() {
+            @Override
+            public T call() throws IOException {
+                return executeConditional(factory.create(), validatorKey);
+            }
+        });
+    }
+
+    // sends the validators of the remembered response, if any, and returns the
+    // remembered payload when the backend answers 304 Not Modified
+    private <T extends GenericJson> T executeConditional(AbstractGoogleClientRequest<T> request,
+            String validatorKey) throws IOException {
+        CloudValidatorCache validatorCache = mValidatorCache;
+        if (validatorCache == null
+                || (mConditionalPostRejected && "POST".equals(request.getRequestMethod()))) {
+            return execute(request, null);
+        }
+        CloudValidatorCache.Entry remembered = validatorCache.get(validatorKey);
+        if (remembered != null) {
+            HttpHeaders headers = request.getRequestHeaders();
+            if (remembered.eTag != null) {
+                headers.setIfNoneMatch(remembered.eTag);
+            }
+            if (remembered.lastModified != null) {
+                headers.setIfModifiedSince(remembered.lastModified);
+            }
+            mResilience.getMetrics().increment("conditional.sent");
+        }
+        try {
+            T result = execute(request, null);
+            validatorCache.put(validatorKey, request.getLastResponseHeaders(), result);
+            return result;
+        } catch (HttpResponseException e) {
+            if (remembered == null) {
+                throw e;
+            }
+            if (e.getStatusCode() == 412) {
+                // Precondition Failed: the backend does not answer 304 to a
+                // conditional POST
+                Log.i(Consts.TAG, "precondition failed, sending again: " + validatorKey);
+                if ("POST".equals(request.getRequestMethod())) {
+                    mConditionalPostRejected = true;
+                }
+                mResilience.getMetrics().increment("conditional.preconditionFailed");
+                validatorCache.remove(validatorKey);
+                HttpHeaders headers = request.getRequestHeaders();
+                headers.setIfNoneMatch(null);
+                headers.setIfModifiedSince(null);
+                T result = execute(request, null);
+                validatorCache.put(validatorKey, request.getLastResponseHeaders(), result);
+                return result;
+            }
+            if (e.getStatusCode() != HttpStatusCodes.STATUS_CODE_NOT_MODIFIED) {
+                throw e;
+            }
+            Log.i(Consts.TAG, "not modified: " + validatorKey);
+            mResilience.getMetrics().increment("conditional.notModified");
+            @SuppressWarnings("unchecked")
+            T payload = (T) remembered.payload.clone();
+            return payload;
+        }
+    }
+
+    // returns the canonical JSON form of a request payload, to identify the
+    // request in CloudValidatorCache
+    static String toCanonicalJson(GenericJson payload) throws IOException {
+        return JSON_FACTORY.toString(payload);
+    }
+
+    /**
+     * Generates a new idempotency key for a mutating request.
+     *
+     * @return a random key
+     */
+    static String newIdempotencyKey() {
+        return UUID.randomUUID().toString();
     }
 
     /**
@@ -106,10 +596,12 @@ public class CloudBackend {
      * @throws IOException When the call had failed for any reason.
      */
     public CloudEntity insert(CloudEntity ce) throws IOException {
-        EntityDto resultEntityDto = getMBSEndpoint().endpointV1()
-                .insert(ce.getKindName(), ce.getEntityDto()).execute();
+        EntityDto resultEntityDto = execute(getMBSEndpoint(Operation.WRITE).endpointV1()
+                .insert(ce.getKindName(), ce.getEntityDto()), newIdempotencyKey());
         CloudEntity resultCo = CloudEntity.createCloudEntityFromEntityDto(resultEntityDto);
         Log.i(Consts.TAG, "insert: inserted: " + resultCo);
+        cache(Collections.singletonList(resultCo));
+        invalidateQueries(resultCo.getKindName());
         return resultCo;
     }
 
@@ -124,10 +616,12 @@ public class CloudBackend {
      * @throws IOException When the call had failed for any reason.
      */
     public CloudEntity update(CloudEntity ce) throws IOException {
-        EntityDto resultEntityDto = getMBSEndpoint().endpointV1()
-                .update(ce.getKindName(), ce.getEntityDto()).execute();
+        EntityDto resultEntityDto = execute(getMBSEndpoint(Operation.WRITE).endpointV1()
+                .update(ce.getKindName(), ce.getEntityDto()), newIdempotencyKey());
         CloudEntity resultCo = CloudEntity.createCloudEntityFromEntityDto(resultEntityDto);
         Log.i(Consts.TAG, "update: updated: " + resultCo);
+        cache(Collections.singletonList(resultCo));
+        invalidateQueries(resultCo.getKindName());
         return resultCo;
     }
 
@@ -140,6 +634,12 @@ public class CloudBackend {
      * @throws IOException When the call had failed for any reason.
      */
     public List<CloudEntity> insertAll(List<CloudEntity> ceList) throws IOException {
+        return insertAll(ceList, newIdempotencyKey());
+    }
+
+    // inserts the entities with the specified idempotency key
+    List<CloudEntity> insertAll(List<CloudEntity> ceList, String idempotencyKey)
+            throws IOException {
 
         // prepare for EntityListDto
         List<EntityDto> cdList = new LinkedList<EntityDto>();
@@ -151,9 +651,12 @@ public class CloudBackend {
 
         // execute saveAll
         EntityListDto resultCdl;
-        resultCdl = getMBSEndpoint().endpointV1().insertAll(cdl).execute();
+        resultCdl = execute(getMBSEndpoint(Operation.BULK_WRITE).endpointV1().insertAll(cdl),
+                idempotencyKey);
         Log.i(Consts.TAG, "saveAll: saved: " + resultCdl.getEntries());
         List<CloudEntity> resultCoList = getListOfEntityDto(resultCdl);
+        cache(resultCoList);
+        invalidateQueries(ceList);
         return resultCoList;
     }
 
@@ -166,6 +669,12 @@ public class CloudBackend {
      * @throws IOException When the call had failed for any reason.
      */
     public List<CloudEntity> updateAll(List<CloudEntity> coList) throws IOException {
+        return updateAll(coList, newIdempotencyKey());
+    }
+
+    // updates the entities with the specified idempotency key
+    List<CloudEntity> updateAll(List<CloudEntity> coList, String idempotencyKey)
+            throws IOException {
 
         // prepare for EntityListDto
         List<EntityDto> cdList = new LinkedList<EntityDto>();
@@ -177,9 +686,12 @@ public class CloudBackend {
 
         // execute saveAll
         EntityListDto resultCdl;
-        resultCdl = getMBSEndpoint().endpointV1().updateAll(cdl).execute();
+        resultCdl = execute(getMBSEndpoint(Operation.BULK_WRITE).endpointV1().updateAll(cdl),
+                idempotencyKey);
         Log.i(Consts.TAG, "saveAll: saved: " + resultCdl.getEntries());
         List<CloudEntity> resultCoList = getListOfEntityDto(resultCdl);
+        cache(resultCoList);
+        invalidateQueries(coList);
         return resultCoList;
     }
 
@@ -191,10 +703,17 @@ public class CloudBackend {
      * @return {@link CloudEntity}.
      * @throws IOException When the call had failed for any reason.
      */
-    public CloudEntity get(String kindName, String id) throws IOException {
-        EntityDto cd = getMBSEndpoint().endpointV1().get(kindName, id).execute();
+    public CloudEntity get(final String kindName, final String id) throws IOException {
+        String validatorKey = "get:" + kindName + "/" + id;
+        EntityDto cd = executeRead(Operation.READ, validatorKey, new RequestFactory<EntityDto>() {
+            @Override
+            public AbstractGoogleClientRequest<EntityDto> create() throws IOException {
+                return getMBSEndpoint(Operation.READ).endpointV1().get(kindName, id);
+            }
+        });
         CloudEntity co = CloudEntity.createCloudEntityFromEntityDto(cd);
         Log.i(Consts.TAG, "get: result: " + co);
+        cache(Collections.singletonList(co));
         return co;
     }
 
@@ -210,13 +729,133 @@ public class CloudBackend {
     public List<CloudEntity> getAll(String kindName, List<String> idList) throws IOException {
 
         // prepare for EntityListDto
-        EntityListDto cdl = createEntityListDto(kindName, idList);
+        final EntityListDto cdl = createEntityListDto(kindName, idList);
 
         // execute getAll
         EntityListDto resultCdl;
-        resultCdl = getMBSEndpoint().endpointV1().getAll(cdl).execute();
+        String validatorKey = "getAll:" + toCanonicalJson(cdl);
+        resultCdl = executeRead(Operation.READ, validatorKey, new RequestFactory<EntityListDto>() {
+            @Override
+            public AbstractGoogleClientRequest<EntityListDto> create() throws IOException {
+                return getMBSEndpoint(Operation.READ).endpointV1().getAll(cdl);
+            }
+        });
         Log.i(Consts.TAG, "getAll: result: " + resultCdl.getEntries());
-        return getListOfEntityDto(resultCdl);
+        List<CloudEntity> resultCoList = getListOfEntityDto(resultCdl);
+        cache(resultCoList);
+        return resultCoList;
+    }
+
+    /**
+     * Reads all the {@link CloudEntity}s synchronously specified by the
+     * {@link List} of CloudEntities. The CloudEntities may belong to different
+     * kinds: they are grouped by kind, split into chunks of
+     * {@link Consts#BATCH_MAX_ENTITIES} and the chunks are executed in
+     * parallel.
+     *
+     * @param ceList {@link List} of {@link CloudEntity}s that have kindName and
+     *            id to specify the CloudEntities on the backend. Other property
+     *            values will be ignored.
+     * @return {@link List} of the found {@link CloudEntity}s in the same order
+     *         as ceList. An item is null if it was not found.
+     * @throws CloudBatchException When some of the items had failed. It holds
+     *             the partial results and the error of each failed item.
+     * @throws IOException When the call had failed for any other reason.
+     */
+    public List<CloudEntity> getAll(List<CloudEntity> ceList) throws IOException {
+        final List<CloudEntity> results =
+                new ArrayList<CloudEntity>(Collections.<CloudEntity> nCopies(ceList.size(), null));
+        Map<Integer, IOException> errors = new HashMap<Integer, IOException>();
+
+        // group by kind and execute the chunks in parallel
+        List<KindChunk> chunks = splitByKind(ceList, errors);
+        List<Callable<List<CloudEntity>>> calls = new ArrayList<Callable<List<CloudEntity>>>();
+        for (final KindChunk chunk : chunks) {
+            calls.add(new Callable<List<CloudEntity>>() {
+                @Override
+                public List<CloudEntity> call() throws IOException {
+                    return getAll(chunk.kindName, chunk.ids);
+                }
+            });
+        }
+        List<BatchRunner.Outcome<List<CloudEntity>>> outcomes =
+                BatchRunner.runAll(calls, Consts.BATCH_PARALLELISM);
+
+        // put the results back in input order
+        for (int i = 0; i < chunks.size(); i++) {
+            KindChunk chunk = chunks.get(i);
+            BatchRunner.Outcome<List<CloudEntity>> o = outcomes.get(i);
+            if (o.isSuccess()) {
+                Map<String, CloudEntity> found = new HashMap<String, CloudEntity>();
+                for (CloudEntity ce : o.result) {
+                    found.put(ce.getId(), ce);
+                }
+                for (int index : chunk.indices) {
+                    results.set(index, found.get(ceList.get(index).getId()));
+                }
+            } else {
+                for (int index : chunk.indices) {
+                    errors.put(index, o.exception);
+                }
+            }
+        }
+        if (!errors.isEmpty()) {
+            throw new CloudBatchException(results, errors);
+        }
+        return results;
+    }
+
+    // a chunk of unique ids of one kind, and the indices of the input list
+    // that refer to them
+    private static class KindChunk {
+
+        final String kindName;
+
+        final List<String> ids = new ArrayList<String>();
+
+        final List<Integer> indices = new ArrayList<Integer>();
+
+        KindChunk(String kindName) {
+            this.kindName = kindName;
+        }
+    }
+
+    // groups the CloudEntities by kind and splits each group into chunks of
+    // unique ids. Items without id are reported to errors.
+    private List<KindChunk> splitByKind(
+            List<CloudEntity> ceList, Map<Integer, IOException> errors) {
+        Map<String, Map<String, KindChunk>> chunkOfIdByKind =
+                new LinkedHashMap<String, Map<String, KindChunk>>();
+        Map<String, KindChunk> openChunkByKind = new HashMap<String, KindChunk>();
+        List<KindChunk> chunks = new ArrayList<KindChunk>();
+        for (int i = 0; i < ceList.size(); i++) {
+            CloudEntity ce = ceList.get(i);
+            if (ce.getId() == null) {
+                errors.put(i, new IOException("No id specified: " + ce));
+                continue;
+            }
+            String kindName = ce.getKindName();
+            Map<String, KindChunk> chunkOfId = chunkOfIdByKind.get(kindName);
+            if (chunkOfId == null) {
+                chunkOfId = new HashMap<String, KindChunk>();
+                chunkOfIdByKind.put(kindName, chunkOfId);
+            }
+
+            // the same id is fetched only once
+            KindChunk chunk = chunkOfId.get(ce.getId());
+            if (chunk == null) {
+                chunk = openChunkByKind.get(kindName);
+                if (chunk == null || chunk.ids.size() >= Consts.BATCH_MAX_ENTITIES) {
+                    chunk = new KindChunk(kindName);
+                    openChunkByKind.put(kindName, chunk);
+                    chunks.add(chunk);
+                }
+                chunk.ids.add(ce.getId());
+                chunkOfId.put(ce.getId(), chunk);
+            }
+            chunk.indices.add(i);
+        }
+        return chunks;
     }
 
     private EntityListDto createEntityListDto(String kindName, List<String> idList) {
@@ -251,8 +890,11 @@ public class CloudBackend {
      * @throws IOException When the call had failed for any reason.
      */
     public void delete(String kindName, String id) throws IOException {
-        getMBSEndpoint().endpointV1().delete(kindName, id).execute();
+        execute(getMBSEndpoint(Operation.WRITE).endpointV1().delete(kindName, id),
+                newIdempotencyKey());
         Log.i(Consts.TAG, "delete: deleted: " + kindName + "/" + id);
+        uncache(kindName, Collections.singletonList(id));
+        invalidateQueries(kindName);
     }
 
     /**
@@ -262,8 +904,11 @@ public class CloudBackend {
      * @throws IOException When the call had failed for any reason.
      */
     public void delete(CloudEntity co) throws IOException {
-        getMBSEndpoint().endpointV1().delete(co.getKindName(), co.getId()).execute();
+        execute(getMBSEndpoint(Operation.WRITE).endpointV1().delete(co.getKindName(), co.getId()),
+                newIdempotencyKey());
         Log.i(Consts.TAG, "delete: deleted: " + co);
+        uncache(co.getKindName(), Collections.singletonList(co.getId()));
+        invalidateQueries(co.getKindName());
     }
 
     /**
@@ -274,13 +919,21 @@ public class CloudBackend {
      * @throws IOException When the call had failed for any reason.
      */
     public void deleteAllById(String kindName, List<String> idList) throws IOException {
+        deleteAllById(kindName, idList, newIdempotencyKey());
+    }
+
+    // deletes the entities with the specified idempotency key
+    void deleteAllById(String kindName, List<String> idList, String idempotencyKey)
+            throws IOException {
 
         // prepare for EntityListDto
         EntityListDto cdl = createEntityListDto(kindName, idList);
 
         // delete
-        getMBSEndpoint().endpointV1().deleteAll(cdl).execute();
+        execute(getMBSEndpoint(Operation.BULK_WRITE).endpointV1().deleteAll(cdl), idempotencyKey);
         Log.i(Consts.TAG, "deleteAll: deleted: " + kindName + ": " + idList);
+        uncache(kindName, idList);
+        invalidateQueries(kindName);
     }
 
     /**
@@ -298,6 +951,69 @@ public class CloudBackend {
         deleteAllById(kindName, idList);
     }
 
+    /**
+     * Deletes all the specified {@link CloudEntity}s synchronously. The
+     * CloudEntities may belong to different kinds: they are grouped by kind,
+     * split into chunks of {@link Consts#BATCH_MAX_ENTITIES} and the chunks are
+     * executed in parallel.
+     *
+     * @param ceList {@link List} of {@link CloudEntity}s that have kindName and
+     *            id to specify the CloudEntities on the backend. Other property
+     *            values will be ignored.
+     * @throws CloudBatchException When some of the items had failed. Its
+     *             results hold the CloudEntities that have been deleted.
+     * @throws IOException When the call had failed for any other reason.
+     */
+    public void deleteAll(List<CloudEntity> ceList) throws IOException {
+        List<CloudEntity> results =
+                new ArrayList<CloudEntity>(Collections.<CloudEntity> nCopies(ceList.size(), null));
+        Map<Integer, IOException> errors = new HashMap<Integer, IOException>();
+
+        // group by kind and execute the chunks in parallel
+        List<KindChunk> chunks = splitByKind(ceList, errors);
+        List<Callable<Void>> calls = new ArrayList<Callable<Void>>();
+        for (final KindChunk chunk : chunks) {
+            calls.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    deleteAllById(chunk.kindName, chunk.ids);
+                    return null;
+                }
+            });
+        }
+        List<BatchRunner.Outcome<Void>> outcomes =
+                BatchRunner.runAll(calls, Consts.BATCH_PARALLELISM);
+        for (int i = 0; i < chunks.size(); i++) {
+            BatchRunner.Outcome<Void> o = outcomes.get(i);
+            for (int index : chunks.get(i).indices) {
+                if (o.isSuccess()) {
+                    results.set(index, ceList.get(index));
+                } else {
+                    errors.put(index, o.exception);
+                }
+            }
+        }
+        if (!errors.isEmpty()) {
+            throw new CloudBatchException(results, errors);
+        }
+    }
+
+    /**
+     * Resolves the {@link CloudRef}s of the specified {@link CloudEntity}s
+     * synchronously, up to the specified depth. On each level, the referenced
+     * entities that are not cached are read with one batched request per
+     * kind. An entity is read only once even if it is referenced many times or
+     * in a cycle. References that could not be read are left unresolved.
+     * 
+     * @param ceList {@link List} of {@link CloudEntity}s
+     * @param depth levels of references to resolve
+     * @throws IOException When the call had failed for any reason other than
+     *             failures of some of the referenced entities.
+     */
+    public void resolveReferences(List<CloudEntity> ceList, int depth) throws IOException {
+        new ReferenceResolver(this).resolve(ceList, depth);
+    }
+
     /**
      * Executes a query synchronously with specified {@link CloudQuery}.
      * 
@@ -306,12 +1022,25 @@ public class CloudBackend {
      * @throws IOException When the call had failed for any reason.
      */
     public List<CloudEntity> list(CloudQuery query) throws IOException {
+        return list(query, true);
+    }
+
+    // executes the query, and resolves the references of the results if
+    // resolveReferences is true. CloudBackendAsync resolves them itself
+    // after it has delivered the results.
+    List<CloudEntity> list(CloudQuery query, boolean resolveReferences) throws IOException {
 
         // execute the query
         EntityListDto cbList;
-        QueryDto cq = query.convertToQueryDto();
+        final QueryDto cq = query.convertToQueryDto();
         Log.i(Consts.TAG, "list: executing query: " + cq);
-        cbList = getMBSEndpoint().endpointV1().list(cq).execute();
+        String validatorKey = "list:" + toCanonicalJson(cq);
+        cbList = executeRead(Operation.QUERY, validatorKey, new RequestFactory<EntityListDto>() {
+            @Override
+            public AbstractGoogleClientRequest<EntityListDto> create() throws IOException {
+                return getMBSEndpoint(Operation.QUERY).endpointV1().list(cq);
+            }
+        });
         Log.i(Consts.TAG, "list: result: " + cbList.getEntries());
 
         // convert the result to List
@@ -321,6 +1050,12 @@ public class CloudBackend {
                 coList.add(CloudEntity.createCloudEntityFromEntityDto(cd));
             }
         }
+        cache(coList);
+
+        // resolve references of the result
+        if (resolveReferences && query.getReferenceDepth() > 0) {
+            resolveReferences(coList, query.getReferenceDepth());
+        }
         return coList;
     }
 
@@ -28,10 +28,14 @@ import android.os.Handler;
 import android.util.Log;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Cloud Backend API class that provides asynchronous APIs in addition to
@@ -46,13 +50,23 @@ public class CloudBackendAsync extends CloudBackend {
      * Map of ContinuousQueryHandlers (key = queryId)
      */
     protected final Map<String, ContinuousQueryHandler> continuousQueries =
-            new HashMap<String, ContinuousQueryHandler>();
+            Collections.synchronizedMap(new HashMap<String, ContinuousQueryHandler>());
 
     /**
      * {@link Application} for this backend object, such as {@link Activity}.
      */
     protected final Application application;
 
+    private volatile CloudOutbox outbox;
+
+    private volatile QuerySnapshotStore snapshotStore;
+
+    private volatile ContinuousQueryRegistry queryRegistry;
+
+    private volatile SubscriptionLeaseManager leaseManager;
+
+    private final CloudInvalidator invalidator = new CloudInvalidator(this);
+
     /**
      * Creates an instance of {@link CloudBackendAsync}. Caller need to pass a
      * {@link Context} such as {@link Activity} that will be used to Google
@@ -68,12 +82,127 @@ public class CloudBackendAsync extends CloudBackend {
         this.application =
                 (Application) (context != null ? context.getApplicationContext() : null);
 
-        // registering GCM
+        // start registering GCM in the background
         if (this.application != null) {
-            GCMIntentService.getRegistrationId(this.application);
+            GCMIntentService.startRegistration(this.application);
+        }
+
+        // send the requests on the warm connections
+        if (Consts.PRECONNECT_ENABLED && this.application != null) {
+            setPreconnector(CloudPreconnector.getInstance(this.application));
+        }
+    }
+
+    /**
+     * Sets {@link CloudOutbox} to route the writes through (optimistic mode).
+     * When set, the insert, update and delete methods journal the writes in
+     * the outbox and call the handler with the written {@link CloudEntity}s
+     * without waiting for the backend, and the outbox sends them with this
+     * backend when the network is available.
+     * <p>
+     * New entities get a client-generated id (see
+     * {@link CloudEntity#generateId()}), so they can be updated or deleted
+     * right away; the writes are sent in order. The pending writes are applied
+     * to the results of queries and continuous queries immediately, and are
+     * replaced by the backend's state when it returns them.
+     *
+     * @param outbox {@link CloudOutbox}, or null to write to the backend
+     *            directly
+     */
+    public void setOutbox(CloudOutbox outbox) {
+        this.outbox = outbox;
+        if (outbox != null) {
+            outbox.setBackend(this);
+        }
+    }
+
+    /**
+     * Returns {@link CloudOutbox} the writes are routed through, or null.
+     */
+    public CloudOutbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Sets {@link QuerySnapshotStore} to keep the results of the queries in.
+     * When set, the list methods pass the stored results of a query to the
+     * handler's onStaleResult at once (if they are not in the
+     * {@link CloudQueryCache}), and bring them up to date with a delta fetch
+     * instead of executing the query in full. Continuous queries are
+     * executed in full to subscribe, and their push notifications update the
+     * stored results even when no activity is running (see
+     * {@link GCMIntentService}).
+     *
+     * @param snapshotStore {@link QuerySnapshotStore}, or null for none
+     */
+    public void setSnapshotStore(QuerySnapshotStore snapshotStore) {
+        this.snapshotStore = snapshotStore;
+    }
+
+    /**
+     * Returns {@link QuerySnapshotStore} the results of the queries are kept
+     * in, or null.
+     */
+    public QuerySnapshotStore getSnapshotStore() {
+        return snapshotStore;
+    }
+
+    /**
+     * Sets {@link ContinuousQueryRegistry} to keep the subscriptions of the
+     * continuous queries in. When set, a continuous query whose subscription
+     * is still live (such as one listed again after a restart of the app) is
+     * executed with scope PAST instead of subscribing again, and the push
+     * notifications of the queries in the registry refresh their snapshots
+     * before the queries are listed again.
+     *
+     * @param queryRegistry {@link ContinuousQueryRegistry}, or null for none
+     */
+    public void setQueryRegistry(ContinuousQueryRegistry queryRegistry) {
+        this.queryRegistry = queryRegistry;
+    }
+
+    /**
+     * Returns {@link ContinuousQueryRegistry} the subscriptions are kept in,
+     * or null.
+     */
+    public ContinuousQueryRegistry getQueryRegistry() {
+        return queryRegistry;
+    }
+
+    /**
+     * Sets {@link SubscriptionLeaseManager} to renew the subscriptions in the
+     * {@link ContinuousQueryRegistry} before they expire, and starts it. The
+     * previous manager, if any, is stopped.
+     *
+     * @param leaseManager {@link SubscriptionLeaseManager}, or null for none
+     */
+    public void setLeaseManager(SubscriptionLeaseManager leaseManager) {
+        SubscriptionLeaseManager previous = this.leaseManager;
+        if (previous != null) {
+            previous.stop();
+        }
+        this.leaseManager = leaseManager;
+        if (leaseManager != null) {
+            leaseManager.start();
         }
     }
 
+    /**
+     * Returns {@link SubscriptionLeaseManager} that renews the subscriptions,
+     * or null.
+     */
+    public SubscriptionLeaseManager getLeaseManager() {
+        return leaseManager;
+    }
+
+    /**
+     * Returns {@link CloudInvalidator} that applies the remote changes learned
+     * from push notifications to the caches of this backend.
+     */
+    public CloudInvalidator getInvalidator() {
+        return invalidator;
+    }
+
     /**
      * Inserts a CloudEntity into the backend asynchronously.
      * 
@@ -84,6 +213,11 @@ public class CloudBackendAsync extends CloudBackend {
         (new BackendCaller<CloudEntity, CloudEntity>(ce, handler) {
             @Override
             protected CloudEntity callBackend(CloudEntity param) throws IOException {
+                if (outbox != null) {
+                    journal(CloudOutbox.Op.INSERT, param);
+                    publishPendingWrites(uiThreadHandler, Collections.singletonList(param));
+                    return param;
+                }
                 return CloudBackendAsync.super.insert(param);
             }
         }).start();
@@ -102,6 +236,13 @@ public class CloudBackendAsync extends CloudBackend {
         (new BackendCaller<List<CloudEntity>, List<CloudEntity>>(ceList, handler) {
             @Override
             protected List<CloudEntity> callBackend(List<CloudEntity> ceList) throws IOException {
+                if (outbox != null) {
+                    for (CloudEntity ce : ceList) {
+                        journal(CloudOutbox.Op.INSERT, ce);
+                    }
+                    publishPendingWrites(uiThreadHandler, ceList);
+                    return ceList;
+                }
                 return CloudBackendAsync.super.insertAll(ceList);
             }
         }).start();
@@ -119,6 +260,11 @@ public class CloudBackendAsync extends CloudBackend {
         (new BackendCaller<CloudEntity, CloudEntity>(ce, handler) {
             @Override
             protected CloudEntity callBackend(CloudEntity param) throws IOException {
+                if (outbox != null) {
+                    journal(CloudOutbox.Op.UPDATE, param);
+                    publishPendingWrites(uiThreadHandler, Collections.singletonList(param));
+                    return param;
+                }
                 return CloudBackendAsync.super.update(param);
             }
         }).start();
@@ -137,6 +283,13 @@ public class CloudBackendAsync extends CloudBackend {
         (new BackendCaller<List<CloudEntity>, List<CloudEntity>>(ceList, handler) {
             @Override
             protected List<CloudEntity> callBackend(List<CloudEntity> ceList) throws IOException {
+                if (outbox != null) {
+                    for (CloudEntity ce : ceList) {
+                        journal(CloudOutbox.Op.UPDATE, ce);
+                    }
+                    publishPendingWrites(uiThreadHandler, ceList);
+                    return ceList;
+                }
                 return CloudBackendAsync.super.updateAll(ceList);
             }
         }).start();
@@ -160,12 +313,17 @@ public class CloudBackendAsync extends CloudBackend {
     }
 
     /**
-     * Reads the specified multiple {@link CloudEntity}s asynchronously.
+     * Reads the specified multiple {@link CloudEntity}s asynchronously. The
+     * CloudEntities may belong to different kinds. See
+     * {@link CloudBackend#getAll(List)}.
      * 
      * @param ceList a List of {@link CloudEntity}s that has kindName and id to
      *            specify the CloudEntity on the backend. Other property values
      *            will be ignored.
      * @param handler {@link CloudCallbackHandler} that handles the response.
+     *            The results are in the same order as ceList. If some of the
+     *            items had failed, {@link CloudBatchException} that holds the
+     *            partial results is passed to the onError method.
      */
     public void getAll(List<CloudEntity> ceList, CloudCallbackHandler<List<CloudEntity>> handler) {
         (new BackendCaller<List<CloudEntity>, List<CloudEntity>>(ceList, handler) {
@@ -176,13 +334,7 @@ public class CloudBackendAsync extends CloudBackend {
                 if (ceList.isEmpty()) {
                     return ceList;
                 }
-
-                // get a List of IDs
-                List<String> idList = new LinkedList<String>();
-                for (CloudEntity ce : ceList) {
-                    idList.add(ce.getId());
-                }
-                return CloudBackendAsync.super.getAll(idList.get(0), idList);
+                return CloudBackendAsync.super.getAll(ceList);
             }
         }).start();
     }
@@ -194,11 +346,18 @@ public class CloudBackendAsync extends CloudBackend {
      *            CloudEntity on the backend. Other property values will be
      *            ignored.
      * @param handler {@link CloudCallbackHandler} that handles the response.
+     * @throws IllegalArgumentException When the entity has no id.
      */
     public void delete(CloudEntity ce, CloudCallbackHandler<Void> handler) {
+        checkIds(Collections.singletonList(ce));
         (new BackendCaller<CloudEntity, Void>(ce, handler) {
             @Override
             protected Void callBackend(CloudEntity ce) throws IOException {
+                if (outbox != null) {
+                    journal(CloudOutbox.Op.DELETE, ce);
+                    publishPendingWrites(uiThreadHandler, Collections.singletonList(ce));
+                    return null;
+                }
                 CloudBackendAsync.super.delete(ce.getKindName(), ce.getId());
                 return null;
             }
@@ -206,15 +365,21 @@ public class CloudBackendAsync extends CloudBackend {
     }
 
     /**
-     * Deletes the specified multiple {@link CloudEntity}s asynchronously.
+     * Deletes the specified multiple {@link CloudEntity}s asynchronously. The
+     * CloudEntities may belong to different kinds. See
+     * {@link CloudBackend#deleteAll(List)}.
      * 
      * @param ceList a List of {@link CloudEntity}s that has kindName and id to
      *            specify the CloudEntity on the backend. Other property values
      *            will be ignored.
      * @param handler {@link CloudCallbackHandler} that handles the response.
+     *            If some of the items had failed, {@link CloudBatchException}
+     *            is passed to the onError method.
+     * @throws IllegalArgumentException When an entity has no id.
      */
     public void deleteAll(
             List<CloudEntity> ceList, CloudCallbackHandler<List<CloudEntity>> handler) {
+        checkIds(ceList);
         (new BackendCaller<List<CloudEntity>, List<CloudEntity>>(ceList, handler) {
             @Override
             protected List<CloudEntity> callBackend(List<CloudEntity> ceList) throws IOException {
@@ -223,58 +388,226 @@ public class CloudBackendAsync extends CloudBackend {
                 if (ceList.isEmpty()) {
                     return ceList;
                 }
-
-                // get a List of IDs
-                List<String> idList = new LinkedList<String>();
-                for (CloudEntity ce : ceList) {
-                    idList.add(ce.getId());
+                if (outbox != null) {
+                    for (CloudEntity ce : ceList) {
+                        journal(CloudOutbox.Op.DELETE, ce);
+                    }
+                    publishPendingWrites(uiThreadHandler, ceList);
+                    return null;
                 }
-                CloudBackendAsync.super.deleteAllById(idList.get(0), idList);
+                CloudBackendAsync.super.deleteAll(ceList);
                 return null;
             }
         }).start();
     }
 
     /**
-     * Executes a query with specified {@link CloudQuery}.
+     * Executes a query with specified {@link CloudQuery}. If a
+     * {@link CloudQueryCache} is set, the cached results of the query are
+     * passed to the handler at once (see {@link CloudQueryCache} for how they
+     * are revalidated); otherwise, the results stored in the
+     * {@link QuerySnapshotStore} are, if one is set.
+     * <p>
+     * A continuous query listed before the GCM registration has succeeded is
+     * executed without subscribing, and is subscribed when the registration id
+     * is available.
      * 
      * @param query {@link CloudQuery} to execute.
      * @param handler {@link CloudCallbackHandler} that handles the response.
      */
     public void list(CloudQuery query, CloudCallbackHandler<List<CloudEntity>> handler) {
 
-        // register the query as continuous query
+        // register the query as continuous query. The query id is set before
+        // the copy, so that the snapshot of the query is found by the id of
+        // its push notifications.
+        String queryId = query.getQueryId();
+        ContinuousQueryHandler cqh = null;
         if (query.isContinuous()) {
             CloudQuery ncq = new CloudQuery(query);
             ncq.setScope(Scope.PAST);
-            ContinuousQueryHandler cqh = new ContinuousQueryHandler(handler, ncq, getCredential());
-            continuousQueries.put(query.getQueryId(), cqh);
+            cqh = new ContinuousQueryHandler(handler, ncq, getCredential());
+            continuousQueries.put(queryId, cqh);
+        }
+        Handler uiThreadHandler = new Handler();
+
+        // return the cached results, if any. Fresh results are not
+        // revalidated, unless the query needs to subscribe.
+        CloudQueryCache queryCache = getQueryCache();
+        CloudQueryCache.Entry cached = queryCache == null || query.getScope() == Scope.FUTURE
+                ? null : queryCache.get(query);
+        if (cached != null) {
+            boolean fresh = queryCache.isFresh(cached);
+            Log.i(Consts.TAG, "list: cached results (" + (fresh ? "fresh" : "stale") + "): "
+                    + query);
+            deliverCachedResults(uiThreadHandler, query, handler, cached.results, fresh);
+            if (cqh != null) {
+                cqh.setLastResults(cached.results);
+            }
+            if (fresh && cqh == null) {
+                return;
+            }
         }
 
         // execute the query
-        _list(query, handler, new Handler());
+        _list(query, handler, uiThreadHandler, cqh,
+                cached == null ? null : cached.results, cached == null);
     }
 
+    // executes the query. If the previous results are specified (they have
+    // been passed to the handler from the cache), or the snapshot of the query
+    // is passed to the handler when useSnapshot is true, the handler is
+    // called again only if the results differ.
     private void _list(CloudQuery query, CloudCallbackHandler<List<CloudEntity>> handler,
-            Handler uiThreadHandler) {
+            final Handler uiThreadHandler, final ContinuousQueryHandler cqh,
+            final List<CloudEntity> previousResults, final boolean useSnapshot) {
+        final CloudQueryCache queryCache = getQueryCache();
+        final long generation = queryCache == null ? 0 : queryCache.getGeneration(
+                query.getKindName());
         (new BackendCaller<CloudQuery, List<CloudEntity>>(query, handler, uiThreadHandler) {
             @Override
             protected List<CloudEntity> callBackend(CloudQuery query) throws IOException {
 
-                // set regId (this may blocks until registration finishes)
-                if (application != null) {
-                    query.setRegId(GCMIntentService.getRegistrationId(application));
+                // pass the snapshot of the query to the handler, if any
+                QuerySnapshotStore store = query.getScope() == Scope.FUTURE ? null : snapshotStore;
+                List<CloudEntity> previous = previousResults;
+                if (store != null && useSnapshot) {
+                    List<CloudEntity> snapshot = store.getResults(query.getQueryId());
+                    if (snapshot != null) {
+                        Log.i(Consts.TAG, "list: snapshot results: " + query);
+                        deliverCachedResults(uiThreadHandler, query, handler, snapshot, false);
+                        if (cqh != null) {
+                            cqh.setLastResults(snapshot);
+                        }
+                        previous = snapshot;
+                    }
+                }
+
+                // set regId of a continuous query (this may blocks until
+                // registration finishes)
+                String regId = null;
+                if (application != null && query.isContinuous()) {
+                    regId = GCMIntentService.getRegistrationId(application);
+                    query.setRegId(regId);
                 }
 
-                // execute query
-                return CloudBackendAsync.super.list(query);
+                // without registration id, the subscription is held: the
+                // query is executed without subscribing, and listed again to
+                // subscribe when the registration succeeds
+                boolean held = application != null && query.isContinuous() && regId == null;
+                if (held) {
+                    holdSubscription(query, handler, uiThreadHandler, cqh);
+                }
+
+                // resume the subscription of the query, if it is live
+                ContinuousQueryRegistry registry = query.isContinuous() && !held
+                        ? queryRegistry : null;
+                CloudQuery q = query;
+                boolean subscribed = registry != null && registry.isSubscribed(query, regId);
+                if (subscribed) {
+                    Log.i(Consts.TAG, "list: resuming subscription: " + query);
+                    registry.touch(query.getQueryId());
+                }
+                if (subscribed || held) {
+                    q = new CloudQuery(query);
+                    q.setScope(Scope.PAST);
+                }
+
+                // execute query (or bring its snapshot up to date, unless it
+                // needs to subscribe), and apply the pending writes to the
+                // results
+                List<CloudEntity> results;
+                if ((subscribed || held) && query.getScope() == Scope.FUTURE) {
+                    results = new ArrayList<CloudEntity>();
+                } else if (store != null && !q.isContinuous()) {
+                    results = store.refresh(CloudBackendAsync.this, q, false);
+                } else {
+                    results = CloudBackendAsync.super.list(q, false);
+                    if (store != null) {
+                        store.save(q, results);
+                    }
+                }
+                if (registry != null && !subscribed) {
+                    registry.register(query, regId, store == null ? null : query.getQueryId());
+                    SubscriptionLeaseManager leases = leaseManager;
+                    if (leases != null) {
+                        leases.reschedule();
+                    }
+                }
+                if (cqh != null) {
+                    cqh.setLastResults(results);
+                }
+                boolean same = previous != null
+                        && CloudQueryCache.isSameResults(previous, results);
+
+                // pass the results to the handler's onStaleResult at once, and
+                // to its onComplete again when their references are resolved
+                if (query.getReferenceDepth() > 0 && !results.isEmpty()) {
+                    if (!same) {
+                        deliverCachedResults(uiThreadHandler, query, handler, results, false);
+                    }
+                    resolveReferences(results, query.getReferenceDepth());
+                }
+                if (queryCache != null && query.getScope() != Scope.FUTURE) {
+                    queryCache.put(query, results, generation);
+                }
+                if (same) {
+                    Log.i(Consts.TAG, "list: revalidated cached results: " + query);
+                    skipResult = true;
+                }
+                return applyPendingWrites(query, results);
             }
         }).start();
     }
 
+    // lists the continuous query again when the registration succeeds, unless
+    // it has been removed in the meantime
+    private void holdSubscription(final CloudQuery query,
+            final CloudCallbackHandler<List<CloudEntity>> handler, final Handler uiThreadHandler,
+            ContinuousQueryHandler cqh) {
+        if (cqh == null) {
+            return;
+        }
+        Log.i(Consts.TAG, "list: holding subscription until registration: " + query);
+        GCMIntentService.runWhenRegistered(application, new Runnable() {
+            @Override
+            public void run() {
+                ContinuousQueryHandler current = continuousQueries.get(query.getQueryId());
+                if (current == null) {
+                    return;
+                }
+                Log.i(Consts.TAG, "list: subscribing held query: " + query);
+                _list(query, handler, uiThreadHandler, current, current.getLastResults(), false);
+            }
+        });
+    }
+
+    // passes the cached results to the handler on UI thread
+    private void deliverCachedResults(Handler uiThreadHandler, final CloudQuery query,
+            final CloudCallbackHandler<List<CloudEntity>> handler,
+            final List<CloudEntity> results, final boolean fresh) {
+        if (handler == null) {
+            return;
+        }
+        uiThreadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                List<CloudEntity> l = applyPendingWrites(query,
+                        new ArrayList<CloudEntity>(results));
+                if (fresh) {
+                    handler.onComplete(l);
+                } else {
+                    handler.onStaleResult(l);
+                }
+            }
+        });
+    }
+
     /**
      * Handles notification from Google Cloud Messaging service and invokes a
-     * query specified by the queryId.
+     * query specified by the queryId. The cached results of the other queries
+     * on the same kind are marked dirty. If the query has not been listed
+     * since the app started, but is in the {@link ContinuousQueryRegistry},
+     * its snapshot is refreshed.
      * 
      * @param queryId
      */
@@ -283,14 +616,36 @@ public class CloudBackendAsync extends CloudBackend {
         // retrieve query and handler name for the notification
         ContinuousQueryHandler cqh = continuousQueries.get(queryId);
         if (cqh == null) {
-            Log.i(Consts.TAG, "handleQueryMessage: Query not found for ID: " + queryId);
+            ContinuousQueryRegistry registry = queryRegistry;
+            ContinuousQueryRegistry.Subscription s = registry == null ? null : registry.get(
+                    queryId);
+            if (s != null && s.getSnapshotId() != null && snapshotStore != null) {
+                refreshSnapshot(s);
+            } else {
+                Log.i(Consts.TAG, "handleQueryMessage: Query not found for ID: " + queryId);
+            }
             return;
         }
+        invalidator.invalidateKind(cqh.getQuery().getKindName());
 
         // execute the query
         CloudBackendAsync cba = new CloudBackendAsync(application);
+        cba.copyConfig(this);
         cba.setCredential(cqh.getCredential());
-        cba._list(cqh.getQuery(), cqh.getHandler(), cqh.getUiThreadHandler());
+        cba.outbox = outbox;
+        cba.snapshotStore = snapshotStore;
+        cba.queryRegistry = queryRegistry;
+        cba._list(cqh.getQuery(), cqh.getHandler(), cqh.getUiThreadHandler(), cqh, null, false);
+    }
+
+    // brings the snapshot of a subscribed query up to date in the background
+    private void refreshSnapshot(final ContinuousQueryRegistry.Subscription s) {
+        (new BackendCaller<String, List<CloudEntity>>(s.getSnapshotId(), null) {
+            @Override
+            protected List<CloudEntity> callBackend(String snapshotId) throws IOException {
+                return snapshotStore.refresh(CloudBackendAsync.this, snapshotId);
+            }
+        }).start();
     }
 
     /**
@@ -347,6 +702,18 @@ public class CloudBackendAsync extends CloudBackend {
      */
     public void unsubscribeFromQuery(String queryId) {
         continuousQueries.remove(queryId);
+        if (queryRegistry != null) {
+            queryRegistry.remove(queryId);
+        }
+    }
+
+    /**
+     * Returns true if the continuous query has a handler in this backend.
+     *
+     * @param queryId query id
+     */
+    boolean hasQueryHandler(String queryId) {
+        return continuousQueries.containsKey(queryId);
     }
 
     /**
@@ -354,6 +721,9 @@ public class CloudBackendAsync extends CloudBackend {
      */
     public void clearAllSubscription() {
         continuousQueries.clear();
+        if (queryRegistry != null) {
+            queryRegistry.clear();
+        }
     }
 
     /**
@@ -369,6 +739,65 @@ public class CloudBackendAsync extends CloudBackend {
         this.listByKind(kindName, CloudEntity.PROP_CREATED_AT, Order.DESC, 1, scope, handler);
     }
 
+    // rejects deletes without id on the calling thread, before any of them is
+    // journaled, instead of throwing on the BackendCaller thread
+    private static void checkIds(List<CloudEntity> ceList) {
+        for (CloudEntity ce : ceList) {
+            if (ce.getId() == null) {
+                throw new IllegalArgumentException("No id specified: " + ce);
+            }
+        }
+    }
+
+    // journals the write in the outbox. New entities get a client-generated id,
+    // so that the following writes to them can be journaled right away.
+    private void journal(CloudOutbox.Op op, CloudEntity ce) throws IOException {
+        Date now = new Date();
+        if (op != CloudOutbox.Op.DELETE) {
+            if (ce.getId() == null) {
+                ce.setId(CloudEntity.generateId());
+                op = CloudOutbox.Op.INSERT;
+            }
+            if (ce.getCreatedAt() == null) {
+                ce.setCreatedAt(now);
+            }
+            ce.setUpdatedAt(now);
+        }
+        outbox.enqueue(op, ce);
+        ce.setPending(true);
+        invalidateQueries(ce.getKindName());
+    }
+
+    // applies the writes pending in the outbox to the results of the query
+    private List<CloudEntity> applyPendingWrites(CloudQuery query, List<CloudEntity> results) {
+        CloudOutbox outbox = this.outbox;
+        if (outbox == null || query.getScope() == Scope.FUTURE) {
+            return results;
+        }
+        return LocalQueryEvaluator.applyPendingWrites(
+                query, results, outbox.getPendingEntities(query.getKindName()));
+    }
+
+    // delivers the last results of the continuous queries on the kinds of the
+    // written entities again, with the pending writes applied
+    private void publishPendingWrites(Handler uiThreadHandler, List<CloudEntity> ceList) {
+        final Set<String> kindNames = new HashSet<String>();
+        for (CloudEntity ce : ceList) {
+            kindNames.add(ce.getKindName());
+        }
+        uiThreadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (ContinuousQueryHandler cqh : continuousQueries.values()) {
+                    List<CloudEntity> results = cqh.getLastResults();
+                    if (results != null && kindNames.contains(cqh.getQuery().getKindName())) {
+                        cqh.getHandler().onComplete(applyPendingWrites(cqh.getQuery(), results));
+                    }
+                }
+            }
+        });
+    }
+
     // a Thread class that will call backend API asynchronously
     // and call back the handler on UI thread
     private abstract class BackendCaller<Param, Result> extends Thread {
@@ -379,6 +808,9 @@ public class CloudBackendAsync extends CloudBackend {
 
         final Param param;
 
+        // set by callBackend to not pass its result to the handler
+        boolean skipResult;
+
         private BackendCaller(
                 Param param, CloudCallbackHandler<Result> crh, Handler uiThreadHandler) {
             this.handler = crh;
@@ -408,7 +840,7 @@ public class CloudBackendAsync extends CloudBackend {
             final IOException exception = ie;
 
             // if no handler specified, no need to callback
-            if (handler == null) {
+            if (handler == null || (exception == null && skipResult)) {
                 return;
             }
 
@@ -441,6 +873,8 @@ public class CloudBackendAsync extends CloudBackend {
 
         private final GoogleAccountCredential credential;
 
+        private volatile List<CloudEntity> lastResults;
+
         public ContinuousQueryHandler(final CloudCallbackHandler<List<CloudEntity>> handler,
                 final CloudQuery query, final GoogleAccountCredential credential) {
             this.handler = handler;
@@ -461,6 +895,18 @@ public class CloudBackendAsync extends CloudBackend {
             return query;
         }
 
+        /**
+         * Returns the last results of the query from the backend, or null if
+         * it has not returned yet.
+         */
+        public List<CloudEntity> getLastResults() {
+            return lastResults;
+        }
+
+        void setLastResults(List<CloudEntity> lastResults) {
+            this.lastResults = lastResults;
+        }
+
         public GoogleAccountCredential getCredential() {
             return credential;
         }
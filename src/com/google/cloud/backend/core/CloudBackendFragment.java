@@ -26,19 +26,41 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * An {@link Fragment} class that allows hosting Activities to access the
  * features and functionalities of the CloudBackend classes, including CRUD of
  * {@link CloudEntity}, Google account authentication and Google Cloud
  * Messaging.
+ * <p>
+ * The initialization runs on a {@link StartupOrchestrator}: the GCM
+ * registration, the OAuth token fetch, the pre-connection to the backend
+ * (when {@link Consts#PRECONNECT_ENABLED} keeps the connections alive) and
+ * the loading of the caches from disk run concurrently, and
+ * {@link OnListener#onCreateFinished()} is called as soon as the account is
+ * signed in and the caches are loaded, without waiting for the network.
  */
 public class CloudBackendFragment extends Fragment {
 
+    /**
+     * Names of the startup phases (see {@link #getStartup()}).
+     */
+    public static final String PHASE_GCM = "gcm";
+    public static final String PHASE_ACCOUNT = "account";
+    public static final String PHASE_TOKEN = "token";
+    public static final String PHASE_PRECONNECT = "preconnect";
+    public static final String PHASE_CACHE = "cache";
+    public static final String PHASE_READY = "ready";
+
     /**
      * onActivityResult code
      */
@@ -48,6 +70,10 @@ public class CloudBackendFragment extends Fragment {
 
     private CloudBackendMessaging mCloudBackend;
 
+    private CloudWriteBuffer mWriteBuffer;
+
+    private StartupOrchestrator mStartup;
+
     /**
      * The listener to use upon completion of certain functions.
      */
@@ -65,6 +91,23 @@ public class CloudBackendFragment extends Fragment {
         }
     };
 
+    /**
+     * BroadcastReceiver for invalidation pushes.
+     */
+    private BroadcastReceiver mInvalidateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String kindName = intent.getStringExtra(GCMIntentService.EXTRA_KIND_NAME);
+            String[] ids = intent.getStringArrayExtra(GCMIntentService.EXTRA_IDS);
+            Log.i(Consts.TAG, "An invalidation has been recieved for kind: " + kindName);
+            if (ids == null) {
+                mCloudBackend.getInvalidator().invalidateKind(kindName);
+            } else {
+                mCloudBackend.getInvalidator().invalidateEntities(kindName, Arrays.asList(ids));
+            }
+        }
+    };
+
     /**
      * Returns {@link CloudBackendMessaging} instance for this activity.
      *
@@ -74,6 +117,28 @@ public class CloudBackendFragment extends Fragment {
         return mCloudBackend;
     }
 
+    /**
+     * Returns the {@link StartupOrchestrator} of this fragment, with the
+     * timings of the startup phases. Activities may call
+     * {@link StartupOrchestrator#mark(String)} on it when the first results
+     * are shown.
+     */
+    public StartupOrchestrator getStartup() {
+        return mStartup;
+    }
+
+    /**
+     * Returns {@link CloudWriteBuffer} of this fragment's backend. The buffer
+     * is flushed when the fragment is paused, so the buffered writes are sent
+     * when the app goes to the background.
+     */
+    public CloudWriteBuffer getWriteBuffer() {
+        if (mWriteBuffer == null) {
+            mWriteBuffer = new CloudWriteBuffer(mCloudBackend);
+        }
+        return mWriteBuffer;
+    }
+
     @Override
     public void onAttach(Activity activity) {
         super.onAttach(activity);
@@ -101,20 +166,111 @@ public class CloudBackendFragment extends Fragment {
         mCredential = GoogleAccountCredential.usingAudience(getActivity(), Consts.AUTH_AUDIENCE);
         mCloudBackend.setCredential(mCredential);
 
+        startPhases();
         signInAndSubscribe(false);
 
         LocalBroadcastManager.getInstance(getActivity()).registerReceiver(mMsgReceiver,
                 new IntentFilter(GCMIntentService.BROADCAST_ON_MESSAGE));
+        LocalBroadcastManager.getInstance(getActivity()).registerReceiver(mInvalidateReceiver,
+                new IntentFilter(GCMIntentService.BROADCAST_ON_INVALIDATE));
+    }
+
+    // starts the phases of the startup; the account phase is completed when
+    // the account has been signed in
+    private void startPhases() {
+        final Context app = getActivity().getApplicationContext();
+        final Handler uiThreadHandler = new Handler();
+        mStartup = new StartupOrchestrator(mCloudBackend.getResilience().getMetrics());
+        mStartup.addPhase(PHASE_GCM, new Callable<Void>() {
+            @Override
+            public Void call() {
+                // the registration has been started by the backend
+                GCMIntentService.getRegistrationId(mCloudBackend.application);
+                return null;
+            }
+        });
+        mStartup.addPhase(PHASE_ACCOUNT, null);
+        mStartup.addPhase(PHASE_TOKEN, new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                // fetches the token of the account for the first requests
+                CloudTokenManager tokenManager = mCloudBackend.getTokenManager();
+                if (Consts.IS_AUTH_ENABLED && mCredential.getSelectedAccountName() != null
+                        && tokenManager != null) {
+                    tokenManager.getToken(mCredential);
+                }
+                return null;
+            }
+        }, PHASE_ACCOUNT);
+        // without a preconnector, keep-alive is disabled (see
+        // Consts.PRECONNECT_ENABLED) and a connection opened now would be
+        // closed before the first request, so there is nothing to warm up
+        final CloudPreconnector preconnector = mCloudBackend.getPreconnector();
+        if (preconnector != null) {
+            mStartup.addPhase(PHASE_PRECONNECT, new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    preconnector.preconnectNow(mCloudBackend.getRootUrl());
+                    return null;
+                }
+            });
+        }
+        mStartup.addPhase(PHASE_CACHE, new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                // reads the subscriptions, the snapshots of the subscribed
+                // queries and the pending writes, so that the first list of
+                // the activity does not read them from the disk
+                ContinuousQueryRegistry registry = ContinuousQueryRegistry.getInstance(app);
+                List<String> snapshotIds = new ArrayList<String>();
+                for (ContinuousQueryRegistry.Subscription s : registry.getAll()) {
+                    if (s.getSnapshotId() != null) {
+                        snapshotIds.add(s.getSnapshotId());
+                    }
+                }
+                QuerySnapshotStore.getInstance(app).preload(snapshotIds);
+                CloudOutbox.getInstance(app);
+                return null;
+            }
+        });
+        mStartup.addPhase(PHASE_READY, new Callable<Void>() {
+            @Override
+            public Void call() {
+                uiThreadHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        subscribeToBroadcast();
+                    }
+                });
+                return null;
+            }
+        }, PHASE_ACCOUNT, PHASE_CACHE);
+        mStartup.start();
     }
 
     @Override
     public void onResume() {
         super.onResume();
+
+        // warm up a connection for the requests of the foreground
+        if (mCloudBackend.getPreconnector() != null) {
+            mCloudBackend.getPreconnector().preconnect(mCloudBackend.getRootUrl());
+        }
+    }
+
+    @Override
+    public void onPause() {
+        if (mWriteBuffer != null) {
+            mWriteBuffer.flush();
+        }
+        super.onPause();
     }
 
     @Override
     public void onDestroy() {
+        mCloudBackend.setLeaseManager(null);
         LocalBroadcastManager.getInstance(getActivity()).unregisterReceiver(mMsgReceiver);
+        LocalBroadcastManager.getInstance(getActivity()).unregisterReceiver(mInvalidateReceiver);
         super.onDestroy();
     }
 
@@ -149,10 +305,21 @@ public class CloudBackendFragment extends Fragment {
                 return;
             } else {
                 mCredential.setSelectedAccountName(accountName);
-                subscribeToBroadcast();
+                onSignedIn();
             }
         } else {
+            onSignedIn();
+        }
+    }
+
+    // completes the account phase of the startup, which subscribes to the
+    // broadcast when the caches are loaded, or subscribes at once after a new
+    // sign in
+    private void onSignedIn() {
+        if (mStartup.isDone(PHASE_ACCOUNT)) {
             subscribeToBroadcast();
+        } else {
+            mStartup.complete(PHASE_ACCOUNT);
         }
     }
 
@@ -198,7 +365,7 @@ public class CloudBackendFragment extends Fragment {
                 }
 
                 // post create initialization
-                subscribeToBroadcast();
+                onSignedIn();
                 break;
         }
     }
@@ -150,7 +150,7 @@ public class CloudBackendMessaging extends CloudBackendAsync {
      */
     public void unsubscribeFromCloudMessage(String topicId) {
         mMessageHandlers.remove(topicId);
-        super.continuousQueries.remove(topicId);
+        unsubscribeFromQuery(topicId);
     }
 
     private String getPrefKeyForTopicId(String topicId) {
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link IOException} thrown by batched operations of {@link CloudBackend}
+ * when some of the items could not be processed. It holds the partial results
+ * in the same order as the input list, and the error for each failed item
+ * keyed by its index in the input list.
+ */
+public class CloudBatchException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<CloudEntity> results;
+
+    private final Map<Integer, IOException> errors;
+
+    /**
+     * Creates an instance of {@link CloudBatchException}.
+     *
+     * @param results {@link List} of results in input order. Failed items
+     *            have null as their result.
+     * @param errors {@link Map} of errors keyed by the index of the failed item
+     *            in the input list.
+     */
+    public CloudBatchException(List<CloudEntity> results, Map<Integer, IOException> errors) {
+        super(errors.size() + " of " + results.size() + " items failed: "
+                + errors.values().iterator().next().getMessage());
+        initCause(errors.values().iterator().next());
+        this.results = Collections.unmodifiableList(results);
+        this.errors = Collections.unmodifiableMap(errors);
+    }
+
+    /**
+     * Returns the partial results in the same order as the input list. Failed
+     * items and items not found on the backend have null as their result.
+     *
+     * @return {@link List} of {@link CloudEntity}
+     */
+    public List<CloudEntity> getResults() {
+        return results;
+    }
+
+    /**
+     * Returns the errors keyed by the index of the failed item in the input
+     * list.
+     *
+     * @return {@link Map} of index and {@link IOException}
+     */
+    public Map<Integer, IOException> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Returns the error for the item at the specified index of the input list,
+     * or null if the item succeeded.
+     *
+     * @param index index of the item in the input list
+     * @return {@link IOException}
+     */
+    public IOException getError(int index) {
+        return errors.get(index);
+    }
+}
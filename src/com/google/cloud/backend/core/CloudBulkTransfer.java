@@ -0,0 +1,483 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.cloud.backend.android.mobilebackend.model.EntityDto;
+import com.google.cloud.backend.core.CloudQuery.Order;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Streams all the entities of a kind to a file, and streams a file back into
+ * the backend. Each record of the file is an {@link EntityDto}: a line of
+ * JSON (NDJSON, the default), or a message of {@link BinaryEntityCodec}
+ * preceded by its length as a 4-byte big-endian int (see
+ * {@link #setFormat(Format)}). A file must be imported in the format it was
+ * exported in.
+ * <p>
+ * Export pages through the kind in _createdAt order (keyset paging), and
+ * import inserts the entities in windows with {@link CloudBulkWriter}, so the
+ * memory use does not depend on the size of the kind. Both operations save a
+ * checkpoint file next to the data file after each page or window. If an
+ * operation is interrupted, calling it again with the same file resumes from
+ * the checkpoint. The checkpoint file is deleted when the operation finishes.
+ * Each import window is sent with an idempotency key derived from the file and
+ * its records, so a window inserted just before a crash, but not checkpointed,
+ * is applied once when the import resumes.
+ * All the methods work synchronously, so they can not be called directly from
+ * UI thread.
+ */
+public class CloudBulkTransfer {
+
+    /**
+     * Format of the files.
+     */
+    public enum Format {
+        /** one entity in JSON per line */
+        NDJSON,
+        /**
+         * length-prefixed messages of {@link BinaryEntityCodec}: smaller than
+         * NDJSON and faster to read and write, though each record carries its
+         * own dictionary of property names
+         */
+        BINARY
+    }
+
+    private static final JsonFactory jsonFactory = new GsonFactory();
+
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    // checkpoint keys
+    private static final String KEY_KIND_NAME = "kindName";
+    private static final String KEY_FORMAT = "format";
+    private static final String KEY_COUNT = "count";
+    private static final String KEY_OFFSET = "offset";
+    private static final String KEY_LAST_CREATED_AT = "lastCreatedAt";
+    private static final String KEY_BOUNDARY_IDS = "boundaryIds";
+    private static final String KEY_LINES = "lines";
+    private static final String KEY_DONE_LINES = "doneLines";
+
+    private final CloudBackend backend;
+
+    private CloudBulkWriter bulkWriter;
+
+    private int pageSize = 500;
+
+    private Format format = Format.NDJSON;
+
+    /**
+     * Creates an instance of {@link CloudBulkTransfer}.
+     *
+     * @param backend {@link CloudBackend} to read and write entities.
+     */
+    public CloudBulkTransfer(CloudBackend backend) {
+        this.backend = backend;
+        this.bulkWriter = new CloudBulkWriter(backend);
+    }
+
+    /**
+     * Sets number of entities read by one query on export, and number of
+     * entities of one import window (multiplied by the parallelism of the
+     * {@link CloudBulkWriter}).
+     *
+     * @param pageSize number of entities
+     * @return {@link CloudBulkTransfer}
+     */
+    public CloudBulkTransfer setPageSize(int pageSize) {
+        this.pageSize = Math.max(1, pageSize);
+        return this;
+    }
+
+    /**
+     * Sets the format of the files written by export and read by import.
+     *
+     * @param format {@link Format} ({@link Format#NDJSON} by default)
+     * @return {@link CloudBulkTransfer}
+     */
+    public CloudBulkTransfer setFormat(Format format) {
+        this.format = format;
+        return this;
+    }
+
+    /**
+     * Sets {@link CloudBulkWriter} used for import, to configure chunking,
+     * parallelism, retries and progress.
+     *
+     * @param bulkWriter {@link CloudBulkWriter}
+     * @return {@link CloudBulkTransfer}
+     */
+    public CloudBulkTransfer setBulkWriter(CloudBulkWriter bulkWriter) {
+        this.bulkWriter = bulkWriter;
+        return this;
+    }
+
+    /**
+     * Returns the checkpoint file of the specified data file.
+     *
+     * @param file data file
+     * @return checkpoint {@link File}
+     */
+    public static File getCheckpointFile(File file) {
+        return new File(file.getPath() + CHECKPOINT_SUFFIX);
+    }
+
+    /**
+     * Writes all the entities of the specified kind to the file. If there is a
+     * checkpoint of an interrupted export of the same kind, the export resumes
+     * from it. Otherwise the file is overwritten.
+     *
+     * @param kindName name of the kind to export
+     * @param file {@link File} to write
+     * @return total number of entities in the file
+     * @throws IOException When the export had failed for any reason. The
+     *             checkpoint is kept so that the export can be resumed.
+     */
+    public long exportKind(String kindName, File file) throws IOException {
+
+        // restore the checkpoint
+        File checkpointFile = getCheckpointFile(file);
+        Properties checkpoint = readCheckpoint(checkpointFile);
+        if (checkpoint != null && (!kindName.equals(checkpoint.getProperty(KEY_KIND_NAME))
+                || !format.name().equals(checkpoint.getProperty(KEY_FORMAT)))) {
+            checkpoint = null;
+        }
+        long count = 0;
+        long offset = 0;
+        Long lastCreatedAt = null;
+        Set<String> boundaryIds = new HashSet<String>();
+        if (checkpoint != null) {
+            count = Long.parseLong(checkpoint.getProperty(KEY_COUNT));
+            offset = Long.parseLong(checkpoint.getProperty(KEY_OFFSET));
+            String last = checkpoint.getProperty(KEY_LAST_CREATED_AT);
+            lastCreatedAt = last == null ? null : Long.valueOf(last);
+            boundaryIds.addAll(splitList(checkpoint.getProperty(KEY_BOUNDARY_IDS)));
+            Log.i(Consts.TAG, "exportKind: resuming " + kindName + " after " + count);
+        }
+
+        // drop anything written after the checkpoint
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(offset);
+        } finally {
+            raf.close();
+        }
+
+        FileOutputStream fos = new FileOutputStream(file, true);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        try {
+            int limit = pageSize;
+            while (true) {
+
+                // next page: _createdAt >= last, skipping the ids already
+                // exported with the same _createdAt
+                CloudQuery cq = new CloudQuery(kindName);
+                cq.setSort(CloudEntity.PROP_CREATED_AT, Order.ASC);
+                cq.setLimit(limit);
+                if (lastCreatedAt != null) {
+                    cq.setFilter(Filter.ge(CloudEntity.PROP_CREATED_AT,
+                            new DateTime(lastCreatedAt)));
+                }
+                List<CloudEntity> page = backend.list(cq);
+
+                int written = 0;
+                for (CloudEntity ce : page) {
+                    long createdAt = ce.getCreatedAt().getTime();
+                    if (lastCreatedAt != null && createdAt == lastCreatedAt
+                            && boundaryIds.contains(ce.getId())) {
+                        continue;
+                    }
+                    writeRecord(out, ce.getEntityDto());
+                    written++;
+                    if (lastCreatedAt == null || createdAt != lastCreatedAt) {
+                        lastCreatedAt = createdAt;
+                        boundaryIds.clear();
+                    }
+                    boundaryIds.add(ce.getId());
+                }
+                count += written;
+
+                // make the page durable, then save the checkpoint
+                out.flush();
+                fos.getFD().sync();
+                offset = fos.getChannel().position();
+                if (page.size() < limit) {
+                    break;
+                }
+                if (written == 0) {
+                    // more than one page of entities share the same
+                    // _createdAt: read a larger page
+                    limit *= 2;
+                    continue;
+                }
+                limit = pageSize;
+                Properties p = new Properties();
+                p.setProperty(KEY_KIND_NAME, kindName);
+                p.setProperty(KEY_FORMAT, format.name());
+                p.setProperty(KEY_COUNT, String.valueOf(count));
+                p.setProperty(KEY_OFFSET, String.valueOf(offset));
+                p.setProperty(KEY_LAST_CREATED_AT, String.valueOf(lastCreatedAt));
+                p.setProperty(KEY_BOUNDARY_IDS, joinList(boundaryIds));
+                writeCheckpoint(checkpointFile, p);
+            }
+        } finally {
+            out.close();
+        }
+        checkpointFile.delete();
+        Log.i(Consts.TAG, "exportKind: exported " + count + " entities of " + kindName);
+        return count;
+    }
+
+    /**
+     * Inserts all the entities in the file into the backend. If there is a
+     * checkpoint of an interrupted import of the file, the import resumes from
+     * it, skipping the entities that have been inserted. In the NDJSON format,
+     * blank lines are skipped.
+     *
+     * @param file {@link File} written by {@link #exportKind(String, File)}
+     *            in the format of this instance
+     * @return total number of entities inserted from the file, including the
+     *         ones inserted before the checkpoint (blank lines are not
+     *         counted)
+     * @throws IOException When the import had failed for any reason. The
+     *             checkpoint is kept so that the import can be resumed.
+     */
+    public long importFile(File file) throws IOException {
+
+        // restore the checkpoint. Records before "lines" and the records in
+        // "doneLines" have been inserted, "count" entities in all.
+        File checkpointFile = getCheckpointFile(file);
+        Properties checkpoint = readCheckpoint(checkpointFile);
+        long committed = 0;
+        long imported = 0;
+        Set<Long> doneLines = new HashSet<Long>();
+        if (checkpoint != null && checkpoint.getProperty(KEY_LINES) != null) {
+            committed = Long.parseLong(checkpoint.getProperty(KEY_LINES));
+            imported = Long.parseLong(checkpoint.getProperty(KEY_COUNT, "0"));
+            for (String s : splitList(checkpoint.getProperty(KEY_DONE_LINES))) {
+                doneLines.add(Long.valueOf(s));
+            }
+            Log.i(Consts.TAG, "importFile: resuming " + file + " after record " + committed);
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            int windowSize = pageSize * Consts.BATCH_PARALLELISM;
+            List<CloudEntity> window = new ArrayList<CloudEntity>();
+            List<Long> windowLines = new ArrayList<Long>();
+            long lineNo = 0;
+            byte[] record;
+            while ((record = readRecord(in)) != null) {
+                long n = lineNo++;
+                if (n < committed || doneLines.contains(n)) {
+                    continue;
+                }
+                EntityDto cd = parseRecord(record);
+                if (cd == null) {
+                    continue;
+                }
+                window.add(CloudEntity.createCloudEntityFromEntityDto(cd));
+                windowLines.add(n);
+                if (window.size() >= windowSize) {
+                    imported = insertWindow(file, checkpointFile, window, windowLines, lineNo,
+                            doneLines, imported);
+                    committed = lineNo;
+                    window.clear();
+                    windowLines.clear();
+                }
+            }
+            if (!window.isEmpty()) {
+                imported = insertWindow(file, checkpointFile, window, windowLines, lineNo,
+                        doneLines, imported);
+            }
+        } finally {
+            in.close();
+        }
+        checkpointFile.delete();
+        Log.i(Consts.TAG, "importFile: imported " + imported + " entities from " + file);
+        return imported;
+    }
+
+    // writes an entity as a record of the file
+    private void writeRecord(DataOutputStream out, EntityDto cd) throws IOException {
+        if (format == Format.BINARY) {
+            byte[] message = BinaryEntityCodec.encode(cd);
+            out.writeInt(message.length);
+            out.write(message);
+        } else {
+            out.write(jsonFactory.toString(cd).getBytes("UTF-8"));
+            out.write('\n');
+        }
+    }
+
+    // reads the next record of the file (a line without its line break in
+    // NDJSON), or returns null at the end of the file
+    private byte[] readRecord(DataInputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            return null;
+        }
+        if (format == Format.BINARY) {
+            int length = b << 24 | in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8
+                    | in.readUnsignedByte();
+            if (length < 0) {
+                throw new IOException("Malformed record of " + length + " bytes");
+            }
+            byte[] record = new byte[length];
+            in.readFully(record);
+            return record;
+        }
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (b >= 0 && b != '\n') {
+            line.write(b);
+            b = in.read();
+        }
+        return line.toByteArray();
+    }
+
+    // parses a record, or returns null for a blank line of NDJSON
+    private EntityDto parseRecord(byte[] record) throws IOException {
+        if (format == Format.BINARY) {
+            return BinaryEntityCodec.decode(new ByteArrayInputStream(record), EntityDto.class);
+        }
+        String line = new String(record, "UTF-8");
+        if (line.trim().isEmpty()) {
+            return null;
+        }
+        return jsonFactory.fromString(line, EntityDto.class);
+    }
+
+    // inserts a window of entities, moves the checkpoint to the end of it and
+    // returns the number of entities inserted so far. On partial failure, the
+    // inserted records are saved to the checkpoint so that they are skipped on
+    // resume.
+    private long insertWindow(File file, File checkpointFile, List<CloudEntity> window,
+            List<Long> windowLines, long end, Set<Long> doneLines, long imported)
+            throws IOException {
+        try {
+            bulkWriter.insertAll(window, getWindowKey(file, windowLines));
+        } catch (CloudBatchException e) {
+            for (int i = 0; i < window.size(); i++) {
+                if (e.getError(i) == null) {
+                    doneLines.add(windowLines.get(i));
+                    imported++;
+                }
+            }
+            writeImportCheckpoint(checkpointFile, windowLines.get(0), doneLines, imported);
+            throw e;
+        }
+        imported += window.size();
+        doneLines.clear();
+        writeImportCheckpoint(checkpointFile, end, doneLines, imported);
+        return imported;
+    }
+
+    // the idempotency key of a window: the same file and lines give the same
+    // key, so a window that was inserted before a crash, but not checkpointed,
+    // is applied once when the import is resumed
+    private static String getWindowKey(File file, List<Long> windowLines) throws IOException {
+        StringBuilder sb = new StringBuilder(file.getCanonicalPath())
+                .append('|').append(file.length())
+                .append('|').append(file.lastModified());
+        for (Long line : windowLines) {
+            sb.append(',').append(line);
+        }
+        return "import-" + UUID.nameUUIDFromBytes(sb.toString().getBytes("UTF-8"));
+    }
+
+    private void writeImportCheckpoint(File checkpointFile, long lines, Set<Long> doneLines,
+            long count) throws IOException {
+        Properties p = new Properties();
+        p.setProperty(KEY_COUNT, String.valueOf(count));
+        p.setProperty(KEY_LINES, String.valueOf(lines));
+        p.setProperty(KEY_DONE_LINES, joinList(doneLines));
+        writeCheckpoint(checkpointFile, p);
+    }
+
+    private static Properties readCheckpoint(File checkpointFile) throws IOException {
+        if (!checkpointFile.exists()) {
+            return null;
+        }
+        Properties p = new Properties();
+        FileInputStream in = new FileInputStream(checkpointFile);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+        return p;
+    }
+
+    // writes the checkpoint to a temp file and renames it, so that a crash
+    // leaves either the old or the new checkpoint
+    private static void writeCheckpoint(File checkpointFile, Properties p) throws IOException {
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            p.store(out, null);
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(checkpointFile)) {
+            throw new IOException("Failed to save checkpoint: " + checkpointFile);
+        }
+    }
+
+    private static String joinList(Set<?> values) {
+        StringBuilder sb = new StringBuilder();
+        for (Object v : values) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(v);
+        }
+        return sb.toString();
+    }
+
+    private static List<String> splitList(String s) {
+        List<String> l = new ArrayList<String>();
+        if (s != null) {
+            for (String v : s.split(",")) {
+                if (!v.isEmpty()) {
+                    l.add(v);
+                }
+            }
+        }
+        return l;
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.client.util.Sleeper;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Executes bulk insert, update and delete operations on top of
+ * {@link CloudBackend}. The entities are split into chunks bounded by the
+ * number of entities and by the size of the serialized entities, the chunks
+ * are executed in parallel, and a failed chunk is retried independently with
+ * exponential back-off. All the methods work synchronously, so they can not be
+ * called directly from UI thread.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * CloudBulkWriter writer = new CloudBulkWriter(backend).setParallelism(8)
+ *         .setProgressListener(listener);
+ * List&lt;CloudEntity&gt; inserted = writer.insertAll(entities);
+ * </pre>
+ */
+public class CloudBulkWriter {
+
+    /**
+     * A listener to receive progress of a bulk operation. It is called on a
+     * worker thread each time a chunk has finished.
+     */
+    public interface ProgressListener {
+
+        /**
+         * Called each time a chunk has finished.
+         *
+         * @param processed number of entities processed so far (succeeded or
+         *            failed)
+         * @param failed number of entities failed so far
+         * @param total number of entities of the operation
+         */
+        public void onProgress(int processed, int failed, int total);
+    }
+
+    private static final JsonFactory jsonFactory = new GsonFactory();
+
+    private final CloudBackend backend;
+
+    private int maxEntitiesPerChunk = Consts.BATCH_MAX_ENTITIES;
+
+    private int maxBytesPerChunk = Consts.BATCH_MAX_BYTES;
+
+    private int parallelism = Consts.BATCH_PARALLELISM;
+
+    private int maxRetries = 3;
+
+    private ProgressListener progressListener;
+
+    /**
+     * Creates an instance of {@link CloudBulkWriter}.
+     *
+     * @param backend {@link CloudBackend} that executes the chunks.
+     */
+    public CloudBulkWriter(CloudBackend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Sets max number of entities in one chunk.
+     *
+     * @param maxEntitiesPerChunk max number of entities
+     * @return {@link CloudBulkWriter}
+     */
+    public CloudBulkWriter setMaxEntitiesPerChunk(int maxEntitiesPerChunk) {
+        this.maxEntitiesPerChunk = Math.max(1, maxEntitiesPerChunk);
+        return this;
+    }
+
+    /**
+     * Sets max size of one chunk in bytes of serialized entities. An entity
+     * larger than this is sent in a chunk of its own.
+     *
+     * @param maxBytesPerChunk max size in bytes
+     * @return {@link CloudBulkWriter}
+     */
+    public CloudBulkWriter setMaxBytesPerChunk(int maxBytesPerChunk) {
+        this.maxBytesPerChunk = Math.max(1, maxBytesPerChunk);
+        return this;
+    }
+
+    /**
+     * Sets max number of chunks executed in parallel.
+     *
+     * @param parallelism max number of chunks in flight
+     * @return {@link CloudBulkWriter}
+     */
+    public CloudBulkWriter setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /**
+     * Sets max number of retries of a failed chunk.
+     *
+     * @param maxRetries max number of retries (0 for no retry)
+     * @return {@link CloudBulkWriter}
+     */
+    public CloudBulkWriter setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+        return this;
+    }
+
+    /**
+     * Sets {@link ProgressListener} that receives progress of the operations.
+     *
+     * @param progressListener {@link ProgressListener}, or null for none
+     * @return {@link CloudBulkWriter}
+     */
+    public CloudBulkWriter setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    /**
+     * Inserts the specified {@link CloudEntity}s on the backend synchronously.
+     *
+     * @param ceList {@link List} of {@link CloudEntity}s to insert
+     * @return {@link List} of the inserted {@link CloudEntity}s in the same
+     *         order as ceList.
+     * @throws CloudBatchException When some of the chunks had failed after
+     *             retries. It holds the partial results and the error of each
+     *             failed entity.
+     * @throws IOException When the operation had failed for any other reason.
+     */
+    public List<CloudEntity> insertAll(List<CloudEntity> ceList) throws IOException {
+        return insertAll(ceList, null);
+    }
+
+    /**
+     * Inserts the entities with a base idempotency key. The chunks are sent
+     * with this key and their index, so an operation that is repeated with the
+     * same entities, chunk limits and key is applied only once.
+     *
+     * @param ceList {@link List} of {@link CloudEntity}s to insert
+     * @param idempotencyKey base idempotency key, or null for a random one
+     * @return {@link List} of the inserted {@link CloudEntity}s
+     * @throws IOException When the operation had failed.
+     */
+    List<CloudEntity> insertAll(List<CloudEntity> ceList, String idempotencyKey)
+            throws IOException {
+        return write(ceList, idempotencyKey, new ChunkWriter() {
+            @Override
+            public List<CloudEntity> write(List<CloudEntity> chunk, String idempotencyKey)
+                    throws IOException {
+                return backend.insertAll(chunk, idempotencyKey);
+            }
+        });
+    }
+
+    /**
+     * Updates the specified {@link CloudEntity}s on the backend synchronously.
+     *
+     * @param ceList {@link List} of {@link CloudEntity}s to update
+     * @return {@link List} of the updated {@link CloudEntity}s in the same order
+     *         as ceList.
+     * @throws CloudBatchException When some of the chunks had failed after
+     *             retries. It holds the partial results and the error of each
+     *             failed entity.
+     * @throws IOException When the operation had failed for any other reason.
+     */
+    public List<CloudEntity> updateAll(List<CloudEntity> ceList) throws IOException {
+        return updateAll(ceList, null);
+    }
+
+    /**
+     * Updates the entities with a base idempotency key, as
+     * {@link #insertAll(List, String)}.
+     *
+     * @param ceList {@link List} of {@link CloudEntity}s to update
+     * @param idempotencyKey base idempotency key, or null for a random one
+     * @return {@link List} of the updated {@link CloudEntity}s
+     * @throws IOException When the operation had failed.
+     */
+    List<CloudEntity> updateAll(List<CloudEntity> ceList, String idempotencyKey)
+            throws IOException {
+        return write(ceList, idempotencyKey, new ChunkWriter() {
+            @Override
+            public List<CloudEntity> write(List<CloudEntity> chunk, String idempotencyKey)
+                    throws IOException {
+                return backend.updateAll(chunk, idempotencyKey);
+            }
+        });
+    }
+
+    /**
+     * Deletes the specified {@link CloudEntity}s on the backend synchronously.
+     * The entities are grouped by kind before chunking.
+     *
+     * @param ceList {@link List} of {@link CloudEntity}s that have kindName and
+     *            id to delete
+     * @throws CloudBatchException When some of the chunks had failed after
+     *             retries. Its results hold the deleted {@link CloudEntity}s.
+     * @throws IOException When the operation had failed for any other reason.
+     */
+    public void deleteAll(List<CloudEntity> ceList) throws IOException {
+        deleteAll(ceList, null);
+    }
+
+    /**
+     * Deletes the entities with a base idempotency key, as
+     * {@link #insertAll(List, String)}.
+     *
+     * @param ceList {@link List} of {@link CloudEntity}s to delete
+     * @param idempotencyKey base idempotency key, or null for a random one
+     * @throws IOException When the operation had failed.
+     */
+    void deleteAll(List<CloudEntity> ceList, String idempotencyKey) throws IOException {
+
+        // deleteAll takes ids of one kind, so group the entities by kind
+        Map<String, List<Integer>> indicesByKind = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < ceList.size(); i++) {
+            String kindName = ceList.get(i).getKindName();
+            List<Integer> indices = indicesByKind.get(kindName);
+            if (indices == null) {
+                indices = new ArrayList<Integer>();
+                indicesByKind.put(kindName, indices);
+            }
+            indices.add(i);
+        }
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        for (List<Integer> indices : indicesByKind.values()) {
+            chunks.addAll(split(ceList, indices));
+        }
+        run(ceList, chunks, idempotencyKey, new ChunkWriter() {
+            @Override
+            public List<CloudEntity> write(List<CloudEntity> chunk, String idempotencyKey)
+                    throws IOException {
+                List<String> ids = new ArrayList<String>(chunk.size());
+                for (CloudEntity ce : chunk) {
+                    ids.add(ce.getId());
+                }
+                backend.deleteAllById(chunk.get(0).getKindName(), ids, idempotencyKey);
+                return chunk;
+            }
+        });
+    }
+
+    // writes one chunk and returns the results in the same order
+    private interface ChunkWriter {
+        public List<CloudEntity> write(List<CloudEntity> chunk, String idempotencyKey)
+                throws IOException;
+    }
+
+    // a chunk of the entities and their indices in the input list
+    private static class Chunk {
+
+        final List<CloudEntity> entities = new ArrayList<CloudEntity>();
+
+        final List<Integer> indices = new ArrayList<Integer>();
+
+        int bytes;
+
+        String idempotencyKey;
+    }
+
+    private List<CloudEntity> write(List<CloudEntity> ceList, String idempotencyKey,
+            ChunkWriter writer) throws IOException {
+        List<Integer> indices = new ArrayList<Integer>(ceList.size());
+        for (int i = 0; i < ceList.size(); i++) {
+            indices.add(i);
+        }
+        return run(ceList, split(ceList, indices), idempotencyKey, writer);
+    }
+
+    // splits the entities at the indices into chunks bounded by count and size
+    private List<Chunk> split(List<CloudEntity> ceList, List<Integer> indices)
+            throws IOException {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        Chunk chunk = null;
+        for (int index : indices) {
+            CloudEntity ce = ceList.get(index);
+            int bytes = jsonFactory.toByteArray(ce.getEntityDto()).length;
+            if (chunk == null || chunk.entities.size() >= maxEntitiesPerChunk
+                    || (chunk.bytes + bytes > maxBytesPerChunk && !chunk.entities.isEmpty())) {
+                chunk = new Chunk();
+                chunks.add(chunk);
+            }
+            chunk.entities.add(ce);
+            chunk.indices.add(index);
+            chunk.bytes += bytes;
+        }
+        return chunks;
+    }
+
+    private List<CloudEntity> run(List<CloudEntity> ceList, final List<Chunk> chunks,
+            String idempotencyKey, final ChunkWriter writer) throws IOException {
+
+        // each chunk keeps its idempotency key across retries
+        String baseKey = idempotencyKey != null ? idempotencyKey : CloudBackend.newIdempotencyKey();
+        for (int i = 0; i < chunks.size(); i++) {
+            chunks.get(i).idempotencyKey = baseKey + "-" + i;
+        }
+
+        final int total = ceList.size();
+        final int[] progress = new int[2]; // processed, failed
+        List<Callable<List<CloudEntity>>> calls = new ArrayList<Callable<List<CloudEntity>>>();
+        for (final Chunk chunk : chunks) {
+            calls.add(new Callable<List<CloudEntity>>() {
+                @Override
+                public List<CloudEntity> call() throws IOException {
+                    List<CloudEntity> result = null;
+                    try {
+                        result = writeWithRetries(chunk, writer);
+                        return result;
+                    } finally {
+                        reportProgress(progress, chunk.entities.size(), result == null, total);
+                    }
+                }
+            });
+        }
+        Log.i(Consts.TAG, "bulk: writing " + total + " entities in " + chunks.size() + " chunks");
+        List<BatchRunner.Outcome<List<CloudEntity>>> outcomes =
+                BatchRunner.runAll(calls, parallelism);
+
+        // put the results back in input order
+        List<CloudEntity> results =
+                new ArrayList<CloudEntity>(Collections.<CloudEntity> nCopies(total, null));
+        Map<Integer, IOException> errors = new HashMap<Integer, IOException>();
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            BatchRunner.Outcome<List<CloudEntity>> o = outcomes.get(i);
+            for (int j = 0; j < chunk.indices.size(); j++) {
+                int index = chunk.indices.get(j);
+                if (!o.isSuccess()) {
+                    errors.put(index, o.exception);
+                } else if (j < o.result.size()) {
+                    results.set(index, o.result.get(j));
+                }
+            }
+        }
+        if (!errors.isEmpty()) {
+            throw new CloudBatchException(results, errors);
+        }
+        return results;
+    }
+
+    private List<CloudEntity> writeWithRetries(Chunk chunk, ChunkWriter writer)
+            throws IOException {
+        BackOff backOff = new ExponentialBackOff();
+        int retries = 0;
+        while (true) {
+            try {
+                return writer.write(chunk.entities, chunk.idempotencyKey);
+            } catch (IOException e) {
+                if (retries++ >= maxRetries || !isRetriable(e)
+                        || !backend.getResilience().getRetryBudget().tryAcquire()) {
+                    throw e;
+                }
+                long backOffMillis = backOff.nextBackOffMillis();
+                if (backOffMillis == BackOff.STOP) {
+                    throw e;
+                }
+                Log.i(Consts.TAG, "bulk: retrying a chunk of " + chunk.entities.size()
+                        + " entities in " + backOffMillis + "ms: " + e.getMessage());
+                try {
+                    Sleeper.DEFAULT.sleep(backOffMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("bulk operation interrupted");
+                }
+            }
+        }
+    }
+
+    // client errors (except timeout and throttling) will fail again, and an
+    // open circuit breaker fails fast
+    private static boolean isRetriable(IOException e) {
+        if (e instanceof CircuitBreaker.OpenException) {
+            return false;
+        }
+        if (e instanceof InterruptedIOException
+                && !(e instanceof SocketTimeoutException)) {
+            return false;
+        }
+        if (e instanceof HttpResponseException) {
+            int status = ((HttpResponseException) e).getStatusCode();
+            return status >= 500 || status == 408 || status == 429;
+        }
+        return true;
+    }
+
+    private void reportProgress(int[] progress, int count, boolean failed, int total) {
+        int processed;
+        int failedCount;
+        synchronized (progress) {
+            progress[0] += count;
+            if (failed) {
+                progress[1] += count;
+            }
+            processed = progress[0];
+            failedCount = progress[1];
+        }
+        if (progressListener != null) {
+            progressListener.onProgress(processed, failedCount, total);
+        }
+    }
+}
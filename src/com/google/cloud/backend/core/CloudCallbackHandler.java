@@ -33,6 +33,24 @@ public abstract class CloudCallbackHandler<T> {
      */
     public abstract void onComplete(T results);
 
+    /**
+     * Subclasses may override this to handle a result served from a
+     * {@link CloudQueryCache} before it is revalidated with the backend. If
+     * the backend returns a different result, {@link #onComplete(Object)} is
+     * called with it afterwards. If not overridden, the stale result is
+     * passed to {@link #onComplete(Object)}.
+     * <p>
+     * The results of a query with a reference depth are also passed here
+     * before their references are resolved (see
+     * {@link CloudQuery#setReferenceDepth(int)}).
+     *
+     * @param results The cached result value, or the results whose references
+     *            are being resolved
+     */
+    public void onStaleResult(T results) {
+        onComplete(results);
+    }
+
     /**
      * Subclasses may override this to implement an exception handler. If not
      * overridden, the exception will be ignored.
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpEncoding;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.util.ObjectParser;
+import com.google.api.client.util.StreamingContent;
+import com.google.cloud.backend.core.CloudResilience.Operation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses the request bodies that are worth it: a body of at least
+ * {@link Consts#GZIP_MIN_BYTES} is gzipped at {@link Consts#GZIP_LEVEL}
+ * (and sent uncompressed if that does not make it smaller), while a smaller
+ * body (such as the one of a single insert) is sent as is, as compressing it
+ * costs more CPU than it saves on the wire. The body is serialized and
+ * compressed once per request, so a retry resends the same bytes. Bodies are
+ * not compressed when gzip is disabled for the request (see
+ * {@link CloudEndpointUtils#updateBuilder}). The responses are always
+ * accepted gzipped.
+ * <p>
+ * The logical (uncompressed) and wire bytes of each operation are added to
+ * {@link CloudMetrics} as "bytes.&lt;operation&gt;.sent" and
+ * "bytes.&lt;operation&gt;.sentWire" for the request bodies, and
+ * "bytes.&lt;operation&gt;.received" and "bytes.&lt;operation&gt;.receivedWire"
+ * for the parsed responses whose length is known. {@link CloudBackend} uses
+ * {@link #getDefault()} unless another instance (or null, to let the client
+ * library gzip every body) is set with
+ * {@link CloudBackend#setCompression(CloudCompression)}.
+ */
+public class CloudCompression {
+
+    private static final CloudCompression defaultCompression =
+            new CloudCompression(Consts.GZIP_MIN_BYTES, Consts.GZIP_LEVEL);
+
+    // sends a body that has already been gzipped
+    private static final HttpEncoding GZIPPED = new HttpEncoding() {
+        @Override
+        public String getName() {
+            return "gzip";
+        }
+
+        @Override
+        public void encode(StreamingContent content, OutputStream out) throws IOException {
+            content.writeTo(out);
+        }
+    };
+
+    private final int minBytes;
+
+    private final int level;
+
+    /**
+     * Creates a {@link CloudCompression}.
+     *
+     * @param minBytes min size of a body to compress
+     * @param level compression level, from 1 (fastest) to 9 (smallest)
+     */
+    public CloudCompression(int minBytes, int level) {
+        this.minBytes = minBytes;
+        this.level = level;
+    }
+
+    /**
+     * Returns the compression used by the backends by default.
+     *
+     * @return {@link CloudCompression}
+     */
+    public static CloudCompression getDefault() {
+        return defaultCompression;
+    }
+
+    public int getMinBytes() {
+        return minBytes;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Compresses the body of the request if it is large enough, and records
+     * the logical and wire bytes of the request and its response.
+     *
+     * @param request {@link HttpRequest}
+     * @param op {@link Operation} of the request
+     * @param metrics {@link CloudMetrics}
+     */
+    void initialize(HttpRequest request, final Operation op, final CloudMetrics metrics) {
+        final HttpExecuteInterceptor interceptor = request.getInterceptor();
+        final long[] receivedWire = {
+            -1
+        };
+        request.setInterceptor(new HttpExecuteInterceptor() {
+
+            private boolean prepared;
+
+            @Override
+            public void intercept(HttpRequest request) throws IOException {
+                if (interceptor != null) {
+                    interceptor.intercept(request);
+                }
+                request.getHeaders().setAcceptEncoding("gzip");
+
+                // the parser and the body are set up by the first attempt
+                if (prepared) {
+                    return;
+                }
+                prepared = true;
+                if (request.getParser() != null) {
+                    request.setParser(new CountingParser(request.getParser(), op, metrics,
+                            receivedWire));
+                }
+                if (request.getContent() != null) {
+                    prepare(request, op, metrics);
+                }
+            }
+        });
+        final HttpResponseInterceptor responseInterceptor = request.getResponseInterceptor();
+        request.setResponseInterceptor(new HttpResponseInterceptor() {
+            @Override
+            public void interceptResponse(HttpResponse response) throws IOException {
+                Long length = response.getHeaders().getContentLength();
+                receivedWire[0] = length == null ? -1 : length;
+                if (responseInterceptor != null) {
+                    responseInterceptor.interceptResponse(response);
+                }
+            }
+        });
+    }
+
+    // serializes the body once, and gzips it if it is large enough and gzip
+    // is enabled for the request (the client library sets its encoding)
+    private void prepare(HttpRequest request, Operation op, CloudMetrics metrics)
+            throws IOException {
+        HttpContent content = request.getContent();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        content.writeTo(bytes);
+        byte[] body = bytes.toByteArray();
+        byte[] wire = body;
+        if (request.getEncoding() != null && body.length >= minBytes) {
+            byte[] gzipped = gzip(body);
+            if (gzipped.length < body.length) {
+                wire = gzipped;
+            }
+        }
+        request.setContent(new ByteArrayContent(content.getType(), wire));
+        request.setEncoding(wire == body ? null : GZIPPED);
+        metrics.increment(wire == body ? "gzip.skipped" : "gzip.compressed");
+        metrics.add("bytes." + op + ".sent", body.length);
+        metrics.add("bytes." + op + ".sentWire", wire.length);
+    }
+
+    private byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4);
+        GZIPOutputStream out = new GZIPOutputStream(bytes) {
+            {
+                def.setLevel(level);
+            }
+        };
+        out.write(body);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    // counts the bytes of the (decompressed) responses that it parses
+    private static class CountingParser implements ObjectParser {
+
+        private final ObjectParser delegate;
+
+        private final Operation op;
+
+        private final CloudMetrics metrics;
+
+        // the length on the wire of the response, or -1 if unknown
+        private final long[] receivedWire;
+
+        CountingParser(ObjectParser delegate, Operation op, CloudMetrics metrics,
+                long[] receivedWire) {
+            this.delegate = delegate;
+            this.op = op;
+            this.metrics = metrics;
+            this.receivedWire = receivedWire;
+        }
+
+        @Override
+        public <T> T parseAndClose(InputStream in, Charset charset, Class<T> dataClass)
+                throws IOException {
+            CountingInputStream counting = new CountingInputStream(in);
+            try {
+                return delegate.parseAndClose(counting, charset, dataClass);
+            } finally {
+                record(counting.count);
+            }
+        }
+
+        @Override
+        public Object parseAndClose(InputStream in, Charset charset, Type dataType)
+                throws IOException {
+            CountingInputStream counting = new CountingInputStream(in);
+            try {
+                return delegate.parseAndClose(counting, charset, dataType);
+            } finally {
+                record(counting.count);
+            }
+        }
+
+        @Override
+        public <T> T parseAndClose(Reader reader, Class<T> dataClass) throws IOException {
+            return delegate.parseAndClose(reader, dataClass);
+        }
+
+        @Override
+        public Object parseAndClose(Reader reader, Type dataType) throws IOException {
+            return delegate.parseAndClose(reader, dataType);
+        }
+
+        private void record(long logical) {
+            if (receivedWire[0] < 0) {
+                return;
+            }
+            metrics.add("bytes." + op + ".received", logical);
+            metrics.add("bytes." + op + ".receivedWire", receivedWire[0]);
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
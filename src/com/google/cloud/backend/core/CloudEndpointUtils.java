@@ -36,7 +36,9 @@ public class CloudEndpointUtils {
 
     /**
      * Updates the Google client builder to connect the appropriate server based
-     * on whether LOCAL_ANDROID_RUN is true or false.
+     * on whether LOCAL_ANDROID_RUN is true or false. The request bodies may be
+     * gzipped (by {@link CloudCompression} when they are large enough) only
+     * when connecting to the remote server.
      * 
      * @param builder Google client builder
      * @return same Google client builder
@@ -20,6 +20,7 @@ import com.google.cloud.backend.android.mobilebackend.model.EntityDto;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
 
 /**
  * A class that represents a cloud entity on App Engine Datastore.
@@ -67,16 +68,27 @@ public class CloudEntity {
 
     private String owner;
 
+    private boolean pending;
+
     @SuppressWarnings("unchecked")
     protected static CloudEntity createCloudEntityFromEntityDto(EntityDto cd) {
         CloudEntity co = new CloudEntity(cd.getKindName());
         co.id = cd.getId();
-        co.createdAt = new Date(cd.getCreatedAt().getValue());
-        co.updatedAt = new Date(cd.getUpdatedAt().getValue());
+        if (cd.getCreatedAt() != null) {
+            co.createdAt = new Date(cd.getCreatedAt().getValue());
+        }
+        if (cd.getUpdatedAt() != null) {
+            co.updatedAt = new Date(cd.getUpdatedAt().getValue());
+        }
         co.createdBy = cd.getCreatedBy();
         co.updatedBy = cd.getUpdatedBy();
         co.kindName = cd.getKindName();
-        co.properties.putAll((Map<String, Object>) cd.getProperties());
+        if (cd.getProperties() != null) {
+            for (Map.Entry<String, Object> e
+                    : ((Map<String, Object>) cd.getProperties()).entrySet()) {
+                co.properties.put(e.getKey(), CloudRef.decodeValue(e.getValue()));
+            }
+        }
         co.owner = cd.getOwner();
         return co;
     }
@@ -100,7 +112,11 @@ public class CloudEntity {
             co.setUpdatedAt(new DateTime(updatedAt));
         }
         co.setUpdatedBy(updatedBy);
-        co.setProperties(properties);
+        Map<String, Object> encoded = new HashMap<String, Object>();
+        for (Map.Entry<String, Object> e : properties.entrySet()) {
+            encoded.put(e.getKey(), CloudRef.encodeValue(e.getValue()));
+        }
+        co.setProperties(encoded);
         co.setOwner(owner);
         return co;
     }
@@ -113,6 +129,18 @@ public class CloudEntity {
         return properties.get(key);
     }
 
+    /**
+     * Returns the {@link CloudRef} of the specified property, or null if the
+     * property is not a reference.
+     *
+     * @param key property name
+     * @return {@link CloudRef}
+     */
+    public CloudRef getRef(String key) {
+        Object value = properties.get(key);
+        return value instanceof CloudRef ? (CloudRef) value : null;
+    }
+
     public Object remove(String key) {
         return properties.remove(key);
     }
@@ -121,6 +149,30 @@ public class CloudEntity {
         return properties;
     }
 
+    /**
+     * Generates a new id for a CloudEntity on the client. The id is a random
+     * UUID, so it does not collide with the ids generated on other clients or
+     * on the backend. Assigning it before insertion lets the app refer to the
+     * entity before the backend returns it.
+     *
+     * @return a new id
+     */
+    public static String generateId() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Returns true if this CloudEntity is the local state of a write that has
+     * not been acknowledged by the backend yet (see {@link CloudOutbox}).
+     */
+    public boolean isPending() {
+        return pending;
+    }
+
+    void setPending(boolean pending) {
+        this.pending = pending;
+    }
+
     public String getId() {
         return id;
     }
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+/**
+ * A client-side cache of {@link CloudEntity}s keyed by kind name and id. When
+ * a cache is set to {@link CloudBackend}, the entities read or written through
+ * the backend are stored in it, and the deleted ones are removed from it.
+ * Implementations must be thread safe.
+ */
+public interface CloudEntityCache {
+
+    /**
+     * Returns the cached {@link CloudEntity}, or null if it is not cached.
+     *
+     * @param kindName kind name of the entity
+     * @param id id of the entity
+     * @return {@link CloudEntity} or null
+     */
+    public CloudEntity get(String kindName, String id);
+
+    /**
+     * Stores the specified {@link CloudEntity}. An entity without id is
+     * ignored.
+     *
+     * @param ce {@link CloudEntity} to store
+     */
+    public void put(CloudEntity ce);
+
+    /**
+     * Removes the specified entity from the cache.
+     *
+     * @param kindName kind name of the entity
+     * @param id id of the entity
+     */
+    public void remove(String kindName, String id);
+
+    /**
+     * Removes all the entities from the cache.
+     */
+    public void clear();
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import android.os.Handler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Batches reads of single {@link CloudEntity}s. All the
+ * {@link #load(String, String, CloudCallbackHandler)} calls issued within the
+ * batch window are de-duplicated and resolved with one
+ * {@link CloudBackendAsync#getAll(List, CloudCallbackHandler)} call, which
+ * issues one batched request per kind. This avoids one request per row when
+ * rendering a list of entities that refer to other entities.
+ * <p>
+ * If the backend has a {@link CloudEntityCache}, cached entities are returned
+ * without a backend call. The loader must be created and used on UI thread,
+ * and the handlers are called on UI thread.
+ */
+public class CloudEntityLoader {
+
+    private final CloudBackendAsync backend;
+
+    private final Handler uiThreadHandler = new Handler();
+
+    private long batchWindowMillis = 0;
+
+    // pending loads of the current batch (key = kindName/id)
+    private Map<String, PendingLoad> pendingLoads = new LinkedHashMap<String, PendingLoad>();
+
+    private final Runnable dispatcher = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    // a load of one entity and the handlers waiting for it
+    private static class PendingLoad {
+
+        final String kindName;
+
+        final String id;
+
+        final List<CloudCallbackHandler<CloudEntity>> handlers =
+                new ArrayList<CloudCallbackHandler<CloudEntity>>();
+
+        PendingLoad(String kindName, String id) {
+            this.kindName = kindName;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Creates an instance of {@link CloudEntityLoader}.
+     *
+     * @param backend {@link CloudBackendAsync} to read the entities with
+     */
+    public CloudEntityLoader(CloudBackendAsync backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Sets how long the loader waits for more loads before dispatching the
+     * batch. By default (0), the loads issued in the same UI thread message
+     * are batched.
+     *
+     * @param batchWindowMillis batch window in milliseconds
+     * @return {@link CloudEntityLoader}
+     */
+    public CloudEntityLoader setBatchWindowMillis(long batchWindowMillis) {
+        this.batchWindowMillis = Math.max(0, batchWindowMillis);
+        return this;
+    }
+
+    /**
+     * Reads the specified {@link CloudEntity} asynchronously, batched with the
+     * other loads issued within the batch window.
+     *
+     * @param kindName kind name of the entity
+     * @param id id of the entity
+     * @param handler {@link CloudCallbackHandler} that handles the response.
+     *            The result is null if the entity was not found.
+     */
+    public void load(String kindName, String id, CloudCallbackHandler<CloudEntity> handler) {
+
+        // return the cached entity, if any
+        CloudEntityCache cache = backend.getEntityCache();
+        final CloudEntity cached = cache == null ? null : cache.get(kindName, id);
+        if (cached != null) {
+            final CloudCallbackHandler<CloudEntity> h = handler;
+            uiThreadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    h.onComplete(cached);
+                }
+            });
+            return;
+        }
+
+        // add to the batch
+        String key = kindName + "/" + id;
+        PendingLoad load = pendingLoads.get(key);
+        if (load == null) {
+            load = new PendingLoad(kindName, id);
+            pendingLoads.put(key, load);
+        }
+        load.handlers.add(handler);
+        if (pendingLoads.size() == 1 && load.handlers.size() == 1) {
+            uiThreadHandler.postDelayed(dispatcher, batchWindowMillis);
+        }
+    }
+
+    /**
+     * Dispatches the pending loads immediately.
+     */
+    public void dispatch() {
+        uiThreadHandler.removeCallbacks(dispatcher);
+        if (pendingLoads.isEmpty()) {
+            return;
+        }
+        final List<PendingLoad> loads = new ArrayList<PendingLoad>(pendingLoads.values());
+        pendingLoads = new LinkedHashMap<String, PendingLoad>();
+
+        List<CloudEntity> keys = new ArrayList<CloudEntity>(loads.size());
+        for (PendingLoad load : loads) {
+            CloudEntity ce = new CloudEntity(load.kindName);
+            ce.setId(load.id);
+            keys.add(ce);
+        }
+        backend.getAll(keys, new CloudCallbackHandler<List<CloudEntity>>() {
+            @Override
+            public void onComplete(List<CloudEntity> results) {
+                for (int i = 0; i < loads.size(); i++) {
+                    complete(loads.get(i), results.get(i), null);
+                }
+            }
+
+            @Override
+            public void onError(IOException exception) {
+                CloudBatchException be = exception instanceof CloudBatchException
+                        ? (CloudBatchException) exception : null;
+                for (int i = 0; i < loads.size(); i++) {
+                    if (be == null) {
+                        complete(loads.get(i), null, exception);
+                    } else {
+                        complete(loads.get(i), be.getResults().get(i), be.getError(i));
+                    }
+                }
+            }
+        });
+    }
+
+    private static void complete(PendingLoad load, CloudEntity result, IOException exception) {
+        for (CloudCallbackHandler<CloudEntity> handler : load.handlers) {
+            if (exception == null) {
+                handler.onComplete(result);
+            } else {
+                handler.onError(exception);
+            }
+        }
+    }
+}
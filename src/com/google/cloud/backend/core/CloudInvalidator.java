@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies the remote changes learned from push notifications to the caches of
+ * a {@link CloudBackend}, without fetching the changed data eagerly:
+ * <ul>
+ * <li>the cached results of the queries on a changed kind (or of a changed
+ * query) in {@link CloudQueryCache} are marked dirty, and are revalidated on
+ * their next access.</li>
+ * <li>the changed entities are removed from {@link CloudEntityCache}, so that
+ * they are read from the backend on their next access. The entities that
+ * were cached are also read again in a batched background pass, a short
+ * delay after the last invalidation, so that the invalidations of a burst of
+ * pushes are coalesced into one getAll.</li>
+ * </ul>
+ * {@link CloudBackendAsync#handleQueryMessage(String)} invalidates the kind
+ * of the notified continuous query; pushes that name the changed entities
+ * are handled with {@link #invalidateEntities(String, Collection)}.
+ */
+public class CloudInvalidator {
+
+    // shared by all the invalidators to run the background passes
+    private static final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "CloudBackend-invalidator");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final CloudBackend backend;
+
+    // ids of the cached entities to read again, by kind
+    private final Map<String, Set<String>> staleIds = new HashMap<String, Set<String>>();
+
+    private boolean refreshScheduled;
+
+    /**
+     * Creates a {@link CloudInvalidator} for the caches of the backend.
+     *
+     * @param backend {@link CloudBackend}
+     */
+    public CloudInvalidator(CloudBackend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Marks the cached results of the queries on the kind dirty.
+     *
+     * @param kindName kind name of the changed entities
+     */
+    public void invalidateKind(String kindName) {
+        CloudQueryCache queryCache = backend.getQueryCache();
+        if (queryCache != null) {
+            queryCache.markDirty(kindName);
+        }
+        backend.getResilience().getMetrics().increment("invalidation.kinds");
+    }
+
+    /**
+     * Marks the cached results of the query dirty.
+     *
+     * @param query changed {@link CloudQuery}
+     */
+    public void invalidateQuery(CloudQuery query) {
+        CloudQueryCache queryCache = backend.getQueryCache();
+        if (queryCache != null) {
+            queryCache.markDirty(query);
+        }
+        backend.getResilience().getMetrics().increment("invalidation.queries");
+    }
+
+    /**
+     * Removes the entities from the entity cache, marks the queries on their
+     * kind dirty, and schedules the background pass that reads the removed
+     * entities again.
+     *
+     * @param kindName kind name of the changed entities
+     * @param ids ids of the changed entities
+     */
+    public void invalidateEntities(String kindName, Collection<String> ids) {
+        invalidateKind(kindName);
+        CloudEntityCache entityCache = backend.getEntityCache();
+        if (entityCache == null) {
+            return;
+        }
+        List<String> cachedIds = new ArrayList<String>();
+        for (String id : ids) {
+            if (entityCache.get(kindName, id) != null) {
+                entityCache.remove(kindName, id);
+                cachedIds.add(id);
+            }
+        }
+        backend.getResilience().getMetrics().add("invalidation.entities", ids.size());
+        if (cachedIds.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            Set<String> s = staleIds.get(kindName);
+            if (s == null) {
+                s = new LinkedHashSet<String>();
+                staleIds.put(kindName, s);
+            }
+            s.addAll(cachedIds);
+            if (!refreshScheduled) {
+                refreshScheduled = true;
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        refresh();
+                    }
+                }, Consts.INVALIDATION_REFRESH_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Reads the invalidated entities that were cached again, with one batched
+     * getAll (the backend stores them to the entity cache). This is called in
+     * the background after the invalidations, and may be called to refresh
+     * them at once.
+     */
+    public void refresh() {
+        List<CloudEntity> ceList = new ArrayList<CloudEntity>();
+        synchronized (this) {
+            refreshScheduled = false;
+            for (Map.Entry<String, Set<String>> e : staleIds.entrySet()) {
+                for (String id : e.getValue()) {
+                    CloudEntity ce = new CloudEntity(e.getKey());
+                    ce.setId(id);
+                    ceList.add(ce);
+                }
+            }
+            staleIds.clear();
+        }
+        if (ceList.isEmpty()) {
+            return;
+        }
+        try {
+            backend.getAll(ceList);
+            backend.getResilience().getMetrics().add("invalidation.refreshed", ceList.size());
+        } catch (IOException e) {
+            // they will be read on their next access
+            Log.i(Consts.TAG, "invalidator: refresh failed: " + e);
+        }
+    }
+}
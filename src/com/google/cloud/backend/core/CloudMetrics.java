@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and gauges of the client, such as the number of retries or the
+ * state transitions of the {@link CircuitBreaker}. Metrics are identified by
+ * dotted names (for example "breaker.transition.OPEN"), and can be read with
+ * {@link #snapshot()} or observed with a {@link Listener}.
+ * <p>
+ * The components of the client record their metrics to
+ * {@link #getDefault()}.
+ */
+public class CloudMetrics {
+
+    /**
+     * A listener to observe the metrics as they are recorded. It is called on
+     * the thread that records the metric, so it must return quickly.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a metric is recorded.
+         *
+         * @param name name of the metric
+         * @param value new value of the metric
+         */
+        public void onMetric(String name, long value);
+    }
+
+    private static final CloudMetrics defaultMetrics = new CloudMetrics();
+
+    private final ConcurrentHashMap<String, AtomicLong> values =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * Returns the metrics shared by the components of the client.
+     *
+     * @return {@link CloudMetrics}
+     */
+    public static CloudMetrics getDefault() {
+        return defaultMetrics;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Increments the counter.
+     *
+     * @param name name of the counter
+     */
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    /**
+     * Adds the delta to the counter.
+     *
+     * @param name name of the counter
+     * @param delta value to add
+     */
+    public void add(String name, long delta) {
+        notify(name, getValue(name).addAndGet(delta));
+    }
+
+    /**
+     * Sets the value of the gauge.
+     *
+     * @param name name of the gauge
+     * @param value new value
+     */
+    public void set(String name, long value) {
+        getValue(name).set(value);
+        notify(name, value);
+    }
+
+    /**
+     * Records a duration: increments "name.count", adds to "name.totalMs" and
+     * updates "name.maxMs".
+     *
+     * @param name name of the timer
+     * @param millis duration in milliseconds
+     */
+    public void recordMillis(String name, long millis) {
+        add(name + ".count", 1);
+        add(name + ".totalMs", millis);
+        AtomicLong max = getValue(name + ".maxMs");
+        long current;
+        while ((current = max.get()) < millis) {
+            if (max.compareAndSet(current, millis)) {
+                notify(name + ".maxMs", millis);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the value of the metric, or 0 if it has not been recorded.
+     *
+     * @param name name of the metric
+     * @return value
+     */
+    public long get(String name) {
+        AtomicLong value = values.get(name);
+        return value == null ? 0 : value.get();
+    }
+
+    /**
+     * Returns the values of all the metrics, sorted by name.
+     *
+     * @return {@link Map} of the metrics
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> e : values.entrySet()) {
+            snapshot.put(e.getKey(), e.getValue().get());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Clears all the metrics.
+     */
+    public void reset() {
+        values.clear();
+    }
+
+    private AtomicLong getValue(String name) {
+        AtomicLong value = values.get(name);
+        if (value == null) {
+            AtomicLong newValue = new AtomicLong();
+            value = values.putIfAbsent(name, newValue);
+            if (value == null) {
+                value = newValue;
+            }
+        }
+        return value;
+    }
+
+    private void notify(String name, long value) {
+        for (Listener listener : listeners) {
+            listener.onMetric(name, value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CloudMetrics" + snapshot();
+    }
+}
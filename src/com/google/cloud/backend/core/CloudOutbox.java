@@ -0,0 +1,654 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.cloud.backend.android.mobilebackend.model.EntityDto;
+import com.google.gson.Gson;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A durable outbox of writes. Inserts, updates and deletes are appended to a
+ * journal file on the device before they are acknowledged, and a background
+ * replayer sends them to the backend when the network is available. If the
+ * app is killed or the network is down, the writes are kept in the journal and
+ * sent later.
+ * <p>
+ * The replayer collapses the writes to the same entity (for example, an insert
+ * followed by updates is sent as one insert with the latest state) and sends
+ * the rest in batches with {@link CloudBulkWriter}, preserving the order of
+ * the writes to each entity.
+ * <p>
+ * Each record of the journal ({@link OutboxJournal}) has its length and CRC32,
+ * so a record torn by a crash is detected and dropped on recovery. Use
+ * {@link CloudBackendAsync#setOutbox(CloudOutbox)} to route the writes of a
+ * backend through the outbox.
+ */
+public class CloudOutbox {
+
+    /**
+     * A listener to receive results of the replay. It is called on the
+     * replayer thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a write has been applied on the backend.
+         *
+         * @param op operation of the write
+         * @param result {@link CloudEntity} returned by the backend, or the
+         *            deleted entity for {@link Op#DELETE}
+         */
+        public void onReplayed(Op op, CloudEntity result);
+
+        /**
+         * Called when a write has been rejected by the backend and removed
+         * from the outbox. Writes that failed for network or server errors are
+         * kept and retried instead.
+         *
+         * @param op operation of the write
+         * @param ce {@link CloudEntity} of the write
+         * @param exception the error
+         */
+        public void onRejected(Op op, CloudEntity ce, IOException exception);
+    }
+
+    /**
+     * Operations of the writes.
+     */
+    public enum Op {
+        INSERT, UPDATE, DELETE
+    }
+
+    private static final String JOURNAL_FILE_NAME = "cloudbackend_outbox.journal";
+
+    // compact the journal when it has this many acknowledged records
+    private static final int COMPACTION_THRESHOLD = 1000;
+
+    private static final JsonFactory jsonFactory = new GsonFactory();
+
+    private static final Gson gson = new Gson();
+
+    private static CloudOutbox instance;
+
+    private final Context context;
+
+    private final OutboxJournal journal;
+
+    private final ExecutorService replayExecutor = Executors.newSingleThreadExecutor();
+
+    private final AtomicBoolean replayScheduled = new AtomicBoolean();
+
+    // pending writes in journal order (key = seq)
+    private final Map<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+
+    // batches sent but not resolved, in journal order (key = idempotency key)
+    private final Map<String, Entry> batches = new LinkedHashMap<String, Entry>();
+
+    private long nextSeq = 1;
+
+    private int ackedRecords;
+
+    private volatile CloudBackend backend;
+
+    private volatile Listener listener;
+
+    // a record of the journal: a write, a batch of writes about to be sent,
+    // or acknowledgment of writes
+    static class Entry {
+
+        long seq;
+
+        String op;
+
+        String kindName;
+
+        String id;
+
+        String entity;
+
+        // idempotency key of a batch, kept until the batch is resolved
+        String key;
+
+        // seqs of the writes of a batch
+        List<Long> batch;
+
+        List<Long> acks;
+
+        CloudEntity getCloudEntity() throws IOException {
+            if (entity != null) {
+                return CloudEntity.createCloudEntityFromEntityDto(
+                        jsonFactory.fromString(entity, EntityDto.class));
+            }
+            CloudEntity ce = new CloudEntity(kindName);
+            ce.setId(id);
+            return ce;
+        }
+    }
+
+    /**
+     * Returns the outbox of the application, recovering the pending writes
+     * from the journal on the first call.
+     *
+     * @param context {@link Context}
+     * @return {@link CloudOutbox}
+     * @throws IOException When the journal could not be read.
+     */
+    public static synchronized CloudOutbox getInstance(Context context) throws IOException {
+        if (instance == null) {
+            Context app = context.getApplicationContext();
+            instance = new CloudOutbox(app, new File(app.getFilesDir(), JOURNAL_FILE_NAME));
+        }
+        return instance;
+    }
+
+    private CloudOutbox(Context context, File journalFile) throws IOException {
+        this.context = context;
+        this.journal = new OutboxJournal(journalFile);
+        recover();
+
+        // replay when the network comes back
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context c, Intent intent) {
+                if (isNetworkAvailable()) {
+                    scheduleReplay();
+                }
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /**
+     * Sets {@link CloudBackend} used to replay the writes, and starts
+     * replaying the pending writes.
+     *
+     * @param backend {@link CloudBackend}
+     */
+    public void setBackend(CloudBackend backend) {
+        this.backend = backend;
+        scheduleReplay();
+    }
+
+    /**
+     * Sets {@link Listener} that receives results of the replay.
+     *
+     * @param listener {@link Listener}, or null for none
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the number of writes waiting to be sent.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the local states of the entities of the specified kind that have
+     * pending writes, in the order of their first write. The entities are
+     * marked as pending (see {@link CloudEntity#isPending()}), and the value
+     * is null for an entity whose last pending write is a delete.
+     *
+     * @param kindName kind name
+     * @return {@link Map} of the pending states (key = id)
+     */
+    public synchronized Map<String, CloudEntity> getPendingEntities(String kindName) {
+        Map<String, CloudEntity> entities = new LinkedHashMap<String, CloudEntity>();
+        for (Entry e : pending.values()) {
+            if (e.id == null || !e.kindName.equals(kindName)) {
+                continue;
+            }
+            CloudEntity ce = null;
+            if (!Op.DELETE.name().equals(e.op)) {
+                try {
+                    ce = e.getCloudEntity();
+                    ce.setPending(true);
+                } catch (IOException ex) {
+                    Log.w(Consts.TAG, "outbox: failed to read pending write " + e.seq, ex);
+                    continue;
+                }
+            }
+            entities.put(e.id, ce);
+        }
+        return entities;
+    }
+
+    /**
+     * Appends a write to the journal durably, and schedules a replay. When
+     * this method returns, the write survives a crash of the app.
+     *
+     * @param op operation of the write
+     * @param ce {@link CloudEntity} to write. For {@link Op#DELETE}, only kind
+     *            name and id are used.
+     * @throws IOException When the journal could not be written.
+     * @throws IllegalArgumentException When a delete has no id.
+     */
+    public void enqueue(Op op, CloudEntity ce) throws IOException {
+        if (op == Op.DELETE && ce.getId() == null) {
+            throw new IllegalArgumentException("No id specified: " + ce);
+        }
+        Entry e = new Entry();
+        e.op = op.name();
+        e.kindName = ce.getKindName();
+        e.id = ce.getId();
+        if (op != Op.DELETE) {
+            e.entity = jsonFactory.toString(ce.getEntityDto());
+        }
+        synchronized (this) {
+            e.seq = nextSeq++;
+            append(e);
+            pending.put(e.seq, e);
+        }
+        scheduleReplay();
+    }
+
+    /**
+     * Schedules a replay of the pending writes on the replayer thread. Does
+     * nothing if a replay is already scheduled.
+     */
+    public void scheduleReplay() {
+        if (backend == null || !replayScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        replayExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                replayScheduled.set(false);
+                try {
+                    replay();
+                } catch (IOException e) {
+                    Log.i(Consts.TAG, "outbox: replay stopped: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends the pending writes to the backend synchronously. The writes to
+     * each entity are collapsed and sent in order, in batches.
+     * <p>
+     * Each batch is journaled with its idempotency key and its writes before
+     * it is sent. Until the batch is resolved, it is sent again with the same
+     * key and the same writes, and the later writes to its entities wait, so
+     * a batch the backend committed before its response was lost is applied
+     * once.
+     *
+     * @throws IOException When some writes could not be sent for network or
+     *             server errors. They are kept in the outbox.
+     */
+    public void replay() throws IOException {
+        CloudBackend backend = this.backend;
+        if (backend == null || !isNetworkAvailable()) {
+            return;
+        }
+        IOException retriable = null;
+        Set<String> blocked = new HashSet<String>();
+
+        // first resend the unresolved batches, as they were sent
+        List<Entry> unresolved;
+        synchronized (this) {
+            unresolved = new ArrayList<Entry>(batches.values());
+        }
+        for (Entry batch : unresolved) {
+            List<Step> steps = collapseBatch(batch);
+            IOException e = send(backend, batch, steps);
+            if (e != null) {
+                retriable = e;
+                for (Step step : steps) {
+                    blocked.add(step.entityKey);
+                }
+            }
+        }
+
+        // group the other pending writes by entity, in journal order. The
+        // entities of unresolved batches wait for them.
+        Map<String, List<Entry>> writesByEntity = new LinkedHashMap<String, List<Entry>>();
+        synchronized (this) {
+            Set<Long> inFlight = new HashSet<Long>();
+            for (Entry batch : batches.values()) {
+                inFlight.addAll(batch.batch);
+            }
+            for (Entry e : pending.values()) {
+                if (inFlight.contains(e.seq)) {
+                    blocked.add(getEntityKey(e));
+                }
+            }
+            for (Entry e : pending.values()) {
+                String key = getEntityKey(e);
+                if (blocked.contains(key)) {
+                    continue;
+                }
+                List<Entry> writes = writesByEntity.get(key);
+                if (writes == null) {
+                    writes = new ArrayList<Entry>();
+                    writesByEntity.put(key, writes);
+                }
+                writes.add(e);
+            }
+        }
+
+        // collapse the writes of each entity into steps
+        List<List<Step>> stepsByEntity = new ArrayList<List<Step>>();
+        for (Map.Entry<String, List<Entry>> e : writesByEntity.entrySet()) {
+            stepsByEntity.add(collapse(e.getKey(), e.getValue()));
+        }
+
+        // send the n-th step of every entity as one phase, so that the writes
+        // to an entity are applied in order, until no entity has steps left
+        for (int phase = 0;; phase++) {
+            Map<Op, List<Step>> stepsByOp = new LinkedHashMap<Op, List<Step>>();
+            for (List<Step> steps : stepsByEntity) {
+                if (phase < steps.size() && !blocked.contains(steps.get(phase).entityKey)) {
+                    Step step = steps.get(phase);
+                    List<Step> l = stepsByOp.get(step.op);
+                    if (l == null) {
+                        l = new ArrayList<Step>();
+                        stepsByOp.put(step.op, l);
+                    }
+                    l.add(step);
+                }
+            }
+            if (stepsByOp.isEmpty()) {
+                break;
+            }
+            for (Map.Entry<Op, List<Step>> e : stepsByOp.entrySet()) {
+                List<Step> steps = e.getValue();
+                IOException error = send(backend, newBatch(e.getKey(), steps), steps);
+                if (error != null) {
+                    retriable = error;
+                    for (Step step : steps) {
+                        blocked.add(step.entityKey);
+                    }
+                }
+            }
+        }
+        if (retriable != null) {
+            throw retriable;
+        }
+    }
+
+    // one write to send, and the journal entries it covers
+    private static class Step {
+
+        final String entityKey;
+
+        final Op op;
+
+        final CloudEntity entity;
+
+        final List<Long> seqs = new ArrayList<Long>();
+
+        Step(String entityKey, Op op, CloudEntity entity) {
+            this.entityKey = entityKey;
+            this.op = op;
+            this.entity = entity;
+        }
+    }
+
+    private static String getEntityKey(Entry e) {
+        return e.id == null ? "#" + e.seq : e.kindName + "/" + e.id;
+    }
+
+    // collapses the writes to one entity. Updates after an insert or update
+    // are merged into it, and a delete after an insert cancels both.
+    private List<Step> collapse(String entityKey, List<Entry> writes) throws IOException {
+        List<Step> steps = new ArrayList<Step>();
+        List<Long> cancelled = new ArrayList<Long>();
+        for (Entry e : writes) {
+            Op op = Op.valueOf(e.op);
+            Step last = steps.isEmpty() ? null : steps.get(steps.size() - 1);
+            if (op == Op.UPDATE && last != null && last.op != Op.DELETE) {
+                Step merged = new Step(entityKey, last.op, e.getCloudEntity());
+                merged.seqs.addAll(last.seqs);
+                merged.seqs.add(e.seq);
+                steps.set(steps.size() - 1, merged);
+            } else if (op == Op.DELETE && last != null && last.op == Op.INSERT) {
+                cancelled.addAll(last.seqs);
+                cancelled.add(e.seq);
+                steps.remove(steps.size() - 1);
+            } else if (op == Op.DELETE && last != null && last.op == Op.UPDATE) {
+                Step merged = new Step(entityKey, Op.DELETE, e.getCloudEntity());
+                merged.seqs.addAll(last.seqs);
+                merged.seqs.add(e.seq);
+                steps.set(steps.size() - 1, merged);
+            } else {
+                Step step = new Step(entityKey, op, e.getCloudEntity());
+                step.seqs.add(e.seq);
+                steps.add(step);
+            }
+        }
+        if (!cancelled.isEmpty()) {
+            acknowledge(cancelled);
+        }
+        return steps;
+    }
+
+    // rebuilds the steps of an unresolved batch from its writes. Each entity
+    // has one step in a batch, so they collapse as when the batch was sent.
+    private List<Step> collapseBatch(Entry batch) throws IOException {
+        Map<String, List<Entry>> writesByEntity = new LinkedHashMap<String, List<Entry>>();
+        synchronized (this) {
+            for (Long seq : batch.batch) {
+                Entry e = pending.get(seq);
+                if (e == null) {
+                    continue;
+                }
+                String key = getEntityKey(e);
+                List<Entry> writes = writesByEntity.get(key);
+                if (writes == null) {
+                    writes = new ArrayList<Entry>();
+                    writesByEntity.put(key, writes);
+                }
+                writes.add(e);
+            }
+        }
+        List<Step> steps = new ArrayList<Step>();
+        for (Map.Entry<String, List<Entry>> e : writesByEntity.entrySet()) {
+            steps.addAll(collapse(e.getKey(), e.getValue()));
+        }
+        return steps;
+    }
+
+    // journals a batch of steps with a new idempotency key before it is sent
+    private synchronized Entry newBatch(Op op, List<Step> steps) throws IOException {
+        Entry batch = new Entry();
+        batch.op = op.name();
+        batch.key = CloudBackend.newIdempotencyKey();
+        batch.batch = new ArrayList<Long>();
+        for (Step step : steps) {
+            batch.batch.addAll(step.seqs);
+        }
+        append(batch);
+        batches.put(batch.key, batch);
+        return batch;
+    }
+
+    // sends a batch with its idempotency key. When it is resolved (every
+    // write applied or rejected), its writes are acknowledged. Otherwise, the
+    // retriable error is returned and the whole batch stays unresolved: it is
+    // sent again as is, and the backend answers the chunks it has applied
+    // with their stored responses.
+    private IOException send(CloudBackend backend, Entry batch, List<Step> steps)
+            throws IOException {
+        Op op = Op.valueOf(batch.op);
+        List<CloudEntity> ceList = new ArrayList<CloudEntity>(steps.size());
+        for (Step step : steps) {
+            ceList.add(step.entity);
+        }
+        List<CloudEntity> results = ceList;
+        CloudBatchException batchException = null;
+        if (!ceList.isEmpty()) {
+            CloudBulkWriter writer = new CloudBulkWriter(backend).setMaxRetries(0);
+            try {
+                switch (op) {
+                    case INSERT:
+                        results = writer.insertAll(ceList, batch.key);
+                        break;
+                    case UPDATE:
+                        results = writer.updateAll(ceList, batch.key);
+                        break;
+                    case DELETE:
+                        writer.deleteAll(ceList, batch.key);
+                        break;
+                }
+            } catch (CloudBatchException e) {
+                batchException = e;
+                results = e.getResults();
+            }
+        }
+        if (batchException != null) {
+            for (int i = 0; i < steps.size(); i++) {
+                IOException error = batchException.getError(i);
+                if (error != null && isRetriable(error)) {
+                    return error;
+                }
+            }
+        }
+
+        List<Long> done = new ArrayList<Long>();
+        Listener l = listener;
+        for (int i = 0; i < steps.size(); i++) {
+            Step step = steps.get(i);
+            IOException error = batchException == null ? null : batchException.getError(i);
+            done.addAll(step.seqs);
+            if (error == null) {
+                if (l != null) {
+                    l.onReplayed(op, results.get(i));
+                }
+            } else {
+                Log.w(Consts.TAG, "outbox: " + op + " rejected: " + step.entity, error);
+                if (l != null) {
+                    l.onRejected(op, step.entity, error);
+                }
+            }
+        }
+        acknowledge(done, batch.key);
+        return null;
+    }
+
+    private static boolean isRetriable(IOException e) {
+        if (e instanceof HttpResponseException) {
+            int status = ((HttpResponseException) e).getStatusCode();
+            return status >= 500 || status == 408 || status == 429;
+        }
+        return true;
+    }
+
+    private boolean isNetworkAvailable() {
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo ni = cm == null ? null : cm.getActiveNetworkInfo();
+        return ni != null && ni.isConnected();
+    }
+
+    private void acknowledge(List<Long> seqs) throws IOException {
+        acknowledge(seqs, null);
+    }
+
+    // removes the writes from the outbox, and the batch they were sent in, if
+    // any, and records it in the journal
+    private synchronized void acknowledge(List<Long> seqs, String batchKey) throws IOException {
+        if (seqs.isEmpty() && batchKey == null) {
+            return;
+        }
+        Entry ack = new Entry();
+        ack.acks = seqs;
+        ack.key = batchKey;
+        append(ack);
+        for (Long seq : seqs) {
+            pending.remove(seq);
+        }
+        if (batchKey != null && batches.remove(batchKey) != null) {
+            ackedRecords++;
+        }
+        ackedRecords += seqs.size() + 1;
+        if (ackedRecords >= COMPACTION_THRESHOLD || pending.isEmpty()) {
+            // the acknowledgment is durable, so a failed compaction is only
+            // retried on the next one
+            try {
+                compact();
+            } catch (IOException e) {
+                Log.w(Consts.TAG, "outbox: compaction failed", e);
+            }
+        }
+    }
+
+    private void append(Entry e) throws IOException {
+        journal.append(gson.toJson(e).getBytes("UTF-8"));
+    }
+
+    // reads the journal, dropping a torn record at its end, if any
+    private synchronized void recover() throws IOException {
+        for (byte[] payload : journal.recover()) {
+            Entry e = gson.fromJson(new String(payload, "UTF-8"), Entry.class);
+            if (e.acks != null) {
+                for (Long seq : e.acks) {
+                    pending.remove(seq);
+                }
+                if (e.key != null && batches.remove(e.key) != null) {
+                    ackedRecords++;
+                }
+                ackedRecords += e.acks.size() + 1;
+            } else if (e.batch != null) {
+                batches.put(e.key, e);
+            } else {
+                pending.put(e.seq, e);
+                nextSeq = Math.max(nextSeq, e.seq + 1);
+            }
+        }
+        if (journal.getTruncatedBytes() > 0) {
+            Log.w(Consts.TAG, "outbox: dropped " + journal.getTruncatedBytes()
+                    + " bytes of a torn record");
+        }
+        Log.i(Consts.TAG, "outbox: recovered " + pending.size() + " pending writes, "
+                + batches.size() + " unresolved batches");
+    }
+
+    // rewrites the journal with the pending writes and unresolved batches only
+    private void compact() throws IOException {
+        List<byte[]> payloads = new ArrayList<byte[]>(pending.size() + batches.size());
+        for (Entry e : pending.values()) {
+            payloads.add(gson.toJson(e).getBytes("UTF-8"));
+        }
+        for (Entry e : batches.values()) {
+            payloads.add(gson.toJson(e).getBytes("UTF-8"));
+        }
+        journal.compact(payloads);
+        ackedRecords = 0;
+    }
+}
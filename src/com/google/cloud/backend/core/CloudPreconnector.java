@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpIOExceptionHandler;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Keeps a warm connection to the backend, so that the first request after
+ * the launch or after being idle does not pay the DNS lookup, the TCP connect
+ * and the TLS handshake. It is enabled with
+ * {@link Consts#PRECONNECT_ENABLED}, which keeps the HTTP connections alive:
+ * the backends then send their requests through the transport of the
+ * preconnector, whose pooled connections are opened by
+ * {@link #preconnect(String)} when the app comes to the foreground or a push
+ * notification arrives.
+ * <p>
+ * The TLS sessions are cached on disk ({@link SSLSessionCache}), so a new
+ * connection resumes the session of a previous one (even of a previous
+ * process) with an abbreviated handshake. The connect and handshake times of
+ * each request that opens a connection are recorded in {@link CloudMetrics}
+ * as "conn.connect" and "conn.handshake" (with "conn.resumed" or
+ * "conn.fullHandshake"), and the requests sent on a pooled connection are
+ * counted as "conn.reused".
+ */
+public class CloudPreconnector {
+
+    // runs the pre-connections
+    private static final ExecutorService executor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "CloudBackend-preconnect");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    // the timing of the connection of the request on the current thread
+    private static final ThreadLocal<Timing> currentTiming = new ThreadLocal<Timing>();
+
+    private static CloudPreconnector instance;
+
+    // connect and handshake times of a request, set by the socket factory
+    // when the request opens a connection
+    private static class Timing {
+
+        final long startedAt = System.currentTimeMillis();
+
+        long connectMillis = -1;
+
+        long handshakeMillis = -1;
+
+        boolean resumed;
+    }
+
+    private final HttpTransport transport;
+
+    private final Object preconnectLock = new Object();
+
+    // when a connection was last warmed up or used
+    private volatile long lastUsedAt;
+
+    /**
+     * Returns the preconnector of the application.
+     *
+     * @param context {@link Context}
+     * @return {@link CloudPreconnector}
+     */
+    public static synchronized CloudPreconnector getInstance(Context context) {
+        if (instance == null) {
+            instance = new CloudPreconnector(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private CloudPreconnector(Context app) {
+        SSLSocketFactory sessionCaching = SSLCertificateSocketFactory.getDefault(
+                Consts.STARTUP_PRECONNECT_TIMEOUT_MS, new SSLSessionCache(app));
+        this.transport = new NetHttpTransport.Builder()
+                .setSslSocketFactory(new TimingSocketFactory(sessionCaching)).build();
+    }
+
+    /**
+     * Returns the transport whose connections are warmed up. The backends use
+     * it when {@link Consts#PRECONNECT_ENABLED} is set.
+     *
+     * @return {@link HttpTransport}
+     */
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Warms up a connection to the backend in the background, unless a
+     * connection has been opened or used within
+     * {@link Consts#PRECONNECT_MIN_INTERVAL_MS}.
+     *
+     * @param rootUrl root URL of the backend (see
+     *            {@link CloudBackend#getRootUrl()})
+     */
+    public void preconnect(final String rootUrl) {
+        if (System.currentTimeMillis() - lastUsedAt < Consts.PRECONNECT_MIN_INTERVAL_MS) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    preconnectNow(rootUrl);
+                } catch (IOException e) {
+                    Log.i(Consts.TAG, "preconnect: failed: " + e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Warms up a connection to the backend with a HEAD request to its root
+     * URL, unless a connection has been opened or used within
+     * {@link Consts#PRECONNECT_MIN_INTERVAL_MS}. The connection is kept in the
+     * pool of the transport for the next request. This method blocks, so it
+     * must not be called on UI thread.
+     *
+     * @param rootUrl root URL of the backend (see
+     *            {@link CloudBackend#getRootUrl()})
+     * @throws IOException When the backend could not be reached.
+     */
+    public void preconnectNow(String rootUrl) throws IOException {
+        synchronized (preconnectLock) {
+            if (System.currentTimeMillis() - lastUsedAt < Consts.PRECONNECT_MIN_INTERVAL_MS) {
+                return;
+            }
+            Timing timing = new Timing();
+            currentTiming.set(timing);
+            try {
+                HttpRequest request = transport.createRequestFactory().buildHeadRequest(
+                        new GenericUrl(rootUrl));
+                request.setConnectTimeout(Consts.STARTUP_PRECONNECT_TIMEOUT_MS);
+                request.setReadTimeout(Consts.STARTUP_PRECONNECT_TIMEOUT_MS);
+                request.setThrowExceptionOnExecuteError(false);
+                request.setNumberOfRetries(0);
+
+                // reads the (empty) response, which returns the connection to
+                // the pool
+                request.execute().ignore();
+            } finally {
+                currentTiming.remove();
+            }
+            lastUsedAt = System.currentTimeMillis();
+            Log.i(Consts.TAG, "preconnect: " + describe(timing));
+            record(CloudMetrics.getDefault(), timing);
+        }
+    }
+
+    /**
+     * Records the connect and handshake times of the request in the metrics.
+     *
+     * @param request {@link HttpRequest}
+     * @param metrics {@link CloudMetrics}
+     */
+    void initialize(HttpRequest request, final CloudMetrics metrics) {
+        final HttpExecuteInterceptor interceptor = request.getInterceptor();
+        request.setInterceptor(new HttpExecuteInterceptor() {
+            @Override
+            public void intercept(HttpRequest request) throws IOException {
+                if (interceptor != null) {
+                    interceptor.intercept(request);
+                }
+
+                // each attempt is timed from here, after the token is set.
+                // This also drops the timing of an earlier attempt on this
+                // thread that did not clear it.
+                if ("https".equals(request.getUrl().getScheme())) {
+                    currentTiming.set(new Timing());
+                } else {
+                    currentTiming.remove();
+                }
+            }
+        });
+
+        // an attempt that fails with an I/O error gets no response, so its
+        // timing is cleared here, before the retry (if any)
+        final HttpIOExceptionHandler ioExceptionHandler = request.getIOExceptionHandler();
+        request.setIOExceptionHandler(new HttpIOExceptionHandler() {
+            @Override
+            public boolean handleIOException(HttpRequest request, boolean supportsRetry)
+                    throws IOException {
+                currentTiming.remove();
+                return ioExceptionHandler != null
+                        && ioExceptionHandler.handleIOException(request, supportsRetry);
+            }
+        });
+        final HttpResponseInterceptor responseInterceptor = request.getResponseInterceptor();
+        request.setResponseInterceptor(new HttpResponseInterceptor() {
+            @Override
+            public void interceptResponse(HttpResponse response) throws IOException {
+                Timing timing = currentTiming.get();
+                currentTiming.remove();
+                lastUsedAt = System.currentTimeMillis();
+                if (timing != null) {
+                    record(metrics, timing);
+                    if (timing.handshakeMillis >= 0) {
+                        Log.i(Consts.TAG, "connection: " + describe(timing));
+                    }
+                }
+                if (responseInterceptor != null) {
+                    responseInterceptor.interceptResponse(response);
+                }
+            }
+        });
+    }
+
+    private static void record(CloudMetrics metrics, Timing timing) {
+        if (timing.handshakeMillis < 0) {
+            metrics.increment("conn.reused");
+            return;
+        }
+        metrics.recordMillis("conn.connect", timing.connectMillis);
+        metrics.recordMillis("conn.handshake", timing.handshakeMillis);
+        metrics.increment(timing.resumed ? "conn.resumed" : "conn.fullHandshake");
+    }
+
+    private static String describe(Timing timing) {
+        if (timing.handshakeMillis < 0) {
+            return "pooled connection";
+        }
+        return "connect " + timing.connectMillis + " ms, "
+                + (timing.resumed ? "resumed" : "full") + " handshake "
+                + timing.handshakeMillis + " ms";
+    }
+
+    // performs the TLS handshake of the sockets when they are created, to
+    // time it (with the connect time before it) for the request of the
+    // current thread
+    private static class TimingSocketFactory extends SSLSocketFactory {
+
+        private final SSLSocketFactory delegate;
+
+        TimingSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose)
+                throws IOException {
+            long connected = System.currentTimeMillis();
+            return handshake(delegate.createSocket(s, host, port, autoClose), connected);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return handshake(delegate.createSocket(host, port), System.currentTimeMillis());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            return handshake(delegate.createSocket(host, port, localHost, localPort),
+                    System.currentTimeMillis());
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return handshake(delegate.createSocket(host, port), System.currentTimeMillis());
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                int localPort) throws IOException {
+            return handshake(delegate.createSocket(address, port, localAddress, localPort),
+                    System.currentTimeMillis());
+        }
+
+        private Socket handshake(Socket socket, long connected) throws IOException {
+            Timing timing = currentTiming.get();
+            if (timing == null || !(socket instanceof SSLSocket)) {
+                return socket;
+            }
+            long start = System.currentTimeMillis();
+            ((SSLSocket) socket).startHandshake();
+            long end = System.currentTimeMillis();
+            timing.connectMillis = connected - timing.startedAt;
+            timing.handshakeMillis = end - start;
+
+            // a resumed session was created by an earlier handshake
+            timing.resumed = ((SSLSocket) socket).getSession().getCreationTime() < start;
+            return socket;
+        }
+    }
+}
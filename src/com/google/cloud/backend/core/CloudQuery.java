@@ -14,11 +14,16 @@
 
 package com.google.cloud.backend.core;
 
+import com.google.cloud.backend.android.mobilebackend.model.FilterDto;
 import com.google.cloud.backend.android.mobilebackend.model.QueryDto;
 import com.google.gson.Gson;
 
 import android.util.Base64;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * A query object to execute it with {@link CloudBackend}. See
  * {@link CloudBackendTest#testList()} for detailed usage.
@@ -62,6 +67,8 @@ public class CloudQuery {
 
     private final QueryDto queryDto;
 
+    private int referenceDepth;
+
     /**
      * Creates an instance of {@link CloudQuery}.
      * 
@@ -83,6 +90,20 @@ public class CloudQuery {
     public CloudQuery(CloudQuery cq) {
         this.queryDto = copyQueryDto(cq.queryDto);
         this.filter = cq.filter;
+        this.referenceDepth = cq.referenceDepth;
+    }
+
+    /**
+     * Creates an instance of {@link CloudQuery} from a {@link QueryDto} (such
+     * as one stored by {@link QuerySnapshotStore}). The filter of the query is
+     * the FilterDto of the queryDto.
+     *
+     * @param queryDto {@link QueryDto}
+     * @param referenceDepth levels of references to resolve
+     */
+    CloudQuery(QueryDto queryDto, int referenceDepth) {
+        this.queryDto = copyQueryDto(queryDto);
+        this.referenceDepth = referenceDepth;
     }
 
     private QueryDto copyQueryDto(QueryDto cq) {
@@ -141,6 +162,36 @@ public class CloudQuery {
         return this;
     }
 
+    /**
+     * Sets how many levels of {@link CloudRef}s of the results are resolved
+     * after the query. With depth 1, the entities referenced by the results
+     * are read; with depth 2, the entities referenced by those are read too,
+     * and so on. The entities are read with one batched request per kind on
+     * each level. Default is 0 (no resolution).
+     * <p>
+     * The list methods of {@link CloudBackendAsync} do not wait for the
+     * references: they pass the results to the handler's onStaleResult as
+     * soon as the query returns, and to its onComplete again with the
+     * referenced entities linked.
+     * 
+     * @param depth levels of references to resolve
+     * @return {@link CloudQuery}
+     */
+    public CloudQuery setReferenceDepth(int depth) {
+        this.referenceDepth = Math.max(0, depth);
+        return this;
+    }
+
+    /**
+     * Returns how many levels of {@link CloudRef}s of the results are
+     * resolved after the query.
+     * 
+     * @return reference depth
+     */
+    public int getReferenceDepth() {
+        return referenceDepth;
+    }
+
     /**
      * Creates a {@link QueryDto} for this CloudQuery.
      * 
@@ -155,6 +206,39 @@ public class CloudQuery {
         return this.queryDto;
     }
 
+    /**
+     * Returns the canonical form of this query: the conditions that determine
+     * its results (kind, filter, sort, limit and reference depth), without
+     * its scope, query id and registration id. The operands of AND and OR
+     * filters are sorted, so that their order does not matter.
+     *
+     * @return canonical key of this query
+     */
+    String getCanonicalKey() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(queryDto.getKindName()).append('|');
+        FilterDto fd = filter == null ? queryDto.getFilterDto() : filter.getFilterDto();
+        sb.append(fd == null ? "" : toCanonicalString(fd)).append('|');
+        sb.append(queryDto.getSortedPropertyName()).append('|');
+        sb.append(queryDto.getSortAscending()).append('|');
+        sb.append(queryDto.getLimit()).append('|');
+        sb.append(referenceDepth);
+        return sb.toString();
+    }
+
+    private static String toCanonicalString(FilterDto fd) {
+        List<String> subfilters = new ArrayList<String>();
+        if (fd.getSubfilters() != null) {
+            for (FilterDto sub : fd.getSubfilters()) {
+                subfilters.add(toCanonicalString(sub));
+            }
+        }
+        if ("AND".equals(fd.getOperator()) || "OR".equals(fd.getOperator())) {
+            Collections.sort(subfilters);
+        }
+        return fd.getOperator() + gson.toJson(fd.getValues()) + subfilters;
+    }
+
     /**
      * Returns {@link Filter} (filter) for this query.
      * 
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache of query results for the list methods of {@link CloudBackendAsync}
+ * (stale-while-revalidate). The results are keyed by the canonical form of
+ * the {@link CloudQuery} (its kind, filter, sort, limit and reference depth;
+ * not its scope or query id).
+ * <p>
+ * For each kind, a {@link Policy} specifies how the cached results are used:
+ * <ul>
+ * <li>younger than max age: they are fresh, and are returned without calling
+ * the backend (except for continuous queries, which need to subscribe).</li>
+ * <li>younger than max stale: they are returned at once to
+ * {@link CloudCallbackHandler#onStaleResult(Object)} and revalidated in the
+ * background. The handler's onComplete is called a second time only if the
+ * results of the backend differ.</li>
+ * <li>older: they are not used.</li>
+ * </ul>
+ * The results of a kind are dropped when entities of the kind are written
+ * through the backend, and marked dirty (so that they are revalidated on the
+ * next access, even if they are younger than max age) when a
+ * {@link CloudInvalidator} learns of remote changes. The cached entities are
+ * shared with the handlers, so the handlers must not modify them.
+ */
+public class CloudQueryCache {
+
+    /**
+     * How long the cached results of a kind are used.
+     */
+    public static class Policy {
+
+        final long maxAgeMillis;
+
+        final long maxStaleMillis;
+
+        /**
+         * Creates a {@link Policy}.
+         *
+         * @param maxAgeMillis age until which the results are fresh
+         * @param maxStaleMillis age until which the results are returned while
+         *            they are revalidated
+         */
+        public Policy(long maxAgeMillis, long maxStaleMillis) {
+            this.maxAgeMillis = maxAgeMillis;
+            this.maxStaleMillis = Math.max(maxAgeMillis, maxStaleMillis);
+        }
+    }
+
+    /**
+     * The cached results of a query.
+     */
+    static class Entry {
+
+        final String kindName;
+
+        final List<CloudEntity> results;
+
+        final long storedAtMillis;
+
+        final boolean dirty;
+
+        Entry(String kindName, List<CloudEntity> results, long storedAtMillis, boolean dirty) {
+            this.kindName = kindName;
+            this.results = results;
+            this.storedAtMillis = storedAtMillis;
+            this.dirty = dirty;
+        }
+    }
+
+    private final Map<String, Entry> entries;
+
+    private final Map<String, Policy> policies = new HashMap<String, Policy>();
+
+    // generations of the kinds: a kind gets a new generation when it is
+    // invalidated, to discard the results of the queries that were in flight
+    private final Map<String, Long> generations = new HashMap<String, Long>();
+
+    private long lastGeneration;
+
+    // generation of all the kinds when the cache was cleared
+    private long clearedGeneration;
+
+    private Policy defaultPolicy = new Policy(
+            Consts.QUERY_CACHE_MAX_AGE_MS, Consts.QUERY_CACHE_MAX_STALE_MS);
+
+    /**
+     * Creates a {@link CloudQueryCache}.
+     *
+     * @param maxEntries max number of query results to cache
+     */
+    public CloudQueryCache(final int maxEntries) {
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Sets the {@link Policy} of the kinds that have no policy of their own.
+     *
+     * @param policy {@link Policy}
+     * @return {@link CloudQueryCache}
+     */
+    public synchronized CloudQueryCache setDefaultPolicy(Policy policy) {
+        this.defaultPolicy = policy;
+        return this;
+    }
+
+    /**
+     * Sets the {@link Policy} of the kind.
+     *
+     * @param kindName kind name
+     * @param policy {@link Policy}, or null to use the default policy
+     * @return {@link CloudQueryCache}
+     */
+    public synchronized CloudQueryCache setPolicy(String kindName, Policy policy) {
+        if (policy == null) {
+            policies.remove(kindName);
+        } else {
+            policies.put(kindName, policy);
+        }
+        return this;
+    }
+
+    /**
+     * Returns the cached results of the query that are not older than the max
+     * stale of its kind, or null.
+     *
+     * @param query {@link CloudQuery}
+     * @return {@link Entry} or null
+     */
+    synchronized Entry get(CloudQuery query) {
+        String key = query.getCanonicalKey();
+        Entry entry = entries.get(key);
+        if (entry != null && getAge(entry) > getPolicy(entry.kindName).maxStaleMillis) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Returns true if the cached results are younger than the max age of
+     * their kind, and have not been marked dirty.
+     */
+    synchronized boolean isFresh(Entry entry) {
+        return !entry.dirty && getAge(entry) <= getPolicy(entry.kindName).maxAgeMillis;
+    }
+
+    /**
+     * Returns the generation of the kind, to be passed to
+     * {@link #put(CloudQuery, List, long)} with the results of a query that
+     * is started now.
+     */
+    synchronized long getGeneration(String kindName) {
+        Long generation = generations.get(kindName);
+        return generation == null ? clearedGeneration : Math.max(generation, clearedGeneration);
+    }
+
+    /**
+     * Stores the results of the query, unless the kind has been invalidated
+     * since the query was started.
+     *
+     * @param query {@link CloudQuery}
+     * @param results results of the backend
+     * @param generation generation of the kind when the query was started
+     */
+    synchronized void put(CloudQuery query, List<CloudEntity> results, long generation) {
+        if (generation != getGeneration(query.getKindName())) {
+            return;
+        }
+        entries.put(query.getCanonicalKey(), new Entry(query.getKindName(),
+                Collections.unmodifiableList(new ArrayList<CloudEntity>(results)),
+                System.currentTimeMillis(), false));
+    }
+
+    /**
+     * Marks the cached results of the queries on the kind dirty: they are
+     * kept, but revalidated on the next access.
+     *
+     * @param kindName kind name
+     */
+    public synchronized void markDirty(String kindName) {
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.kindName.equals(kindName) && !entry.dirty) {
+                e.setValue(new Entry(entry.kindName, entry.results, entry.storedAtMillis, true));
+            }
+        }
+    }
+
+    /**
+     * Marks the cached results of the query dirty.
+     *
+     * @param query {@link CloudQuery}
+     */
+    public synchronized void markDirty(CloudQuery query) {
+        String key = query.getCanonicalKey();
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.dirty) {
+            entries.put(key, new Entry(entry.kindName, entry.results, entry.storedAtMillis, true));
+        }
+    }
+
+    /**
+     * Drops the cached results of the queries on the kind.
+     *
+     * @param kindName kind name
+     */
+    public synchronized void invalidate(String kindName) {
+        generations.put(kindName, ++lastGeneration);
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().kindName.equals(kindName)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops all the cached results.
+     */
+    public synchronized void clear() {
+        clearedGeneration = ++lastGeneration;
+        entries.clear();
+    }
+
+    /**
+     * Returns true if the two results have the same entities in the same
+     * order, in the same versions (by updatedAt).
+     */
+    static boolean isSameResults(List<CloudEntity> results1, List<CloudEntity> results2) {
+        if (results1.size() != results2.size()) {
+            return false;
+        }
+        for (int i = 0; i < results1.size(); i++) {
+            CloudEntity ce1 = results1.get(i);
+            CloudEntity ce2 = results2.get(i);
+            if (!equals(ce1.getId(), ce2.getId())
+                    || !equals(ce1.getUpdatedAt(), ce2.getUpdatedAt())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equals(Object o1, Object o2) {
+        return o1 == null ? o2 == null : o1.equals(o2);
+    }
+
+    private long getAge(Entry entry) {
+        return System.currentTimeMillis() - entry.storedAtMillis;
+    }
+
+    private Policy getPolicy(String kindName) {
+        Policy policy = policies.get(kindName);
+        return policy == null ? defaultPolicy : policy;
+    }
+}
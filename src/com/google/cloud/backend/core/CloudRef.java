@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A reference from a property of a {@link CloudEntity} to another
+ * CloudEntity, specified by kind name and id. A reference is stored on the
+ * backend as a string (see {@link #encode()}), so it can be used as a value of
+ * {@link Filter}s.
+ * <p>
+ * So that a string property is never read back as a reference, a string
+ * value that starts with {@link #ENCODING_PREFIX} or {@link #ESCAPE_PREFIX}
+ * is stored with ESCAPE_PREFIX prepended, and read back without it. Filter
+ * values are escaped the same way. Strings written by other clients that
+ * start with one of the prefixes are read with this encoding.
+ * <p>
+ * When a {@link CloudQuery} has a reference depth (see
+ * {@link CloudQuery#setReferenceDepth(int)}), the referenced entities of the
+ * results are read and can be retrieved with {@link #getEntity()}.
+ */
+public class CloudRef {
+
+    /**
+     * Prefix of the string that represents a reference on the backend.
+     */
+    public static final String ENCODING_PREFIX = "_ref:";
+
+    /**
+     * Prefix prepended to a string value that starts with
+     * {@link #ENCODING_PREFIX} or with this prefix when it is stored on the
+     * backend.
+     */
+    public static final String ESCAPE_PREFIX = "_str:";
+
+    private final String kindName;
+
+    private final String id;
+
+    private volatile CloudEntity entity;
+
+    /**
+     * Creates a reference to the entity specified by kind name and id.
+     *
+     * @param kindName kind name of the referenced entity
+     * @param id id of the referenced entity
+     */
+    public CloudRef(String kindName, String id) {
+        if (kindName == null || !kindName.matches("\\w+")) {
+            throw new IllegalArgumentException("Illegal kind name: " + kindName);
+        }
+        if (id == null) {
+            throw new IllegalArgumentException("No id specified");
+        }
+        this.kindName = kindName;
+        this.id = id;
+    }
+
+    /**
+     * Creates a reference to the specified {@link CloudEntity}.
+     *
+     * @param ce {@link CloudEntity} that has an id
+     */
+    public CloudRef(CloudEntity ce) {
+        this(ce.getKindName(), ce.getId());
+        this.entity = ce;
+    }
+
+    public String getKindName() {
+        return kindName;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Returns the referenced {@link CloudEntity}, or null if it has not been
+     * resolved (or was not found).
+     *
+     * @return {@link CloudEntity}
+     */
+    public CloudEntity getEntity() {
+        return entity;
+    }
+
+    /**
+     * Returns true if the referenced entity has been resolved.
+     */
+    public boolean isResolved() {
+        return entity != null;
+    }
+
+    void setEntity(CloudEntity entity) {
+        this.entity = entity;
+    }
+
+    /**
+     * Returns the string that represents this reference on the backend.
+     *
+     * @return encoded reference
+     */
+    public String encode() {
+        return ENCODING_PREFIX + kindName + "/" + id;
+    }
+
+    /**
+     * Returns a {@link CloudRef} if the specified string is an encoded
+     * reference, or null otherwise.
+     *
+     * @param s a string
+     * @return {@link CloudRef} or null
+     */
+    public static CloudRef decode(String s) {
+        if (s == null || !s.startsWith(ENCODING_PREFIX)) {
+            return null;
+        }
+        int slash = s.indexOf('/', ENCODING_PREFIX.length());
+        if (slash < 0 || slash == s.length() - 1) {
+            return null;
+        }
+        String kindName = s.substring(ENCODING_PREFIX.length(), slash);
+        if (!kindName.matches("\\w+")) {
+            return null;
+        }
+        return new CloudRef(kindName, s.substring(slash + 1));
+    }
+
+    // converts CloudRefs in the property value (or its elements) to strings,
+    // and escapes the strings that would be read as references
+    static Object encodeValue(Object value) {
+        if (value instanceof CloudRef) {
+            return ((CloudRef) value).encode();
+        }
+        if (value instanceof String) {
+            String s = (String) value;
+            return s.startsWith(ENCODING_PREFIX) || s.startsWith(ESCAPE_PREFIX)
+                    ? ESCAPE_PREFIX + s : s;
+        }
+        if (value instanceof List<?>) {
+            List<Object> l = new ArrayList<Object>(((List<?>) value).size());
+            for (Object o : (List<?>) value) {
+                l.add(encodeValue(o));
+            }
+            return l;
+        }
+        return value;
+    }
+
+    // converts encoded references in the property value (or its elements) to
+    // CloudRefs, and unescapes the other strings
+    static Object decodeValue(Object value) {
+        if (value instanceof String) {
+            String s = (String) value;
+            if (s.startsWith(ESCAPE_PREFIX)) {
+                return s.substring(ESCAPE_PREFIX.length());
+            }
+            CloudRef ref = decode(s);
+            return ref != null ? ref : value;
+        }
+        if (value instanceof List<?>) {
+            List<Object> l = new ArrayList<Object>(((List<?>) value).size());
+            for (Object o : (List<?>) value) {
+                l.add(decodeValue(o));
+            }
+            return l;
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "CloudRef(" + kindName + "/" + id + ")";
+    }
+
+    @Override
+    public int hashCode() {
+        return (kindName + "/" + id).hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof CloudRef)) {
+            return false;
+        }
+        CloudRef other = (CloudRef) obj;
+        return kindName.equals(other.kindName) && id.equals(other.id);
+    }
+}
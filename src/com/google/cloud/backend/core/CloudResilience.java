@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import com.google.api.client.http.HttpBackOffIOExceptionHandler;
+import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
+import com.google.api.client.http.HttpIOExceptionHandler;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.util.ExponentialBackOff;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Resilience settings of the backend calls: timeouts and deadlines per
+ * {@link Operation}, a {@link RetryBudget} shared by the calls, and a
+ * {@link CircuitBreaker}. A call is retried with exponential back-off on
+ * server errors and I/O errors while its deadline has not passed and the
+ * retry budget has tokens. Reads may also be hedged with a
+ * {@link HedgedExecutor} (disabled by default).
+ * <p>
+ * {@link CloudBackend} uses {@link #getDefault()} unless another instance is
+ * set with {@link CloudBackend#setResilience(CloudResilience)}.
+ */
+public class CloudResilience {
+
+    /**
+     * Types of backend calls that have their own timeouts.
+     */
+    public enum Operation {
+        /** get and getAll */
+        READ,
+        /** list */
+        QUERY,
+        /** insert, update and delete */
+        WRITE,
+        /** insertAll, updateAll and deleteAll */
+        BULK_WRITE
+    }
+
+    // timeouts of an operation
+    private static class Timeouts {
+
+        final int connectTimeoutMillis;
+
+        final int readTimeoutMillis;
+
+        final int deadlineMillis;
+
+        Timeouts(int connectTimeoutMillis, int readTimeoutMillis, int deadlineMillis) {
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            this.readTimeoutMillis = readTimeoutMillis;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+
+    private static final CloudResilience defaultResilience =
+            new CloudResilience(CloudMetrics.getDefault());
+
+    private final CloudMetrics metrics;
+
+    private final Map<Operation, Timeouts> timeouts = new EnumMap<Operation, Timeouts>(
+            Operation.class);
+
+    private volatile RetryBudget retryBudget;
+
+    private volatile CircuitBreaker circuitBreaker;
+
+    private final Map<Operation, HedgedExecutor> hedgedExecutors =
+            new EnumMap<Operation, HedgedExecutor>(Operation.class);
+
+    /**
+     * Creates an instance with the defaults of {@link Consts}.
+     *
+     * @param metrics {@link CloudMetrics} to record to
+     */
+    public CloudResilience(CloudMetrics metrics) {
+        this.metrics = metrics;
+        setTimeouts(Operation.READ, Consts.CONNECT_TIMEOUT_MS, Consts.READ_TIMEOUT_MS,
+                Consts.READ_DEADLINE_MS);
+        setTimeouts(Operation.QUERY, Consts.CONNECT_TIMEOUT_MS, Consts.READ_TIMEOUT_MS,
+                Consts.READ_DEADLINE_MS);
+        setTimeouts(Operation.WRITE, Consts.CONNECT_TIMEOUT_MS, Consts.WRITE_TIMEOUT_MS,
+                Consts.WRITE_DEADLINE_MS);
+        setTimeouts(Operation.BULK_WRITE, Consts.CONNECT_TIMEOUT_MS,
+                Consts.BULK_WRITE_TIMEOUT_MS, Consts.BULK_WRITE_DEADLINE_MS);
+        this.retryBudget = new RetryBudget(
+                Consts.RETRY_BUDGET_TOKENS, Consts.RETRY_BUDGET_REFILL_PER_SEC, metrics);
+        this.circuitBreaker = new CircuitBreaker(
+                Consts.BREAKER_FAILURE_THRESHOLD, Consts.BREAKER_OPEN_MS, metrics);
+    }
+
+    /**
+     * Returns the settings shared by the backends by default.
+     *
+     * @return {@link CloudResilience}
+     */
+    public static CloudResilience getDefault() {
+        return defaultResilience;
+    }
+
+    /**
+     * Sets the timeouts of the operation.
+     *
+     * @param op {@link Operation}
+     * @param connectTimeoutMillis connect timeout of one attempt
+     * @param readTimeoutMillis read timeout of one attempt
+     * @param deadlineMillis deadline of the call including retries
+     * @return {@link CloudResilience}
+     */
+    public synchronized CloudResilience setTimeouts(Operation op, int connectTimeoutMillis,
+            int readTimeoutMillis, int deadlineMillis) {
+        timeouts.put(op, new Timeouts(connectTimeoutMillis, readTimeoutMillis, deadlineMillis));
+        return this;
+    }
+
+    public CloudResilience setRetryBudget(RetryBudget retryBudget) {
+        this.retryBudget = retryBudget;
+        return this;
+    }
+
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    public CloudResilience setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Sets the {@link HedgedExecutor} of the operation, to send a second
+     * request when the first is slow. Only the idempotent operations
+     * ({@link Operation#READ} and {@link Operation#QUERY}) may be hedged. By
+     * setting null, the operation is not hedged.
+     *
+     * @param op {@link Operation} to hedge
+     * @param hedgedExecutor {@link HedgedExecutor}
+     * @return {@link CloudResilience}
+     */
+    public synchronized CloudResilience setHedgedExecutor(Operation op,
+            HedgedExecutor hedgedExecutor) {
+        if (op != Operation.READ && op != Operation.QUERY) {
+            throw new IllegalArgumentException("Only reads may be hedged: " + op);
+        }
+        if (hedgedExecutor == null) {
+            hedgedExecutors.remove(op);
+        } else {
+            hedgedExecutors.put(op, hedgedExecutor);
+        }
+        return this;
+    }
+
+    /**
+     * Returns the {@link HedgedExecutor} of the operation, or null if it is
+     * not hedged.
+     */
+    public synchronized HedgedExecutor getHedgedExecutor(Operation op) {
+        return hedgedExecutors.get(op);
+    }
+
+    public CloudMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the timeouts and the retry handlers of the operation to the
+     * request. The existing unsuccessful response handler (such as the one of
+     * the credential, which refreshes the token on 401) is called first.
+     *
+     * @param request {@link HttpRequest}
+     * @param op {@link Operation} of the request
+     */
+    void configure(HttpRequest request, Operation op) {
+        Timeouts t;
+        synchronized (this) {
+            t = timeouts.get(op);
+        }
+        final long deadline = System.currentTimeMillis() + t.deadlineMillis;
+        request.setConnectTimeout(t.connectTimeoutMillis);
+        request.setReadTimeout(t.readTimeoutMillis);
+
+        ExponentialBackOff backOff = new ExponentialBackOff.Builder()
+                .setMaxElapsedTimeMillis(t.deadlineMillis).build();
+        final HttpBackOffUnsuccessfulResponseHandler responseBackOff =
+                new HttpBackOffUnsuccessfulResponseHandler(backOff);
+        final HttpBackOffIOExceptionHandler ioExceptionBackOff =
+                new HttpBackOffIOExceptionHandler(backOff);
+        final HttpUnsuccessfulResponseHandler authHandler =
+                request.getUnsuccessfulResponseHandler();
+
+        request.setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+            @Override
+            public boolean handleResponse(HttpRequest request, HttpResponse response,
+                    boolean supportsRetry) throws IOException {
+                if (authHandler != null
+                        && authHandler.handleResponse(request, response, supportsRetry)) {
+                    return true;
+                }
+                return supportsRetry && response.getStatusCode() >= 500
+                        && mayRetry(request, deadline)
+                        && responseBackOff.handleResponse(request, response, supportsRetry);
+            }
+        });
+        request.setIOExceptionHandler(new HttpIOExceptionHandler() {
+            @Override
+            public boolean handleIOException(HttpRequest request, boolean supportsRetry)
+                    throws IOException {
+                return supportsRetry && mayRetry(request, deadline)
+                        && ioExceptionBackOff.handleIOException(request, supportsRetry);
+            }
+        });
+    }
+
+    // checks the deadline and the retry budget, and shortens the read timeout
+    // of the retry to the remaining time
+    private boolean mayRetry(HttpRequest request, long deadline) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            metrics.increment("retry.deadlineExceeded");
+            return false;
+        }
+        if (!retryBudget.tryAcquire()) {
+            return false;
+        }
+        request.setReadTimeout((int) Math.min(request.getReadTimeout(), remaining));
+        return true;
+    }
+}
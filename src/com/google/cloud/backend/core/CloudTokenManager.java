@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import com.google.android.gms.auth.GoogleAuthException;
+import com.google.android.gms.auth.GoogleAuthUtil;
+import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.gson.Gson;
+
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the OAuth tokens of the accounts, so that the requests of
+ * {@link CloudBackend} do not fetch a token each. A token is used until
+ * {@link Consts#TOKEN_EXPIRY_MARGIN_MS} before its expiry (read from the token
+ * when it is a JWT, or {@link Consts#TOKEN_DEFAULT_TTL_MS} after it was
+ * fetched), and refreshed {@link Consts#TOKEN_REFRESH_LEAD_MS} before on a
+ * background thread if it has been used, so that the requests keep using the
+ * current token meanwhile. Concurrent requests that need a new token wait for
+ * the same fetch.
+ * <p>
+ * When the backend answers 401 Unauthorized, the token is invalidated and the
+ * request is retried once with a new token. The time that the requests wait
+ * for a token is recorded in {@link CloudMetrics} as "token.wait".
+ * {@link CloudBackend} uses {@link #getDefault()} unless another instance (or
+ * null, to let the credential fetch the token of each request) is set with
+ * {@link CloudBackend#setTokenManager(CloudTokenManager)}.
+ */
+public class CloudTokenManager {
+
+    // shared by all the managers to run the proactive refreshes
+    private static final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "CloudBackend-token");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private static final CloudTokenManager defaultManager =
+            new CloudTokenManager(CloudMetrics.getDefault());
+
+    private static final Gson gson = new Gson();
+
+    // the claims of a JWT that are used here
+    private static class Claims {
+
+        // expiry in seconds since the epoch
+        Long exp;
+    }
+
+    // the token of an account for a scope
+    private static class Token {
+
+        final GoogleAccountCredential credential;
+
+        String value;
+
+        long fetchedAt;
+
+        long expiresAt;
+
+        long lastUsedAt;
+
+        // the fetch in progress, shared by the waiting requests
+        FutureTask<String> refresh;
+
+        ScheduledFuture<?> proactiveRefresh;
+
+        Token(GoogleAccountCredential credential) {
+            this.credential = credential;
+        }
+    }
+
+    private final CloudMetrics metrics;
+
+    // tokens by account name and scope
+    private final Map<String, Token> tokens = new HashMap<String, Token>();
+
+    /**
+     * Creates a {@link CloudTokenManager}.
+     *
+     * @param metrics {@link CloudMetrics} to record the waits and refreshes
+     */
+    public CloudTokenManager(CloudMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the manager shared by the backends by default.
+     *
+     * @return {@link CloudTokenManager}
+     */
+    public static CloudTokenManager getDefault() {
+        return defaultManager;
+    }
+
+    /**
+     * Returns the token of the selected account of the credential, fetching it
+     * (or waiting for the fetch in progress) if there is no valid token. This
+     * method may block, so it must not be called on UI thread.
+     *
+     * @param credential {@link GoogleAccountCredential} with a selected account
+     * @return the token
+     * @throws IOException When the token could not be fetched. The cause is the
+     *             {@link GoogleAuthException} if the account could not be
+     *             authorized.
+     */
+    public String getToken(GoogleAccountCredential credential) throws IOException {
+        long start = System.currentTimeMillis();
+        FutureTask<String> refresh;
+        boolean fetch = false;
+        synchronized (this) {
+            Token t = getEntry(credential);
+            t.lastUsedAt = start;
+            if (t.value != null && start < t.expiresAt - Consts.TOKEN_EXPIRY_MARGIN_MS) {
+                metrics.increment("token.hit");
+                return t.value;
+            }
+            if (t.refresh == null) {
+                t.refresh = newRefresh(t);
+                fetch = true;
+            }
+            refresh = t.refresh;
+        }
+        if (fetch) {
+            refresh.run();
+        }
+        try {
+            return await(refresh);
+        } finally {
+            metrics.recordMillis("token.wait", System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Invalidates the token, such as when the backend has rejected it, so that
+     * the next request fetches a new one.
+     *
+     * @param credential {@link GoogleAccountCredential} of the token
+     * @param token the rejected token
+     */
+    public void invalidate(GoogleAccountCredential credential, String token) {
+        synchronized (this) {
+            Token t = getEntry(credential);
+            if (token.equals(t.value)) {
+                t.value = null;
+                if (t.proactiveRefresh != null) {
+                    t.proactiveRefresh.cancel(false);
+                    t.proactiveRefresh = null;
+                }
+            }
+        }
+        GoogleAuthUtil.invalidateToken(credential.getContext(), token);
+        metrics.increment("token.invalidated");
+    }
+
+    /**
+     * Sets the token of the credential to the request, and retries the request
+     * once with a new token if the backend answers 401 Unauthorized. This
+     * replaces {@link GoogleAccountCredential#initialize(HttpRequest)}.
+     *
+     * @param request {@link HttpRequest}
+     * @param credential {@link GoogleAccountCredential} with a selected account
+     */
+    void initialize(HttpRequest request, GoogleAccountCredential credential) {
+        RequestHandler handler = new RequestHandler(credential);
+        request.setInterceptor(handler);
+        request.setUnsuccessfulResponseHandler(handler);
+    }
+
+    // sets the token of each attempt of a request, and invalidates it on 401
+    private class RequestHandler implements HttpExecuteInterceptor,
+            HttpUnsuccessfulResponseHandler {
+
+        private final GoogleAccountCredential credential;
+
+        private String token;
+
+        private boolean received401;
+
+        RequestHandler(GoogleAccountCredential credential) {
+            this.credential = credential;
+        }
+
+        @Override
+        public void intercept(HttpRequest request) throws IOException {
+            token = getToken(credential);
+            request.getHeaders().setAuthorization("Bearer " + token);
+        }
+
+        @Override
+        public boolean handleResponse(HttpRequest request, HttpResponse response,
+                boolean supportsRetry) {
+            if (response.getStatusCode() != HttpStatusCodes.STATUS_CODE_UNAUTHORIZED
+                    || received401) {
+                return false;
+            }
+            received401 = true;
+            Log.i(Consts.TAG, "token: rejected, retrying with a new token");
+            invalidate(credential, token);
+            return true;
+        }
+    }
+
+    private Token getEntry(GoogleAccountCredential credential) {
+        String key = credential.getSelectedAccountName() + "\n" + credential.getScope();
+        Token t = tokens.get(key);
+        if (t == null) {
+            t = new Token(credential);
+            tokens.put(key, t);
+        }
+        return t;
+    }
+
+    // fetches a new token. The current one (if any) is invalidated first, so
+    // that it is not returned again from the cache of Google Play services.
+    private FutureTask<String> newRefresh(final Token t) {
+        return new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                String previous;
+                synchronized (CloudTokenManager.this) {
+                    previous = t.value;
+                }
+                try {
+                    if (previous != null) {
+                        GoogleAuthUtil.invalidateToken(t.credential.getContext(), previous);
+                    }
+                    String value = t.credential.getToken();
+                    long now = System.currentTimeMillis();
+                    long expiresAt = getExpiry(value, now);
+                    if (previous == null
+                            && expiresAt - now < Consts.TOKEN_REFRESH_LEAD_MS) {
+                        // a cached token about to expire
+                        GoogleAuthUtil.invalidateToken(t.credential.getContext(), value);
+                        value = t.credential.getToken();
+                        now = System.currentTimeMillis();
+                        expiresAt = getExpiry(value, now);
+                    }
+                    synchronized (CloudTokenManager.this) {
+                        t.value = value;
+                        t.fetchedAt = now;
+                        t.expiresAt = expiresAt;
+                        scheduleRefresh(t);
+                    }
+                    metrics.increment("token.fetched");
+                    return value;
+                } catch (GoogleAuthException e) {
+                    throw new IOException("Failed to get token: " + e, e);
+                } finally {
+                    synchronized (CloudTokenManager.this) {
+                        t.refresh = null;
+                    }
+                }
+            }
+        });
+    }
+
+    // refreshes the token on the scheduler before it expires, if it has been
+    // used since it was fetched
+    private void scheduleRefresh(final Token t) {
+        if (t.proactiveRefresh != null) {
+            t.proactiveRefresh.cancel(false);
+        }
+        long delay = t.expiresAt - Consts.TOKEN_REFRESH_LEAD_MS - System.currentTimeMillis();
+        t.proactiveRefresh = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                FutureTask<String> refresh;
+                synchronized (CloudTokenManager.this) {
+                    t.proactiveRefresh = null;
+                    if (t.lastUsedAt <= t.fetchedAt || t.refresh != null) {
+                        // unused: the next request fetches a new token
+                        return;
+                    }
+                    refresh = newRefresh(t);
+                    t.refresh = refresh;
+                }
+                refresh.run();
+                try {
+                    await(refresh);
+                    metrics.increment("token.refreshedAhead");
+                } catch (IOException e) {
+                    Log.i(Consts.TAG, "token: failed to refresh ahead: " + e);
+                }
+            }
+        }, Math.max(0, delay), TimeUnit.MILLISECONDS);
+    }
+
+    private static String await(FutureTask<String> refresh) throws IOException {
+        try {
+            return refresh.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for token");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to get token: " + e.getCause(), e.getCause());
+        }
+    }
+
+    // returns the expiry of the token: the "exp" claim of a JWT (such as an ID
+    // token of an audience), or the default lifetime since now
+    private static long getExpiry(String token, long now) {
+        String[] parts = token.split("\\.");
+        if (parts.length == 3) {
+            try {
+                String payload = new String(Base64.decode(parts[1], Base64.URL_SAFE), "UTF-8");
+                Claims claims = gson.fromJson(payload, Claims.class);
+                if (claims != null && claims.exp != null) {
+                    return claims.exp * 1000;
+                }
+            } catch (Exception e) {
+                Log.i(Consts.TAG, "token: no expiry in token: " + e);
+            }
+        }
+        return now + Consts.TOKEN_DEFAULT_TTL_MS;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import com.google.api.client.extensions.android.http.AndroidHttp;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+/**
+ * Creates the {@link HttpTransport}s that can be set to a backend with
+ * {@link CloudBackend#setTransport(HttpTransport)}.
+ * <p>
+ * The default transport ({@link #newDefaultTransport()}) opens a connection
+ * per request, as HTTP keep-alive is disabled unless
+ * {@link Consts#PRECONNECT_ENABLED} is set. The pooled transport
+ * ({@link #newPooledTransport(int)}) keeps a bounded pool of persistent
+ * HTTP/1.1 connections to the backend: concurrent requests (such as parallel
+ * gets, sub-queries and batch chunks) share the pooled connections instead of
+ * each paying the connection setup, and wait for a free connection beyond the
+ * size of the pool. A pooled connection is checked before it is reused, so a
+ * connection closed by the backend while idle is not used.
+ */
+public class CloudTransports {
+
+    private CloudTransports() {
+    }
+
+    /**
+     * Returns a new transport that opens a connection per request (unless
+     * keep-alive is enabled).
+     *
+     * @return {@link HttpTransport}
+     */
+    public static HttpTransport newDefaultTransport() {
+        return AndroidHttp.newCompatibleTransport();
+    }
+
+    /**
+     * Returns a new transport that sends the requests over a pool of
+     * persistent connections, with the Apache HTTP client of the platform. The
+     * transport is thread-safe, and should be shared by the backends.
+     * <p>
+     * The connections are opened on demand, up to {@code maxConnections}, and
+     * a request waits for a free connection beyond that. The cap should be at
+     * least the number of concurrent requests of the app: a pool smaller than
+     * the parallelism of its callers makes them take turns on the pooled
+     * connections (100 concurrent reads over 6 connections take about 17
+     * round trips instead of one), which is slower than opening a connection
+     * per request. A lower cap only bounds the sockets held open and the load
+     * put on the backend.
+     *
+     * @param maxConnections max number of connections to the backend, such as
+     *            {@link Consts#TRANSPORT_MAX_CONNECTIONS}
+     * @return {@link HttpTransport}
+     */
+    public static HttpTransport newPooledTransport(int maxConnections) {
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpConnectionParams.setSocketBufferSize(params, 8192);
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        DefaultHttpClient client = new DefaultHttpClient(
+                new ThreadSafeClientConnManager(params, registry), params);
+
+        // the requests are retried by CloudResilience
+        client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+        return new ApacheHttpTransport(client);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.json.GenericJson;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the validators (the ETag and Last-Modified headers) and the
+ * payloads of the responses of reads and queries, so that {@link CloudBackend}
+ * can send them again as conditional requests (If-None-Match and
+ * If-Modified-Since). When the data has not changed, the backend answers
+ * with a 304 Not Modified without payload, and the remembered payload is
+ * used.
+ * <p>
+ * The responses are keyed by the request (such as the kind and id of an
+ * entity, or the canonical form of a query), and the least recently used
+ * ones are evicted beyond the max number of entries. {@link CloudBackend}
+ * uses {@link #getDefault()} unless another instance (or null) is set with
+ * {@link CloudBackend#setValidatorCache(CloudValidatorCache)}.
+ */
+public class CloudValidatorCache {
+
+    /**
+     * A remembered response.
+     */
+    static class Entry {
+
+        final String eTag;
+
+        final String lastModified;
+
+        final GenericJson payload;
+
+        Entry(String eTag, String lastModified, GenericJson payload) {
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.payload = payload;
+        }
+    }
+
+    private static final CloudValidatorCache defaultCache = new CloudValidatorCache(
+            Consts.VALIDATOR_CACHE_SIZE);
+
+    private final Map<String, Entry> entries;
+
+    /**
+     * Creates a {@link CloudValidatorCache}.
+     *
+     * @param maxEntries max number of responses to remember
+     */
+    public CloudValidatorCache(final int maxEntries) {
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cache shared by the backends by default.
+     *
+     * @return {@link CloudValidatorCache}
+     */
+    public static CloudValidatorCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * Returns the remembered response of the request, or null.
+     *
+     * @param key key of the request
+     * @return {@link Entry} or null
+     */
+    synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Remembers the response of the request if it has a validator, or forgets
+     * the previous one if it has none.
+     *
+     * @param key key of the request
+     * @param headers headers of the response
+     * @param payload parsed payload of the response
+     */
+    synchronized void put(String key, HttpHeaders headers, GenericJson payload) {
+        String eTag = headers == null ? null : headers.getETag();
+        String lastModified = headers == null ? null : headers.getLastModified();
+        if (eTag == null && lastModified == null) {
+            entries.remove(key);
+        } else {
+            entries.put(key, new Entry(eTag, lastModified, payload.clone()));
+        }
+    }
+
+    /**
+     * Forgets the response of the request.
+     *
+     * @param key key of the request
+     */
+    synchronized void remove(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Forgets all the responses.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import android.os.Handler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A write-behind buffer that coalesces updates. The updates to the same
+ * {@link CloudEntity} (kind name and id) issued within the window are
+ * coalesced into one write of the latest state, and the buffered writes are sent with
+ * one {@link CloudBackendAsync#updateAll(List, CloudCallbackHandler)} call.
+ * This avoids a request per change for entities that are updated several
+ * times per second, such as counters or drafts.
+ * <p>
+ * Call {@link #flush()} to send the buffered writes immediately;
+ * {@link CloudBackendFragment} flushes its buffer when the app goes to the
+ * background. The buffer must be created and used on UI thread, and the
+ * handlers are called on UI thread.
+ */
+public class CloudWriteBuffer {
+
+    private final CloudBackendAsync backend;
+
+    private final Handler uiThreadHandler = new Handler();
+
+    private long windowMillis = Consts.WRITE_BUFFER_WINDOW_MS;
+
+    // buffered writes (key = kindName/id)
+    private Map<String, BufferedWrite> buffer = new LinkedHashMap<String, BufferedWrite>();
+
+    private final Runnable flusher = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // the latest state of an entity and the handlers waiting for its write
+    private static class BufferedWrite {
+
+        CloudEntity entity;
+
+        final List<CloudCallbackHandler<CloudEntity>> handlers =
+                new ArrayList<CloudCallbackHandler<CloudEntity>>();
+
+        BufferedWrite(CloudEntity entity) {
+            this.entity = entity;
+        }
+    }
+
+    /**
+     * Creates an instance of {@link CloudWriteBuffer}.
+     *
+     * @param backend {@link CloudBackendAsync} to write the entities with
+     */
+    public CloudWriteBuffer(CloudBackendAsync backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Sets how long the updates are buffered before they are sent. Default is
+     * {@link Consts#WRITE_BUFFER_WINDOW_MS}.
+     *
+     * @param windowMillis window in milliseconds
+     * @return {@link CloudWriteBuffer}
+     */
+    public CloudWriteBuffer setWindowMillis(long windowMillis) {
+        this.windowMillis = Math.max(0, windowMillis);
+        return this;
+    }
+
+    /**
+     * Returns the number of entities that have buffered writes.
+     */
+    public int getBufferedCount() {
+        return buffer.size();
+    }
+
+    /**
+     * Buffers an update of the {@link CloudEntity}. If the entity already has
+     * a buffered update, ce replaces it: an update carries the full state of
+     * the entity, so a property removed from ce is removed on the backend too.
+     * Only the createdAt of the buffered state is kept if ce has none. An
+     * entity without id is written immediately.
+     *
+     * @param ce {@link CloudEntity} to update
+     * @param handler {@link CloudCallbackHandler} that receives the result of
+     *            the coalesced write, or null
+     */
+    public void update(CloudEntity ce, CloudCallbackHandler<CloudEntity> handler) {
+        if (ce.getId() == null) {
+            backend.update(ce, handler);
+            return;
+        }
+
+        String key = ce.getKindName() + "/" + ce.getId();
+        BufferedWrite write = buffer.get(key);
+        if (write == null) {
+            write = new BufferedWrite(ce);
+            buffer.put(key, write);
+            if (buffer.size() == 1) {
+                uiThreadHandler.postDelayed(flusher, windowMillis);
+            }
+        } else if (write.entity != ce) {
+            write.entity = replace(write.entity, ce);
+        }
+        if (handler != null) {
+            write.handlers.add(handler);
+        }
+    }
+
+    /**
+     * Deletes the {@link CloudEntity}, discarding its buffered update.
+     *
+     * @param ce {@link CloudEntity} to delete
+     * @param handler {@link CloudCallbackHandler} that handles the response
+     */
+    public void delete(CloudEntity ce, CloudCallbackHandler<Void> handler) {
+        BufferedWrite write = buffer.remove(ce.getKindName() + "/" + ce.getId());
+        if (write != null) {
+            complete(write, null, new IOException("Update discarded by a delete: " + ce));
+        }
+        backend.delete(ce, handler);
+    }
+
+    /**
+     * Sends the buffered writes immediately.
+     */
+    public void flush() {
+        uiThreadHandler.removeCallbacks(flusher);
+        if (buffer.isEmpty()) {
+            return;
+        }
+        final List<BufferedWrite> writes = new ArrayList<BufferedWrite>(buffer.values());
+        buffer = new LinkedHashMap<String, BufferedWrite>();
+
+        List<CloudEntity> ceList = new ArrayList<CloudEntity>(writes.size());
+        for (BufferedWrite write : writes) {
+            ceList.add(write.entity);
+        }
+        backend.updateAll(ceList, new CloudCallbackHandler<List<CloudEntity>>() {
+            @Override
+            public void onComplete(List<CloudEntity> results) {
+                for (int i = 0; i < writes.size(); i++) {
+                    complete(writes.get(i), results.get(i), null);
+                }
+            }
+
+            @Override
+            public void onError(IOException exception) {
+                for (BufferedWrite write : writes) {
+                    complete(write, null, exception);
+                }
+            }
+        });
+    }
+
+    // the newest state replaces the buffered one, as the backend replaces the
+    // properties of an entity on update
+    private static CloudEntity replace(CloudEntity buffered, CloudEntity ce) {
+        if (ce.getCreatedAt() == null) {
+            ce.setCreatedAt(buffered.getCreatedAt());
+        }
+        return ce;
+    }
+
+    private static void complete(BufferedWrite write, CloudEntity result, IOException exception) {
+        for (CloudCallbackHandler<CloudEntity> handler : write.handlers) {
+            if (exception == null) {
+                handler.onComplete(result);
+            } else {
+                handler.onError(exception);
+            }
+        }
+    }
+}
@@ -63,6 +63,232 @@ public interface Consts {
     public static final String PREF_KEY_CLOUD_BACKEND = "PREF_KEY_CLOUD_BACKEND";
     public static final String PREF_KEY_ACCOUNT_NAME = "PREF_KEY_ACCOUNT_NAME";
 
+    /**
+     * Max number of entities sent to the backend in one batched call (such as
+     * getAll and deleteAll). Larger batches are split into chunks.
+     */
+    public static final int BATCH_MAX_ENTITIES = 100;
+
+    /**
+     * Max number of batch chunks executed in parallel for one batched call.
+     */
+    public static final int BATCH_PARALLELISM = 4;
+
+    /**
+     * Max size (in bytes of serialized entities) of one chunk of the bulk
+     * operations of {@link CloudBulkWriter}.
+     */
+    public static final int BATCH_MAX_BYTES = 512 * 1024;
+
+    /**
+     * Window (in milliseconds) in which {@link CloudWriteBuffer} coalesces the
+     * updates to the same entity into one write.
+     */
+    public static final long WRITE_BUFFER_WINDOW_MS = 500;
+
+    /**
+     * Connect timeout (in milliseconds) of the backend calls.
+     */
+    public static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+
+    /**
+     * Read timeout of one attempt, and deadline including retries (in
+     * milliseconds) of reads and queries.
+     */
+    public static final int READ_TIMEOUT_MS = 20 * 1000;
+
+    public static final int READ_DEADLINE_MS = 30 * 1000;
+
+    /**
+     * Read timeout of one attempt, and deadline including retries (in
+     * milliseconds) of single entity writes.
+     */
+    public static final int WRITE_TIMEOUT_MS = 20 * 1000;
+
+    public static final int WRITE_DEADLINE_MS = 60 * 1000;
+
+    /**
+     * Read timeout of one attempt, and deadline including retries (in
+     * milliseconds) of batch writes.
+     */
+    public static final int BULK_WRITE_TIMEOUT_MS = 60 * 1000;
+
+    public static final int BULK_WRITE_DEADLINE_MS = 3 * 60 * 1000;
+
+    /**
+     * Max number of retries in a burst, and the number of retries allowed per
+     * second on average, of all the backend calls together.
+     */
+    public static final int RETRY_BUDGET_TOKENS = 20;
+
+    public static final double RETRY_BUDGET_REFILL_PER_SEC = 1.0;
+
+    /**
+     * Number of consecutive backend failures that opens the circuit breaker,
+     * and how long (in milliseconds) it stays open before a probe.
+     */
+    public static final int BREAKER_FAILURE_THRESHOLD = 5;
+
+    public static final long BREAKER_OPEN_MS = 30 * 1000;
+
+    /**
+     * Max number of responses of reads and queries whose validators (and
+     * payloads) are remembered for conditional requests.
+     */
+    public static final int VALIDATOR_CACHE_SIZE = 100;
+
+    /**
+     * Default max age (in milliseconds) until which the results cached by
+     * {@link CloudQueryCache} are fresh, and max stale until which they are
+     * returned while they are revalidated.
+     */
+    public static final long QUERY_CACHE_MAX_AGE_MS = 0;
+
+    public static final long QUERY_CACHE_MAX_STALE_MS = 24 * 60 * 60 * 1000;
+
+    /**
+     * Max number of query results cached by {@link CloudQueryCache}.
+     */
+    public static final int QUERY_CACHE_SIZE = 50;
+
+    /**
+     * Delay (in milliseconds) after an invalidation before
+     * {@link CloudInvalidator} reads the invalidated entities again, to
+     * coalesce the invalidations of a burst of pushes.
+     */
+    public static final long INVALIDATION_REFRESH_DELAY_MS = 2000;
+
+    /**
+     * Max number of changed entities read by the delta fetch of
+     * {@link QuerySnapshotStore}; the query is executed in full when there
+     * are more changes.
+     */
+    public static final int DELTA_MAX_ENTITIES = 100;
+
+    /**
+     * Age (in milliseconds) of the last full execution of a query after which
+     * {@link QuerySnapshotStore} executes it in full again instead of a delta
+     * fetch (this also removes the deleted entities from the snapshot).
+     */
+    public static final long SNAPSHOT_FULL_REFRESH_MS = 60 * 60 * 1000;
+
+    /**
+     * Max number of query snapshots kept by {@link QuerySnapshotStore}.
+     */
+    public static final int SNAPSHOT_MAX_QUERIES = 50;
+
+    /**
+     * Subscription duration (in seconds) of the continuous queries that do
+     * not set one, as the backend applies it.
+     */
+    public static final int DEFAULT_SUBSCRIPTION_DURATION_SEC = 24 * 60 * 60;
+
+    /**
+     * Time (in milliseconds) before the expiry of a subscription after which
+     * {@link ContinuousQueryRegistry} considers it expired, so that it is
+     * subscribed again.
+     */
+    public static final long SUBSCRIPTION_EXPIRY_MARGIN_MS = 5 * 60 * 1000;
+
+    /**
+     * Time (in milliseconds) before the expiry of a subscription when
+     * {@link SubscriptionLeaseManager} renews it, and the max random jitter
+     * added to it.
+     */
+    public static final long SUBSCRIPTION_RENEW_LEAD_MS = 10 * 60 * 1000;
+
+    public static final long SUBSCRIPTION_RENEW_JITTER_MS = 5 * 60 * 1000;
+
+    /**
+     * Window (in milliseconds) in which the renewals due after the first one
+     * are made in the same pass of {@link SubscriptionLeaseManager}.
+     */
+    public static final long SUBSCRIPTION_RENEW_WINDOW_MS = 5 * 60 * 1000;
+
+    /**
+     * Delay (in milliseconds) before a failed renewal is retried.
+     */
+    public static final long SUBSCRIPTION_RENEW_RETRY_MS = 60 * 1000;
+
+    /**
+     * Time (in milliseconds) after which a subscription that has no handler
+     * and has not been listed is removed by {@link SubscriptionLeaseManager}.
+     */
+    public static final long SUBSCRIPTION_IDLE_MS = 24 * 60 * 60 * 1000;
+
+    /**
+     * Initial and max backoff (in milliseconds) between the attempts of GCM
+     * registration.
+     */
+    public static final long GCM_BACKOFF_INITIAL_MS = 2000;
+
+    public static final long GCM_BACKOFF_MAX_MS = 15 * 60 * 1000;
+
+    /**
+     * Max time (in milliseconds) that a continuous query waits for GCM
+     * registration.
+     */
+    public static final long GCM_REGISTRATION_TIMEOUT_MS = 30 * 1000;
+
+    /**
+     * Connect and read timeout (in milliseconds) of the pre-connections to the
+     * backend (see {@link CloudPreconnector#preconnectNow(String)}).
+     */
+    public static final int STARTUP_PRECONNECT_TIMEOUT_MS = 10 * 1000;
+
+    /**
+     * Lifetime (in milliseconds) assumed for an OAuth token whose expiry is not
+     * known, from when it was fetched.
+     */
+    public static final long TOKEN_DEFAULT_TTL_MS = 45 * 60 * 1000;
+
+    /**
+     * Time (in milliseconds) before the expiry of a token when
+     * {@link CloudTokenManager} refreshes it in the background.
+     */
+    public static final long TOKEN_REFRESH_LEAD_MS = 5 * 60 * 1000;
+
+    /**
+     * Time (in milliseconds) before the expiry of a token after which it is not
+     * used any more, and the requests wait for a new one.
+     */
+    public static final long TOKEN_EXPIRY_MARGIN_MS = 60 * 1000;
+
+    /**
+     * A flag to keep the HTTP connections to the backend alive and warm them
+     * up with {@link CloudPreconnector} when the app comes to the foreground
+     * or a push notification arrives. When false, keep-alive is disabled.
+     */
+    public static final boolean PRECONNECT_ENABLED = false;
+
+    /**
+     * Min time (in milliseconds) between the pre-connections, and after the
+     * last request, within which a connection is considered warm.
+     */
+    public static final long PRECONNECT_MIN_INTERVAL_MS = 30 * 1000;
+
+    /**
+     * Max number of persistent connections to the backend of a pooled
+     * transport (see {@link CloudTransports#newPooledTransport(int)}). The
+     * asynchronous calls each run on their own thread, and a batched call runs
+     * {@link #BATCH_PARALLELISM} chunks plus their hedges, so the cap is set
+     * above the number of requests an app has in flight rather than to a small
+     * pool that would queue them.
+     */
+    public static final int TRANSPORT_MAX_CONNECTIONS = 128;
+
+    /**
+     * Min size (in bytes) of a request body to gzip (see
+     * {@link CloudCompression}). Smaller bodies fit in a few packets anyway.
+     */
+    public static final int GZIP_MIN_BYTES = 1024;
+
+    /**
+     * Compression level of the request bodies, from 1 (fastest) to 9
+     * (smallest).
+     */
+    public static final int GZIP_LEVEL = 6;
+
     /**
      * Tag name for logging.
      */
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.cloud.backend.android.mobilebackend.model.QueryDto;
+import com.google.gson.Gson;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent registry of the continuous queries subscribed on the backend,
+ * with the registration id and the expiry of each subscription and the id of
+ * its snapshot in {@link QuerySnapshotStore}. The registry survives the
+ * process, so that a continuous query listed again after a restart resumes
+ * its subscription: while the subscription is live, the query is executed
+ * with scope PAST instead of subscribing again, so the backend is not called
+ * to register the same query twice.
+ * <p>
+ * The registry does not keep the results of the queries. A resumed query is
+ * brought up to date with a delta fetch only if a {@link QuerySnapshotStore}
+ * is set (it keeps the results and their watermark); otherwise it is
+ * executed in full with scope PAST.
+ * <p>
+ * Use {@link CloudBackendAsync#setQueryRegistry(ContinuousQueryRegistry)} to
+ * keep the continuous queries of a backend in the registry.
+ */
+public class ContinuousQueryRegistry {
+
+    /**
+     * A subscription of a continuous query.
+     */
+    public static class Subscription {
+
+        String queryId;
+
+        String kindName;
+
+        // canonical key of the query, to tell if a query with the same id has
+        // the same conditions
+        String canonicalKey;
+
+        // QueryDto of the query
+        String query;
+
+        int referenceDepth;
+
+        String regId;
+
+        long subscribedAt;
+
+        // 0 if the subscription does not expire
+        long expiresAt;
+
+        // when the query was last listed
+        long lastUsedAt;
+
+        String snapshotId;
+
+        /**
+         * Returns the query id.
+         */
+        public String getQueryId() {
+            return queryId;
+        }
+
+        /**
+         * Returns the kind name of the query.
+         */
+        public String getKindName() {
+            return kindName;
+        }
+
+        /**
+         * Returns the time (in milliseconds) when the query was subscribed.
+         */
+        public long getSubscribedAt() {
+            return subscribedAt;
+        }
+
+        /**
+         * Returns the time (in milliseconds) when the subscription expires on
+         * the backend, or 0 if it does not expire.
+         */
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        /**
+         * Returns the time (in milliseconds) when the query was last listed.
+         */
+        public long getLastUsedAt() {
+            return lastUsedAt;
+        }
+
+        /**
+         * Returns the id of the snapshot of the query in
+         * {@link QuerySnapshotStore}, or null if it has none.
+         */
+        public String getSnapshotId() {
+            return snapshotId;
+        }
+
+        /**
+         * Returns a {@link CloudQuery} with the conditions and scope of the
+         * subscribed query.
+         */
+        public CloudQuery getCloudQuery() throws IOException {
+            return new CloudQuery(jsonFactory.fromString(query, QueryDto.class), referenceDepth);
+        }
+
+        // returns true if the subscription is live for at least the margin
+        boolean isLive(long now) {
+            return expiresAt == 0 || now < expiresAt - Consts.SUBSCRIPTION_EXPIRY_MARGIN_MS;
+        }
+    }
+
+    private static final String PREFS_NAME = "cloudbackend_subscriptions";
+
+    private static final JsonFactory jsonFactory = new GsonFactory();
+
+    private static final Gson gson = new Gson();
+
+    private static ContinuousQueryRegistry instance;
+
+    private final SharedPreferences prefs;
+
+    // subscriptions by query id
+    private final Map<String, Subscription> subscriptions =
+            new LinkedHashMap<String, Subscription>();
+
+    /**
+     * Returns the registry of the application, loading the subscriptions on
+     * the first call.
+     *
+     * @param context {@link Context}
+     * @return {@link ContinuousQueryRegistry}
+     */
+    public static synchronized ContinuousQueryRegistry getInstance(Context context) {
+        if (instance == null) {
+            instance = new ContinuousQueryRegistry(context.getApplicationContext()
+                    .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+        }
+        return instance;
+    }
+
+    private ContinuousQueryRegistry(SharedPreferences prefs) {
+        this.prefs = prefs;
+        for (Map.Entry<String, ?> e : prefs.getAll().entrySet()) {
+            try {
+                Subscription s = gson.fromJson((String) e.getValue(), Subscription.class);
+                subscriptions.put(s.queryId, s);
+            } catch (RuntimeException ex) {
+                Log.w(Consts.TAG, "registry: dropped invalid subscription " + e.getKey(), ex);
+                prefs.edit().remove(e.getKey()).commit();
+            }
+        }
+    }
+
+    /**
+     * Returns the subscription of the query, or null.
+     *
+     * @param queryId query id
+     * @return {@link Subscription} or null
+     */
+    public synchronized Subscription get(String queryId) {
+        return subscriptions.get(queryId);
+    }
+
+    /**
+     * Returns all the subscriptions.
+     *
+     * @return {@link List} of {@link Subscription}
+     */
+    public synchronized List<Subscription> getAll() {
+        return new ArrayList<Subscription>(subscriptions.values());
+    }
+
+    /**
+     * Returns true if the query, with the same conditions, is subscribed for
+     * the registration id, and the subscription will not expire soon.
+     *
+     * @param query continuous {@link CloudQuery}
+     * @param regId registration id
+     */
+    synchronized boolean isSubscribed(CloudQuery query, String regId) {
+        Subscription s = subscriptions.get(query.getQueryId());
+        return s != null && equals(s.regId, regId)
+                && s.canonicalKey.equals(query.getCanonicalKey())
+                && s.isLive(System.currentTimeMillis());
+    }
+
+    /**
+     * Records the subscription of the query, after the backend has executed
+     * it with its continuous scope.
+     *
+     * @param query continuous {@link CloudQuery}
+     * @param regId registration id
+     * @param snapshotId id of the snapshot of the query, or null
+     */
+    synchronized void register(CloudQuery query, String regId, String snapshotId) {
+        put(query, regId, snapshotId, System.currentTimeMillis());
+    }
+
+    /**
+     * Records the renewal of the subscription of the query.
+     *
+     * @param query continuous {@link CloudQuery}
+     * @param regId registration id
+     * @param previous the renewed {@link Subscription}
+     */
+    synchronized void renew(CloudQuery query, String regId, Subscription previous) {
+        if (subscriptions.get(previous.queryId) == null) {
+            // removed while it was renewed
+            return;
+        }
+        put(query, regId, previous.snapshotId, previous.lastUsedAt);
+    }
+
+    /**
+     * Records that the subscribed query has been listed again.
+     *
+     * @param queryId query id
+     */
+    synchronized void touch(String queryId) {
+        Subscription s = subscriptions.get(queryId);
+        if (s != null) {
+            s.lastUsedAt = System.currentTimeMillis();
+            put(s);
+        }
+    }
+
+    private void put(CloudQuery query, String regId, String snapshotId, long lastUsedAt) {
+        Subscription s = new Subscription();
+        CloudQuery copy = new CloudQuery(query);
+        copy.setRegId(null);
+        QueryDto dto = copy.convertToQueryDto();
+        try {
+            s.query = jsonFactory.toString(dto);
+        } catch (IOException e) {
+            Log.w(Consts.TAG, "registry: failed to serialize " + query, e);
+            return;
+        }
+        s.queryId = query.getQueryId();
+        s.kindName = query.getKindName();
+        s.canonicalKey = query.getCanonicalKey();
+        s.referenceDepth = query.getReferenceDepth();
+        s.regId = regId;
+        s.subscribedAt = System.currentTimeMillis();
+        Integer durationSec = dto.getSubscriptionDurationSec();
+        if (durationSec == null) {
+            durationSec = Consts.DEFAULT_SUBSCRIPTION_DURATION_SEC;
+        }
+        s.expiresAt = durationSec == 0 ? 0 : s.subscribedAt + durationSec * 1000L;
+        s.snapshotId = snapshotId;
+        s.lastUsedAt = lastUsedAt;
+        put(s);
+    }
+
+    /**
+     * Removes the subscription of the query from the registry. The
+     * subscription on the backend lasts until it expires.
+     *
+     * @param queryId query id
+     */
+    public synchronized void remove(String queryId) {
+        if (subscriptions.remove(queryId) != null) {
+            prefs.edit().remove(queryId).commit();
+        }
+    }
+
+    /**
+     * Removes all the subscriptions from the registry.
+     */
+    public synchronized void clear() {
+        subscriptions.clear();
+        prefs.edit().clear().commit();
+    }
+
+    private void put(Subscription s) {
+        subscriptions.put(s.queryId, s);
+        prefs.edit().putString(s.queryId, gson.toJson(s)).commit();
+    }
+
+    private static boolean equals(Object o1, Object o2) {
+        return o1 == null ? o2 == null : o1.equals(o2);
+    }
+}
@@ -16,7 +16,6 @@ package com.google.cloud.backend.core;
 
 import com.google.cloud.backend.android.mobilebackend.model.FilterDto;
 
-import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -121,7 +120,10 @@ public class Filter {
      * @return {@link Filter} for this operation.
      */
     public static Filter in(String propertyName, List<Object> values) {
-        LinkedList<Object> l = new LinkedList<Object>(values);
+        LinkedList<Object> l = new LinkedList<Object>();
+        for (Object value : values) {
+            l.add(CloudRef.encodeValue(value));
+        }
         l.addFirst(propertyName);
         Filter f = new Filter();
         f.filterDto.setOperator(Op.IN.name());
@@ -137,7 +139,10 @@ public class Filter {
      * @return {@link Filter} for this operation.
      */
     public static Filter in(String propertyName, Object... values) {
-        LinkedList<Object> l = new LinkedList<Object>(Arrays.asList(values));
+        LinkedList<Object> l = new LinkedList<Object>();
+        for (Object value : values) {
+            l.add(CloudRef.encodeValue(value));
+        }
         l.addFirst(propertyName);
         Filter f = new Filter();
         f.filterDto.setOperator(Op.IN.name());
@@ -183,7 +188,7 @@ public class Filter {
         f.filterDto.setOperator(op);
         List<Object> values = new LinkedList<Object>();
         values.add(propertyName);
-        values.add(value);
+        values.add(CloudRef.encodeValue(value));
         f.filterDto.setValues(values);
         return f;
     }
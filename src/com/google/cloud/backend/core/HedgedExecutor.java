@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes idempotent calls with hedging: if the first attempt of a call has
+ * not completed after a percentile of the recent latencies (95th by
+ * default), a second attempt is started and the result of whichever
+ * completes first is returned. The other attempt is cancelled (its thread is
+ * interrupted and its result is discarded).
+ * <p>
+ * The extra load is capped: each call earns {@link #setMaxExtraLoad(double)}
+ * of a hedge token, and a hedge takes one token, so the hedges are at most
+ * that fraction of the calls (plus a small burst). No hedge is sent until
+ * enough latencies have been recorded.
+ * <p>
+ * The executor records to {@link CloudMetrics}: "hedge.calls",
+ * "hedge.sent", "hedge.won" (the hedge answered first), "hedge.capped" (a
+ * hedge was due but the cap did not allow it) and the "hedge.delayMs" gauge.
+ * <p>
+ * Only idempotent calls may be hedged, as both attempts may reach the
+ * backend. Set an instance for reads with
+ * {@link CloudResilience#setHedgedExecutor(CloudResilience.Operation, HedgedExecutor)}.
+ */
+public class HedgedExecutor {
+
+    /** Default percentile of the recent latencies after which a hedge is sent. */
+    public static final double DEFAULT_PERCENTILE = 0.95;
+
+    /** Default max fraction of the calls that are hedged. */
+    public static final double DEFAULT_MAX_EXTRA_LOAD = 0.1;
+
+    // number of recent latencies the percentile is computed from
+    private static final int WINDOW_SIZE = 128;
+
+    // max number of hedge tokens, to allow a short burst of slow calls
+    private static final double MAX_HEDGE_TOKENS = 5;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static final ExecutorService executor =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "CloudBackend-hedge-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final CloudMetrics metrics;
+
+    private volatile double percentile = DEFAULT_PERCENTILE;
+
+    private volatile double maxExtraLoad = DEFAULT_MAX_EXTRA_LOAD;
+
+    private volatile int minSamples = 20;
+
+    private volatile long minDelayMillis = 5;
+
+    // recent latencies (ring buffer)
+    private final long[] latencies = new long[WINDOW_SIZE];
+
+    private int latencyCount;
+
+    private int nextLatency;
+
+    private double hedgeTokens;
+
+    // the result of an attempt
+    private static class Attempt<T> {
+
+        final int index;
+
+        final T result;
+
+        final Exception exception;
+
+        Attempt(int index, T result, Exception exception) {
+            this.index = index;
+            this.result = result;
+            this.exception = exception;
+        }
+    }
+
+    /**
+     * Creates a {@link HedgedExecutor} with the default percentile and cap.
+     *
+     * @param metrics {@link CloudMetrics} to record to
+     */
+    public HedgedExecutor(CloudMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the percentile of the recent latencies after which a hedge is
+     * sent.
+     *
+     * @param percentile from 0 to 1 (exclusive), such as 0.95
+     * @return {@link HedgedExecutor}
+     */
+    public HedgedExecutor setPercentile(double percentile) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1: "
+                    + percentile);
+        }
+        this.percentile = percentile;
+        return this;
+    }
+
+    /**
+     * Sets the max fraction of the calls that may be hedged.
+     *
+     * @param maxExtraLoad from 0 (no hedging) to 1
+     * @return {@link HedgedExecutor}
+     */
+    public HedgedExecutor setMaxExtraLoad(double maxExtraLoad) {
+        this.maxExtraLoad = maxExtraLoad;
+        return this;
+    }
+
+    /**
+     * Sets the number of latencies to record before the first hedge.
+     *
+     * @param minSamples number of calls
+     * @return {@link HedgedExecutor}
+     */
+    public HedgedExecutor setMinSamples(int minSamples) {
+        this.minSamples = Math.max(1, Math.min(minSamples, WINDOW_SIZE));
+        return this;
+    }
+
+    /**
+     * Sets the min delay of a hedge, to avoid hedging calls that are all fast.
+     *
+     * @param minDelayMillis delay in milliseconds
+     * @return {@link HedgedExecutor}
+     */
+    public HedgedExecutor setMinDelayMillis(long minDelayMillis) {
+        this.minDelayMillis = minDelayMillis;
+        return this;
+    }
+
+    /**
+     * Returns the current delay after which a hedge is sent, or -1 if not
+     * enough latencies have been recorded.
+     */
+    public synchronized long getHedgeDelayMillis() {
+        if (latencyCount < minSamples) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        int i = (int) Math.ceil(percentile * latencyCount) - 1;
+        return Math.max(minDelayMillis, sorted[Math.max(0, Math.min(i, latencyCount - 1))]);
+    }
+
+    /**
+     * Executes the call with hedging. The call may be executed twice
+     * concurrently, so it must be idempotent and thread-safe.
+     *
+     * @param call {@link Callable} that executes the call
+     * @return the result of the first attempt that succeeded
+     * @throws IOException When all the attempts failed (the exception of the
+     *             last one), or the calling thread was interrupted.
+     */
+    public <T> T call(Callable<T> call) throws IOException {
+        metrics.increment("hedge.calls");
+        CompletionService<Attempt<T>> completionService =
+                new ExecutorCompletionService<Attempt<T>>(executor);
+        List<Future<Attempt<T>>> futures = new ArrayList<Future<Attempt<T>>>(2);
+        futures.add(completionService.submit(attempt(0, call)));
+        long delay = getHedgeDelayMillis();
+        earnHedgeToken();
+        try {
+            Future<Attempt<T>> done;
+            if (delay < 0) {
+                done = completionService.take();
+            } else {
+                metrics.set("hedge.delayMs", delay);
+                done = completionService.poll(delay, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    if (tryTakeHedgeToken()) {
+                        metrics.increment("hedge.sent");
+                        futures.add(completionService.submit(attempt(1, call)));
+                    } else {
+                        metrics.increment("hedge.capped");
+                    }
+                    done = completionService.take();
+                }
+            }
+
+            // use the first success, or the last failure
+            int remaining = futures.size() - 1;
+            Attempt<T> attempt = getAttempt(done);
+            while (attempt.exception != null && remaining > 0) {
+                attempt = getAttempt(completionService.take());
+                remaining--;
+            }
+            if (attempt.exception != null) {
+                throw toIOException(attempt.exception);
+            }
+            if (attempt.index == 1) {
+                metrics.increment("hedge.won");
+            }
+            return attempt.result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the call");
+        } finally {
+            // cancel the attempt that lost, if any
+            for (Future<Attempt<T>> f : futures) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    // wraps the call to time it and to catch its exception
+    private <T> Callable<Attempt<T>> attempt(final int index, final Callable<T> call) {
+        return new Callable<Attempt<T>>() {
+            @Override
+            public Attempt<T> call() {
+                long start = System.currentTimeMillis();
+                try {
+                    T result = call.call();
+                    recordLatency(System.currentTimeMillis() - start);
+                    return new Attempt<T>(index, result, null);
+                } catch (Exception e) {
+                    return new Attempt<T>(index, null, e);
+                }
+            }
+        };
+    }
+
+    private static <T> Attempt<T> getAttempt(Future<Attempt<T>> future)
+            throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // attempt() catches the exceptions of the call
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static IOException toIOException(Exception e) {
+        if (e instanceof IOException) {
+            return (IOException) e;
+        }
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        return new IOException(e);
+    }
+
+    private synchronized void recordLatency(long millis) {
+        latencies[nextLatency] = millis;
+        nextLatency = (nextLatency + 1) % WINDOW_SIZE;
+        latencyCount = Math.min(latencyCount + 1, WINDOW_SIZE);
+    }
+
+    private synchronized void earnHedgeToken() {
+        hedgeTokens = Math.min(MAX_HEDGE_TOKENS, hedgeTokens + maxExtraLoad);
+    }
+
+    private synchronized boolean tryTakeHedgeToken() {
+        if (hedgeTokens < 1) {
+            return false;
+        }
+        hedgeTokens--;
+        return true;
+    }
+}
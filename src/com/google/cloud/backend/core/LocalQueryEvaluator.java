@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import com.google.api.client.util.DateTime;
+import com.google.cloud.backend.android.mobilebackend.model.FilterDto;
+import com.google.cloud.backend.android.mobilebackend.model.QueryDto;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates {@link CloudQuery}s on the client, to apply the writes pending in
+ * {@link CloudOutbox} to the results of a query. The filters follow the
+ * semantics of the backend: an entity without the filtered property does not
+ * match, and a multi-valued property matches if any of its values matches.
+ */
+class LocalQueryEvaluator {
+
+    private LocalQueryEvaluator() {
+    }
+
+    /**
+     * Applies the pending writes to the results of the query: the pending
+     * states replace the results with the same id, pending deletes remove
+     * them, and the pending entities that match the filter are added. The
+     * list is then sorted and truncated as the query specifies.
+     *
+     * @param query {@link CloudQuery}
+     * @param results results of the query from the backend
+     * @param pendingEntities pending states by id (null for a delete)
+     * @return the results with the pending writes
+     */
+    static List<CloudEntity> applyPendingWrites(CloudQuery query, List<CloudEntity> results,
+            Map<String, CloudEntity> pendingEntities) {
+        if (pendingEntities.isEmpty()) {
+            return results;
+        }
+        QueryDto dto = query.convertToQueryDto();
+
+        Map<String, CloudEntity> merged = new LinkedHashMap<String, CloudEntity>();
+        for (Map.Entry<String, CloudEntity> e : pendingEntities.entrySet()) {
+            CloudEntity ce = e.getValue();
+            if (ce != null && matches(dto.getFilterDto(), ce)) {
+                merged.put(e.getKey(), ce);
+            }
+        }
+        if (results != null) {
+            for (CloudEntity ce : results) {
+                if (!pendingEntities.containsKey(ce.getId())) {
+                    merged.put(ce.getId(), ce);
+                }
+            }
+        }
+        List<CloudEntity> l = new ArrayList<CloudEntity>(merged.values());
+
+        // sort and truncate
+        final String sortProperty = dto.getSortedPropertyName();
+        if (sortProperty != null) {
+            final boolean ascending = dto.getSortAscending() == null || dto.getSortAscending();
+            Collections.sort(l, new Comparator<CloudEntity>() {
+                @Override
+                public int compare(CloudEntity ce1, CloudEntity ce2) {
+                    Object v1 = getValue(ce1, sortProperty);
+                    Object v2 = getValue(ce2, sortProperty);
+                    if (v1 == null || v2 == null) {
+                        return v1 == v2 ? 0 : (v1 == null ? 1 : -1);
+                    }
+                    Integer c = compareValues(v1, v2);
+                    if (c == null) {
+                        return 0;
+                    }
+                    return ascending ? c : -c;
+                }
+            });
+        }
+        Integer limit = dto.getLimit();
+        if (limit != null && limit > 0 && l.size() > limit) {
+            l = new ArrayList<CloudEntity>(l.subList(0, limit));
+        }
+        return l;
+    }
+
+    /**
+     * Returns true if the entity matches the filter (or the filter is null).
+     */
+    static boolean matches(FilterDto filter, CloudEntity ce) {
+        if (filter == null || filter.getOperator() == null) {
+            return true;
+        }
+        Filter.Op op = Filter.Op.valueOf(filter.getOperator());
+        switch (op) {
+            case AND:
+                for (FilterDto f : filter.getSubfilters()) {
+                    if (!matches(f, ce)) {
+                        return false;
+                    }
+                }
+                return true;
+            case OR:
+                for (FilterDto f : filter.getSubfilters()) {
+                    if (matches(f, ce)) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                break;
+        }
+
+        List<Object> args = filter.getValues();
+        Object value = getValue(ce, (String) args.get(0));
+        if (value == null) {
+            return false;
+        }
+        if (value instanceof List<?>) {
+            for (Object v : (List<?>) value) {
+                if (v != null && matchesValue(op, v, args)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return matchesValue(op, value, args);
+    }
+
+    private static boolean matchesValue(Filter.Op op, Object value, List<Object> args) {
+        if (op == Filter.Op.IN) {
+            for (Object arg : args.subList(1, args.size())) {
+                Integer c = compareValues(value, arg);
+                if (c != null && c == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        Integer c = compareValues(value, args.get(1));
+        if (c == null) {
+            return op == Filter.Op.NE;
+        }
+        switch (op) {
+            case EQ:
+                return c == 0;
+            case NE:
+                return c != 0;
+            case LT:
+                return c < 0;
+            case LE:
+                return c <= 0;
+            case GT:
+                return c > 0;
+            case GE:
+                return c >= 0;
+            default:
+                return false;
+        }
+    }
+
+    // returns the property value as stored on the backend
+    private static Object getValue(CloudEntity ce, String propertyName) {
+        if (CloudEntity.PROP_CREATED_AT.equals(propertyName)) {
+            return ce.getCreatedAt();
+        } else if (CloudEntity.PROP_UPDATED_AT.equals(propertyName)) {
+            return ce.getUpdatedAt();
+        } else if (CloudEntity.PROP_CREATED_BY.equals(propertyName)) {
+            return ce.getCreatedBy();
+        } else if (CloudEntity.PROP_UPDATED_BY.equals(propertyName)) {
+            return ce.getUpdatedBy();
+        } else if (CloudEntity.PROP_OWNER.equals(propertyName)) {
+            return ce.getOwner();
+        }
+        return CloudRef.encodeValue(ce.get(propertyName));
+    }
+
+    // compares two values, or returns null if they are not comparable
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Integer compareValues(Object v1, Object v2) {
+        if (v1 == null || v2 == null) {
+            return null;
+        }
+        v1 = toDate(v1, v2);
+        v2 = toDate(v2, v1);
+        if (v1 instanceof Number && v2 instanceof Number) {
+            return Double.compare(((Number) v1).doubleValue(), ((Number) v2).doubleValue());
+        }
+        if (v1 instanceof Date && v2 instanceof Date) {
+            return ((Date) v1).compareTo((Date) v2);
+        }
+        if (v1.getClass() == v2.getClass() && v1 instanceof Comparable) {
+            return ((Comparable) v1).compareTo(v2);
+        }
+        return v1.equals(v2) ? 0 : null;
+    }
+
+    // converts a DateTime, or an RFC 3339 string compared with a date (as
+    // filter values are after a JSON round trip), to a Date
+    private static Object toDate(Object v, Object other) {
+        if (v instanceof DateTime) {
+            return new Date(((DateTime) v).getValue());
+        }
+        if (v instanceof String && (other instanceof Date || other instanceof DateTime)) {
+            try {
+                return new Date(DateTime.parseRfc3339((String) v).getValue());
+            } catch (NumberFormatException e) {
+                return v;
+            }
+        }
+        return v;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link CloudEntityCache} that keeps the most recently used entities in
+ * memory, up to the specified number of entities.
+ */
+public class MemoryEntityCache implements CloudEntityCache {
+
+    private final Map<String, CloudEntity> entities;
+
+    /**
+     * Creates an instance of {@link MemoryEntityCache}.
+     *
+     * @param maxEntities max number of entities to keep
+     */
+    public MemoryEntityCache(final int maxEntities) {
+        this.entities = new LinkedHashMap<String, CloudEntity>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CloudEntity> eldest) {
+                return size() > maxEntities;
+            }
+        };
+    }
+
+    @Override
+    public synchronized CloudEntity get(String kindName, String id) {
+        return entities.get(getKey(kindName, id));
+    }
+
+    @Override
+    public synchronized void put(CloudEntity ce) {
+        if (ce.getId() != null) {
+            entities.put(getKey(ce.getKindName(), ce.getId()), ce);
+        }
+    }
+
+    @Override
+    public synchronized void remove(String kindName, String id) {
+        entities.remove(getKey(kindName, id));
+    }
+
+    @Override
+    public synchronized void clear() {
+        entities.clear();
+    }
+
+    private static String getKey(String kindName, String id) {
+        return kindName + "/" + id;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The append-only journal file of {@link CloudOutbox}. Each record is framed
+ * as its payload length (4 bytes), the CRC32 of the payload (8 bytes) and the
+ * payload, and is synced to the disk before {@link #append(byte[])} returns.
+ * <p>
+ * {@link #recover()} reads the records up to the first one that is truncated
+ * or does not match its CRC (a record torn by a crash), and truncates the file
+ * there. {@link #compact(List)} replaces the journal with the specified
+ * records through a temp file and a rename, so a crash leaves either the old
+ * or the new journal. This class has no Android dependencies. It is not
+ * thread-safe: {@link CloudOutbox} calls it under its lock.
+ */
+class OutboxJournal {
+
+    // length and CRC32 of a record
+    static final int HEADER_LENGTH = 12;
+
+    // the largest record accepted on recovery
+    static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+    private final File file;
+
+    private FileOutputStream out;
+
+    private long truncatedBytes;
+
+    /**
+     * Creates a journal on the file. Call {@link #recover()} before appending.
+     *
+     * @param file journal file
+     */
+    OutboxJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the valid records of the journal, truncates a torn record at its
+     * end, if any, and opens the journal for appending.
+     *
+     * @return payloads of the valid records, in order
+     * @throws IOException When the journal could not be read or truncated.
+     */
+    List<byte[]> recover() throws IOException {
+        List<byte[]> records = new ArrayList<byte[]>();
+        long validLength = 0;
+        truncatedBytes = 0;
+        if (file.exists()) {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                while (true) {
+                    int length = in.readInt();
+                    long crcValue = in.readLong();
+                    if (length < 0 || length > MAX_RECORD_LENGTH) {
+                        break;
+                    }
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    if (crc(payload) != crcValue) {
+                        break;
+                    }
+                    records.add(payload);
+                    validLength += HEADER_LENGTH + length;
+                }
+            } catch (EOFException e) {
+                // end of journal, or a torn record
+            } finally {
+                in.close();
+            }
+            long length = file.length();
+            if (validLength < length) {
+                truncatedBytes = length - validLength;
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(validLength);
+                    raf.getFD().sync();
+                } finally {
+                    raf.close();
+                }
+            }
+        }
+        close();
+        out = new FileOutputStream(file, true);
+        return records;
+    }
+
+    /**
+     * Returns the number of bytes of the torn records dropped by the last
+     * {@link #recover()}.
+     */
+    long getTruncatedBytes() {
+        return truncatedBytes;
+    }
+
+    /**
+     * Appends a record durably.
+     *
+     * @param payload payload of the record
+     * @throws IOException When the record could not be written.
+     */
+    void append(byte[] payload) throws IOException {
+        if (out == null) {
+            throw new IOException("Outbox journal is not open");
+        }
+        write(out, payload);
+    }
+
+    /**
+     * Replaces the journal with the records. On failure, the current journal
+     * stays open for the next appends.
+     *
+     * @param payloads payloads of the records of the new journal
+     * @throws IOException When the journal could not be compacted.
+     */
+    void compact(List<byte[]> payloads) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream tmpOut = new FileOutputStream(tmp);
+        boolean written = false;
+        try {
+            for (byte[] payload : payloads) {
+                write(tmpOut, payload);
+            }
+            written = true;
+        } finally {
+            tmpOut.close();
+            if (!written) {
+                tmp.delete();
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Failed to compact outbox journal");
+        }
+        FileOutputStream compacted = new FileOutputStream(file, true);
+        close();
+        out = compacted;
+    }
+
+    /**
+     * Closes the journal.
+     */
+    void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private static void write(FileOutputStream out, byte[] payload) throws IOException {
+        byte[] record = new byte[HEADER_LENGTH + payload.length];
+        long crc = crc(payload);
+        writeInt(record, 0, payload.length);
+        writeInt(record, 4, (int) (crc >>> 32));
+        writeInt(record, 8, (int) crc);
+        System.arraycopy(payload, 0, record, HEADER_LENGTH, payload.length);
+        out.write(record);
+        out.flush();
+        out.getFD().sync();
+    }
+
+    private static long crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    private static void writeInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+}
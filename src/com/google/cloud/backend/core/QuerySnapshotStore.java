@@ -0,0 +1,433 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.cloud.backend.android.mobilebackend.model.EntityDto;
+import com.google.cloud.backend.android.mobilebackend.model.QueryDto;
+import com.google.cloud.backend.core.CloudQuery.Order;
+import com.google.cloud.backend.core.CloudQuery.Scope;
+import com.google.gson.Gson;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent store of the last results of queries (snapshots), so that the
+ * results can be shown at once on the next launch of the app, and kept up to
+ * date with small delta fetches.
+ * <p>
+ * Each snapshot has a watermark: the latest updatedAt of the entities of the
+ * kind seen by the query. {@link #refresh(CloudBackend, CloudQuery)} reads
+ * only the entities of the kind updated since the watermark, and merges them
+ * into the snapshot on the client (they replace the entities with the same
+ * id, are added if they match the filter, and removed if they do not match
+ * it any more; the results are then sorted and limited again). The query is
+ * executed in full when there is no snapshot, when the delta is too large,
+ * or when the last full execution is older than
+ * {@link Consts#SNAPSHOT_FULL_REFRESH_MS}; deleted entities are only removed
+ * from the snapshot by a full execution.
+ * <p>
+ * The snapshots are keyed by the query id, so that
+ * {@link com.google.cloud.backend.GCMIntentService} can refresh the snapshot
+ * of a continuous query from its push notification while no activity is
+ * running. Use
+ * {@link CloudBackendAsync#setSnapshotStore(QuerySnapshotStore)} to keep the
+ * snapshots of the queries of a backend.
+ */
+public class QuerySnapshotStore {
+
+    private static final String DIR_NAME = "cloudbackend_snapshots";
+
+    private static final JsonFactory jsonFactory = new GsonFactory();
+
+    private static final Gson gson = new Gson();
+
+    private static QuerySnapshotStore instance;
+
+    private final File dir;
+
+    // results read ahead by preload(), each returned once by getResults()
+    // (key = query id)
+    private final Map<String, List<CloudEntity>> preloaded =
+            new HashMap<String, List<CloudEntity>>();
+
+    // a snapshot file
+    static class Snapshot {
+
+        String queryId;
+
+        // QueryDto of the query, with scope PAST
+        String query;
+
+        int referenceDepth;
+
+        // EntityDtos of the results
+        List<String> entities;
+
+        long watermark;
+
+        long fullFetchedAt;
+
+        CloudQuery getCloudQuery() throws IOException {
+            return new CloudQuery(jsonFactory.fromString(query, QueryDto.class), referenceDepth);
+        }
+
+        List<CloudEntity> getResults() throws IOException {
+            List<CloudEntity> results = new ArrayList<CloudEntity>();
+            for (String entity : entities) {
+                results.add(CloudEntity.createCloudEntityFromEntityDto(
+                        jsonFactory.fromString(entity, EntityDto.class)));
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Returns the snapshot store of the application.
+     *
+     * @param context {@link Context}
+     * @return {@link QuerySnapshotStore}
+     */
+    public static synchronized QuerySnapshotStore getInstance(Context context) {
+        if (instance == null) {
+            Context app = context.getApplicationContext();
+            instance = new QuerySnapshotStore(new File(app.getFilesDir(), DIR_NAME));
+        }
+        return instance;
+    }
+
+    private QuerySnapshotStore(File dir) {
+        this.dir = dir;
+        dir.mkdirs();
+    }
+
+    /**
+     * Returns the results of the snapshot of the query, or null if there is
+     * none. The {@link CloudRef}s of the results are not resolved.
+     *
+     * @param queryId query id (see {@link CloudQuery#getQueryId()})
+     * @return {@link List} of {@link CloudEntity}, or null
+     */
+    public List<CloudEntity> getResults(String queryId) {
+        synchronized (this) {
+            List<CloudEntity> results = preloaded.remove(queryId);
+            if (results != null) {
+                return results;
+            }
+        }
+        Snapshot s = read(queryId);
+        if (s == null) {
+            return null;
+        }
+        try {
+            return s.getResults();
+        } catch (IOException e) {
+            Log.w(Consts.TAG, "snapshot: failed to read results of " + queryId, e);
+            remove(queryId);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the results of the snapshots of the queries ahead, such as at
+     * startup before the queries are listed, so that the next
+     * {@link #getResults(String)} of each query returns them without reading
+     * the disk.
+     *
+     * @param queryIds query ids
+     */
+    public void preload(List<String> queryIds) {
+        int count = 0;
+        for (String queryId : queryIds) {
+            // under the lock, so that a snapshot written meanwhile is not
+            // replaced by the results read before
+            synchronized (this) {
+                List<CloudEntity> results = getResults(queryId);
+                if (results != null) {
+                    preloaded.put(queryId, results);
+                    count++;
+                }
+            }
+        }
+        Log.i(Consts.TAG, "snapshot: preloaded " + count + " snapshots");
+    }
+
+    /**
+     * Stores the results of a full execution of the query as its snapshot.
+     *
+     * @param query {@link CloudQuery}
+     * @param results results of the query from the backend
+     */
+    public void save(CloudQuery query, List<CloudEntity> results) {
+        Snapshot s = new Snapshot();
+        s.fullFetchedAt = System.currentTimeMillis();
+        write(query, results, s);
+    }
+
+    /**
+     * Brings the snapshot of the query up to date with a delta fetch (or a
+     * full execution of the query, see {@link QuerySnapshotStore}), stores it
+     * and returns its results.
+     *
+     * @param backend {@link CloudBackend} to execute the queries with
+     * @param query {@link CloudQuery}
+     * @return {@link List} of {@link CloudEntity} of the results
+     * @throws IOException When the call had failed for any reason.
+     */
+    public List<CloudEntity> refresh(CloudBackend backend, CloudQuery query)
+            throws IOException {
+        return refresh(backend, query, true);
+    }
+
+    // brings the snapshot up to date, and resolves the references of the
+    // results if resolveReferences is true
+    List<CloudEntity> refresh(CloudBackend backend, CloudQuery query, boolean resolveReferences)
+            throws IOException {
+        CloudMetrics metrics = backend.getResilience().getMetrics();
+        Snapshot s = read(query.getQueryId());
+        if (s == null) {
+            return refreshFull(backend, query, resolveReferences, 0, metrics);
+        }
+        if (System.currentTimeMillis() - s.fullFetchedAt > Consts.SNAPSHOT_FULL_REFRESH_MS) {
+            return refreshFull(backend, query, resolveReferences, s.watermark, metrics);
+        }
+
+        // read the entities of the kind updated since the watermark
+        CloudQuery delta = new CloudQuery(query.getKindName());
+        delta.setFilter(Filter.ge(CloudEntity.PROP_UPDATED_AT, new Date(s.watermark)));
+        delta.setSort(CloudEntity.PROP_UPDATED_AT, Order.ASC);
+        delta.setLimit(Consts.DELTA_MAX_ENTITIES);
+        List<CloudEntity> changes = backend.list(delta);
+        for (CloudEntity ce : changes) {
+            if (ce.getUpdatedAt() != null) {
+                s.watermark = Math.max(s.watermark, ce.getUpdatedAt().getTime());
+            }
+        }
+        if (changes.size() >= Consts.DELTA_MAX_ENTITIES) {
+            return refreshFull(backend, query, resolveReferences, s.watermark, metrics);
+        }
+
+        // merge them into the snapshot
+        List<CloudEntity> previous = s.getResults();
+        Map<String, CloudEntity> changesById = new LinkedHashMap<String, CloudEntity>();
+        for (CloudEntity ce : changes) {
+            changesById.put(ce.getId(), ce);
+        }
+        List<CloudEntity> results = LocalQueryEvaluator.applyPendingWrites(
+                query, previous, changesById);
+
+        // an entity that left the results of a limited query may have to be
+        // replaced by one that is not in the snapshot
+        Integer limit = query.convertToQueryDto().getLimit();
+        if (limit != null && limit > 0 && previous.size() >= limit && results.size() < limit) {
+            return refreshFull(backend, query, resolveReferences, s.watermark, metrics);
+        }
+        if (resolveReferences && query.getReferenceDepth() > 0) {
+            backend.resolveReferences(results, query.getReferenceDepth());
+        }
+        write(query, results, s);
+        metrics.increment("snapshot.delta");
+        metrics.add("snapshot.deltaEntities", changes.size());
+        Log.i(Consts.TAG, "snapshot: merged " + changes.size() + " changes: " + query);
+        return results;
+    }
+
+    /**
+     * Brings the snapshot of the query with the specified id up to date (see
+     * {@link #refresh(CloudBackend, CloudQuery)}). This is used to refresh the
+     * snapshot of a continuous query on its push notification, without the
+     * {@link CloudQuery}.
+     *
+     * @param backend {@link CloudBackend} to execute the queries with
+     * @param queryId query id
+     * @return {@link List} of {@link CloudEntity} of the results, or null if
+     *         there is no snapshot of the query
+     * @throws IOException When the call had failed for any reason.
+     */
+    public List<CloudEntity> refresh(CloudBackend backend, String queryId) throws IOException {
+        Snapshot s = read(queryId);
+        if (s == null) {
+            return null;
+        }
+        return refresh(backend, s.getCloudQuery());
+    }
+
+    /**
+     * Removes the snapshot of the query.
+     *
+     * @param queryId query id
+     */
+    public synchronized void remove(String queryId) {
+        preloaded.remove(queryId);
+        getFile(queryId).delete();
+    }
+
+    /**
+     * Removes all the snapshots.
+     */
+    public synchronized void clear() {
+        preloaded.clear();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+
+    // executes the query in full. The watermark of the new snapshot is kept
+    // at least at the previous one (the updatedAt of changes already seen),
+    // so that the kind is not read again from the updatedAt of the results.
+    private List<CloudEntity> refreshFull(CloudBackend backend, CloudQuery query,
+            boolean resolveReferences, long watermark, CloudMetrics metrics)
+            throws IOException {
+        List<CloudEntity> results = backend.list(query, resolveReferences);
+        Snapshot s = new Snapshot();
+        s.watermark = watermark;
+        s.fullFetchedAt = System.currentTimeMillis();
+        write(query, results, s);
+        metrics.increment("snapshot.full");
+        return results;
+    }
+
+    private synchronized Snapshot read(String queryId) {
+        File f = getFile(queryId);
+        if (!f.exists()) {
+            return null;
+        }
+        try {
+            FileInputStream in = new FileInputStream(f);
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    bytes.write(buf, 0, n);
+                }
+                Snapshot s = gson.fromJson(new String(bytes.toByteArray(), "UTF-8"),
+                        Snapshot.class);
+                if (s == null || s.query == null || s.entities == null) {
+                    throw new IOException("invalid snapshot");
+                }
+                return s;
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            // a corrupted snapshot is dropped, and the query executed in full
+            Log.w(Consts.TAG, "snapshot: failed to read " + f, e);
+            f.delete();
+            return null;
+        }
+    }
+
+    // writes the results with the query (with scope PAST, so that refreshing
+    // the snapshot does not subscribe) and the new watermark
+    private void write(CloudQuery query, List<CloudEntity> results, Snapshot s) {
+        CloudQuery past = new CloudQuery(query);
+        past.setScope(Scope.PAST);
+        past.setRegId(null);
+        try {
+            s.queryId = query.getQueryId();
+            s.query = jsonFactory.toString(past.convertToQueryDto());
+            s.referenceDepth = query.getReferenceDepth();
+            s.entities = new ArrayList<String>();
+            for (CloudEntity ce : results) {
+                s.entities.add(jsonFactory.toString(ce.getEntityDto()));
+                if (ce.getUpdatedAt() != null) {
+                    s.watermark = Math.max(s.watermark, ce.getUpdatedAt().getTime());
+                }
+            }
+        } catch (IOException e) {
+            Log.w(Consts.TAG, "snapshot: failed to serialize " + query, e);
+            return;
+        }
+        byte[] data;
+        try {
+            data = gson.toJson(s).getBytes("UTF-8");
+        } catch (IOException e) {
+            return;
+        }
+        synchronized (this) {
+            preloaded.remove(s.queryId);
+            File f = getFile(s.queryId);
+            File tmp = new File(dir, f.getName() + ".tmp");
+            try {
+                dir.mkdirs();
+                FileOutputStream out = new FileOutputStream(tmp);
+                try {
+                    out.write(data);
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+                if (!tmp.renameTo(f)) {
+                    throw new IOException("failed to rename " + tmp);
+                }
+            } catch (IOException e) {
+                Log.w(Consts.TAG, "snapshot: failed to write " + f, e);
+                tmp.delete();
+                return;
+            }
+            evict();
+        }
+    }
+
+    // removes the least recently written snapshots beyond the max number
+    private void evict() {
+        File[] files = dir.listFiles();
+        if (files == null || files.length <= Consts.SNAPSHOT_MAX_QUERIES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
+            }
+        });
+        for (int i = 0; i < files.length - Consts.SNAPSHOT_MAX_QUERIES; i++) {
+            files[i].delete();
+        }
+    }
+
+    // the file name is the query id in hex, as query ids may contain '/'
+    private File getFile(String queryId) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            for (byte b : queryId.getBytes("UTF-8")) {
+                sb.append(String.format("%02x", b));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return new File(dir, sb.toString() + ".json");
+    }
+}
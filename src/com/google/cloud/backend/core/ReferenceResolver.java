@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves {@link CloudRef}s of {@link CloudEntity}s level by level, with one
+ * batched multi-kind getAll per level. See
+ * {@link CloudBackend#resolveReferences(List, int)}.
+ */
+class ReferenceResolver {
+
+    private final CloudBackend backend;
+
+    // entities known so far (key = kindName/id), to read each entity only once
+    private final Map<String, CloudEntity> known = new HashMap<String, CloudEntity>();
+
+    ReferenceResolver(CloudBackend backend) {
+        this.backend = backend;
+    }
+
+    void resolve(List<CloudEntity> ceList, int depth) throws IOException {
+        for (CloudEntity ce : ceList) {
+            if (ce.getId() != null) {
+                known.put(getKey(ce.getKindName(), ce.getId()), ce);
+            }
+        }
+
+        List<CloudEntity> level = ceList;
+        for (int d = 0; d < depth && !level.isEmpty(); d++) {
+
+            // collect unresolved references of this level
+            Map<String, List<CloudRef>> refsByKey = new LinkedHashMap<String, List<CloudRef>>();
+            for (CloudEntity ce : level) {
+                for (Object value : ce.getProperties().values()) {
+                    collectRefs(value, refsByKey);
+                }
+            }
+
+            // link the references to the known or cached entities, and list
+            // the ones to read
+            CloudEntityCache cache = backend.getEntityCache();
+            List<CloudEntity> nextLevel = new ArrayList<CloudEntity>();
+            List<CloudEntity> keys = new ArrayList<CloudEntity>();
+            List<String> keyStrings = new ArrayList<String>();
+            for (Map.Entry<String, List<CloudRef>> e : refsByKey.entrySet()) {
+                CloudRef ref = e.getValue().get(0);
+                CloudEntity ce = known.get(e.getKey());
+                if (ce == null && cache != null) {
+                    ce = cache.get(ref.getKindName(), ref.getId());
+                    if (ce != null) {
+                        known.put(e.getKey(), ce);
+                        nextLevel.add(ce);
+                    }
+                }
+                if (ce != null) {
+                    setEntity(e.getValue(), ce);
+                } else {
+                    CloudEntity key = new CloudEntity(ref.getKindName());
+                    key.setId(ref.getId());
+                    keys.add(key);
+                    keyStrings.add(e.getKey());
+                }
+            }
+            if (keys.isEmpty()) {
+                level = nextLevel;
+                continue;
+            }
+
+            // read them with one batched call per kind. The entities read on
+            // this level are resolved on the next level.
+            List<CloudEntity> results;
+            try {
+                results = backend.getAll(keys);
+            } catch (CloudBatchException e) {
+                Log.i(Consts.TAG, "resolveReferences: " + e.getErrors().size()
+                        + " references could not be resolved", e);
+                results = e.getResults();
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                CloudEntity ce = results.get(i);
+                if (ce != null) {
+                    known.put(keyStrings.get(i), ce);
+                    setEntity(refsByKey.get(keyStrings.get(i)), ce);
+                    nextLevel.add(ce);
+                }
+            }
+            level = nextLevel;
+        }
+    }
+
+    private void collectRefs(Object value, Map<String, List<CloudRef>> refsByKey) {
+        if (value instanceof CloudRef) {
+            CloudRef ref = (CloudRef) value;
+            if (ref.isResolved()) {
+                return;
+            }
+            String key = getKey(ref.getKindName(), ref.getId());
+            List<CloudRef> refs = refsByKey.get(key);
+            if (refs == null) {
+                refs = new ArrayList<CloudRef>();
+                refsByKey.put(key, refs);
+            }
+            refs.add(ref);
+        } else if (value instanceof List<?>) {
+            for (Object o : (List<?>) value) {
+                collectRefs(o, refsByKey);
+            }
+        }
+    }
+
+    private static void setEntity(List<CloudRef> refs, CloudEntity ce) {
+        for (CloudRef ref : refs) {
+            ref.setEntity(ce);
+        }
+    }
+
+    private static String getKey(String kindName, String id) {
+        return kindName + "/" + id;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+/**
+ * A token bucket that limits the retries of all the backend calls together.
+ * Each retry takes a token, and tokens are refilled at a fixed rate up to the
+ * capacity. When the backend is degraded, the bucket runs dry and the calls
+ * fail instead of multiplying the load with retries.
+ */
+public class RetryBudget {
+
+    private final CloudMetrics metrics;
+
+    private final double capacity;
+
+    private final double refillPerMilli;
+
+    private double tokens;
+
+    private long lastRefillMillis;
+
+    /**
+     * Creates a {@link RetryBudget}.
+     *
+     * @param capacity max number of tokens (the burst of retries allowed)
+     * @param refillPerSecond tokens added per second
+     * @param metrics {@link CloudMetrics} to record to
+     */
+    public RetryBudget(int capacity, double refillPerSecond, CloudMetrics metrics) {
+        this.capacity = capacity;
+        this.refillPerMilli = refillPerSecond / 1000;
+        this.metrics = metrics;
+        this.tokens = capacity;
+        this.lastRefillMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Takes a token for a retry.
+     *
+     * @return true if the retry is allowed, or false if the budget is
+     *         exhausted
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1) {
+            metrics.increment("retry.budgetExhausted");
+            return false;
+        }
+        tokens--;
+        metrics.increment("retry.attempts");
+        metrics.set("retry.tokens", (long) tokens);
+        return true;
+    }
+
+    /**
+     * Returns the number of tokens available.
+     */
+    public synchronized int getAvailableTokens() {
+        refill();
+        return (int) tokens;
+    }
+
+    private void refill() {
+        long now = System.currentTimeMillis();
+        tokens = Math.min(capacity, tokens + (now - lastRefillMillis) * refillPerMilli);
+        lastRefillMillis = now;
+    }
+}
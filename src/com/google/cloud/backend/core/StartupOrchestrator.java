@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the phases of the startup of an app concurrently. Each phase is a task
+ * with the names of the phases it depends on: the independent phases (such as
+ * the GCM registration, the OAuth token fetch, the pre-connection to the
+ * backend and the loading of the caches from disk) start together, and a
+ * dependent phase starts as soon as all its dependencies are done. A phase
+ * without task is done when {@link #complete(String)} is called, for the steps
+ * that end outside of the orchestrator (such as the account picking).
+ * <p>
+ * A failed phase is logged and counted as done, so that the startup goes on
+ * without it (the steps it warms up are executed later anyway). The timing of
+ * each phase is recorded in {@link CloudMetrics}: "startup.&lt;phase&gt;" (with
+ * {@link CloudMetrics#recordMillis(String, long)}) is the duration of its
+ * task, and "startup.&lt;phase&gt;.atMs" is the time when it was done since the
+ * start. Milestones such as the display of the first results are recorded with
+ * {@link #mark(String)}, to track the time to the first post.
+ */
+public class StartupOrchestrator {
+
+    // shared by all the orchestrators to run the phases
+    private static final ExecutorService executor =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "CloudBackend-startup");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private static class Phase {
+
+        final String name;
+
+        // null if the phase is completed with complete()
+        final Callable<?> task;
+
+        final List<String> dependsOn;
+
+        boolean started;
+
+        boolean done;
+
+        Phase(String name, Callable<?> task, String[] dependsOn) {
+            this.name = name;
+            this.task = task;
+            this.dependsOn = Arrays.asList(dependsOn);
+        }
+    }
+
+    private final CloudMetrics metrics;
+
+    private final Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+
+    // completion times of the phases and milestones since the start
+    private final Map<String, Long> timings = new LinkedHashMap<String, Long>();
+
+    private long startedAt;
+
+    /**
+     * Creates a {@link StartupOrchestrator} that records the timings in the
+     * metrics.
+     *
+     * @param metrics {@link CloudMetrics}
+     */
+    public StartupOrchestrator(CloudMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Adds a phase. Phases must be added before {@link #start()}.
+     *
+     * @param name name of the phase
+     * @param task task of the phase, executed on a background thread, or null
+     *            if the phase is completed with {@link #complete(String)}
+     * @param dependsOn names of the phases that must be done before this one
+     *            starts
+     * @return this {@link StartupOrchestrator}
+     */
+    public synchronized StartupOrchestrator addPhase(String name, Callable<?> task,
+            String... dependsOn) {
+        if (startedAt != 0) {
+            throw new IllegalStateException("Startup has already started.");
+        }
+        phases.put(name, new Phase(name, task, dependsOn));
+        return this;
+    }
+
+    /**
+     * Starts the phases that do not depend on any other.
+     */
+    public synchronized void start() {
+        for (Phase p : phases.values()) {
+            for (String d : p.dependsOn) {
+                if (!phases.containsKey(d)) {
+                    throw new IllegalArgumentException("Unknown phase " + d + " of " + p.name);
+                }
+            }
+        }
+        startedAt = System.currentTimeMillis();
+        startReadyPhases();
+    }
+
+    /**
+     * Marks the phase without task as done, and starts the phases that were
+     * waiting for it. Does nothing if it is done already. Must be called after
+     * {@link #start()}.
+     *
+     * @param name name of the phase
+     */
+    public synchronized void complete(String name) {
+        Phase p = phases.get(name);
+        if (p == null || p.task != null) {
+            throw new IllegalArgumentException("No phase to complete: " + name);
+        }
+        if (startedAt == 0) {
+            throw new IllegalStateException("Startup has not started.");
+        }
+        if (!p.done) {
+            finish(p, 0, null);
+        }
+    }
+
+    /**
+     * Returns true if the phase is done.
+     *
+     * @param name name of the phase
+     */
+    public synchronized boolean isDone(String name) {
+        Phase p = phases.get(name);
+        return p != null && p.done;
+    }
+
+    /**
+     * Records a milestone of the startup (such as "firstPost") at the time
+     * since the start, as the metric "startup.&lt;milestone&gt;.atMs". Only
+     * the first call for a milestone is recorded.
+     *
+     * @param milestone name of the milestone
+     */
+    public synchronized void mark(String milestone) {
+        if (startedAt == 0 || timings.containsKey(milestone)) {
+            return;
+        }
+        long at = System.currentTimeMillis() - startedAt;
+        timings.put(milestone, at);
+        metrics.set("startup." + milestone + ".atMs", at);
+        Log.i(Consts.TAG, "startup: " + milestone + " at " + at + " ms");
+    }
+
+    /**
+     * Returns the times (in milliseconds since the start) when the phases and
+     * milestones were done, in the order they were done.
+     *
+     * @return {@link Map} of the times by name
+     */
+    public synchronized Map<String, Long> getTimings() {
+        return new LinkedHashMap<String, Long>(timings);
+    }
+
+    private void startReadyPhases() {
+        for (Phase p : phases.values()) {
+            if (!p.started && isReady(p)) {
+                p.started = true;
+                if (p.task != null) {
+                    run(p);
+                }
+            }
+        }
+    }
+
+    private boolean isReady(Phase p) {
+        for (String d : p.dependsOn) {
+            if (!phases.get(d).done) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void run(final Phase p) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                Exception failure = null;
+                try {
+                    p.task.call();
+                } catch (Exception e) {
+                    failure = e;
+                }
+                synchronized (StartupOrchestrator.this) {
+                    finish(p, System.currentTimeMillis() - start, failure);
+                }
+            }
+        });
+    }
+
+    private void finish(Phase p, long millis, Exception failure) {
+        p.started = true;
+        p.done = true;
+        long at = System.currentTimeMillis() - startedAt;
+        timings.put(p.name, at);
+        if (failure != null) {
+            Log.i(Consts.TAG, "startup: " + p.name + " failed in " + millis + " ms: " + failure);
+            metrics.increment("startup." + p.name + ".failed");
+        } else {
+            Log.i(Consts.TAG, "startup: " + p.name + " done in " + millis + " ms at " + at
+                    + " ms");
+        }
+        metrics.recordMillis("startup." + p.name, millis);
+        metrics.set("startup." + p.name + ".atMs", at);
+        startReadyPhases();
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import com.google.cloud.backend.GCMIntentService;
+import com.google.cloud.backend.core.CloudQuery.Scope;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renews the subscriptions of the continuous queries in the
+ * {@link ContinuousQueryRegistry} of a {@link CloudBackendAsync} before they
+ * expire on the backend, so that the queries keep receiving push
+ * notifications as long as they are used.
+ * <p>
+ * Each subscription is renewed between {@link Consts#SUBSCRIPTION_RENEW_LEAD_MS}
+ * and that plus {@link Consts#SUBSCRIPTION_RENEW_JITTER_MS} before its expiry
+ * (the jitter spreads the renewals of many devices). When a renewal is due,
+ * the other subscriptions due within {@link Consts#SUBSCRIPTION_RENEW_WINDOW_MS}
+ * are renewed in the same pass, so that the radio wakes up once for them. A
+ * subscription is renewed by executing its query with scope FUTURE, which
+ * subscribes it again without reading any entity.
+ * <p>
+ * Subscriptions that have no handler in the backend and have not been listed
+ * for {@link Consts#SUBSCRIPTION_IDLE_MS} are idle: they are removed from the
+ * registry and not renewed, so that the backend stops sending their
+ * notifications when they expire.
+ * <p>
+ * Use {@link CloudBackendAsync#setLeaseManager(SubscriptionLeaseManager)} to
+ * start the manager.
+ */
+public class SubscriptionLeaseManager {
+
+    // shared by all the managers to run the renewal passes
+    private static final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "CloudBackend-leases");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final CloudBackendAsync backend;
+
+    private final Random random = new Random();
+
+    // renewal times of the subscriptions (with their jitter) by query id
+    private final Map<String, Long> renewAt = new HashMap<String, Long>();
+
+    private ScheduledFuture<?> nextPass;
+
+    private boolean stopped = true;
+
+    /**
+     * Creates a {@link SubscriptionLeaseManager} for the subscriptions of the
+     * backend. The backend must have a {@link ContinuousQueryRegistry}.
+     *
+     * @param backend {@link CloudBackendAsync}
+     */
+    public SubscriptionLeaseManager(CloudBackendAsync backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Starts the manager: runs a pass at once (which collects the idle
+     * subscriptions), and then the passes of the renewals.
+     */
+    public synchronized void start() {
+        stopped = false;
+        schedule(0);
+    }
+
+    /**
+     * Stops the manager. The subscriptions are not renewed any more.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (nextPass != null) {
+            nextPass.cancel(false);
+            nextPass = null;
+        }
+    }
+
+    /**
+     * Schedules the next pass for the earliest renewal, such as after a query
+     * has been subscribed.
+     */
+    synchronized void reschedule() {
+        ContinuousQueryRegistry registry = backend.getQueryRegistry();
+        if (stopped || registry == null) {
+            return;
+        }
+        long next = Long.MAX_VALUE;
+        for (ContinuousQueryRegistry.Subscription s : registry.getAll()) {
+            if (s.getExpiresAt() != 0) {
+                next = Math.min(next, getRenewAt(s));
+            }
+        }
+        if (next != Long.MAX_VALUE) {
+            schedule(Math.max(0, next - System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Collects the idle subscriptions, and renews the subscriptions that are
+     * due (or due within the renewal window) in one pass. This is called on
+     * the scheduler thread, and may be called to renew them at once.
+     */
+    public void runPass() {
+        ContinuousQueryRegistry registry = backend.getQueryRegistry();
+        if (registry == null) {
+            return;
+        }
+        CloudMetrics metrics = backend.getResilience().getMetrics();
+        metrics.increment("lease.passes");
+        long now = System.currentTimeMillis();
+        final List<ContinuousQueryRegistry.Subscription> due =
+                new ArrayList<ContinuousQueryRegistry.Subscription>();
+        for (ContinuousQueryRegistry.Subscription s : registry.getAll()) {
+            if (!backend.hasQueryHandler(s.getQueryId())
+                    && now - s.getLastUsedAt() > Consts.SUBSCRIPTION_IDLE_MS) {
+                Log.i(Consts.TAG, "leases: collected idle subscription " + s.getQueryId());
+                registry.remove(s.getQueryId());
+                forget(s.getQueryId());
+                metrics.increment("lease.collected");
+            } else if (s.getExpiresAt() != 0
+                    && getRenewAt(s) <= now + Consts.SUBSCRIPTION_RENEW_WINDOW_MS) {
+                due.add(s);
+            }
+        }
+
+        // renew the due subscriptions together
+        if (!due.isEmpty()) {
+            String regId = backend.application == null
+                    ? null : GCMIntentService.getRegistrationId(backend.application);
+            if (regId == null && backend.application != null) {
+                // not registered yet: retry the renewals after a while
+                synchronized (this) {
+                    for (ContinuousQueryRegistry.Subscription s : due) {
+                        renewAt.put(s.getQueryId(), now + Consts.SUBSCRIPTION_RENEW_RETRY_MS);
+                    }
+                }
+                reschedule();
+                return;
+            }
+            List<Callable<Void>> calls = new ArrayList<Callable<Void>>();
+            for (ContinuousQueryRegistry.Subscription s : due) {
+                calls.add(newRenewal(registry, s, regId));
+            }
+            List<BatchRunner.Outcome<Void>> outcomes;
+            try {
+                outcomes = BatchRunner.runAll(calls, Consts.BATCH_PARALLELISM);
+            } catch (IOException e) {
+                return;
+            }
+            for (int i = 0; i < due.size(); i++) {
+                String queryId = due.get(i).getQueryId();
+                if (outcomes.get(i).isSuccess()) {
+                    forget(queryId);
+                    metrics.increment("lease.renewed");
+                } else {
+                    // retry it after a while
+                    Log.i(Consts.TAG, "leases: failed to renew " + queryId + ": "
+                            + outcomes.get(i).exception);
+                    synchronized (this) {
+                        renewAt.put(queryId, now + Consts.SUBSCRIPTION_RENEW_RETRY_MS);
+                    }
+                    metrics.increment("lease.failed");
+                }
+            }
+        }
+        reschedule();
+    }
+
+    // subscribes the query again, and records its new expiry
+    private Callable<Void> newRenewal(final ContinuousQueryRegistry registry,
+            final ContinuousQueryRegistry.Subscription s, final String regId) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                CloudQuery query = s.getCloudQuery();
+                CloudQuery future = new CloudQuery(query);
+                future.setScope(Scope.FUTURE);
+                future.setRegId(regId);
+                backend.list(future);
+                registry.renew(query, regId, s);
+                return null;
+            }
+        };
+    }
+
+    // returns the renewal time of the subscription, with a jitter chosen once
+    private synchronized long getRenewAt(ContinuousQueryRegistry.Subscription s) {
+        Long t = renewAt.get(s.getQueryId());
+        if (t == null) {
+            long jitter = (long) (random.nextDouble() * Consts.SUBSCRIPTION_RENEW_JITTER_MS);
+
+            // renew a short subscription at the latest in the middle of it
+            long lead = Math.min(Consts.SUBSCRIPTION_RENEW_LEAD_MS + jitter,
+                    (s.getExpiresAt() - s.getSubscribedAt()) / 2);
+            t = s.getExpiresAt() - lead;
+            renewAt.put(s.getQueryId(), t);
+        }
+        return t;
+    }
+
+    private synchronized void forget(String queryId) {
+        renewAt.remove(queryId);
+    }
+
+    private synchronized void schedule(long delayMillis) {
+        if (stopped) {
+            return;
+        }
+        if (nextPass != null) {
+            if (nextPass.getDelay(TimeUnit.MILLISECONDS) <= delayMillis) {
+                return;
+            }
+            nextPass.cancel(false);
+        }
+        nextPass = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SubscriptionLeaseManager.this) {
+                    nextPass = null;
+                }
+                runPass();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -19,9 +19,13 @@ import com.google.cloud.backend.core.CloudBackendFragment;
 import com.google.cloud.backend.core.CloudBackendFragment.OnListener;
 import com.google.cloud.backend.core.CloudCallbackHandler;
 import com.google.cloud.backend.core.CloudEntity;
+import com.google.cloud.backend.core.CloudOutbox;
 import com.google.cloud.backend.core.CloudQuery.Order;
 import com.google.cloud.backend.core.CloudQuery.Scope;
 import com.google.cloud.backend.core.Consts;
+import com.google.cloud.backend.core.ContinuousQueryRegistry;
+import com.google.cloud.backend.core.QuerySnapshotStore;
+import com.google.cloud.backend.core.SubscriptionLeaseManager;
 
 import android.app.Activity;
 import android.app.FragmentManager;
@@ -175,6 +179,23 @@ public class GuestbookActivity extends Activity implements OnListener {
      */
     @Override
     public void onCreateFinished() {
+
+        // journal the posts in the outbox, so they are shown immediately and
+        // sent when the network is available
+        try {
+            mProcessingFragment.getCloudBackend().setOutbox(CloudOutbox.getInstance(this));
+        } catch (IOException e) {
+            Log.w(Consts.TAG, "Outbox is not available, posting online only", e);
+        }
+
+        // show the posts of the last launch at once, and keep them up to date
+        // with small delta fetches (also while the app is in the background)
+        mProcessingFragment.getCloudBackend().setSnapshotStore(
+                QuerySnapshotStore.getInstance(this));
+        mProcessingFragment.getCloudBackend().setQueryRegistry(
+                ContinuousQueryRegistry.getInstance(this));
+        mProcessingFragment.getCloudBackend().setLeaseManager(
+                new SubscriptionLeaseManager(mProcessingFragment.getCloudBackend()));
         listPosts();
     }
 
@@ -235,11 +256,17 @@ public class GuestbookActivity extends Activity implements OnListener {
         CloudEntity newPost = new CloudEntity("Guestbook");
         newPost.put("message", mMessageTxt.getText().toString());
 
+        // with the outbox, the post is journaled and shown without waiting for
+        // the backend (the continuous query shows it, too)
+        final boolean optimistic = mProcessingFragment.getCloudBackend().getOutbox() != null;
+
         // create a response handler that will receive the result or an error
         CloudCallbackHandler<CloudEntity> handler = new CloudCallbackHandler<CloudEntity>() {
             @Override
             public void onComplete(final CloudEntity result) {
-                mPosts.add(0, result);
+                if (!containsPost(result.getId())) {
+                    mPosts.add(0, result);
+                }
                 updateGuestbookView();
                 mMessageTxt.setText("");
                 mMessageTxt.setEnabled(true);
@@ -254,8 +281,19 @@ public class GuestbookActivity extends Activity implements OnListener {
 
         // execute the insertion with the handler
         mProcessingFragment.getCloudBackend().insert(newPost, handler);
-        mMessageTxt.setEnabled(false);
-        mSendBtn.setEnabled(false);
+        if (!optimistic) {
+            mMessageTxt.setEnabled(false);
+            mSendBtn.setEnabled(false);
+        }
+    }
+
+    private boolean containsPost(String id) {
+        for (CloudEntity post : mPosts) {
+            if (post.getId() != null && post.getId().equals(id)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -274,6 +312,9 @@ public class GuestbookActivity extends Activity implements OnListener {
                         mPosts = results;
                         animateArrival();
                         updateGuestbookView();
+
+                        // time to first post (from the snapshot or the backend)
+                        mProcessingFragment.getStartup().mark("firstPost");
                     }
 
                     @Override
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.cloud.backend.core.CircuitBreaker.State;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Tests of the transitions of {@link CircuitBreaker}: it opens after the
+ * threshold of consecutive failures, fails fast while open, lets one probe
+ * through when half-open, and closes or opens again with the result of the
+ * probe.
+ * <p>
+ * Run them with {@code java com.google.cloud.backend.core.CircuitBreakerTest}
+ * (compile them with the core package and the google-http-client jar, with
+ * the android.util.Log test double of tests/src). They exit with an
+ * AssertionError on the first failure.
+ */
+public class CircuitBreakerTest {
+
+    private static final long OPEN_MILLIS = 50;
+
+    public static void main(String[] args) throws Exception {
+        CircuitBreakerTest test = new CircuitBreakerTest();
+        test.testOpensAfterThreshold();
+        test.testSuccessResetsFailures();
+        test.testHalfOpenProbeCloses();
+        test.testHalfOpenProbeFailureReopens();
+        test.testCancelledProbe();
+        test.testExceptions();
+        test.testMetrics();
+        System.out.println("CircuitBreakerTest: all tests passed");
+    }
+
+    void testOpensAfterThreshold() {
+        CircuitBreaker breaker = newBreaker();
+        for (int i = 0; i < 2; i++) {
+            call(breaker, false);
+            assertEquals(State.CLOSED, breaker.getState(), "below the threshold");
+        }
+        call(breaker, false);
+        assertEquals(State.OPEN, breaker.getState(), "at the threshold");
+        assertRejected(breaker, "open");
+    }
+
+    void testSuccessResetsFailures() {
+        CircuitBreaker breaker = newBreaker();
+        call(breaker, false);
+        call(breaker, false);
+        call(breaker, true);
+        call(breaker, false);
+        call(breaker, false);
+        assertEquals(State.CLOSED, breaker.getState(), "failures are not consecutive");
+    }
+
+    void testHalfOpenProbeCloses() throws Exception {
+        CircuitBreaker breaker = newOpenBreaker();
+        Thread.sleep(OPEN_MILLIS * 2);
+        breaker.acquire();
+        assertEquals(State.HALF_OPEN, breaker.getState(), "after the open duration");
+        assertRejected(breaker, "a second call while the probe is in flight");
+        breaker.onSuccess();
+        assertEquals(State.CLOSED, breaker.getState(), "after a successful probe");
+        breaker.acquire();
+        breaker.onSuccess();
+    }
+
+    void testHalfOpenProbeFailureReopens() throws Exception {
+        CircuitBreaker breaker = newOpenBreaker();
+        Thread.sleep(OPEN_MILLIS * 2);
+        breaker.acquire();
+        breaker.onFailure();
+        assertEquals(State.OPEN, breaker.getState(), "after a failed probe");
+        assertRejected(breaker, "reopened");
+    }
+
+    void testCancelledProbe() throws Exception {
+        CircuitBreaker breaker = newOpenBreaker();
+        Thread.sleep(OPEN_MILLIS * 2);
+        breaker.acquire();
+        breaker.onCancelled();
+        assertEquals(State.HALF_OPEN, breaker.getState(), "after a cancelled probe");
+        breaker.acquire();
+        breaker.onSuccess();
+        assertEquals(State.CLOSED, breaker.getState(), "after the next probe");
+    }
+
+    void testExceptions() {
+        assertTrue(CircuitBreaker.isBackendFailure(httpError(503)), "503");
+        assertTrue(CircuitBreaker.isBackendFailure(httpError(429)), "429");
+        assertTrue(CircuitBreaker.isBackendFailure(httpError(408)), "408");
+        assertTrue(!CircuitBreaker.isBackendFailure(httpError(404)), "404");
+        assertTrue(CircuitBreaker.isBackendFailure(new IOException("reset")), "I/O error");
+        assertTrue(CircuitBreaker.isBackendFailure(new SocketTimeoutException()), "timeout");
+        assertTrue(!CircuitBreaker.isBackendFailure(new InterruptedIOException()), "interrupt");
+        assertTrue(!CircuitBreaker.isBackendFailure(new CircuitBreaker.OpenException("open")),
+                "open");
+
+        // client errors show that the backend is available
+        CircuitBreaker breaker = newBreaker();
+        breaker.onException(httpError(500));
+        breaker.onException(httpError(500));
+        breaker.onException(httpError(400));
+        breaker.onException(httpError(500));
+        breaker.onException(httpError(500));
+        assertEquals(State.CLOSED, breaker.getState(), "client error between failures");
+        breaker.onException(httpError(500));
+        assertEquals(State.OPEN, breaker.getState(), "server errors");
+    }
+
+    void testMetrics() {
+        CloudMetrics metrics = new CloudMetrics();
+        CircuitBreaker breaker = new CircuitBreaker(1, OPEN_MILLIS, metrics);
+        call(breaker, false);
+        assertRejected(breaker, "open");
+        assertEquals(1L, metrics.get("breaker.transition.OPEN"), "transitions to OPEN");
+        assertEquals(1L, metrics.get("breaker.rejected"), "rejected calls");
+        assertEquals((long) State.OPEN.ordinal(), metrics.get("breaker.state"), "state gauge");
+    }
+
+    // a breaker that opens after 3 consecutive failures
+    private static CircuitBreaker newBreaker() {
+        return new CircuitBreaker(3, OPEN_MILLIS, new CloudMetrics());
+    }
+
+    private static CircuitBreaker newOpenBreaker() {
+        CircuitBreaker breaker = newBreaker();
+        for (int i = 0; i < 3; i++) {
+            call(breaker, false);
+        }
+        assertEquals(State.OPEN, breaker.getState(), "open breaker");
+        return breaker;
+    }
+
+    // makes a call through the breaker
+    private static void call(CircuitBreaker breaker, boolean success) {
+        try {
+            breaker.acquire();
+        } catch (CircuitBreaker.OpenException e) {
+            throw new AssertionError("call rejected: " + e.getMessage());
+        }
+        if (success) {
+            breaker.onSuccess();
+        } else {
+            breaker.onFailure();
+        }
+    }
+
+    private static void assertRejected(CircuitBreaker breaker, String message) {
+        try {
+            breaker.acquire();
+        } catch (CircuitBreaker.OpenException expected) {
+            return;
+        }
+        throw new AssertionError(message + ": call not rejected");
+    }
+
+    private static HttpResponseException httpError(int status) {
+        return new HttpResponseException.Builder(status, null, new HttpHeaders()).build();
+    }
+
+    private static void assertEquals(Object expected, Object actual, String message) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    private static void assertTrue(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import com.google.cloud.backend.core.CloudQueryCache.Policy;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests of {@link CloudQueryCache}: the results of a query that was in flight
+ * when its kind was invalidated (or the cache cleared) are discarded, also
+ * when queries and invalidations race, and the policies decide when the
+ * cached results are fresh, stale or dropped.
+ * <p>
+ * Run them with {@code java com.google.cloud.backend.core.CloudQueryCacheTest}
+ * (compile them with the core package, the mobilebackend endpoint library and
+ * the jars of libs). They exit with an AssertionError on the first failure.
+ */
+public class CloudQueryCacheTest {
+
+    public static void main(String[] args) throws Exception {
+        CloudQueryCacheTest test = new CloudQueryCacheTest();
+        test.testPutAndGet();
+        test.testInvalidatedWhileInFlight();
+        test.testClearedWhileInFlight();
+        test.testOtherKind();
+        test.testRacingInvalidations();
+        test.testPolicy();
+        test.testMarkDirty();
+        test.testIsSameResults();
+        System.out.println("CloudQueryCacheTest: all tests passed");
+    }
+
+    void testPutAndGet() {
+        CloudQueryCache cache = new CloudQueryCache(10).setDefaultPolicy(
+                new Policy(60000, 60000));
+        CloudQuery query = newQuery("Post");
+        cache.put(query, results("Post", 1), cache.getGeneration("Post"));
+        CloudQueryCache.Entry entry = cache.get(newQuery("Post"));
+        assertTrue(entry != null, "no entry for an equal query");
+        assertEquals(1L, version(entry), "version");
+        assertTrue(cache.isFresh(entry), "new entry not fresh");
+        assertTrue(cache.get(newQuery("Post").setLimit(5)) == null, "entry of another limit");
+    }
+
+    // the kind is written while the query is in flight: its results, which
+    // may predate the write, are not cached
+    void testInvalidatedWhileInFlight() {
+        CloudQueryCache cache = new CloudQueryCache(10);
+        CloudQuery query = newQuery("Post");
+        long generation = cache.getGeneration("Post");
+        cache.invalidate("Post");
+        cache.put(query, results("Post", 1), generation);
+        assertTrue(cache.get(query) == null, "results of before the invalidation cached");
+
+        cache.put(query, results("Post", 2), cache.getGeneration("Post"));
+        assertEquals(2L, version(cache.get(query)), "results of after the invalidation");
+    }
+
+    void testClearedWhileInFlight() {
+        CloudQueryCache cache = new CloudQueryCache(10);
+        CloudQuery query = newQuery("Post");
+        cache.invalidate("Post");
+        long generation = cache.getGeneration("Post");
+        long otherGeneration = cache.getGeneration("Comment");
+        cache.clear();
+        cache.put(query, results("Post", 1), generation);
+        cache.put(newQuery("Comment"), results("Comment", 1), otherGeneration);
+        assertTrue(cache.get(query) == null, "results of before the clear cached");
+        assertTrue(cache.get(newQuery("Comment")) == null, "results of before the clear cached");
+    }
+
+    void testOtherKind() {
+        CloudQueryCache cache = new CloudQueryCache(10);
+        long generation = cache.getGeneration("Post");
+        cache.put(newQuery("Comment"), results("Comment", 1), cache.getGeneration("Comment"));
+        cache.invalidate("Comment");
+        cache.put(newQuery("Post"), results("Post", 1), generation);
+        assertTrue(cache.get(newQuery("Post")) != null, "invalidation of another kind");
+        assertTrue(cache.get(newQuery("Comment")) == null, "invalidated kind kept");
+    }
+
+    // a writer bumps the version of the kind and invalidates it, while
+    // readers query the version and cache it a little later: once the writes
+    // have stopped, the cache holds the last version or nothing, never an
+    // older version
+    void testRacingInvalidations() throws Exception {
+        final CloudQueryCache cache = new CloudQueryCache(10);
+        final CloudQuery query = newQuery("Post");
+        final AtomicLong version = new AtomicLong();
+        for (int round = 0; round < 20; round++) {
+            final AtomicBoolean writing = new AtomicBoolean(true);
+            final CountDownLatch readersDone = new CountDownLatch(4);
+            for (int i = 0; i < 4; i++) {
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (writing.get()) {
+                                long generation = cache.getGeneration("Post");
+                                long v = version.get();
+                                Thread.sleep(1);
+                                cache.put(query, results("Post", v), generation);
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            readersDone.countDown();
+                        }
+                    }
+                }.start();
+            }
+            for (int w = 0; w < 10; w++) {
+                version.incrementAndGet();
+                cache.invalidate("Post");
+                Thread.sleep(1);
+            }
+            version.incrementAndGet();
+            cache.invalidate("Post");
+            writing.set(false);
+            readersDone.await();
+            CloudQueryCache.Entry entry = cache.get(query);
+            if (entry != null) {
+                assertEquals(version.get(), version(entry), "round " + round + ": version");
+            }
+        }
+    }
+
+    void testPolicy() throws Exception {
+        CloudQueryCache cache = new CloudQueryCache(10).setDefaultPolicy(new Policy(0, 0));
+        cache.setPolicy("Post", new Policy(20, 200));
+        CloudQuery query = newQuery("Post");
+        cache.put(query, results("Post", 1), cache.getGeneration("Post"));
+        cache.put(newQuery("Comment"), results("Comment", 1), cache.getGeneration("Comment"));
+        Thread.sleep(50);
+        CloudQueryCache.Entry entry = cache.get(query);
+        assertTrue(entry != null, "stale results dropped");
+        assertTrue(!cache.isFresh(entry), "results older than max age fresh");
+        assertTrue(cache.get(newQuery("Comment")) == null, "default policy not applied");
+        Thread.sleep(200);
+        assertTrue(cache.get(query) == null, "results older than max stale kept");
+    }
+
+    void testMarkDirty() {
+        CloudQueryCache cache = new CloudQueryCache(10).setDefaultPolicy(
+                new Policy(60000, 60000));
+        CloudQuery query = newQuery("Post");
+        cache.put(query, results("Post", 1), cache.getGeneration("Post"));
+        cache.markDirty("Post");
+        CloudQueryCache.Entry entry = cache.get(query);
+        assertTrue(entry != null, "dirty results dropped");
+        assertTrue(!cache.isFresh(entry), "dirty results fresh");
+    }
+
+    void testIsSameResults() {
+        assertTrue(CloudQueryCache.isSameResults(results("Post", 1), results("Post", 1)),
+                "same version");
+        assertTrue(!CloudQueryCache.isSameResults(results("Post", 1), results("Post", 2)),
+                "another version");
+        assertTrue(!CloudQueryCache.isSameResults(results("Post", 1),
+                Collections.<CloudEntity> emptyList()), "another size");
+    }
+
+    private static CloudQuery newQuery(String kindName) {
+        return new CloudQuery(kindName).setLimit(10);
+    }
+
+    // results of one entity whose updatedAt is the version
+    private static List<CloudEntity> results(String kindName, long version) {
+        CloudEntity ce = new CloudEntity(kindName);
+        ce.setId("e1");
+        ce.setUpdatedAt(new Date(version));
+        return Arrays.asList(ce);
+    }
+
+    private static long version(CloudQueryCache.Entry entry) {
+        return entry.results.get(0).getUpdatedAt().getTime();
+    }
+
+    private static void assertEquals(Object expected, Object actual, String message) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    private static void assertTrue(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests of the encoding of {@link CloudRef}s in property values: references
+ * are encoded and decoded, and strings that look like encoded references (or
+ * escaped strings) are read back unchanged.
+ * <p>
+ * Run them with {@code java com.google.cloud.backend.core.CloudRefTest}
+ * (compile them with the core package and the jars of libs). They exit with
+ * an AssertionError on the first failure.
+ */
+public class CloudRefTest {
+
+    public static void main(String[] args) {
+        CloudRefTest test = new CloudRefTest();
+        test.testReference();
+        test.testLiteralStrings();
+        test.testLists();
+        test.testMalformedReferences();
+        System.out.println("CloudRefTest: all tests passed");
+    }
+
+    void testReference() {
+        CloudRef ref = new CloudRef("Post", "p1");
+        Object encoded = CloudRef.encodeValue(ref);
+        assertEquals("_ref:Post/p1", encoded);
+        assertEquals(ref, CloudRef.decodeValue(encoded));
+    }
+
+    void testLiteralStrings() {
+        for (String s : new String[] {
+                "hello", "", "_ref:Post/p1", "_ref:", "_str:", "_str:_ref:Post/p1", "_str:x"
+        }) {
+            Object encoded = CloudRef.encodeValue(s);
+            Object decoded = CloudRef.decodeValue(encoded);
+            assertEquals(s, decoded);
+            assertTrue(!(decoded instanceof CloudRef), s + " read as a reference");
+        }
+        assertEquals("hello", CloudRef.encodeValue("hello"));
+        assertEquals("_str:_ref:Post/p1", CloudRef.encodeValue("_ref:Post/p1"));
+    }
+
+    void testLists() {
+        List<Object> values = Arrays.<Object> asList(new CloudRef("Post", "p1"), "_ref:Post/p2",
+                "text", 1);
+        Object decoded = CloudRef.decodeValue(CloudRef.encodeValue(values));
+        assertEquals(values, decoded);
+    }
+
+    void testMalformedReferences() {
+        // not written by this client: kept as strings
+        assertEquals("_ref:Post", CloudRef.decodeValue("_ref:Post"));
+        assertEquals("_ref:Post/", CloudRef.decodeValue("_ref:Post/"));
+        assertEquals("_ref:a b/1", CloudRef.decodeValue("_ref:a b/1"));
+        assertEquals(null, CloudRef.decode("plain"));
+    }
+
+    private static void assertEquals(Object expected, Object actual) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            throw new AssertionError("expected " + expected + " but was " + actual);
+        }
+    }
+
+    private static void assertTrue(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
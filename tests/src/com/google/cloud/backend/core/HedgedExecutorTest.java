@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of {@link HedgedExecutor}: the hedge delay is the percentile of the
+ * recorded latencies, a slow first attempt is answered by the hedge, and the
+ * hedges are capped by the hedge tokens.
+ * <p>
+ * HedgedExecutor is plain Java, so the tests run on the JVM without Android.
+ * Run them with {@code java com.google.cloud.backend.core.HedgedExecutorTest}
+ * (compile them with HedgedExecutor and CloudMetrics of the core package).
+ * They exit with an AssertionError on the first failure.
+ */
+public class HedgedExecutorTest {
+
+    // the latency of the slow calls, well above the hedge delay of the tests
+    private static final long SLOW_MILLIS = 50;
+
+    public static void main(String[] args) throws Exception {
+        HedgedExecutorTest test = new HedgedExecutorTest();
+        test.testNoDelayBeforeMinSamples();
+        test.testPercentile();
+        test.testHedgeWins();
+        test.testFailedAttempt();
+        test.testTokenCap();
+        System.out.println("HedgedExecutorTest: all tests passed");
+    }
+
+    void testNoDelayBeforeMinSamples() throws IOException {
+        HedgedExecutor executor = new HedgedExecutor(new CloudMetrics()).setMinSamples(5);
+        for (int i = 0; i < 4; i++) {
+            executor.call(sleep(0));
+            assertEquals(-1, executor.getHedgeDelayMillis(), "delay after " + (i + 1) + " calls");
+        }
+        executor.call(sleep(0));
+        assertTrue(executor.getHedgeDelayMillis() >= 0, "no delay after min samples");
+    }
+
+    // half of the calls are slow: the 50th percentile is fast, the 95th slow
+    void testPercentile() throws IOException {
+        CloudMetrics metrics = new CloudMetrics();
+        HedgedExecutor executor = new HedgedExecutor(metrics).setMinSamples(20)
+                .setMinDelayMillis(0).setMaxExtraLoad(0);
+        for (int i = 0; i < 10; i++) {
+            executor.call(sleep(0));
+            executor.call(sleep(SLOW_MILLIS));
+        }
+        executor.setPercentile(0.5);
+        long median = executor.getHedgeDelayMillis();
+        assertTrue(median < SLOW_MILLIS / 2, "50th percentile: " + median);
+        executor.setPercentile(0.95);
+        long p95 = executor.getHedgeDelayMillis();
+        assertTrue(p95 >= SLOW_MILLIS, "95th percentile: " + p95);
+        assertEquals(0, metrics.get("hedge.sent"), "hedges without tokens");
+
+        executor.setMinDelayMillis(SLOW_MILLIS * 10);
+        assertEquals(SLOW_MILLIS * 10, executor.getHedgeDelayMillis(), "min delay");
+    }
+
+    // the first attempt hangs: the hedge answers and the first is cancelled
+    void testHedgeWins() throws IOException {
+        CloudMetrics metrics = new CloudMetrics();
+        HedgedExecutor executor = newWarmExecutor(metrics, 1);
+        final AtomicInteger attempts = new AtomicInteger();
+        final AtomicInteger interrupted = new AtomicInteger();
+        long start = System.currentTimeMillis();
+        String result = executor.call(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                if (attempts.incrementAndGet() == 1) {
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException e) {
+                        interrupted.incrementAndGet();
+                        throw e;
+                    }
+                    return "first";
+                }
+                return "hedge";
+            }
+        });
+        assertEquals("hedge", result, "result");
+        assertTrue(System.currentTimeMillis() - start < 5000, "waited for the first attempt");
+        assertEquals(1, metrics.get("hedge.sent"), "hedges sent");
+        assertEquals(1, metrics.get("hedge.won"), "hedges won");
+        waitFor(interrupted, 1);
+    }
+
+    // the first attempt fails after the hedge was sent: the hedge answers
+    void testFailedAttempt() throws IOException {
+        HedgedExecutor executor = newWarmExecutor(new CloudMetrics(), 1);
+        final AtomicInteger attempts = new AtomicInteger();
+        String result = executor.call(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                if (attempts.incrementAndGet() == 1) {
+                    Thread.sleep(SLOW_MILLIS);
+                    throw new IOException("first attempt failed");
+                }
+                Thread.sleep(SLOW_MILLIS * 2);
+                return "hedge";
+            }
+        });
+        assertEquals("hedge", result, "result after a failure");
+    }
+
+    // the calls earn 0.1 token each, up to a burst of 5 tokens: of 10 slow
+    // calls after the warm-up, 5 are hedged and the others are capped
+    void testTokenCap() throws IOException {
+        CloudMetrics metrics = new CloudMetrics();
+        HedgedExecutor executor = newWarmExecutor(metrics, 0.1);
+        for (int i = 0; i < 10; i++) {
+            executor.call(sleep(SLOW_MILLIS));
+        }
+        assertEquals(5, metrics.get("hedge.sent"), "hedges sent");
+        assertEquals(5, metrics.get("hedge.capped"), "hedges capped");
+        assertEquals(110, metrics.get("hedge.calls"), "calls");
+    }
+
+    // an executor that has recorded 100 fast calls, none of them hedged, so
+    // that it has earned all the tokens it can and hedges after its min
+    // delay of 5 ms
+    private static HedgedExecutor newWarmExecutor(CloudMetrics metrics, double maxExtraLoad)
+            throws IOException {
+        HedgedExecutor executor = new HedgedExecutor(metrics).setMinSamples(100)
+                .setMinDelayMillis(5).setPercentile(0.5).setMaxExtraLoad(maxExtraLoad);
+        for (int i = 0; i < 100; i++) {
+            executor.call(sleep(0));
+        }
+        assertEquals(0, metrics.get("hedge.sent"), "hedges during the warm-up");
+        return executor;
+    }
+
+    private static Callable<String> sleep(final long millis) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                if (millis > 0) {
+                    Thread.sleep(millis);
+                }
+                return "done";
+            }
+        };
+    }
+
+    // the losing attempt is cancelled asynchronously
+    private static void waitFor(AtomicInteger counter, int expected) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (counter.get() < expected) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("expected " + expected + " but was " + counter.get());
+            }
+            Thread.yield();
+        }
+    }
+
+    private static void assertEquals(long expected, long actual, String message) {
+        if (expected != actual) {
+            throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    private static void assertEquals(Object expected, Object actual, String message) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    private static void assertTrue(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import com.google.api.client.util.DateTime;
+import com.google.cloud.backend.core.CloudQuery.Order;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests of {@link LocalQueryEvaluator}: the filters follow the semantics of
+ * the backend, and the pending writes are merged into the results of a query,
+ * which are then sorted and truncated.
+ * <p>
+ * Run them with
+ * {@code java com.google.cloud.backend.core.LocalQueryEvaluatorTest} (compile
+ * them with the core package, the mobilebackend endpoint library and the jars
+ * of libs). They exit with an AssertionError on the first failure.
+ */
+public class LocalQueryEvaluatorTest {
+
+    public static void main(String[] args) {
+        LocalQueryEvaluatorTest test = new LocalQueryEvaluatorTest();
+        test.testComparisons();
+        test.testMissingProperty();
+        test.testMultiValuedProperty();
+        test.testIn();
+        test.testAndOr();
+        test.testDates();
+        test.testReferences();
+        test.testApplyPendingWrites();
+        test.testSortAndLimit();
+        test.testNoPendingWrites();
+        System.out.println("LocalQueryEvaluatorTest: all tests passed");
+    }
+
+    void testComparisons() {
+        CloudEntity ce = entity("a", 5);
+        assertMatches(true, Filter.eq("n", 5), ce);
+        assertMatches(false, Filter.eq("n", 4), ce);
+        assertMatches(true, Filter.ne("n", 4), ce);
+        assertMatches(true, Filter.lt("n", 6), ce);
+        assertMatches(false, Filter.lt("n", 5), ce);
+        assertMatches(true, Filter.le("n", 5), ce);
+        assertMatches(true, Filter.gt("n", 4), ce);
+        assertMatches(true, Filter.ge("n", 5), ce);
+        assertMatches(false, Filter.ge("n", 6), ce);
+
+        // numbers of different types, as after a JSON round trip
+        assertMatches(true, Filter.eq("n", new BigDecimal("5")), ce);
+        assertMatches(true, Filter.lt("n", 5.5), ce);
+
+        CloudEntity text = new CloudEntity("Post");
+        text.put("s", "b");
+        assertMatches(true, Filter.gt("s", "a"), text);
+        assertMatches(false, Filter.gt("s", "c"), text);
+
+        // values that are not comparable only match NE
+        assertMatches(false, Filter.eq("n", "5"), ce);
+        assertMatches(true, Filter.ne("n", "5"), ce);
+    }
+
+    void testMissingProperty() {
+        CloudEntity ce = new CloudEntity("Post");
+        assertMatches(false, Filter.eq("n", 1), ce);
+        assertMatches(false, Filter.ne("n", 1), ce);
+        assertMatches(true, null, ce);
+    }
+
+    void testMultiValuedProperty() {
+        CloudEntity ce = new CloudEntity("Post");
+        ce.put("tags", Arrays.asList("red", "green"));
+        assertMatches(true, Filter.eq("tags", "green"), ce);
+        assertMatches(false, Filter.eq("tags", "blue"), ce);
+        // any value that is not red
+        assertMatches(true, Filter.ne("tags", "red"), ce);
+    }
+
+    void testIn() {
+        CloudEntity ce = entity("a", 3);
+        assertMatches(true, Filter.in("n", 1, 3, 5), ce);
+        assertMatches(false, Filter.in("n", 2, 4), ce);
+    }
+
+    void testAndOr() {
+        CloudEntity ce = entity("a", 3);
+        ce.put("s", "x");
+        assertMatches(true, Filter.and(Filter.gt("n", 1), Filter.eq("s", "x")), ce);
+        assertMatches(false, Filter.and(Filter.gt("n", 1), Filter.eq("s", "y")), ce);
+        assertMatches(true, Filter.or(Filter.gt("n", 5), Filter.eq("s", "x")), ce);
+        assertMatches(false, Filter.or(Filter.gt("n", 5), Filter.eq("s", "y")), ce);
+        assertMatches(true, Filter.or(Filter.and(Filter.ge("n", 3), Filter.lt("n", 4)),
+                Filter.eq("n", 9)), ce);
+    }
+
+    void testDates() {
+        CloudEntity ce = new CloudEntity("Post");
+        ce.setCreatedAt(new Date(1000000));
+        DateTime before = new DateTime(999000);
+        assertMatches(true, Filter.gt(CloudEntity.PROP_CREATED_AT, before), ce);
+        assertMatches(false, Filter.lt(CloudEntity.PROP_CREATED_AT, before), ce);
+        // an RFC 3339 string, as a DateTime filter value after a JSON round
+        // trip
+        assertMatches(true, Filter.gt(CloudEntity.PROP_CREATED_AT, before.toStringRfc3339()), ce);
+        assertMatches(true, Filter.eq(CloudEntity.PROP_CREATED_AT, new DateTime(1000000)), ce);
+
+        // a date property is stored as a DateTime
+        ce.put("due", new DateTime(5000));
+        assertMatches(true, Filter.le("due", new DateTime(5000)), ce);
+    }
+
+    // references are compared in their encoded form, as on the backend, and
+    // a string that looks like one is not a reference
+    void testReferences() {
+        CloudEntity ce = new CloudEntity("Comment");
+        ce.put("post", new CloudRef("Post", "p1"));
+        assertMatches(true, Filter.eq("post", new CloudRef("Post", "p1")), ce);
+        assertMatches(false, Filter.eq("post", new CloudRef("Post", "p2")), ce);
+        assertMatches(false, Filter.eq("post", "_ref:Post/p1"), ce);
+
+        CloudEntity text = new CloudEntity("Comment");
+        text.put("post", "_ref:Post/p1");
+        assertMatches(true, Filter.eq("post", "_ref:Post/p1"), text);
+        assertMatches(false, Filter.eq("post", new CloudRef("Post", "p1")), text);
+    }
+
+    // a pending update replaces the result, a pending delete removes it, and
+    // a pending insert is added if it matches the filter
+    void testApplyPendingWrites() {
+        CloudQuery query = new CloudQuery("Post").setFilter(Filter.ge("n", 2))
+                .setSort("n", Order.ASC);
+        List<CloudEntity> results = list(entity("a", 2), entity("b", 3), entity("c", 4));
+        Map<String, CloudEntity> pending = new LinkedHashMap<String, CloudEntity>();
+        pending.put("a", entity("a", 5));
+        pending.put("b", null);
+        pending.put("d", entity("d", 1));
+        pending.put("e", entity("e", 2));
+        List<CloudEntity> merged = LocalQueryEvaluator.applyPendingWrites(query, results,
+                pending);
+        assertEquals("e=2,c=4,a=5", describe(merged), "merged results");
+
+        // a pending update that no longer matches the filter is removed
+        pending.clear();
+        pending.put("c", entity("c", 0));
+        merged = LocalQueryEvaluator.applyPendingWrites(query, results, pending);
+        assertEquals("a=2,b=3", describe(merged), "update out of the filter");
+
+        // no results from the backend yet
+        merged = LocalQueryEvaluator.applyPendingWrites(query, null, pending);
+        assertEquals("", describe(merged), "no results");
+    }
+
+    void testSortAndLimit() {
+        List<CloudEntity> results = list(entity("a", 2), entity("b", 3));
+        CloudEntity missing = new CloudEntity("Post");
+        missing.setId("m");
+        Map<String, CloudEntity> pending = new LinkedHashMap<String, CloudEntity>();
+        pending.put("m", missing);
+        pending.put("c", entity("c", 1));
+
+        CloudQuery descending = new CloudQuery("Post").setSort("n", Order.DESC);
+        assertEquals("b=3,a=2,c=1,m=null", describe(
+                LocalQueryEvaluator.applyPendingWrites(descending, results, pending)),
+                "descending, missing values last");
+
+        CloudQuery limited = new CloudQuery("Post").setSort("n", Order.ASC).setLimit(2);
+        assertEquals("c=1,a=2", describe(
+                LocalQueryEvaluator.applyPendingWrites(limited, results, pending)), "limit");
+    }
+
+    void testNoPendingWrites() {
+        List<CloudEntity> results = list(entity("a", 2));
+        assertTrue(results == LocalQueryEvaluator.applyPendingWrites(new CloudQuery("Post"),
+                results, new LinkedHashMap<String, CloudEntity>()), "results copied");
+    }
+
+    private static CloudEntity entity(String id, int n) {
+        CloudEntity ce = new CloudEntity("Post");
+        ce.setId(id);
+        ce.put("n", n);
+        return ce;
+    }
+
+    private static List<CloudEntity> list(CloudEntity... entities) {
+        return new ArrayList<CloudEntity>(Arrays.asList(entities));
+    }
+
+    // the ids and values of n of the entities, in order
+    private static String describe(List<CloudEntity> entities) {
+        StringBuilder sb = new StringBuilder();
+        for (CloudEntity ce : entities) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(ce.getId()).append('=').append(ce.get("n"));
+        }
+        return sb.toString();
+    }
+
+    private static void assertMatches(boolean expected, Filter filter, CloudEntity ce) {
+        boolean matches = LocalQueryEvaluator.matches(
+                filter == null ? null : filter.getFilterDto(), ce);
+        if (matches != expected) {
+            throw new AssertionError((filter == null ? "no filter" : filter.getFilterDto())
+                    + " on " + ce.getProperties() + ": expected " + expected);
+        }
+    }
+
+    private static void assertEquals(Object expected, Object actual, String message) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    private static void assertTrue(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Crash-consistency tests of {@link OutboxJournal}: the journal is truncated
+ * and corrupted at every byte offset, and recovery must return exactly the
+ * records before the damage, truncate the file to them, and accept appends
+ * afterwards. Compaction must leave the journal usable when it fails.
+ * <p>
+ * The journal is plain Java, so the tests run on the JVM without Android. Run
+ * them with {@code java com.google.cloud.backend.core.OutboxJournalTest}
+ * (compile them with OutboxJournal of the core package). They exit with an
+ * AssertionError on the first failure.
+ */
+public class OutboxJournalTest {
+
+    private final File dir;
+
+    private OutboxJournalTest(File dir) {
+        this.dir = dir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File dir = File.createTempFile("outbox", "test");
+        dir.delete();
+        if (!dir.mkdir()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        OutboxJournalTest test = new OutboxJournalTest(dir);
+        try {
+            test.testRoundTrip();
+            test.testTruncationAtEveryOffset();
+            test.testCorruptionAtEveryOffset();
+            test.testCompaction();
+            test.testFailedCompactionKeepsJournal();
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+        System.out.println("OutboxJournalTest: all tests passed");
+    }
+
+    void testRoundTrip() throws IOException {
+        File file = new File(dir, "roundtrip");
+        List<byte[]> records = newRecords();
+        writeJournal(file, records);
+
+        OutboxJournal journal = new OutboxJournal(file);
+        assertRecords(records, journal.recover());
+        assertEquals(0, journal.getTruncatedBytes());
+        journal.close();
+    }
+
+    void testTruncationAtEveryOffset() throws IOException {
+        File file = new File(dir, "truncated");
+        List<byte[]> records = newRecords();
+        byte[] bytes = writeJournal(file, records);
+        long[] ends = recordEnds(records);
+
+        for (int length = 0; length <= bytes.length; length++) {
+            writeBytes(file, Arrays.copyOf(bytes, length));
+            int complete = 0;
+            while (complete < ends.length && ends[complete] <= length) {
+                complete++;
+            }
+            long validLength = complete == 0 ? 0 : ends[complete - 1];
+            String at = "truncated at " + length;
+
+            OutboxJournal journal = new OutboxJournal(file);
+            assertRecords(records.subList(0, complete), journal.recover(), at);
+            assertEquals(length - validLength, journal.getTruncatedBytes(), at);
+            assertEquals(validLength, file.length(), at);
+
+            // an append after recovery follows the last valid record
+            byte[] next = "appended after recovery".getBytes("UTF-8");
+            journal.append(next);
+            journal.close();
+            List<byte[]> expected = new ArrayList<byte[]>(records.subList(0, complete));
+            expected.add(next);
+            OutboxJournal reopened = new OutboxJournal(file);
+            assertRecords(expected, reopened.recover(), at + ", after append");
+            reopened.close();
+        }
+    }
+
+    void testCorruptionAtEveryOffset() throws IOException {
+        File file = new File(dir, "corrupted");
+        List<byte[]> records = newRecords();
+        byte[] bytes = writeJournal(file, records);
+        long[] ends = recordEnds(records);
+
+        for (int offset = 0; offset < bytes.length; offset++) {
+            byte[] corrupted = bytes.clone();
+            corrupted[offset] ^= 0x5a;
+            writeBytes(file, corrupted);
+
+            // the damaged record and the ones after it are dropped
+            int intact = 0;
+            while (ends[intact] <= offset) {
+                intact++;
+            }
+            long validLength = intact == 0 ? 0 : ends[intact - 1];
+            String at = "corrupted at " + offset;
+
+            OutboxJournal journal = new OutboxJournal(file);
+            assertRecords(records.subList(0, intact), journal.recover(), at);
+            assertEquals(validLength, file.length(), at);
+            journal.close();
+        }
+    }
+
+    void testCompaction() throws IOException {
+        File file = new File(dir, "compacted");
+        List<byte[]> records = newRecords();
+        writeJournal(file, records);
+
+        OutboxJournal journal = new OutboxJournal(file);
+        journal.recover();
+        List<byte[]> kept = records.subList(1, 3);
+        journal.compact(kept);
+        byte[] next = "appended after compaction".getBytes("UTF-8");
+        journal.append(next);
+        journal.close();
+
+        List<byte[]> expected = new ArrayList<byte[]>(kept);
+        expected.add(next);
+        OutboxJournal reopened = new OutboxJournal(file);
+        assertRecords(expected, reopened.recover());
+        reopened.close();
+        assertTrue(!new File(file.getPath() + ".tmp").exists(), "temp file left");
+    }
+
+    void testFailedCompactionKeepsJournal() throws IOException {
+        File file = new File(dir, "failed");
+        List<byte[]> records = newRecords();
+        writeJournal(file, records);
+
+        // a directory in place of the temp file makes the compaction fail
+        File tmp = new File(file.getPath() + ".tmp");
+        assertTrue(tmp.mkdir(), "failed to create " + tmp);
+        OutboxJournal journal = new OutboxJournal(file);
+        journal.recover();
+        try {
+            journal.compact(records.subList(0, 1));
+            throw new AssertionError("compaction did not fail");
+        } catch (IOException expected) {
+            // the journal stays open
+        }
+        tmp.delete();
+        byte[] next = "appended after a failed compaction".getBytes("UTF-8");
+        journal.append(next);
+        journal.close();
+
+        List<byte[]> expected = new ArrayList<byte[]>(records);
+        expected.add(next);
+        OutboxJournal reopened = new OutboxJournal(file);
+        assertRecords(expected, reopened.recover());
+        reopened.close();
+    }
+
+    // records of various lengths, including an empty one
+    private static List<byte[]> newRecords() throws IOException {
+        List<byte[]> records = new ArrayList<byte[]>();
+        records.add("{\"seq\":1,\"op\":\"INSERT\",\"kindName\":\"Post\"}".getBytes("UTF-8"));
+        records.add(new byte[0]);
+        records.add("{\"acks\":[1]}".getBytes("UTF-8"));
+        byte[] large = new byte[300];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        records.add(large);
+        return records;
+    }
+
+    // writes the records with OutboxJournal and returns the file content
+    private static byte[] writeJournal(File file, List<byte[]> records) throws IOException {
+        file.delete();
+        OutboxJournal journal = new OutboxJournal(file);
+        journal.recover();
+        for (byte[] record : records) {
+            journal.append(record);
+        }
+        journal.close();
+        return readBytes(file);
+    }
+
+    // the end offset of each record in the file
+    private static long[] recordEnds(List<byte[]> records) {
+        long[] ends = new long[records.size()];
+        long end = 0;
+        for (int i = 0; i < records.size(); i++) {
+            end += OutboxJournal.HEADER_LENGTH + records.get(i).length;
+            ends[i] = end;
+        }
+        return ends;
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int off = 0;
+            while (off < bytes.length) {
+                int n = in.read(bytes, off, bytes.length - off);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                off += n;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static void writeBytes(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void assertRecords(List<byte[]> expected, List<byte[]> actual) {
+        assertRecords(expected, actual, "");
+    }
+
+    private static void assertRecords(List<byte[]> expected, List<byte[]> actual,
+            String message) {
+        assertEquals(expected.size(), actual.size(), message + ": record count");
+        for (int i = 0; i < expected.size(); i++) {
+            assertTrue(Arrays.equals(expected.get(i), actual.get(i)),
+                    message + ": record " + i + " differs");
+        }
+    }
+
+    private static void assertEquals(long expected, long actual) {
+        assertEquals(expected, actual, "");
+    }
+
+    private static void assertEquals(long expected, long actual, String message) {
+        if (expected != actual) {
+            throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    private static void assertTrue(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
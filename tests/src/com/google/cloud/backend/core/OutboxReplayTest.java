@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.core;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.cloud.backend.core.CloudResilience.Operation;
+import com.google.cloud.backend.localserver.LocalBackendServer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tests of the retries of the writes against a {@link LocalBackendServer}
+ * that drops responses after it has committed the writes: the retries of
+ * {@link CloudBackend}, the retries of the chunks of {@link CloudBulkWriter}
+ * and the replay of an outbox batch with its journaled key must each leave
+ * the entities written once.
+ * <p>
+ * Run them with {@code java com.google.cloud.backend.core.OutboxReplayTest}
+ * (compile them with the core package, the mobilebackend endpoint library,
+ * localserver/src and the jars of libs, with the android.util.Log test double
+ * of tests/src before android.jar). They exit with an AssertionError on the
+ * first failure.
+ */
+public class OutboxReplayTest {
+
+    private static final int NO_RETRY_DEADLINE_MS = 1;
+
+    private final LocalBackendServer server;
+
+    private OutboxReplayTest(LocalBackendServer server) {
+        this.server = server;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // HttpURLConnection sends a POST again when its response is lost,
+        // which would hide the dropped responses
+        System.setProperty("sun.net.http.retryPost", "false");
+        // the client logs every failed attempt, which the tests cause
+        Logger.getLogger("com.google.api.client").setLevel(Level.OFF);
+        LocalBackendServer server = new LocalBackendServer(0);
+        server.start();
+        try {
+            OutboxReplayTest test = new OutboxReplayTest(server);
+            test.testBackendRetry();
+            // every request outlasts the deadline of the backends without
+            // retries
+            server.setLatency(NO_RETRY_DEADLINE_MS * 10);
+            test.testBulkWriterRetry();
+            test.testOutboxReplay();
+            test.testOutboxReplayOfPartialBatch();
+            test.testNewKey();
+        } finally {
+            server.stop();
+        }
+        System.out.println("OutboxReplayTest: all tests passed");
+    }
+
+    // the responses of the first two attempts are lost: the request is
+    // retried with the same key and the entity is inserted once
+    void testBackendRetry() throws IOException {
+        CloudBackend backend = newBackend(true);
+        int replayed = server.getReplayedCount();
+        server.dropNextResponses(2);
+        CloudEntity inserted = backend.insert(newEntity("BackendRetry", 0));
+        assertTrue(inserted.getId() != null, "backend retry: no id");
+        assertEquals(1, server.getStore().count("BackendRetry"), "backend retry: entities");
+        assertEquals(2, server.getReplayedCount() - replayed, "backend retry: replayed");
+
+        server.dropNextResponses(1);
+        backend.insertAll(newEntities("BackendRetry", 3));
+        assertEquals(4, server.getStore().count("BackendRetry"), "backend retry: batch");
+    }
+
+    // the requests are not retried by the backend, so the chunks whose
+    // responses are lost are retried by the writer with their keys
+    void testBulkWriterRetry() throws IOException {
+        CloudBackend backend = newBackend(false);
+        int replayed = server.getReplayedCount();
+        server.dropNextResponses(3);
+        List<CloudEntity> results = new CloudBulkWriter(backend).setMaxEntitiesPerChunk(2)
+                .setMaxRetries(3).insertAll(newEntities("BulkRetry", 7));
+        assertEquals(7, results.size(), "bulk retry: results");
+        assertEquals(7, server.getStore().count("BulkRetry"), "bulk retry: entities");
+        assertEquals(3, server.getReplayedCount() - replayed, "bulk retry: replayed");
+    }
+
+    // the batch fails as its response is lost, and is sent again as
+    // journaled (the same entities and key) as CloudOutbox does
+    void testOutboxReplay() throws IOException {
+        CloudBackend backend = newBackend(false);
+        List<CloudEntity> batch = newEntities("OutboxReplay", 5);
+        String key = CloudBackend.newIdempotencyKey();
+        server.dropNextResponses(1);
+        try {
+            newOutboxWriter(backend).insertAll(batch, key);
+            throw new AssertionError("outbox replay: the first send did not fail");
+        } catch (CloudBatchException expected) {
+        }
+        assertEquals(5, server.getStore().count("OutboxReplay"), "outbox replay: first send");
+        List<CloudEntity> results = newOutboxWriter(backend).insertAll(batch, key);
+        assertEquals(5, results.size(), "outbox replay: results");
+        assertEquals(5, server.getStore().count("OutboxReplay"), "outbox replay: entities");
+
+        // a batch replayed after a crash, whose send had succeeded
+        newOutboxWriter(backend).insertAll(batch, key);
+        assertEquals(5, server.getStore().count("OutboxReplay"), "outbox replay: crash");
+    }
+
+    // one chunk of the batch fails and the others succeed: the replay sends
+    // all the chunks again, and every chunk is applied once
+    void testOutboxReplayOfPartialBatch() throws IOException {
+        CloudBackend backend = newBackend(false);
+        List<CloudEntity> batch = newEntities("PartialReplay", 6);
+        String key = CloudBackend.newIdempotencyKey();
+        server.dropNextResponses(1);
+        try {
+            newOutboxWriter(backend).setMaxEntitiesPerChunk(2).insertAll(batch, key);
+            throw new AssertionError("partial replay: the first send did not fail");
+        } catch (CloudBatchException e) {
+            assertEquals(2, e.getErrors().size(), "partial replay: failed entities");
+        }
+        int replayed = server.getReplayedCount();
+        newOutboxWriter(backend).setMaxEntitiesPerChunk(2).insertAll(batch, key);
+        assertEquals(6, server.getStore().count("PartialReplay"), "partial replay: entities");
+        assertEquals(3, server.getReplayedCount() - replayed, "partial replay: replayed");
+    }
+
+    // the batch is sent again under a new key (as when the key is not
+    // journaled): the server applies it twice, so the tests above do not
+    // pass by chance
+    void testNewKey() throws IOException {
+        CloudBackend backend = newBackend(false);
+        List<CloudEntity> batch = newEntities("NewKey", 2);
+        server.dropNextResponses(1);
+        try {
+            newOutboxWriter(backend).insertAll(batch, CloudBackend.newIdempotencyKey());
+            throw new AssertionError("new key: the first send did not fail");
+        } catch (CloudBatchException expected) {
+        }
+        newOutboxWriter(backend).insertAll(batch, CloudBackend.newIdempotencyKey());
+        assertEquals(4, server.getStore().count("NewKey"), "new key: entities");
+    }
+
+    // a backend of the server. Without retries (the deadline has passed when
+    // a request fails), a lost response fails the request.
+    private CloudBackend newBackend(boolean retries) {
+        CloudResilience resilience = new CloudResilience(new CloudMetrics());
+        if (!retries) {
+            for (Operation op : Operation.values()) {
+                resilience.setTimeouts(op, Consts.CONNECT_TIMEOUT_MS, Consts.READ_TIMEOUT_MS,
+                        NO_RETRY_DEADLINE_MS);
+            }
+        }
+        CloudBackend backend = new CloudBackend();
+        backend.setRootUrl(server.getRootUrl());
+        backend.setTransport(new NetHttpTransport());
+        backend.setResilience(resilience);
+        backend.setValidatorCache(null);
+        return backend;
+    }
+
+    // a writer as CloudOutbox sends its batches with
+    private static CloudBulkWriter newOutboxWriter(CloudBackend backend) {
+        return new CloudBulkWriter(backend).setMaxRetries(0);
+    }
+
+    private static CloudEntity newEntity(String kindName, int i) {
+        CloudEntity ce = new CloudEntity(kindName);
+        ce.put("message", "message " + i);
+        return ce;
+    }
+
+    private static List<CloudEntity> newEntities(String kindName, int size) {
+        List<CloudEntity> ceList = new ArrayList<CloudEntity>();
+        for (int i = 0; i < size; i++) {
+            ceList.add(newEntity(kindName, i));
+        }
+        return ceList;
+    }
+
+    private static void assertEquals(int expected, int actual, String message) {
+        if (expected != actual) {
+            throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    private static void assertTrue(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
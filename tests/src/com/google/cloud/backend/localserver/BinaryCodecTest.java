@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.backend.localserver;
+
+import com.google.api.client.util.Data;
+import com.google.api.client.util.DateTime;
+import com.google.cloud.backend.android.mobilebackend.model.EntityDto;
+import com.google.cloud.backend.android.mobilebackend.model.EntityListDto;
+import com.google.cloud.backend.core.BinaryEntityCodec;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests that the binary entity format of the client ({@link BinaryEntityCodec})
+ * and of the local server ({@link BinaryCodec}) agree: the messages written by
+ * one are read by the other with the same dates, numbers, nulls, lists and
+ * nested maps, and the dictionary of the property names is shared by the
+ * entities of a list.
+ * <p>
+ * The tests are in the package of the local server, as BinaryCodec is
+ * package-private. Run them with
+ * {@code java com.google.cloud.backend.localserver.BinaryCodecTest} (compile
+ * them with the core package, the mobilebackend endpoint library, the local
+ * server and the jars of libs). They exit with an AssertionError on the first
+ * failure.
+ */
+public class BinaryCodecTest {
+
+    private static final long CREATED_AT = 1370000000123L;
+
+    private static final long UPDATED_AT = 1370000456789L;
+
+    public static void main(String[] args) throws IOException {
+        BinaryCodecTest test = new BinaryCodecTest();
+        test.testClientToServer();
+        test.testServerToClient();
+        test.testClientDictionary();
+        test.testServerDictionary();
+        test.testNegativeAndLargeNumbers();
+        System.out.println("BinaryCodecTest: all tests passed");
+    }
+
+    void testClientToServer() throws IOException {
+        JsonObject o = BinaryCodec.decode(BinaryEntityCodec.encode(newEntityDto("e1")))
+                .getAsJsonObject();
+        assertEquals("e1", o.get("id").getAsString(), "id");
+        assertEquals("Post", o.get("kindName").getAsString(), "kindName");
+        assertEquals(EntityStore.formatDate(new Date(CREATED_AT)),
+                o.get("createdAt").getAsString(), "createdAt");
+        assertEquals(EntityStore.formatDate(new Date(UPDATED_AT)),
+                o.get("updatedAt").getAsString(), "updatedAt");
+
+        JsonObject p = o.getAsJsonObject("properties");
+        assertEquals(42L, p.get("count").getAsLong(), "integer");
+        assertEquals(1.5, p.get("ratio").getAsDouble(), "double");
+        assertEquals(new BigDecimal("12.345"), p.get("price").getAsBigDecimal(), "decimal");
+        assertEquals(true, p.get("flag").getAsBoolean(), "boolean");
+        assertTrue(p.get("nothing").isJsonNull(), "null");
+        assertEquals(new DateTime(CREATED_AT, 0).toStringRfc3339(),
+                p.get("due").getAsString(), "date inside the properties");
+        JsonArray tags = p.getAsJsonArray("tags");
+        assertEquals(3, tags.size(), "list size");
+        assertEquals("red", tags.get(0).getAsString(), "list string");
+        assertEquals(7L, tags.get(1).getAsLong(), "list number");
+        assertTrue(tags.get(2).isJsonNull(), "list null");
+        JsonObject author = p.getAsJsonObject("author");
+        assertEquals("Ann", author.get("name").getAsString(), "nested string");
+        assertEquals(2L, author.getAsJsonArray("scores").get(1).getAsLong(), "nested list");
+    }
+
+    void testServerToClient() throws IOException {
+        EntityDto dto = BinaryEntityCodec.decode(
+                new ByteArrayInputStream(BinaryCodec.encode(newEntityJson("e1"))),
+                EntityDto.class);
+        assertEquals("e1", dto.getId(), "id");
+        assertEquals("Post", dto.getKindName(), "kindName");
+        assertEquals(CREATED_AT, dto.getCreatedAt().getValue(), "createdAt");
+        assertEquals(UPDATED_AT, dto.getUpdatedAt().getValue(), "updatedAt");
+
+        // as parsed from JSON: numbers are BigDecimals, nulls the null of Data
+        Map<?, ?> p = (Map<?, ?>) dto.getProperties();
+        assertEquals(new BigDecimal(42), p.get("count"), "integer");
+        assertEquals(0, new BigDecimal("1.5").compareTo((BigDecimal) p.get("ratio")), "double");
+        assertEquals(new BigDecimal("12.345"), p.get("price"), "decimal");
+        assertEquals(Boolean.TRUE, p.get("flag"), "boolean");
+        assertTrue(Data.isNull(p.get("nothing")), "null");
+        assertEquals("2013-05-31T11:33:20.123Z", p.get("due"), "date inside the properties");
+        List<?> tags = (List<?>) p.get("tags");
+        assertEquals(3, tags.size(), "list size");
+        assertEquals("red", tags.get(0), "list string");
+        assertEquals(new BigDecimal(7), tags.get(1), "list number");
+        assertTrue(Data.isNull(tags.get(2)), "list null");
+        Map<?, ?> author = (Map<?, ?>) p.get("author");
+        assertEquals("Ann", author.get("name"), "nested string");
+        assertEquals(new BigDecimal(2), ((List<?>) author.get("scores")).get(1), "nested list");
+    }
+
+    // the property names are written once per message, and the server reads
+    // them back for each entity
+    void testClientDictionary() throws IOException {
+        List<EntityDto> entries = new ArrayList<EntityDto>();
+        for (int i = 0; i < 3; i++) {
+            entries.add(newEntityDto("e" + i));
+        }
+        byte[] message = BinaryEntityCodec.encode(new EntityListDto().setEntries(entries));
+        assertEquals(1, count(message, "someLongPropertyName"), "property name written");
+        assertEquals(1, count(message, "kindName"), "field name written");
+
+        JsonArray decoded = BinaryCodec.decode(message).getAsJsonObject()
+                .getAsJsonArray("entries");
+        assertEquals(3, decoded.size(), "entries");
+        for (int i = 0; i < 3; i++) {
+            JsonObject o = decoded.get(i).getAsJsonObject();
+            assertEquals("e" + i, o.get("id").getAsString(), "id");
+            assertEquals("x", o.getAsJsonObject("properties").get("someLongPropertyName")
+                    .getAsString(), "property of entity " + i);
+        }
+    }
+
+    void testServerDictionary() throws IOException {
+        JsonArray entries = new JsonArray();
+        for (int i = 0; i < 3; i++) {
+            entries.add(newEntityJson("e" + i));
+        }
+        JsonObject list = new JsonObject();
+        list.add("entries", entries);
+        byte[] message = BinaryCodec.encode(list);
+        assertEquals(1, count(message, "someLongPropertyName"), "property name written");
+
+        EntityListDto dto = BinaryEntityCodec.decode(new ByteArrayInputStream(message),
+                EntityListDto.class);
+        assertEquals(3, dto.getEntries().size(), "entries");
+        for (int i = 0; i < 3; i++) {
+            EntityDto e = dto.getEntries().get(i);
+            assertEquals("e" + i, e.getId(), "id");
+            assertEquals(CREATED_AT, e.getCreatedAt().getValue(), "createdAt of entity " + i);
+            assertEquals("x", ((Map<?, ?>) e.getProperties()).get("someLongPropertyName"),
+                    "property of entity " + i);
+        }
+    }
+
+    // zigzag varints on both sides, and the numbers beyond a long as decimals
+    void testNegativeAndLargeNumbers() throws IOException {
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("min", Long.MIN_VALUE);
+        properties.put("negative", -1);
+        properties.put("huge", new BigDecimal("123456789012345678901234567890"));
+        EntityDto dto = new EntityDto().setId("e1").setProperties(properties);
+        JsonObject p = BinaryCodec.decode(BinaryEntityCodec.encode(dto)).getAsJsonObject()
+                .getAsJsonObject("properties");
+        assertEquals(Long.MIN_VALUE, p.get("min").getAsLong(), "min long");
+        assertEquals(-1L, p.get("negative").getAsLong(), "negative");
+        assertEquals(new BigDecimal("123456789012345678901234567890"),
+                p.get("huge").getAsBigDecimal(), "huge");
+
+        JsonObject o = new JsonObject();
+        o.add("properties", p);
+        Map<?, ?> back = (Map<?, ?>) BinaryEntityCodec.decode(
+                new ByteArrayInputStream(BinaryCodec.encode(o)), EntityDto.class)
+                .getProperties();
+        assertEquals(BigDecimal.valueOf(Long.MIN_VALUE), back.get("min"), "min long back");
+        assertEquals(new BigDecimal(-1), back.get("negative"), "negative back");
+        assertEquals(new BigDecimal("123456789012345678901234567890"), back.get("huge"),
+                "huge back");
+    }
+
+    // an entity of the client with values of every type
+    private static EntityDto newEntityDto(String id) {
+        Map<String, Object> author = new LinkedHashMap<String, Object>();
+        author.put("name", "Ann");
+        author.put("scores", Arrays.asList(1, 2));
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("count", 42);
+        properties.put("ratio", 1.5);
+        properties.put("price", new BigDecimal("12.345"));
+        properties.put("flag", true);
+        properties.put("nothing", Data.nullOf(Object.class));
+        properties.put("due", new DateTime(CREATED_AT, 0));
+        properties.put("tags", Arrays.<Object> asList("red", 7, Data.nullOf(Object.class)));
+        properties.put("author", author);
+        properties.put("someLongPropertyName", "x");
+        return new EntityDto().setId(id).setKindName("Post")
+                .setCreatedAt(new DateTime(CREATED_AT, 0))
+                .setUpdatedAt(new DateTime(UPDATED_AT, 0)).setProperties(properties);
+    }
+
+    // the same entity as stored by the server
+    private static JsonObject newEntityJson(String id) {
+        JsonObject author = new JsonObject();
+        author.addProperty("name", "Ann");
+        JsonArray scores = new JsonArray();
+        scores.add(new JsonPrimitive(1));
+        scores.add(new JsonPrimitive(2));
+        author.add("scores", scores);
+        JsonArray tags = new JsonArray();
+        tags.add(new JsonPrimitive("red"));
+        tags.add(new JsonPrimitive(7));
+        tags.add(JsonNull.INSTANCE);
+        JsonObject properties = new JsonObject();
+        properties.addProperty("count", 42);
+        properties.addProperty("ratio", 1.5);
+        properties.addProperty("price", new BigDecimal("12.345"));
+        properties.addProperty("flag", true);
+        properties.add("nothing", JsonNull.INSTANCE);
+        properties.addProperty("due", "2013-05-31T11:33:20.123Z");
+        properties.add("tags", tags);
+        properties.add("author", author);
+        properties.addProperty("someLongPropertyName", "x");
+        JsonObject o = new JsonObject();
+        o.addProperty("id", id);
+        o.addProperty("kindName", "Post");
+        o.addProperty("createdAt", EntityStore.formatDate(new Date(CREATED_AT)));
+        o.addProperty("updatedAt", EntityStore.formatDate(new Date(UPDATED_AT)));
+        o.add("properties", properties);
+        return o;
+    }
+
+    // the number of occurrences of the UTF-8 string in the message
+    private static int count(byte[] message, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        int count = 0;
+        for (int i = 0; i + bytes.length <= message.length; i++) {
+            int j = 0;
+            while (j < bytes.length && message[i + j] == bytes[j]) {
+                j++;
+            }
+            if (j == bytes.length) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void assertEquals(Object expected, Object actual, String message) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    private static void assertTrue(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}